@@ -0,0 +1,53 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Vector;
+
+import com.dickimawbooks.passlib.*;
+
+/**
+ * Provides the benchmarks with access to the parts of
+ * AssignmentProcess that are only available to subclasses.
+ */
+public class BenchAssignmentProcess extends AssignmentProcess
+{
+   public BenchAssignmentProcess(Pass main)
+   {
+      super(main);
+   }
+
+   public String scrubFileName(File dir, String name, boolean extended)
+   {
+      return getScrubbedFileName(dir, name, extended);
+   }
+
+   public String zip(String base, File zipFile, Vector<PassFile> files,
+     Path basePath)
+   throws IOException
+   {
+      setBasePath(basePath);
+      return createZipFile(base, zipFile, files);
+   }
+
+   public void parseLog(File logFile) throws IOException
+   {
+      parseLaTeXLog(logFile);
+   }
+}
@@ -0,0 +1,464 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Creates the input files used by the benchmarks. The content is
+ * generated from a fixed seed, so each run of the benchmarks uses
+ * the same input, and is modelled on the files PASS actually has to
+ * process (student program output, submitted source code, LaTeX
+ * logs, course XML files and server upload lists).
+ */
+public class BenchData
+{
+   private BenchData()
+   {
+   }
+
+   /**
+    * Creates a file containing program output. Most of the content
+    * is printable ASCII with TAB characters and the occasional
+    * overlong line. The given proportion of bytes are replaced by
+    * control characters, bytes that aren't valid UTF-8 and UTF-8
+    * encoded non-ASCII characters, as produced by a program that
+    * writes binary data to STDOUT.
+    * @param file the file to create
+    * @param size the approximate size in bytes
+    * @param binaryFraction the proportion of bytes that aren't
+    * printable ASCII (between 0 and 1)
+    * @throws IOException if an I/O error occurs
+    */
+   public static void createOutput(File file, long size,
+     double binaryFraction)
+   throws IOException
+   {
+      Random random = new Random(SEED);
+      OutputStream out = null;
+
+      try
+      {
+         out = new BufferedOutputStream(new FileOutputStream(file));
+
+         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+         long count = 0;
+         int line = 0;
+
+         while (count < size)
+         {
+            line++;
+
+            String text;
+
+            if (line % 50 == 0)
+            {
+               StringBuilder builder = new StringBuilder();
+
+               for (int i = 0; i < 40; i++)
+               {
+                  builder.append(String.format("%d,", random.nextInt(100000)));
+               }
+
+               text = builder.toString();
+            }
+            else
+            {
+               text = String.format(
+                 "Iteration %d:\tvalue=%.6f\tstatus=%s\tcount=%d",
+                 line, random.nextDouble(),
+                 random.nextBoolean() ? "OK" : "RETRY", random.nextInt(1000));
+            }
+
+            for (byte b : text.getBytes(StandardCharsets.US_ASCII))
+            {
+               if (random.nextDouble() < binaryFraction)
+               {
+                  switch (random.nextInt(3))
+                  {
+                     case 0:
+                       // control character (but not a line ending)
+                       int c = random.nextInt(0x20);
+                       buffer.write(c == '\n' || c == '\r' ? 0 : c);
+                     break;
+                     case 1:
+                       // invalid as a lone byte in UTF-8
+                       buffer.write(0x80 + random.nextInt(0x80));
+                     break;
+                     default:
+                       // e-acute encoded as UTF-8
+                       buffer.write(0xC3);
+                       buffer.write(0xA9);
+                  }
+               }
+               else
+               {
+                  buffer.write(b);
+               }
+            }
+
+            buffer.write('\n');
+            count += buffer.size();
+            buffer.writeTo(out);
+            buffer.reset();
+         }
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * Creates a tree of source files. Each directory has the given
+    * number of files and subdirectories, down to the given depth.
+    * Some of the file names contain characters that PASS has to
+    * scrub, and some files are already compressed.
+    * @param dir the root directory (which must already exist)
+    * @param depth the number of levels below the root
+    * @param breadth the number of subdirectories in each directory
+    * @param filesPerDir the number of files in each directory
+    * @return the files that were created
+    * @throws IOException if an I/O error occurs
+    */
+   public static Vector<File> createSourceTree(File dir, int depth,
+     int breadth, int filesPerDir)
+   throws IOException
+   {
+      Vector<File> files = new Vector<File>();
+      createSourceTree(dir, depth, breadth, filesPerDir, new Random(SEED),
+        files);
+      return files;
+   }
+
+   private static void createSourceTree(File dir, int depth,
+     int breadth, int filesPerDir, Random random, Vector<File> files)
+   throws IOException
+   {
+      for (int i = 0; i < filesPerDir; i++)
+      {
+         File file;
+
+         switch (i % 8)
+         {
+            case 6:
+              file = new File(dir, String.format("Screen Shot %d (copy).png", i));
+              writeRandomBytes(file, 16384+random.nextInt(32768), random);
+            break;
+            case 7:
+              file = new File(dir, String.format("notes #%d.txt", i));
+              writeSource(file, 2000+random.nextInt(4000), random);
+            break;
+            default:
+              file = new File(dir, String.format("Class%d.java", i));
+              writeSource(file, 2000+random.nextInt(8000), random);
+         }
+
+         files.add(file);
+      }
+
+      if (depth > 0)
+      {
+         for (int i = 0; i < breadth; i++)
+         {
+            File subDir = new File(dir, String.format("pkg%d", i));
+
+            if (!subDir.mkdir())
+            {
+               throw new IOException("Can't create directory "+subDir);
+            }
+
+            createSourceTree(subDir, depth-1, breadth, filesPerDir,
+              random, files);
+         }
+      }
+   }
+
+   private static void writeSource(File file, int size, Random random)
+   throws IOException
+   {
+      PrintWriter out = null;
+
+      try
+      {
+         out = new PrintWriter(file, "UTF-8");
+
+         int count = 0;
+         int line = 0;
+
+         out.println("/* Generated for benchmarking. */");
+         out.println("public class Example");
+         out.println("{");
+
+         while (count < size)
+         {
+            line++;
+
+            String text = String.format(
+              "   private int field%d = %d; // value %s",
+              line, random.nextInt(), Long.toHexString(random.nextLong()));
+
+            out.println(text);
+            count += text.length()+1;
+         }
+
+         out.println("}");
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+   }
+
+   private static void writeRandomBytes(File file, int size, Random random)
+   throws IOException
+   {
+      OutputStream out = null;
+
+      try
+      {
+         out = new FileOutputStream(file);
+
+         byte[] bytes = new byte[size];
+         random.nextBytes(bytes);
+         out.write(bytes);
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * Creates a LaTeX log file similar to the one produced for a
+    * PASS PDF with a lot of listings: file loading messages, box
+    * warnings, LaTeX and package warnings and the occasional
+    * missing character.
+    * @param file the file to create
+    * @param lines the number of lines
+    * @throws IOException if an I/O error occurs
+    */
+   public static void createLaTeXLog(File file, int lines)
+   throws IOException
+   {
+      Random random = new Random(SEED);
+      PrintWriter out = null;
+
+      try
+      {
+         out = new PrintWriter(file, "UTF-8");
+
+         out.println("This is pdfTeX, Version 3.141592653-2.6-1.40.25 (TeX Live 2023) (preloaded format=pdflatex 2023.10.1)  17 OCT 2026 12:00");
+         out.println("entering extended mode");
+         out.println(" restricted \\write18 enabled.");
+
+         for (int i = 0; i < lines; i++)
+         {
+            int kind = random.nextInt(100);
+
+            if (kind < 2)
+            {
+               out.format("LaTeX Warning: Reference `sec:%d' on page %d undefined on input line %d.%n",
+                 i, random.nextInt(200), i);
+            }
+            else if (kind < 3)
+            {
+               out.println("Package rerunfilecheck Warning: File `job.out' has changed.");
+            }
+            else if (kind < 4)
+            {
+               out.format("Missing character: There is no \u00E9 in font cmtt10!%n");
+            }
+            else if (kind < 20)
+            {
+               out.format("Overfull \\hbox (%.5fpt too wide) in paragraph at lines %d--%d%n",
+                 random.nextDouble()*100, i, i+1);
+               out.println("[]\\T1/cmtt/m/n/10 public static void main(String[] args) throws Exception[]");
+               i++;
+            }
+            else if (kind < 40)
+            {
+               out.format("(/usr/share/texlive/texmf-dist/tex/latex/listings/lstlang%d.sty%n",
+                 random.nextInt(3));
+               out.format("File: lstlang%d.sty 2023/02/27 1.9 listings language file%n",
+                 random.nextInt(3));
+            }
+            else if (kind < 60)
+            {
+               out.format("\\openout%d = `job-verb%d.tex'.%n", random.nextInt(16), i);
+            }
+            else
+            {
+               out.format(" [%d] (./job-verb%d.tex)%n", i/50+1, i);
+            }
+         }
+
+         out.println(" ) ");
+         out.println("Here is how much of TeX's memory you used:");
+         out.println("Output written on job.pdf (120 pages, 512000 bytes).");
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * Creates a course XML file with the given number of
+    * assignments. Each assignment has the elements typically found
+    * in a course file (required files, resource files, result
+    * files, arguments, input and test cases).
+    * @param file the file to create
+    * @param assignments the number of assignments
+    * @throws IOException if an I/O error occurs
+    */
+   public static void createCourseXml(File file, int assignments)
+   throws IOException
+   {
+      PrintWriter out = null;
+
+      try
+      {
+         out = new PrintWriter(file, "UTF-8");
+
+         out.println("<?xml version=\"1.0\"?>");
+         out.println("<assignments>");
+         out.println(" <listings>basicstyle=\\ttfamily\\normalsize</listings>");
+         out.println(" <geometry>margin=0.6in</geometry>");
+         out.println(" <fontenc options=\"T1\">");
+         out.println(" \\usepackage{dejavu}");
+         out.println(" </fontenc>");
+         out.println(" <fontspec>");
+         out.println(" \\setmonofont{FreeMono}");
+         out.println(" </fontspec>");
+         out.println(" <maxoutput>10000</maxoutput>");
+         out.println(" <verbatim maxchars=\"85\" tabcount=\"4\" />");
+
+         for (int i = 0; i < assignments; i++)
+         {
+            out.format(" <assignment name=\"assignment%d\"%s>%n", i,
+              i % 3 == 0 ? " language=\"Java\"" : "");
+            out.format("  <!-- Assignment %d -->%n", i);
+            out.format("  <title>Assignment %d: Data Structures &amp; Algorithms</title>%n", i);
+            out.format("  <due>2026-%02d-%02d 16:30</due>%n", i % 12 + 1, i % 28 + 1);
+            out.println("  <compiler-arg>--release</compiler-arg>");
+            out.println("  <compiler-arg>11</compiler-arg>");
+            out.format("  <mainfile>Main%d.java</mainfile>%n", i);
+
+            for (int j = 0; j < 5; j++)
+            {
+               out.format("  <file>Helper%d.java</file>%n", j);
+            }
+
+            out.format("  <report>report%d.pdf</report>%n", i);
+            out.format("  <resourcefile src=\"http://www.example.com/pass/data%d.txt\" />%n", i);
+            out.format("  <resourcefile src=\"http://www.example.com/pass/lib%d.jar\" />%n", i);
+            out.println("  <resultfile type=\"text/plain\" name=\"output.txt\" />");
+            out.println("  <resultfile type=\"image/png\" name=\"image.png\" />");
+            out.println("  <arg>--verbose</arg>");
+            out.println("  <input>Sample Name</input>");
+
+            for (int j = 0; j < 3; j++)
+            {
+               out.format("  <testcase name=\"case%d\" timeout=\"%d\">%n", j, 10+j);
+               out.format("   <arg>input%d.txt</arg>%n", j);
+               out.format("   <input>%d</input>%n", j);
+               out.println("  </testcase>");
+            }
+
+            out.println(" </assignment>");
+         }
+
+         out.println("</assignments>");
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * Creates a TSV file in the format exported by Server Pass (the
+    * format read by PassChecker).
+    * @param file the file to create
+    * @param rows the number of rows (excluding the header)
+    * @throws IOException if an I/O error occurs
+    */
+   public static void createServerTsv(File file, int rows)
+   throws IOException
+   {
+      Random random = new Random(SEED);
+      PrintWriter out = null;
+
+      try
+      {
+         out = new PrintWriter(file, "UTF-8");
+
+         out.print("Submission ID\tUpload Time\tCourse\tAssignment\t");
+         out.println("Exit Code\tUploaded By\tProject Group\tPDF MD5");
+
+         for (int i = 0; i < rows; i++)
+         {
+            String user = String.format("abc%02dxyz", random.nextInt(100));
+            String group = random.nextInt(4) == 0 ?
+               String.format("%s,def%02duvw", user, random.nextInt(100)) : user;
+
+            out.format("%d\t2022-%02d-%02dT%02d%02d%02d000+0000\tCMP-123XY\tassignment%d\t%d\t%s\t%s\t%016x%016x%n",
+              rows-i, random.nextInt(12)+1, random.nextInt(28)+1,
+              random.nextInt(24), random.nextInt(60), random.nextInt(60),
+              random.nextInt(20), random.nextInt(10) == 0 ? 1 : 0,
+              user, group, random.nextLong(), random.nextLong());
+         }
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * Seed used for all generated content.
+    */
+   public static final long SEED = 20221201L;
+}
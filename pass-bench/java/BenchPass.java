@@ -0,0 +1,197 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.util.Date;
+import java.util.Vector;
+import java.nio.file.Path;
+
+import com.dickimawbooks.passlib.*;
+
+/**
+ * Minimal Pass application for the benchmarks. There's no
+ * dictionary (so the default messages are used) and all messages
+ * are discarded, so that the benchmarks measure the code under test
+ * rather than the transcript.
+ */
+public class BenchPass implements Pass
+{
+   /**
+    * Creates a new instance.
+    * @param encoding the file encoding (one of Pass.ENCODING_UTF8,
+    * Pass.ENCODING_LATIN1 or Pass.ENCODING_ASCII)
+    */
+   public BenchPass(String encoding)
+   {
+      this.encoding = encoding;
+      passTools = new PassTools(this);
+   }
+
+   @Override
+   public Date getSubmittedDate()
+   {
+      return null;
+   }
+
+   @Override
+   public long getTimeOut()
+   {
+      return timeout;
+   }
+
+   @Override
+   public void setTimeOut(long value)
+   {
+      timeout = value;
+   }
+
+   @Override
+   public Vector<PassFile> getFiles()
+   {
+      return files;
+   }
+
+   /**
+    * Sets the files returned by getFiles().
+    * @param files the files
+    */
+   public void setFiles(Vector<PassFile> files)
+   {
+      this.files = files;
+   }
+
+   @Override
+   public Path getBasePath()
+   {
+      return null;
+   }
+
+   @Override
+   public AssignmentData getAssignment()
+   {
+      return null;
+   }
+
+   @Override
+   public String getEncoding()
+   {
+      return encoding;
+   }
+
+   @Override
+   public PassTools getPassTools()
+   {
+      return passTools;
+   }
+
+   @Override
+   public boolean isGroupProject()
+   {
+      return false;
+   }
+
+   @Override
+   public Vector<Student> getProjectTeam()
+   {
+      return null;
+   }
+
+   @Override
+   public Student getStudent()
+   {
+      return null;
+   }
+
+   @Override
+   public String getApplicationName()
+   {
+      return "PASS Bench";
+   }
+
+   @Override
+   public String getApplicationVersion()
+   {
+      return "1.0";
+   }
+
+   @Override
+   public boolean isConfirmed()
+   {
+      return true;
+   }
+
+   @Override
+   public void transcriptMessage(String msg)
+   {
+   }
+
+   @Override
+   public void error(String msg)
+   {
+   }
+
+   @Override
+   public void error(Throwable throwable)
+   {
+   }
+
+   @Override
+   public boolean isDebugMode()
+   {
+      return false;
+   }
+
+   @Override
+   public void debug(String msg)
+   {
+   }
+
+   @Override
+   public void debugNoLn(String msg)
+   {
+   }
+
+   @Override
+   public void warning(String msg)
+   {
+      warnings++;
+   }
+
+   @Override
+   public void verboseCodePoint(int cp)
+   {
+   }
+
+   @Override
+   public void verbose(String msg)
+   {
+   }
+
+   /**
+    * Gets the number of warnings issued so far.
+    * @return the number of warnings
+    */
+   public int getWarningCount()
+   {
+      return warnings;
+   }
+
+   private String encoding;
+   private PassTools passTools;
+   private long timeout = 120L;
+   private Vector<PassFile> files = new Vector<PassFile>();
+   private int warnings = 0;
+}
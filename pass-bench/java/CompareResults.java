@@ -0,0 +1,259 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Compares two sets of benchmark results saved in JMH's CSV format
+ * (-rf csv). Each benchmark (with its parameters) in the new
+ * results is listed with its score in both files and the change.
+ * A change is only flagged if it's larger than the combined error
+ * margins. Usage:
+ * <pre>
+ * java -cp pass-bench.jar com.dickimawbooks.passbench.CompareResults base.csv new.csv
+ * </pre>
+ */
+public class CompareResults
+{
+   private CompareResults()
+   {
+   }
+
+   /**
+    * Reads the results in the given file.
+    * @param file the CSV file
+    * @return the results identified by benchmark and parameters
+    * @throws IOException if an I/O error occurs or the file isn't
+    * in the expected format
+    */
+   private static Map<String,Result> read(File file) throws IOException
+   {
+      Map<String,Result> results = new LinkedHashMap<String,Result>();
+
+      BufferedReader in = null;
+
+      try
+      {
+         in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+
+         String line = in.readLine();
+
+         if (line == null)
+         {
+            throw new IOException("Empty results file "+file);
+         }
+
+         Vector<String> header = split(line);
+
+         int nameIdx = header.indexOf("Benchmark");
+         int scoreIdx = header.indexOf("Score");
+         int unitIdx = header.indexOf("Unit");
+         int errorIdx = -1;
+
+         for (int i = 0; i < header.size(); i++)
+         {
+            if (header.get(i).startsWith("Score Error"))
+            {
+               errorIdx = i;
+            }
+         }
+
+         if (nameIdx == -1 || scoreIdx == -1 || unitIdx == -1)
+         {
+            throw new IOException("Not a JMH CSV results file: "+file);
+         }
+
+         while ((line = in.readLine()) != null)
+         {
+            if (line.isEmpty()) continue;
+
+            Vector<String> row = split(line);
+
+            StringBuilder key = new StringBuilder(row.get(nameIdx));
+            String sep = " (";
+
+            for (int i = 0; i < header.size() && i < row.size(); i++)
+            {
+               String col = header.get(i);
+
+               if (col.startsWith("Param: ") && !row.get(i).isEmpty())
+               {
+                  key.append(sep);
+                  key.append(col.substring(7));
+                  key.append('=');
+                  key.append(row.get(i));
+                  sep = ", ";
+               }
+            }
+
+            if (!sep.equals(" ("))
+            {
+               key.append(')');
+            }
+
+            try
+            {
+               Result result = new Result();
+               result.score = Double.parseDouble(row.get(scoreIdx));
+               result.error = errorIdx == -1 || row.get(errorIdx).isEmpty()
+                 || row.get(errorIdx).equals("NaN")
+                 ? 0.0 : Double.parseDouble(row.get(errorIdx));
+               result.unit = row.get(unitIdx);
+
+               results.put(key.toString(), result);
+            }
+            catch (NumberFormatException e)
+            {
+               throw new IOException("Invalid score in "+file+": "+line, e);
+            }
+         }
+      }
+      finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+      }
+
+      return results;
+   }
+
+   /**
+    * Splits a line of CSV.
+    */
+   private static Vector<String> split(String line)
+   {
+      Vector<String> fields = new Vector<String>();
+      StringBuilder builder = new StringBuilder();
+      boolean quoted = false;
+
+      for (int i = 0; i < line.length(); i++)
+      {
+         char c = line.charAt(i);
+
+         if (c == '"')
+         {
+            if (quoted && i+1 < line.length() && line.charAt(i+1) == '"')
+            {
+               builder.append(c);
+               i++;
+            }
+            else
+            {
+               quoted = !quoted;
+            }
+         }
+         else if (c == ',' && !quoted)
+         {
+            fields.add(builder.toString());
+            builder.setLength(0);
+         }
+         else
+         {
+            builder.append(c);
+         }
+      }
+
+      fields.add(builder.toString());
+
+      return fields;
+   }
+
+   public static void main(String[] args)
+   {
+      if (args.length != 2)
+      {
+         System.err.println(
+           "Syntax: CompareResults <base results.csv> <new results.csv>");
+         System.exit(1);
+      }
+
+      try
+      {
+         Map<String,Result> base = read(new File(args[0]));
+         Map<String,Result> current = read(new File(args[1]));
+
+         int width = 9;
+
+         for (String key : current.keySet())
+         {
+            width = Math.max(width, key.length());
+         }
+
+         String format = "%-"+width+"s %12s %12s %-8s %9s%n";
+
+         System.out.format(format, "Benchmark", "Base", "New", "Unit", "Change");
+
+         for (Map.Entry<String,Result> entry : current.entrySet())
+         {
+            Result newResult = entry.getValue();
+            Result baseResult = base.get(entry.getKey());
+
+            if (baseResult == null || !baseResult.unit.equals(newResult.unit))
+            {
+               System.out.format(format, entry.getKey(), "-",
+                 String.format("%.3f", newResult.score), newResult.unit, "new");
+               continue;
+            }
+
+            double diff = newResult.score - baseResult.score;
+
+            String change = baseResult.score == 0.0 ? "-" :
+               String.format("%+.1f%%", 100.0*diff/baseResult.score);
+
+            // Differences within the error margins are just noise.
+
+            if (Math.abs(diff) <= baseResult.error + newResult.error)
+            {
+               change = String.format("(%s)", change);
+            }
+
+            System.out.format(format, entry.getKey(),
+              String.format("%.3f", baseResult.score),
+              String.format("%.3f", newResult.score),
+              newResult.unit, change);
+         }
+
+         System.out.println();
+         System.out.println(
+           "Changes in parentheses are within the error margins.");
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }
+   }
+
+   /**
+    * A benchmark score.
+    */
+   private static class Result
+   {
+      double score, error;
+      String unit;
+   }
+}
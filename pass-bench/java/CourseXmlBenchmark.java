@@ -0,0 +1,95 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.xml.sax.SAXException;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.dickimawbooks.passlib.*;
+
+/**
+ * Measures AssignmentDataParser on a large course XML file. The
+ * file is read from disk, so this doesn't include the time taken
+ * to fetch the file from the course's URL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CourseXmlBenchmark
+{
+   /**
+    * Number of assignments in the course file.
+    */
+   @Param({"50", "1000"})
+   public int assignments;
+
+   @Setup(Level.Trial)
+   public void setup() throws IOException
+   {
+      pass = new BenchPass(Pass.ENCODING_UTF8);
+
+      file = File.createTempFile("pass-bench-course-", ".xml");
+      BenchData.createCourseXml(file, assignments);
+
+      course = new Course("CMP-123XY", file.toURI().toURL());
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      file.delete();
+   }
+
+   @Benchmark
+   public Vector<AssignmentData> parse() throws IOException,SAXException
+   {
+      AssignmentDataParser parser = new AssignmentDataParser(pass);
+
+      InputStream in = null;
+
+      try
+      {
+         in = new BufferedInputStream(new FileInputStream(file));
+         parser.loadAssignments(course, in);
+      }
+      finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+      }
+
+      return parser.getData();
+   }
+
+   private BenchPass pass;
+   private File file;
+   private Course course;
+}
@@ -0,0 +1,73 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.dickimawbooks.passlib.*;
+
+/**
+ * Measures AssignmentProcess.parseLaTeXLog() on the log of a large
+ * PASS document (many verbatim files and listings with box and
+ * reference warnings).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LaTeXLogBenchmark
+{
+   /**
+    * Number of lines in the log file.
+    */
+   @Param({"10000", "200000"})
+   public int lines;
+
+   @Setup(Level.Trial)
+   public void setup() throws IOException
+   {
+      pass = new BenchPass(Pass.ENCODING_UTF8);
+      process = new BenchAssignmentProcess(pass);
+
+      file = File.createTempFile("pass-bench-", ".log");
+      BenchData.createLaTeXLog(file, lines);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      file.delete();
+   }
+
+   @Benchmark
+   public int parseLaTeXLog() throws IOException
+   {
+      process.parseLog(file);
+
+      return pass.getWarningCount();
+   }
+
+   private BenchPass pass;
+   private BenchAssignmentProcess process;
+   private File file;
+}
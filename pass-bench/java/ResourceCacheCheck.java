@@ -0,0 +1,248 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import com.dickimawbooks.passlib.*;
+
+/**
+ * Checks the resource cache against a local HTTP server. This isn't
+ * a benchmark. The server has a single file, which it sends with an
+ * ETag, and counts the full downloads and "not modified" responses,
+ * so that the checks can tell whether the cache made the expected
+ * requests. Usage:
+ * <pre>
+ * make check
+ * </pre>
+ * The exit code is 1 if any check fails.
+ */
+public class ResourceCacheCheck
+{
+   private ResourceCacheCheck() throws IOException
+   {
+      server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+
+      server.createContext("/", this::handle);
+   }
+
+   /**
+    * Responds to a request for the file.
+    */
+   private synchronized void handle(HttpExchange exchange) throws IOException
+   {
+      try
+      {
+         String etag = "\"v"+version+"\"";
+
+         if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+         {
+            notModified++;
+            exchange.sendResponseHeaders(304, -1);
+            return;
+         }
+
+         byte[] data = content.getBytes(StandardCharsets.UTF_8);
+
+         downloads++;
+         exchange.getResponseHeaders().set("ETag", etag);
+         exchange.sendResponseHeaders(200, data.length);
+
+         OutputStream out = exchange.getResponseBody();
+
+         try
+         {
+            out.write(data);
+         }
+         finally
+         {
+            out.close();
+         }
+      }
+      finally
+      {
+         exchange.close();
+      }
+   }
+
+   /**
+    * Changes the file on the server.
+    */
+   private synchronized void setContent(String content)
+   {
+      this.content = content;
+      version++;
+   }
+
+   private synchronized int getDownloads()
+   {
+      return downloads;
+   }
+
+   private synchronized int getNotModified()
+   {
+      return notModified;
+   }
+
+   private void check(boolean condition, String description)
+   {
+      System.out.println((condition ? "ok:   " : "FAIL: ")+description);
+
+      if (!condition)
+      {
+         failures++;
+      }
+   }
+
+   private static String read(Path path) throws IOException
+   {
+      return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+   }
+
+   private static boolean isOwnerWritable(Path path) throws IOException
+   {
+      return Files.getPosixFilePermissions(path).contains(
+        PosixFilePermission.OWNER_WRITE);
+   }
+
+   private static Path jobFile(File dir, String job) throws IOException
+   {
+      Path jobDir = new File(dir, job).toPath();
+      Files.createDirectories(jobDir);
+
+      return jobDir.resolve("data.csv");
+   }
+
+   private void run() throws IOException
+   {
+      File dir = Files.createTempDirectory("pass-cache-check-").toFile();
+
+      server.start();
+
+      try
+      {
+         BenchPass pass = new BenchPass(Pass.ENCODING_UTF8);
+         PassTools passTools = pass.getPassTools();
+
+         File cacheDir = new File(dir, "cache");
+
+         URL url = new URL(String.format("http://%s:%d/data.csv",
+           server.getAddress().getHostString(), server.getAddress().getPort()));
+
+         ResourceCache cache = new ResourceCache(passTools, cacheDir, false);
+
+         Path dest = jobFile(dir, "job1");
+         cache.fetch(url, dest);
+
+         check(FIRST_CONTENT.equals(read(dest)), "first fetch has the content");
+         check(getDownloads() == 1, "first fetch downloads the file");
+
+         dest = jobFile(dir, "job2");
+         cache.fetch(url, dest);
+
+         check(FIRST_CONTENT.equals(read(dest)), "second fetch has the content");
+         check(getDownloads() == 1 && getNotModified() == 1,
+           "second fetch uses a conditional request");
+         check(isOwnerWritable(dest), "job file is writable");
+
+         // A job that changes its file (and restores its permissions
+         // afterwards) mustn't change the file for later jobs.
+
+         Files.write(dest, "poisoned\n".getBytes(StandardCharsets.UTF_8));
+         Files.setPosixFilePermissions(dest,
+           PosixFilePermissions.fromString("r--r--r--"));
+
+         dest = jobFile(dir, "job3");
+         cache.fetch(url, dest);
+
+         check(FIRST_CONTENT.equals(read(dest)),
+           "job's changes don't reach the cache");
+         check(getDownloads() == 1, "unchanged file isn't downloaded again");
+
+         setContent(SECOND_CONTENT);
+
+         dest = jobFile(dir, "job4");
+         cache.fetch(url, dest);
+
+         check(SECOND_CONTENT.equals(read(dest)), "changed file is fetched");
+         check(getDownloads() == 2, "changed file is downloaded");
+
+         int requests = getDownloads()+getNotModified();
+
+         ResourceCache offlineCache = new ResourceCache(passTools, cacheDir,
+           true);
+
+         dest = jobFile(dir, "job5");
+         offlineCache.fetch(url, dest);
+
+         check(SECOND_CONTENT.equals(read(dest)), "offline fetch has the content");
+         check(getDownloads()+getNotModified() == requests,
+           "offline fetch doesn't contact the server");
+         check(isOwnerWritable(dest), "copied file is writable");
+      }
+      finally
+      {
+         server.stop(0);
+         PassTools.deleteDir(dir);
+      }
+   }
+
+   public static void main(String[] args)
+   {
+      try
+      {
+         ResourceCacheCheck checker = new ResourceCacheCheck();
+
+         checker.run();
+
+         if (checker.failures > 0)
+         {
+            System.out.println(checker.failures+" check(s) failed.");
+            System.exit(1);
+         }
+
+         System.out.println("All checks passed.");
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+
+   private HttpServer server;
+   private String content = FIRST_CONTENT;
+   private int version = 1, downloads = 0, notModified = 0, failures = 0;
+
+   private static final String FIRST_CONTENT = "x,y\n1,2\n";
+   private static final String SECOND_CONTENT = "x,y\n3,4\n";
+}
@@ -0,0 +1,70 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.dickimawbooks.passchecker.PassChecker;
+import com.dickimawbooks.passchecker.ServerJobData;
+
+/**
+ * Measures ServerJobData.parse() (used by PassChecker) on a TSV
+ * file exported from Server Pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerJobDataBenchmark
+{
+   /**
+    * Number of rows in the TSV file.
+    */
+   @Param({"100000"})
+   public int rows;
+
+   @Setup(Level.Trial)
+   public void setup() throws IOException
+   {
+      checker = new PassChecker();
+
+      file = File.createTempFile("pass-bench-uploads-", ".tsv");
+      BenchData.createServerTsv(file, rows);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      file.delete();
+   }
+
+   @Benchmark
+   public Vector<ServerJobData> parse() throws IOException
+   {
+      return ServerJobData.parse(checker, file);
+   }
+
+   private PassChecker checker;
+   private File file;
+}
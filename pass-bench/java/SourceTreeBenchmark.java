@@ -0,0 +1,140 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.dickimawbooks.passlib.*;
+
+/**
+ * Measures the per-file work done on a deep tree of submitted
+ * files: scrubbing the file names (AssignmentProcess.getScrubbedFileName)
+ * and creating the zip file attached to the PDF
+ * (AssignmentProcess.createZipFile). The tree contains source
+ * files, files with names that need scrubbing and already
+ * compressed images.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SourceTreeBenchmark
+{
+   /**
+    * Number of directory levels below the project directory.
+    */
+   @Param({"2", "5"})
+   public int depth;
+
+   /**
+    * Number of subdirectories in each directory.
+    */
+   @Param({"3"})
+   public int breadth;
+
+   /**
+    * Number of files in each directory.
+    */
+   @Param({"8"})
+   public int filesPerDir;
+
+   @Setup(Level.Trial)
+   public void setup() throws IOException
+   {
+      pass = new BenchPass(Pass.ENCODING_UTF8);
+      process = new BenchAssignmentProcess(pass);
+
+      dir = Files.createTempDirectory("pass-bench-tree-").toFile();
+      projectDir = new File(dir, "project");
+      projectDir.mkdir();
+
+      files = BenchData.createSourceTree(projectDir, depth, breadth,
+        filesPerDir);
+
+      passFiles = new Vector<PassFile>(files.size());
+
+      for (File file : files)
+      {
+         passFiles.add(new BenchFile(file));
+      }
+
+      zipFile = new File(dir, "submission.zip");
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      PassTools.deleteDir(dir);
+   }
+
+   @Benchmark
+   public void scrubFileNames(Blackhole blackhole)
+   {
+      for (File file : files)
+      {
+         blackhole.consume(process.scrubFileName(file.getParentFile(),
+           file.getName(), false));
+      }
+   }
+
+   @Benchmark
+   public String createZipFile() throws IOException
+   {
+      return process.zip("submission", zipFile, passFiles,
+        projectDir.toPath());
+   }
+
+   private BenchPass pass;
+   private BenchAssignmentProcess process;
+   private File dir, projectDir, zipFile;
+   private Vector<File> files;
+   private Vector<PassFile> passFiles;
+
+   /**
+    * A submitted file.
+    */
+   private static class BenchFile implements PassFile
+   {
+      BenchFile(File file)
+      {
+         this.file = file;
+      }
+
+      @Override
+      public String getLanguage()
+      {
+         return file.getName().endsWith(".java") ? "Java" : null;
+      }
+
+      @Override
+      public File getFile()
+      {
+         return file;
+      }
+
+      private File file;
+   }
+}
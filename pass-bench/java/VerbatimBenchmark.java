@@ -0,0 +1,91 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passbench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.dickimawbooks.passlib.*;
+
+/**
+ * Measures AssignmentProcess.writeVerbatim() on the captured
+ * STDOUT of a student's application. The output is decoded with
+ * the job's encoding as it would be for the PDF, so invalid bytes
+ * are replaced by the decoder before the verbatim conversion marks
+ * them up. The converted text is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerbatimBenchmark
+{
+   /**
+    * Size of the STDOUT file in bytes.
+    */
+   @Param({"4194304"})
+   public long size;
+
+   /**
+    * Proportion of bytes that aren't printable ASCII. The default
+    * values are plain text output and output with binary data.
+    */
+   @Param({"0.0", "0.02"})
+   public double binaryFraction;
+
+   /**
+    * The job's encoding.
+    */
+   @Param({Pass.ENCODING_UTF8, Pass.ENCODING_LATIN1, Pass.ENCODING_ASCII})
+   public String encoding;
+
+   @Setup(Level.Trial)
+   public void setup() throws IOException
+   {
+      pass = new BenchPass(encoding);
+      process = new BenchAssignmentProcess(pass);
+
+      file = File.createTempFile("pass-bench-stdout-", ".txt");
+      BenchData.createOutput(file, size, binaryFraction);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      file.delete();
+   }
+
+   @Benchmark
+   public boolean writeVerbatim() throws IOException
+   {
+      PrintWriter writer = new PrintWriter(Writer.nullWriter());
+
+      return process.writeVerbatim(writer,
+         pass.getPassTools().newInputStreamReader(file), Long.MAX_VALUE);
+   }
+
+   private BenchPass pass;
+   private BenchAssignmentProcess process;
+   private File file;
+}
@@ -572,7 +572,8 @@ public class PassChecker extends Vector<AssignmentMetaData>
    
                         if (array != null)
                         {
-                           data.setZipCheckSum(passTools.getConfig().getCheckSum(array));
+                           data.setZipCheckSum(passTools.getConfig().getCheckSum(
+                             new ByteArrayInputStream(array)));
                         }
                         else
                         {
@@ -0,0 +1,794 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passcli.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+import org.xml.sax.SAXException;
+
+import com.dickimawbooks.passlib.AssignmentData;
+import com.dickimawbooks.passlib.Course;
+
+/**
+ * Decides the order in which the jobs waiting in the spool
+ * directory are processed. Submissions arrive in surges shortly
+ * before an assignment is due, so jobs aren't simply processed in
+ * the order they arrive.
+ *
+ * Each job is given a priority time and the job with the earliest
+ * priority time is processed next. The priority time starts with
+ * the earlier of the assignment's due date and the end of the job's
+ * maximum wait, so jobs for assignments that aren't due soon are
+ * delayed but not indefinitely. A job for an assignment whose due
+ * date has already passed keeps that due date, so a submission made
+ * just before the deadline isn't overtaken by jobs for other
+ * assignments once the deadline passes. The job's estimated cost
+ * (obtained from the number of files, their size and their
+ * language) is added, so that short jobs aren't held up by long
+ * ones with the same due date. Finally, the fair share penalty is
+ * added for each job by the same user that's still running or was
+ * started within the maximum wait, so a user who resubmits
+ * repeatedly doesn't hold up everyone else.
+ *
+ * A user may also be limited to a number of concurrent jobs. Their
+ * remaining jobs stay in the queue until one of their jobs has
+ * finished.
+ */
+public class JobScheduler
+{
+   /**
+    * Creates a new scheduler.
+    * @param server the long-lived server instance that has loaded
+    * the course data
+    */
+   public JobScheduler(PassCliServer server)
+   {
+      this.server = server;
+   }
+
+   /**
+    * Sets the maximum number of concurrent jobs for each user.
+    * @param max the maximum or 0 for no limit
+    */
+   public void setMaxUserJobs(int max)
+   {
+      maxUserJobs = max;
+   }
+
+   /**
+    * Gets the maximum number of concurrent jobs for each user.
+    * @return the maximum or 0 for no limit
+    */
+   public int getMaxUserJobs()
+   {
+      return maxUserJobs;
+   }
+
+   /**
+    * Sets the maximum time a job should wait before it's treated
+    * as due.
+    * @param millis the maximum wait in milliseconds
+    */
+   public void setMaxWait(long millis)
+   {
+      maxWait = millis;
+   }
+
+   /**
+    * Gets the maximum time a job should wait before it's treated
+    * as due.
+    * @return the maximum wait in milliseconds
+    */
+   public long getMaxWait()
+   {
+      return maxWait;
+   }
+
+   /**
+    * Sets the penalty added to a job's priority time for each
+    * recent job by the same user.
+    * @param millis the penalty in milliseconds (0 for none)
+    */
+   public void setFairShare(long millis)
+   {
+      fairShare = millis;
+   }
+
+   /**
+    * Gets the penalty added to a job's priority time for each
+    * recent job by the same user.
+    * @return the penalty in milliseconds
+    */
+   public long getFairShare()
+   {
+      return fairShare;
+   }
+
+   /**
+    * Updates the queue from the files currently in the spool
+    * directory. Jobs whose files have gone (for example, because
+    * they have been claimed by another daemon) are removed, and new
+    * files are read to find the user, assignment and estimated cost.
+    * @param files the job settings files currently in the spool
+    * directory
+    */
+   public void update(File[] files)
+   {
+      Vector<File> newFiles = new Vector<File>();
+
+      long now = System.currentTimeMillis();
+
+      synchronized (this)
+      {
+         Iterator<Map.Entry<File,Long>> rejectedIt
+           = rejected.entrySet().iterator();
+
+         while (rejectedIt.hasNext())
+         {
+            if (rejectedIt.next().getValue() <= now)
+            {
+               rejectedIt.remove();
+            }
+         }
+
+         Iterator<Job> it = pending.iterator();
+
+         while (it.hasNext())
+         {
+            Job job = it.next();
+
+            boolean found = false;
+
+            for (File file : files)
+            {
+               if (file.equals(job.file))
+               {
+                  found = true;
+                  break;
+               }
+            }
+
+            if (!found)
+            {
+               it.remove();
+            }
+         }
+
+         for (File file : files)
+         {
+            if (findPending(file) == null && !rejected.containsKey(file))
+            {
+               newFiles.add(file);
+            }
+         }
+      }
+
+      if (newFiles.isEmpty()) return;
+
+      // Reading the settings may require the assignment data to be
+      // fetched, so this is done without holding the lock.
+
+      PassCliServer lookup = new PassCliServer(server);
+
+      for (File file : newFiles)
+      {
+         Job job = readJob(lookup, file);
+
+         server.debug(String.format(
+           "Queued job %s: user %s, due %s, estimated cost %dms",
+           file.getName(), job.user, job.due, job.cost));
+
+         synchronized (this)
+         {
+            pending.add(job);
+         }
+      }
+   }
+
+   /**
+    * Gets the job that should be processed next. The job remains in
+    * the queue until {@link #start(Job)} is used.
+    * @return the job or null if the queue is empty or all the
+    * jobs in it belong to users who have reached their limit
+    */
+   public synchronized Job next()
+   {
+      long now = System.currentTimeMillis();
+
+      pruneUsage(now);
+
+      Job best = null;
+      long bestTime = 0L;
+
+      for (Job job : pending)
+      {
+         Vector<Job> jobs = usage.get(job.user);
+         int recent = 0;
+         int running = 0;
+
+         if (jobs != null)
+         {
+            recent = jobs.size();
+
+            for (Job other : jobs)
+            {
+               if (other.finished == 0L)
+               {
+                  running++;
+               }
+            }
+         }
+
+         if (maxUserJobs > 0 && running >= maxUserJobs) continue;
+
+         long time = job.getPriorityTime(maxWait) + recent*fairShare;
+
+         if (best == null || time < bestTime
+             || (time == bestTime && job.queued < best.queued))
+         {
+            best = job;
+            bestTime = time;
+         }
+      }
+
+      return best;
+   }
+
+   /**
+    * Marks a job as started once it has been claimed. The job is
+    * removed from the queue.
+    * @param job the job
+    */
+   public synchronized void start(Job job)
+   {
+      pending.remove(job);
+
+      job.started = System.currentTimeMillis();
+
+      Vector<Job> jobs = usage.get(job.user);
+
+      if (jobs == null)
+      {
+         jobs = new Vector<Job>();
+         usage.put(job.user, jobs);
+      }
+
+      jobs.add(job);
+   }
+
+   /**
+    * Removes a job from the queue without starting it (for example,
+    * if it has been claimed by another daemon).
+    * @param job the job
+    */
+   public synchronized void remove(Job job)
+   {
+      pending.remove(job);
+   }
+
+   /**
+    * Removes a job that couldn't be claimed. Its file is ignored
+    * for a while, so that the other jobs aren't held up by repeated
+    * attempts to claim it.
+    * @param job the job
+    */
+   public synchronized void reject(Job job)
+   {
+      pending.remove(job);
+
+      rejected.put(job.file, System.currentTimeMillis()+REJECTED_RETRY_INTERVAL);
+   }
+
+   /**
+    * Marks a job as finished, which may allow another job by the
+    * same user to start.
+    * @param job the job
+    */
+   public synchronized void finished(Job job)
+   {
+      job.finished = System.currentTimeMillis();
+
+      notifyAll();
+   }
+
+   /**
+    * Determines whether there are any jobs in the queue.
+    * @return true if the queue isn't empty
+    */
+   public synchronized boolean hasPending()
+   {
+      return !pending.isEmpty();
+   }
+
+   /**
+    * Waits until a job finishes or the given time has elapsed.
+    * @param millis the maximum time to wait in milliseconds
+    * @throws InterruptedException if the thread is interrupted
+    */
+   public synchronized void awaitFinished(long millis)
+    throws InterruptedException
+   {
+      wait(millis);
+   }
+
+   /**
+    * Forgets jobs that have finished and were started more than
+    * the maximum wait ago, so they no longer count towards their
+    * user's fair share.
+    * @param now the current time
+    */
+   private void pruneUsage(long now)
+   {
+      Iterator<Vector<Job>> it = usage.values().iterator();
+
+      while (it.hasNext())
+      {
+         Vector<Job> jobs = it.next();
+
+         Iterator<Job> jobIt = jobs.iterator();
+
+         while (jobIt.hasNext())
+         {
+            Job job = jobIt.next();
+
+            if (job.finished != 0L && job.started + maxWait < now)
+            {
+               jobIt.remove();
+            }
+         }
+
+         if (jobs.isEmpty())
+         {
+            it.remove();
+         }
+      }
+   }
+
+   private Job findPending(File file)
+   {
+      for (Job job : pending)
+      {
+         if (job.file.equals(file))
+         {
+            return job;
+         }
+      }
+
+      return null;
+   }
+
+   /**
+    * Reads the settings that affect the job's priority from its
+    * settings file. Anything that can't be read is left unset, as
+    * the problem will be reported when the job is processed.
+    * @param lookup instance used to look up assignments and files
+    * @param file the job settings file
+    * @return the job
+    */
+   private Job readJob(PassCliServer lookup, File file)
+   {
+      Job job = new Job(file);
+
+      String courseCode = null;
+      String assignmentLabel = null;
+      Vector<String> fileSettings = new Vector<String>();
+
+      BufferedReader in = null;
+
+      try
+      {
+         // PassCli reads the settings file as UTF-8 (the project
+         // encoding setting only applies to the source files).
+
+         in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+
+         String line;
+
+         while ((line = in.readLine()) != null)
+         {
+            String[] split = line.split(": *", 2);
+
+            if (split.length < 2) continue;
+
+            String key = split[0];
+            String value = split[1];
+
+            if (key.equals("Course"))
+            {
+               courseCode = value;
+            }
+            else if (key.equals("Assignment"))
+            {
+               assignmentLabel = value;
+            }
+            else if (key.equals("File"))
+            {
+               fileSettings.add(value);
+            }
+            else if (job.user == null
+               && (key.equals("Student") || key.equals("User-id")))
+            {
+               // Group projects are attributed to the first member.
+
+               job.user = value.split(" *[\t,] *", 2)[0];
+            }
+         }
+      }
+      catch (IOException e)
+      {
+         server.debug(String.format("Unable to read job %s: %s",
+           file.getName(), e.getMessage()));
+      }
+      finally
+      {
+         if (in != null)
+         {
+            try
+            {
+               in.close();
+            }
+            catch (IOException e)
+            {
+            }
+         }
+      }
+
+      if (job.user == null)
+      {
+         job.user = file.getName();
+      }
+
+      AssignmentData assignment = null;
+
+      if (courseCode != null && assignmentLabel != null)
+      {
+         assignment = findAssignment(lookup, courseCode, assignmentLabel);
+
+         if (assignment != null)
+         {
+            job.due = assignment.getDueDate();
+         }
+      }
+
+      job.cost = estimateCost(lookup, assignment, fileSettings);
+
+      return job;
+   }
+
+   /**
+    * Gets the data for the given assignment. The data is remembered
+    * for a while so that the assignment XML file isn't read for
+    * every job.
+    * @param lookup instance used to load the assignment data
+    * @param courseCode the course code
+    * @param label the assignment label
+    * @return the assignment data or null if not found
+    */
+   private AssignmentData findAssignment(PassCliServer lookup,
+     String courseCode, String label)
+   {
+      long now = System.currentTimeMillis();
+
+      String key = courseCode+"\t"+label;
+
+      CachedAssignment cached = assignments.get(key);
+
+      if (cached != null && cached.loaded + ASSIGNMENT_TTL > now)
+      {
+         return cached.data;
+      }
+
+      AssignmentData data = null;
+
+      Course course = lookup.findCourse(courseCode);
+
+      if (course != null)
+      {
+         try
+         {
+            for (AssignmentData assign
+                  : lookup.getPassTools().loadAssignments(course))
+            {
+               if (assign.getLabel().equals(label))
+               {
+                  data = assign;
+                  break;
+               }
+            }
+         }
+         catch (IOException | SAXException e)
+         {
+            server.debug(String.format(
+              "Unable to load assignments for %s: %s",
+              courseCode, e.getMessage()));
+         }
+      }
+
+      assignments.put(key, new CachedAssignment(data, now));
+
+      return data;
+   }
+
+   /**
+    * Estimates the time needed to process a job from the number of
+    * files, their size and their language. This is only a rough
+    * guide used to order jobs: every job has the cost of creating
+    * the PDF, each file adds to the cost of copying and typesetting
+    * it, and the slowest language to compile and run is included
+    * if the assignment is compiled.
+    * @param lookup instance used to find the files
+    * @param assignment the assignment data (may be null if unknown)
+    * @param fileSettings the values of the job's File settings
+    * @return the estimated cost in milliseconds
+    */
+   private long estimateCost(PassCliServer lookup, AssignmentData assignment,
+     Vector<String> fileSettings)
+   {
+      long cost = BASE_COST;
+      long languageCost = 0L;
+
+      for (String setting : fileSettings)
+      {
+         String[] split = setting.split(" *\t *", 2);
+         String name = split[0];
+         String language = split.length == 2 ? split[1] : null;
+
+         cost += FILE_COST;
+
+         try
+         {
+            cost += KIB_COST*(lookup.resolve(name).length()/1024L);
+         }
+         catch (IOException e)
+         {
+            // the missing file will be reported when the job is processed
+         }
+
+         if (language == null && assignment != null)
+         {
+            int idx = name.lastIndexOf('.');
+
+            if (idx > 0)
+            {
+               language = assignment.getListingLanguage(
+                 name.substring(idx+1), null);
+            }
+         }
+
+         languageCost = Math.max(languageCost, getLanguageCost(language));
+      }
+
+      if (assignment == null || assignment.isCompileTestOn())
+      {
+         cost += languageCost;
+      }
+
+      return cost;
+   }
+
+   /**
+    * Gets the estimated cost of compiling and running an application
+    * in the given language. Files that aren't compiled have no
+    * cost.
+    * @param language the listings language identifier (may be null
+    * if unknown)
+    * @return the estimated cost in milliseconds
+    */
+   private static long getLanguageCost(String language)
+   {
+      if (language == null)
+      {
+         return DEFAULT_LANGUAGE_COST;
+      }
+
+      switch (language)
+      {
+         case "Java": return 3000L;
+         case "C++": return 2000L;
+         case "C": return 1000L;
+         case "PDF":
+         case "DOC":
+         case AssignmentData.PLAIN_TEXT:
+         case AssignmentData.UNKNOWN_LANGUAGE:
+            return 0L;
+         default:
+            return DEFAULT_LANGUAGE_COST;
+      }
+   }
+
+   /**
+    * A job waiting in the spool directory.
+    */
+   public static class Job
+   {
+      private Job(File file)
+      {
+         this.file = file;
+         queued = file.lastModified();
+
+         if (queued == 0L)
+         {
+            queued = System.currentTimeMillis();
+         }
+      }
+
+      /**
+       * Gets the job settings file.
+       * @return the file in the spool directory
+       */
+      public File getFile()
+      {
+         return file;
+      }
+
+      /**
+       * Gets the user the job belongs to. This is the first student
+       * or user ID in the settings file, or the file name if there
+       * isn't one.
+       * @return the user
+       */
+      public String getUser()
+      {
+         return user;
+      }
+
+      /**
+       * Gets the assignment's due date.
+       * @return the due date or null if not known
+       */
+      public LocalDateTime getDueDate()
+      {
+         return due;
+      }
+
+      /**
+       * Gets the estimated time needed to process the job.
+       * @return the estimated cost in milliseconds
+       */
+      public long getCost()
+      {
+         return cost;
+      }
+
+      /**
+       * Gets the time the job was added to the spool directory.
+       * @return the time in milliseconds since the epoch
+       */
+      public long getQueuedTime()
+      {
+         return queued;
+      }
+
+      /**
+       * Gets the time the job was started.
+       * @return the time in milliseconds since the epoch or 0 if
+       * it hasn't started
+       */
+      public long getStartTime()
+      {
+         return started;
+      }
+
+      /**
+       * Gets the time the job waited in the queue.
+       * @return the wait in milliseconds or 0 if it hasn't
+       * started
+       */
+      public long getWaitTime()
+      {
+         return started == 0L ? 0L : Math.max(0L, started - queued);
+      }
+
+      /**
+       * Gets the time used to order the job, not including the
+       * fair share penalty.
+       * @param maxWait the maximum wait
+       * @return the priority time in milliseconds since the epoch
+       */
+      private long getPriorityTime(long maxWait)
+      {
+         long time = queued + maxWait;
+
+         if (due != null)
+         {
+            time = Math.min(time, due.atZone(ZoneId.systemDefault())
+               .toInstant().toEpochMilli());
+         }
+
+         return time + cost;
+      }
+
+      private File file;
+      private String user = null;
+      private LocalDateTime due = null;
+      private long cost = BASE_COST;
+      private long queued, started = 0L, finished = 0L;
+   }
+
+   /**
+    * Assignment data (or null if the assignment wasn't found)
+    * and the time it was loaded.
+    */
+   private static class CachedAssignment
+   {
+      CachedAssignment(AssignmentData data, long loaded)
+      {
+         this.data = data;
+         this.loaded = loaded;
+      }
+
+      AssignmentData data;
+      long loaded;
+   }
+
+   private PassCliServer server;
+   private int maxUserJobs = DEFAULT_MAX_USER_JOBS;
+   private long maxWait = 1000L*DEFAULT_MAX_WAIT;
+   private long fairShare = 1000L*DEFAULT_FAIR_SHARE;
+
+   private Vector<Job> pending = new Vector<Job>();
+   private Map<String,Vector<Job>> usage = new HashMap<String,Vector<Job>>();
+   private Map<String,CachedAssignment> assignments
+     = new HashMap<String,CachedAssignment>();
+   private Map<File,Long> rejected = new HashMap<File,Long>();
+
+   /**
+    * Default maximum number of concurrent jobs for each user (no
+    * limit).
+    */
+   public static final int DEFAULT_MAX_USER_JOBS=0;
+
+   /**
+    * Default maximum wait in seconds.
+    */
+   public static final long DEFAULT_MAX_WAIT=900L;
+
+   /**
+    * Default fair share penalty in seconds.
+    */
+   public static final long DEFAULT_FAIR_SHARE=60L;
+
+   /**
+    * How long (in milliseconds) assignment data is kept before it's
+    * loaded again.
+    */
+   private static final long ASSIGNMENT_TTL=300000L;
+
+   /**
+    * How long (in milliseconds) a job that couldn't be claimed is
+    * ignored before it's tried again.
+    */
+   private static final long REJECTED_RETRY_INTERVAL=60000L;
+
+   /**
+    * Estimated costs in milliseconds.
+    */
+   private static final long BASE_COST=5000L, FILE_COST=250L,
+     KIB_COST=5L, DEFAULT_LANGUAGE_COST=500L;
+}
@@ -15,11 +15,14 @@
  */
 package com.dickimawbooks.passcli.server;
 
+import java.io.File;
 import java.io.IOException;
 
 import java.util.Date; 
 import java.text.SimpleDateFormat; 
 
+import org.xml.sax.SAXException;
+
 import com.dickimawbooks.passlib.*;
 import com.dickimawbooks.passcli.lib.*;
 
@@ -30,6 +33,11 @@ public class PassCliServer extends PassCli
       super();
    }
 
+   public PassCliServer(PassCliServer daemon)
+   {
+      super(daemon);
+   }
+
    @Override
    public boolean isSubmittedDateEnabled()
    {
@@ -50,9 +58,20 @@ public class PassCliServer extends PassCli
          "ERROR: {0}", message);
       }
 
-      return String.format("%s %s: %s",
-         MESSAGE_DATE_FORMAT.format(new Date()),
-         getTaskIdentifier(), message);
+      String date;
+
+      synchronized (MESSAGE_DATE_FORMAT)
+      {
+         date = MESSAGE_DATE_FORMAT.format(new Date());
+      }
+
+      return String.format("%s %s: %s", date, getTaskIdentifier(), message);
+   }
+
+   @Override
+   protected String getTaskIdentifier()
+   {
+      return daemon == null ? super.getTaskIdentifier() : "spool";
    }
 
    @Override
@@ -61,12 +80,328 @@ public class PassCliServer extends PassCli
       return APP_NAME+"-server";
    }
 
+   @Override
+   public void help()
+   {
+      super.help();
+
+      System.out.println();
+      printlnMessage("syntax.daemon");
+      System.out.println();
+
+      printWrapMessage("syntax.spool", "--spool", "--from-file");
+      printWrapMessage("syntax.output_dir", "--output-dir", "--spool");
+      printWrapMessage("syntax.poll", "--poll", "--spool",
+        SpoolDaemon.DEFAULT_POLL_INTERVAL);
+      printWrapMessage("syntax.jobs", "--jobs", "-j", "--spool",
+        SpoolDaemon.DEFAULT_MAX_JOBS);
+      printWrapMessage("syntax.user_jobs", "--user-jobs", "--spool");
+      printWrapMessage("syntax.max_wait", "--max-wait", "--spool",
+        JobScheduler.DEFAULT_MAX_WAIT);
+      printWrapMessage("syntax.fair_share", "--fair-share", "--spool",
+        JobScheduler.DEFAULT_FAIR_SHARE);
+   }
+
+   /**
+    * Tests if the given arguments request the spool daemon mode.
+    * @param args the command line arguments
+    * @return true if --spool has been used
+    */ 
+   public static boolean isDaemonMode(String[] args)
+   {
+      for (String arg : args)
+      {
+         if (arg.equals("--spool") || arg.startsWith("--spool="))
+         {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Parses the daemon options, loads the course data and then
+    * processes each job that is moved into the spool directory.
+    * Only general settings that apply to all jobs are permitted.
+    * This method only returns if an error occurs.
+    * @param args the command line arguments
+    */ 
+   public void runDaemon(String[] args)
+   {
+      File spoolDir = null;
+      File outputDir = null;
+      long pollInterval = SpoolDaemon.DEFAULT_POLL_INTERVAL;
+      int maxJobs = SpoolDaemon.DEFAULT_MAX_JOBS;
+      int maxUserJobs = JobScheduler.DEFAULT_MAX_USER_JOBS;
+      long maxWait = JobScheduler.DEFAULT_MAX_WAIT;
+      long fairShare = JobScheduler.DEFAULT_FAIR_SHARE;
+      String encodingName = null;
+
+      try
+      {
+         for (int i = 0; i < args.length; i++)
+         {
+            String argName = args[i];
+            String argValue = null;
+
+            if (argName.equals("--help") || argName.equals("-h"))
+            {
+               version();
+               help();
+               System.exit(0);
+            }
+            else if (argName.equals("--version") || argName.equals("-V"))
+            {
+               version();
+               copyrightAndLicence();
+               System.exit(0);
+            }
+            else if (argName.equals("--silent") || argName.equals("-q"))
+            {
+               verboseLevel = MESSAGES_SILENT;
+               continue;
+            }
+            else if (argName.equals("--debug"))
+            {
+               verboseLevel = MESSAGES_DEBUG;
+               continue;
+            }
+            else if (argName.equals("--allow-debug-courses"))
+            {
+               setAllowDebugCourses(true);
+               continue;
+            }
+            else if (argName.equals("--noallow-debug-courses"))
+            {
+               setAllowDebugCourses(false);
+               continue;
+            }
+
+            if (argName.startsWith("--"))
+            {
+               String[] split = argName.split("=", 2);
+
+               if (split.length == 2)
+               {
+                  argName = split[0];
+                  argValue = split[1];
+               }
+            }
+
+            if (argValue == null)
+            {
+               i++;
+
+               if (i == args.length)
+               {
+                  throw new InvalidSyntaxException(
+                   getMessageWithDefault(
+                    "error.missing_value_or_unknown",
+                    "Missing value for ''{0}'' or unknown option.", argName));
+               }
+
+               argValue = args[i];
+            }
+
+            if (argName.equals("--spool"))
+            {
+               spoolDir = getDirectory(argValue);
+            }
+            else if (argName.equals("--output-dir"))
+            {
+               outputDir = getDirectory(argValue);
+            }
+            else if (argName.equals("--poll"))
+            {
+               try
+               {
+                  pollInterval = Long.parseLong(argValue);
+               }
+               catch (NumberFormatException e)
+               {
+                  pollInterval = 0L;
+               }
+
+               if (pollInterval <= 0L)
+               {
+                  throw new InvalidSyntaxException(
+                    getMessageWithDefault("error.invalid_poll_interval",
+                     "Invalid poll interval: {0}.", argValue));
+               }
+            }
+            else if (argName.equals("--jobs") || argName.equals("-j"))
+            {
+               try
+               {
+                  maxJobs = Integer.parseInt(argValue);
+               }
+               catch (NumberFormatException e)
+               {
+                  maxJobs = 0;
+               }
+
+               if (maxJobs <= 0)
+               {
+                  throw new InvalidSyntaxException(
+                    getMessageWithDefault("error.invalid_job_count",
+                     "Invalid number of jobs: {0}.", argValue));
+               }
+            }
+            else if (argName.equals("--user-jobs"))
+            {
+               try
+               {
+                  maxUserJobs = Integer.parseInt(argValue);
+               }
+               catch (NumberFormatException e)
+               {
+                  maxUserJobs = 0;
+               }
+
+               if (maxUserJobs <= 0)
+               {
+                  throw new InvalidSyntaxException(
+                    getMessageWithDefault("error.invalid_job_count",
+                     "Invalid number of jobs: {0}.", argValue));
+               }
+            }
+            else if (argName.equals("--max-wait"))
+            {
+               try
+               {
+                  maxWait = Long.parseLong(argValue);
+               }
+               catch (NumberFormatException e)
+               {
+                  maxWait = 0L;
+               }
+
+               if (maxWait <= 0L)
+               {
+                  throw new InvalidSyntaxException(
+                    getMessageWithDefault("error.invalid_max_wait",
+                     "Invalid maximum wait: {0}.", argValue));
+               }
+            }
+            else if (argName.equals("--fair-share"))
+            {
+               try
+               {
+                  fairShare = Long.parseLong(argValue);
+               }
+               catch (NumberFormatException e)
+               {
+                  fairShare = -1L;
+               }
+
+               if (fairShare < 0L)
+               {
+                  throw new InvalidSyntaxException(
+                    getMessageWithDefault("error.invalid_fair_share",
+                     "Invalid fair share penalty: {0}.", argValue));
+               }
+            }
+            else if (argName.equals("--encoding"))
+            {
+               encodingName = argValue;
+            }
+            else if (argName.equals("--messages") || argName.equals("-m"))
+            {
+               setMessageLevel(argValue);
+            }
+            else if (argName.equals("--directory") || argName.equals("-d"))
+            {
+               setSourceDirectory(getDirectory(argValue).toPath());
+            }
+            else if (argName.equals("--timeout"))
+            {
+               setTimeOut(argValue);
+            }
+            else
+            {
+               throw new InvalidSyntaxException(
+                 getMessageWithDefault(
+                  "error.unknown_option",
+                  "Unknown option ''{0}''.", argName));
+            }
+         }
+
+         if (outputDir == null)
+         {
+            outputDir = new File(spoolDir, SPOOL_RESULTS_DIR_NAME);
+
+            if (!outputDir.exists() && !outputDir.mkdir())
+            {
+               throw new IOException(getMessageWithDefault(
+                 "error.cant_create_dir", "Can''t create directory ''{0}''.",
+                  outputDir));
+            }
+         }
+
+         loadCourseData();
+
+         daemon = new SpoolDaemon(this, spoolDir, outputDir,
+            pollInterval, encodingName, maxJobs);
+
+         JobScheduler scheduler = daemon.getScheduler();
+         scheduler.setMaxUserJobs(maxUserJobs);
+         scheduler.setMaxWait(1000L*maxWait);
+         scheduler.setFairShare(1000L*fairShare);
+
+         daemon.run();
+      }
+      catch (SAXException e)
+      {
+         fatalError(e, EXIT_SAX);
+      }
+      catch (IOException e)
+      {
+         fatalError(e, EXIT_IO);
+      }
+      catch (UnknownIdentifierException e)
+      {
+         fatalError(e, EXIT_SYNTAX);
+      }
+      catch (Throwable e)
+      {
+         fatalError(e, EXIT_OTHER);
+      }
+   }
+
+   private File getDirectory(String name) throws IOException
+   {
+      File dir = new File(name).getAbsoluteFile();
+
+      if (!dir.exists())
+      {
+         throw new IOException(getMessageWithDefault(
+           "error.no_such_dir", "No such directory ''{0}''.", name));
+      }
+
+      if (!dir.isDirectory())
+      {
+         throw new IOException(getMessageWithDefault(
+           "error.not_a_dir", "Not a directory ''{0}''.", name));
+      }
+
+      return dir;
+   }
+
    public static void main(String[] args)
    {
       try
       {
-         PassCli passcli = new PassCliServer();
-         passcli.run(args);
+         PassCliServer passcli = new PassCliServer();
+
+         if (isDaemonMode(args))
+         {
+            passcli.runDaemon(args);
+         }
+         else
+         {
+            passcli.run(args);
+         }
       }
       catch (IOException e)
       {
@@ -76,6 +411,10 @@ public class PassCliServer extends PassCli
       }
    }
 
+   private SpoolDaemon daemon = null;
+
+   public static final String SPOOL_RESULTS_DIR_NAME="results";
+
    public static final SimpleDateFormat MESSAGE_DATE_FORMAT
      = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
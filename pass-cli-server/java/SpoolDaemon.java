@@ -0,0 +1,611 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passcli.server;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardWatchEventKinds;
+
+import java.time.Instant;
+
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-lived server process that watches a spool directory for job
+ * settings files. Each settings file has the same format as the
+ * file identified by --from-file. The JVM, dictionaries, resources
+ * file and course data are only loaded once, and each job is
+ * processed by a new PassCliServer instance that shares them.
+ *
+ * A settings file is claimed by renaming it into the spool
+ * directory's {@value #CLAIMED_DIR_NAME} subdirectory, which is
+ * atomic, so only one daemon can claim it. It's then moved into a
+ * new subdirectory of the output directory, which may be on a
+ * different file system. The transcript, PDF, timings file and
+ * exit code for the job are written to that subdirectory. The exit
+ * code file is written last, so its existence indicates that the
+ * job has finished. Settings files should be written elsewhere (or with a
+ * name starting with a dot) and then moved into the spool
+ * directory to ensure that incomplete files aren't processed.
+ *
+ * Up to the given number of jobs may be processed concurrently. A
+ * job is only claimed when a worker is available to process it, so
+ * any remaining jobs stay in the spool directory where they may be
+ * claimed by another daemon watching the same directory. The
+ * {@link JobScheduler} decides which of the waiting jobs is claimed
+ * next. The time each job was queued and started, and how long it
+ * waited, are written to the job's subdirectory.
+ */ 
+public class SpoolDaemon
+{
+   /**
+    * Creates a new daemon.
+    * @param server the long-lived server instance that has loaded
+    * the dictionaries and course data
+    * @param spoolDir the directory to watch
+    * @param outputDir the directory in which to create the job
+    * subdirectories
+    * @param pollInterval the maximum time (in seconds) between scans of
+    * the spool directory
+    * @param transcriptEncoding the encoding to use for each job's
+    * transcript (may be null for the JVM default)
+    */ 
+   public SpoolDaemon(PassCliServer server, File spoolDir, File outputDir,
+     long pollInterval, String transcriptEncoding)
+   {
+      this(server, spoolDir, outputDir, pollInterval, transcriptEncoding, 1);
+   }
+
+   /**
+    * Creates a new daemon that may process several jobs at the same
+    * time.
+    * @param server the long-lived server instance that has loaded
+    * the dictionaries and course data
+    * @param spoolDir the directory to watch
+    * @param outputDir the directory in which to create the job
+    * subdirectories
+    * @param pollInterval the maximum time (in seconds) between scans of
+    * the spool directory
+    * @param transcriptEncoding the encoding to use for each job's
+    * transcript (may be null for the JVM default)
+    * @param maxJobs the maximum number of jobs to process concurrently
+    */ 
+   public SpoolDaemon(PassCliServer server, File spoolDir, File outputDir,
+     long pollInterval, String transcriptEncoding, int maxJobs)
+   {
+      if (maxJobs < 1)
+      {
+         throw new IllegalArgumentException("Invalid job count "+maxJobs);
+      }
+
+      this.server = server;
+      this.spoolDir = spoolDir;
+      this.outputDir = outputDir;
+      this.pollInterval = pollInterval;
+      this.transcriptEncoding = transcriptEncoding;
+      this.maxJobs = maxJobs;
+
+      workerSlots = new Semaphore(maxJobs);
+      scheduler = new JobScheduler(server);
+   }
+
+   /**
+    * Gets the scheduler that decides the order in which waiting
+    * jobs are processed.
+    * @return the scheduler
+    */ 
+   public JobScheduler getScheduler()
+   {
+      return scheduler;
+   }
+
+   /**
+    * Watches the spool directory and processes each job that
+    * appears. The directory is rescanned whenever a watch event is
+    * received or the poll interval elapses, since some file systems
+    * (such as network mounts) don't support watch events.
+    * @throws IOException if the spool directory can't be watched
+    * @throws InterruptedException if the thread is interrupted
+    */ 
+   public void run() throws IOException,InterruptedException
+   {
+      Path spoolPath = spoolDir.toPath();
+
+      WatchService watcher = spoolPath.getFileSystem().newWatchService();
+
+      if (maxJobs > 1)
+      {
+         workers = Executors.newFixedThreadPool(maxJobs);
+      }
+
+      try
+      {
+         spoolPath.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+           StandardWatchEventKinds.ENTRY_MODIFY);
+
+         server.info(server.getMessageWithDefault("message.spool_watching",
+          "Watching spool directory ''{0}''. Results will be written to ''{1}''.",
+          spoolDir, outputDir));
+
+         while (true)
+         {
+            processPendingJobs();
+
+            WatchKey key = watcher.poll(pollInterval, TimeUnit.SECONDS);
+
+            if (key != null)
+            {
+               key.pollEvents();
+               key.reset();
+            }
+         }
+      }
+      finally
+      {
+         watcher.close();
+
+         if (workers != null)
+         {
+            workers.shutdown();
+            workers = null;
+         }
+      }
+   }
+
+   /**
+    * Processes all jobs currently in the spool directory in the
+    * order determined by the scheduler. If there are worker
+    * threads, this waits for a worker to become available before
+    * choosing each job, so that the choice takes into account any
+    * jobs that have arrived in the meantime, and returns once the
+    * last job has been handed over to a worker.
+    * @throws InterruptedException if the thread is interrupted while
+    * waiting for a worker
+    */ 
+   public void processPendingJobs() throws InterruptedException
+   {
+      while (true)
+      {
+         if (workers != null)
+         {
+            workerSlots.acquire();
+         }
+
+         JobScheduler.Job job;
+
+         try
+         {
+            File[] pending = spoolDir.listFiles(JOB_FILE_FILTER);
+
+            scheduler.update(pending == null ? new File[0] : pending);
+
+            job = scheduler.next();
+         }
+         catch (RuntimeException e)
+         {
+            if (workers != null)
+            {
+               workerSlots.release();
+            }
+
+            throw e;
+         }
+
+         if (job == null)
+         {
+            if (workers != null)
+            {
+               workerSlots.release();
+            }
+
+            if (!scheduler.hasPending()) return;
+
+            // The remaining jobs belong to users who have reached
+            // their limit. Wait for a job to finish, but not for
+            // too long in case jobs for other users arrive.
+
+            scheduler.awaitFinished(USER_LIMIT_RESCAN_INTERVAL);
+
+            continue;
+         }
+
+         File jobDir;
+
+         try
+         {
+            jobDir = claimJob(job);
+         }
+         catch (IOException e)
+         {
+            // Try this job again later, but don't let it hold up the
+            // others.
+
+            server.error(e);
+
+            scheduler.reject(job);
+
+            if (workers != null)
+            {
+               workerSlots.release();
+            }
+
+            continue;
+         }
+
+         if (jobDir == null)
+         {
+            if (workers != null)
+            {
+               workerSlots.release();
+            }
+         }
+         else if (workers == null)
+         {
+            try
+            {
+               runJob(job, jobDir);
+            }
+            finally
+            {
+               scheduler.finished(job);
+            }
+         }
+         else
+         {
+            dispatchJob(job, jobDir);
+         }
+      }
+   }
+
+   /**
+    * Passes a claimed job to a worker thread. A worker slot must
+    * already have been acquired. It's released when the job has
+    * finished.
+    * @param job the job
+    * @param jobDir the job directory containing the claimed file
+    */ 
+   protected void dispatchJob(JobScheduler.Job job, File jobDir)
+   {
+      try
+      {
+         workers.execute(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  runJob(job, jobDir);
+               }
+               finally
+               {
+                  scheduler.finished(job);
+                  workerSlots.release();
+               }
+            }
+         });
+      }
+      catch (RuntimeException e)
+      {
+         scheduler.finished(job);
+         workerSlots.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Claims a job settings file by moving it into a new job
+    * directory. The file is first renamed into the claimed
+    * subdirectory of the spool directory, which fails if another
+    * process has already claimed it, and then moved to the job
+    * directory. The job is then marked as started.
+    * @param job the job
+    * @return the job directory or null if the job has already been
+    * claimed by another process
+    * @throws IOException if the job directory can't be created or
+    * the file can't be moved
+    */ 
+   protected File claimJob(JobScheduler.Job job) throws IOException
+   {
+      File jobFile = job.getFile();
+
+      Path claimDir = new File(spoolDir, CLAIMED_DIR_NAME).toPath();
+      Files.createDirectories(claimDir);
+
+      // The rename replaces this placeholder, which ensures that the
+      // name isn't used by another daemon's claim.
+
+      Path claimed = Files.createTempFile(claimDir, null, "-"+jobFile.getName());
+
+      try
+      {
+         Files.move(jobFile.toPath(), claimed, StandardCopyOption.REPLACE_EXISTING,
+           StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (NoSuchFileException e)
+      {
+         // already claimed by another process
+
+         Files.deleteIfExists(claimed);
+         scheduler.remove(job);
+
+         return null;
+      }
+      catch (IOException e)
+      {
+         Files.deleteIfExists(claimed);
+
+         throw e;
+      }
+
+      File jobDir = null;
+
+      try
+      {
+         jobDir = createJobDirectory(jobFile);
+
+         // This copies the file if the output directory is on a
+         // different file system.
+
+         Files.move(claimed, new File(jobDir, jobFile.getName()).toPath());
+      }
+      catch (IOException e)
+      {
+         // Return the file to the spool directory so that it's not
+         // lost.
+
+         if (jobDir != null)
+         {
+            jobDir.delete();
+         }
+
+         try
+         {
+            Files.move(claimed, jobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+         }
+         catch (IOException e2)
+         {
+            e.addSuppressed(e2);
+         }
+
+         throw e;
+      }
+
+      scheduler.start(job);
+
+      return jobDir;
+   }
+
+   /**
+    * Processes a job that has already been claimed. Each job is
+    * processed by its own PassCliServer instance, so this may be
+    * called concurrently for different jobs.
+    * @param queuedJob the job
+    * @param jobDir the job directory containing the claimed file
+    * @return the job's exit code
+    */ 
+   protected int runJob(JobScheduler.Job queuedJob, File jobDir)
+   {
+      File jobFile = queuedJob.getFile();
+      Path claimed = new File(jobDir, jobFile.getName()).toPath();
+
+      try
+      {
+         server.info(server.getMessageWithDefault("message.spool_job",
+          "Processing job ''{0}'' for {1} (waited {2,number}s).",
+          jobFile.getName(), queuedJob.getUser(), queuedJob.getWaitTime()/1000.0));
+
+         writeQueueInfo(jobDir, queuedJob);
+
+         PassCliServer job = new PassCliServer(server);
+         job.setTranscriptName(new File(jobDir, TRANSCRIPT_NAME).getPath());
+         job.setResultDirectory(jobDir);
+
+         Vector<String> args = new Vector<String>();
+
+         if (transcriptEncoding != null)
+         {
+            args.add("--encoding");
+            args.add(transcriptEncoding);
+         }
+
+         args.add("--from-file");
+         args.add(claimed.toString());
+
+         int exitCode = job.runJob(args.toArray(new String[args.size()]));
+
+         writeExitCode(jobDir, exitCode);
+
+         server.info(server.getMessageWithDefault("message.spool_job_done",
+          "Job ''{0}'' finished with exit code {1,number,integer}. Results in ''{2}''.",
+          jobFile.getName(), exitCode, jobDir));
+
+         return exitCode;
+      }
+      catch (IOException e)
+      {
+         server.error(e);
+
+         try
+         {
+            writeExitCode(jobDir, PassCliServer.EXIT_IO);
+         }
+         catch (IOException e2)
+         {
+            server.error(e2);
+         }
+
+         return PassCliServer.EXIT_IO;
+      }
+   }
+
+   /**
+    * Creates a unique output subdirectory for the given job.
+    * @param jobFile the job settings file
+    * @return the new directory
+    * @throws IOException if the directory can't be created
+    */ 
+   protected File createJobDirectory(File jobFile) throws IOException
+   {
+      String name = jobFile.getName();
+
+      int idx = name.lastIndexOf(".");
+
+      if (idx > 0)
+      {
+         name = name.substring(0, idx);
+      }
+
+      File dir = new File(outputDir, name);
+
+      for (int i = 1; !dir.mkdir(); i++)
+      {
+         if (!dir.exists() && !outputDir.isDirectory())
+         {
+            throw new IOException(server.getMessageWithDefault(
+              "error.no_such_dir", "No such directory ''{0}''.", outputDir));
+         }
+
+         dir = new File(outputDir, String.format("%s-%d", name, i));
+      }
+
+      return dir;
+   }
+
+   /**
+    * Writes the job's queue details to its output directory.
+    * @param jobDir the job's output directory
+    * @param job the job
+    * @throws IOException if an I/O error occurs
+    */ 
+   protected void writeQueueInfo(File jobDir, JobScheduler.Job job)
+     throws IOException
+   {
+      Properties props = new Properties();
+
+      props.setProperty("user", job.getUser());
+      props.setProperty("queued", Instant.ofEpochMilli(job.getQueuedTime()).toString());
+      props.setProperty("started", Instant.ofEpochMilli(job.getStartTime()).toString());
+      props.setProperty("wait", ""+job.getWaitTime());
+      props.setProperty("cost", ""+job.getCost());
+
+      if (job.getDueDate() != null)
+      {
+         props.setProperty("due", job.getDueDate().toString());
+      }
+
+      Writer writer = null;
+
+      try
+      {
+         writer = Files.newBufferedWriter(
+           new File(jobDir, QUEUE_INFO_NAME).toPath(), StandardCharsets.UTF_8);
+
+         props.store(writer, null);
+      }
+      finally
+      {
+         if (writer != null)
+         {
+            writer.close();
+         }
+      }
+   }
+
+   /**
+    * Writes the exit code file to the job's output directory.
+    * @param jobDir the job's output directory
+    * @param exitCode the exit code
+    * @throws IOException if an I/O error occurs
+    */ 
+   protected void writeExitCode(File jobDir, int exitCode) throws IOException
+   {
+      File tmpFile = new File(jobDir, "."+EXIT_CODE_NAME);
+
+      PrintWriter writer = null;
+
+      try
+      {
+         writer = new PrintWriter(tmpFile);
+         writer.println(exitCode);
+      }
+      finally
+      {
+         if (writer != null)
+         {
+            writer.close();
+         }
+      }
+
+      Files.move(tmpFile.toPath(), new File(jobDir, EXIT_CODE_NAME).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   private PassCliServer server;
+   private File spoolDir, outputDir;
+   private long pollInterval;
+   private String transcriptEncoding;
+   private int maxJobs;
+   private Semaphore workerSlots;
+   private ExecutorService workers = null;
+   private JobScheduler scheduler;
+
+   public static final String TRANSCRIPT_NAME="transcript.txt";
+   public static final String EXIT_CODE_NAME="exitcode";
+   public static final String QUEUE_INFO_NAME="queue.properties";
+
+   /**
+    * The spool subdirectory that settings files are renamed into
+    * when they're claimed. The name starts with a dot, so it's not
+    * mistaken for a job.
+    */ 
+   public static final String CLAIMED_DIR_NAME=".claimed";
+
+   public static final long DEFAULT_POLL_INTERVAL=10L;
+   public static final int DEFAULT_MAX_JOBS=1;
+
+   /**
+    * The maximum time (in milliseconds) to wait for a job to finish
+    * when the only jobs left belong to users who have reached their
+    * limit.
+    */ 
+   private static final long USER_LIMIT_RESCAN_INTERVAL=1000L;
+
+   private static final FileFilter JOB_FILE_FILTER = new FileFilter()
+   {
+      @Override
+      public boolean accept(File file)
+      {
+         return file.isFile() && !file.getName().startsWith(".");
+      }
+   };
+}
@@ -45,6 +45,25 @@ public class PassCli implements Pass
       files = new Vector<PassFile>();
    }
 
+   /**
+    * Creates a new instance for a single job that shares the
+    * dictionaries, local resource settings and course data
+    * already loaded by a long-lived instance.
+    * @param parent the long-lived instance
+    */ 
+   public PassCli(PassCli parent)
+   {
+      passTools = new PassTools(this, parent.passTools);
+
+      courseData = parent.courseData;
+      timeout = parent.timeout;
+      verboseLevel = parent.verboseLevel;
+      allowDebugCourse = parent.allowDebugCourse;
+      sourceDirectory = parent.sourceDirectory;
+
+      files = new Vector<PassFile>();
+   }
+
    public boolean isSubmittedDateEnabled()
    {
       return false;
@@ -63,7 +82,10 @@ public class PassCli implements Pass
 
       try
       {
-         submittedDate = ISO_DATETIME_FORMAT.parse(dateString);
+         synchronized (ISO_DATETIME_FORMAT)
+         {
+            submittedDate = ISO_DATETIME_FORMAT.parse(dateString);
+         }
       }
       catch (ParseException e)
       {
@@ -239,6 +261,54 @@ public class PassCli implements Pass
       return basePath;
    }
 
+   public void loadCourseData() throws SAXException,IOException
+   {
+      courseData = passTools.loadCourseData(
+         getClass().getResource("/resources.xml"));
+   }
+
+   /**
+    * Gets the course with the given code from the course data that
+    * has already been loaded.
+    * @param code the course code
+    * @return the course or null if there's no such course
+    */ 
+   public Course findCourse(String code)
+   {
+      if (courseData != null)
+      {
+         for (Course c : courseData)
+         {
+            if (c.getCode().equals(code))
+            {
+               return c;
+            }
+         }
+      }
+
+      return null;
+   }
+
+   public void setSourceDirectory(Path dir)
+   {
+      sourceDirectory = dir;
+   }
+
+   public void setTranscriptName(String name)
+   {
+      transcriptName = name;
+   }
+
+   public void setResultDirectory(File dir)
+   {
+      resultDirectory = dir;
+   }
+
+   public File getResultDirectory()
+   {
+      return resultDirectory;
+   }
+
    public void openTranscript(Charset charset) throws IOException
    {
       if (transcriptName == null) return;
@@ -580,6 +650,15 @@ public class PassCli implements Pass
    }
 
    public void fatalError(Throwable throwable, int exitCode)
+   {
+      reportFatalError(throwable);
+
+      closeDown();
+
+      System.exit(exitCode);
+   }
+
+   public void reportFatalError(Throwable throwable)
    {
       if (transcriptWriter == null)
       {
@@ -593,10 +672,6 @@ public class PassCli implements Pass
       {
          error(throwable, true);
       }
-
-      closeDown();
-
-      System.exit(exitCode);
    }
 
    public void transcriptMessage(String msg)
@@ -993,6 +1068,10 @@ public class PassCli implements Pass
             {
                pdfResult = argValue;
             }
+            else if (argName.equals("Job-id"))
+            {
+               setJobId(argValue);
+            }
             else
             {
                throw new UnknownIdentifierException(
@@ -1139,8 +1218,14 @@ public class PassCli implements Pass
          parseSettingsFile(fromFile);
       }
 
-      courseData = passTools.loadCourseData(
-         getClass().getResource("/resources.xml"));
+      if (courseData == null)
+      {
+         loadCourseData();
+      }
+      else
+      {
+         passTools.applyResourceTimeOut();
+      }
 
       for (int i = 0; i < args.length; i++)
       {
@@ -1411,7 +1496,7 @@ public class PassCli implements Pass
            "At least one file must be specified."));
       }
 
-      if (pdfResult == null)
+      if (pdfResult == null && resultDirectory == null)
       {
          throw new InvalidSyntaxException(getMessageWithDefault(
            "error.missing_arg", "{0} required", "--pdf-result"));
@@ -1452,26 +1537,58 @@ public class PassCli implements Pass
 
       if (pdfFile != null)
       {
-         File dest = new File(pdfResult);
+         File dest;
+
+         if (resultDirectory == null)
+         {
+            dest = new File(pdfResult);
+         }
+         else if (pdfResult == null)
+         {
+            dest = new File(resultDirectory, resultDirectory.getName()+".pdf");
+         }
+         else
+         {
+            dest = new File(resultDirectory, new File(pdfResult).getName());
+         }
 
          info(getMessageWithDefault("message.creating",
            "message.creating", dest));
 
          Files.copy(pdfFile.toPath(), dest.toPath(), 
             StandardCopyOption.REPLACE_EXISTING);
+
+         File timingsFile = process.getTimingsFile();
+
+         if (timingsFile != null && timingsFile.exists())
+         {
+            String name = dest.getName();
+
+            if (name.toLowerCase().endsWith(".pdf"))
+            {
+               name = name.substring(0, name.length()-4);
+            }
+
+            File timingsDest = new File(dest.getAbsoluteFile().getParentFile(),
+              name+JobTimings.JSON_SUFFIX);
+
+            debug("Timings file: "+timingsDest);
+
+            Files.copy(timingsFile.toPath(), timingsDest.toPath(), 
+               StandardCopyOption.REPLACE_EXISTING);
+         }
       }
    }
 
-   public void run(String[] args)
+   /**
+    * Parses the arguments and processes the job without exiting
+    * the JVM. Any error is reported and mapped to an exit code.
+    * @param args the command line arguments for the job
+    * @return the exit code (0 if successful)
+    */ 
+   public int runJob(String[] args)
    {
-      if (args.length == 0)
-      {
-         System.err.println(getMessageWithDefault("error.no_args", 
-            "{0}: no arguments provided. Use {1} for help",
-            getApplicationName(), "--help"));
-
-         System.exit(EXIT_SYNTAX);
-      }
+      int exitCode = 0;
 
       try
       {
@@ -1480,30 +1597,57 @@ public class PassCli implements Pass
       }
       catch (SAXException e)
       {
-         fatalError(e, EXIT_SAX);
+         exitCode = EXIT_SAX;
+         reportFatalError(e);
       }
       catch (IOException e)
       {
-         fatalError(e, EXIT_IO);
+         exitCode = EXIT_IO;
+         reportFatalError(e);
       }
       catch (UnknownIdentifierException e)
       {
-         fatalError(e, EXIT_SYNTAX);
+         exitCode = EXIT_SYNTAX;
+         reportFatalError(e);
       }
       catch (UnsupportedSettingException e)
       {
-         fatalError(e, EXIT_UNSUPPORTED_SETTING);
+         exitCode = EXIT_UNSUPPORTED_SETTING;
+         reportFatalError(e);
       }
       catch (InvalidFileException e)
       {
-         fatalError(e, EXIT_INVALID_FILE);
+         exitCode = EXIT_INVALID_FILE;
+         reportFatalError(e);
       }
       catch (Throwable e)
       {
-         fatalError(e, EXIT_OTHER);
+         exitCode = EXIT_OTHER;
+         reportFatalError(e);
       }
 
       closeDown();
+
+      return exitCode;
+   }
+
+   public void run(String[] args)
+   {
+      if (args.length == 0)
+      {
+         System.err.println(getMessageWithDefault("error.no_args", 
+            "{0}: no arguments provided. Use {1} for help",
+            getApplicationName(), "--help"));
+
+         System.exit(EXIT_SYNTAX);
+      }
+
+      int exitCode = runJob(args);
+
+      if (exitCode != 0)
+      {
+         System.exit(exitCode);
+      }
    }
 
    private long timeout = 120L;
@@ -1536,6 +1680,7 @@ public class PassCli implements Pass
    private PrintWriter transcriptWriter = null;
 
    private String pdfResult = null;
+   private File resultDirectory = null;
 
    public static final SimpleDateFormat ISO_DATETIME_FORMAT
      = new SimpleDateFormat("yyyy-MM-dd'T'HHmmssSSSZ");
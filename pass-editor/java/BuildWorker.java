@@ -66,7 +66,7 @@ public class BuildWorker extends AssignmentProcessWorker
       {
          out = new PrintWriter(strWriter);
 
-         exitCode = assignmentProcess.runTestsNoPDF(out, dir);
+         exitCode = assignmentProcess.runTestsNoPDF(out, dir, true);
       }
       finally
       {
@@ -171,6 +171,7 @@ public class BuildWorker extends AssignmentProcessWorker
             case AssignmentProcess.EXIT_UNSET:
             case AssignmentProcess.EXIT_TIMEDOUT:
             case AssignmentProcess.EXIT_CANCELLED:
+            case AssignmentProcess.EXIT_OUTPUT_LIMIT:
             break;
             default:
              ((PassEditor)main).messageLn(main.getMessage("message.build_finished", exitCode));
@@ -0,0 +1,103 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Checks whether content is plain ASCII. Used to determine whether
+ * a UTF-8 job can be typeset with PDFLaTeX and fontenc rather than
+ * LuaLaTeX and fontspec.
+ */
+public class ASCIIScanner
+{
+   private ASCIIScanner()
+   {
+   }
+
+   /**
+    * Finds the first non-ASCII byte in the given file. The file is
+    * read in blocks, so the amount of memory used doesn't depend on
+    * the size of the file.
+    * @param file the file
+    * @return the offset of the first non-ASCII byte or -1 if the
+    * file only contains ASCII
+    * @throws IOException if the file can't be read
+    */
+   public static long findNonASCII(File file) throws IOException
+   {
+      FileChannel channel = null;
+
+      try
+      {
+         channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+         ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+         byte[] bytes = buffer.array();
+         long offset = 0L;
+         int n;
+
+         while ((n = channel.read(buffer)) != -1)
+         {
+            for (int i = 0; i < n; i++)
+            {
+               if (bytes[i] < 0)
+               {
+                  return offset + i;
+               }
+            }
+
+            offset += n;
+            buffer.clear();
+         }
+
+         return -1L;
+      }
+      finally
+      {
+         if (channel != null)
+         {
+            channel.close();
+         }
+      }
+   }
+
+   /**
+    * Finds the first non-ASCII character in the given text.
+    * @param text the text
+    * @return the index of the first non-ASCII character or -1 if
+    * the text only contains ASCII
+    */
+   public static int findNonASCII(CharSequence text)
+   {
+      for (int i = 0, n = text.length(); i < n; i++)
+      {
+         if (text.charAt(i) > 0x7F)
+         {
+            return i;
+         }
+      }
+
+      return -1;
+   }
+
+   private static final int BUFFER_SIZE=65536;
+}
@@ -23,7 +23,7 @@ import java.io.IOException;
  */
 public class AllowedBinaryFilter
  extends javax.swing.filechooser.FileFilter
- implements java.io.FileFilter
+ implements java.io.FileFilter,java.io.Serializable
 {
    /**
     * Creates a new instance.
@@ -155,4 +155,6 @@ public class AllowedBinaryFilter
    private boolean listing, caseSensitive;
    private String description;
    private String[] extensions;
+
+   private static final long serialVersionUID = 1L;
 }
@@ -59,7 +59,7 @@ import java.io.File;
  * accompany the submission.
  * </ul>
  */
-public class AssignmentData
+public class AssignmentData implements java.io.Serializable
 {
    public AssignmentData(Course course)
    {
@@ -74,6 +74,7 @@ public class AssignmentData
       compilerArgs = new Vector<String>();
       invokerArgs = new Vector<String>();
       reports = new Vector<String>();
+      testCases = new Vector<TestCase>();
    }
 
    /**
@@ -85,6 +86,16 @@ public class AssignmentData
       return course;
    }
 
+   /**
+    * Sets the associated course. Used when the data is read from
+    * the cache to associate it with the current course object.
+    * @param course the course
+    */ 
+   void setCourse(Course course)
+   {
+      this.course = course;
+   }
+
    /**
     * Sets the assignment's title.
     * @param title the title
@@ -879,6 +890,47 @@ public class AssignmentData
       return argList;
    }
 
+   /**
+    * Adds a named test case. If there are any test cases, the
+    * student's application is run once for each test case with the
+    * test case's arguments and input (in addition to any arguments
+    * identified by addArg(String) and lines of input identified
+    * by addInput(String)).
+    * @param testCase the test case
+    */ 
+   public void addTestCase(TestCase testCase)
+   {
+      testCases.add(testCase);
+   }
+
+   /**
+    * Gets the list of all test cases.
+    * @return list of all test cases (empty if the application
+    * should just be run once)
+    */ 
+   public Vector<TestCase> getTestCases()
+   {
+      return testCases;
+   }
+
+   /**
+    * Gets the test case with the given name.
+    * @param name the test case name
+    * @return the test case or null if not found
+    */ 
+   public TestCase getTestCase(String name)
+   {
+      for (TestCase testCase : testCases)
+      {
+         if (testCase.getName().equals(name))
+         {
+            return testCase;
+         }
+      }
+
+      return null;
+   }
+
    /**
     * Adds a command line argument that must be passed to the
     * compiler. Each command line argument must be added separately.
@@ -1100,6 +1152,7 @@ public class AssignmentData
    private Vector<AllowedBinaryFilter> allowedBinaryFilters;
    private Vector<ResourceFile> resourceList;
    private Vector<ResultFile> resultList;
+   private Vector<TestCase> testCases;
    private String mainFile;
    private LocalDateTime due;
    private boolean runTest=true, noPdfRunTest=true;
@@ -1219,4 +1272,6 @@ public class AssignmentData
    public static final String MIME_DOCX = "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
    public static final String MIME_DOC = "application/msword";
    public static final String MIME_PDF = "application/pdf";
+
+   private static final long serialVersionUID = 2L;
 }
@@ -59,8 +59,6 @@ public class AssignmentDataParser extends XMLReaderAdapter
     */ 
    public void loadAssignments(Course course) throws IOException,SAXException
    {
-      this.course = course;
-
       URL url = course.getURL();
 
       PassTools passTools = main.getPassTools();
@@ -74,12 +72,12 @@ public class AssignmentDataParser extends XMLReaderAdapter
               url, status));
       }
 
-      BufferedReader in = null;
+      InputStream in = null;
 
       try
       {
-         in = new BufferedReader(new InputStreamReader(url.openStream()));
-         parse(new InputSource(in));
+         in = url.openStream();
+         loadAssignments(course, in);
       }
       finally
       {
@@ -90,6 +88,22 @@ public class AssignmentDataParser extends XMLReaderAdapter
       }
    }
 
+   /**
+    * Loads all the assignments for the given course from the given
+    * stream using this as the XML parser. The stream isn't closed.
+    * @param course the course data
+    * @param in the stream containing the course's XML file
+    * @throws IOException if I/O error occurs
+    * @throws SAXException if XML parser error occurs
+    */ 
+   public void loadAssignments(Course course, InputStream in)
+     throws IOException,SAXException
+   {
+      this.course = course;
+
+      parse(new InputSource(new BufferedReader(new InputStreamReader(in))));
+   }
+
    /**
     * Called when a start element is encountered.
     */ 
@@ -462,6 +476,82 @@ public class AssignmentDataParser extends XMLReaderAdapter
 
          builder = new StringBuilder();
       }
+      else if ("testcase".equals(qName))
+      {
+         if (current == null)
+         {
+            throw new SAXException(
+              passTools.getMessageWithDefault("error.tag_must_be_inside_tag",
+              "<{0}> tag must be inside <{1}> tag.",
+              qName, "assignment"));
+         }
+
+         if (currentTestCase != null)
+         {
+            throw new SAXException(
+              passTools.getMessageWithDefault("error.misplaced_tag",
+              "Misplaced or nested <{0}> tag.", qName));
+         }
+
+         String name = atts.getValue("name");
+
+         if (name == null || name.trim().isEmpty())
+         {
+            throw new SAXException(
+               passTools.getMessageWithDefault("error.tag_missing_attribute",
+               "<{0}> ''{1}'' attribute missing or empty.",
+               qName, "name"));
+         }
+
+         name = name.trim();
+
+         if (!name.matches("[a-zA-Z0-9\\+\\.\\-]+"))
+         {
+            throw new SAXException(
+             passTools.getMessageWithDefault("error.forbidden_chars_in_tag_attribute",
+             "<{0}> ''{1}'' attribute ''{2}'' contains forbidden characters.\n(Permitted characters: ''a''-''z'', ''A''-''Z'', ''0''-''9'', ''.'', ''+'' and ''-''.)",
+             qName, "name", name));
+         }
+
+         if (current.getTestCase(name) != null)
+         {
+            throw new SAXException(
+             passTools.getMessageWithDefault("error.duplicate_testcase",
+             "Duplicate test case name ''{0}''.", name));
+         }
+
+         currentTestCase = new TestCase(name);
+
+         String timeoutStr = atts.getValue("timeout");
+
+         if (timeoutStr != null)
+         {
+            long value;
+
+            try
+            {
+               value = Long.parseLong(timeoutStr.trim());
+            }
+            catch (NumberFormatException e)
+            {
+               throw new SAXException(
+                  passTools.getMessageWithDefault("error.int_tag_attribute_required",
+                  "<{0}> tag attribute ''{1}'' must have an integer value (found ''{2}'').",
+                  qName, "timeout", timeoutStr), e);
+            }
+
+            if (value <= 0)
+            {
+               throw new SAXException(
+                  passTools.getMessageWithDefault(
+                   "error.positive_int_tag_attribute_required",
+                   "<{0}> tag attribute ''{1}'' must have a positive integer value (found {2} \u226F 0).",
+                   qName, "timeout", timeoutStr));
+            }
+
+            currentTestCase.setTimeOut(value);
+         }
+      }
       else if ("allowedbinary".equals(qName))
       {
          if (current == null)
@@ -690,7 +780,19 @@ public class AssignmentDataParser extends XMLReaderAdapter
       }
       else if ("input".equals(qName))
       {
-         current.addInput(builder.toString());// don't trim
+         if (currentTestCase == null)
+         {
+            current.addInput(builder.toString());// don't trim
+         }
+         else
+         {
+            currentTestCase.addInput(builder.toString());// don't trim
+         }
+      }
+      else if ("testcase".equals(qName))
+      {
+         current.addTestCase(currentTestCase);
+         currentTestCase = null;
       }
       else if ("report".equals(qName))
       {
@@ -717,7 +819,14 @@ public class AssignmentDataParser extends XMLReaderAdapter
       }
       else if ("arg".equals(qName))
       {
-         current.addArg(builder.toString());// don't trim
+         if (currentTestCase == null)
+         {
+            current.addArg(builder.toString());// don't trim
+         }
+         else
+         {
+            currentTestCase.addArg(builder.toString());// don't trim
+         }
       }
       else if ("compiler-arg".equals(qName))
       {
@@ -926,6 +1035,7 @@ public class AssignmentDataParser extends XMLReaderAdapter
    private Vector<AssignmentData> assignments=null;
    private AssignmentData current=null;
    private AllowedBinaryFilter currentAllowedBinaryFilter = null;
+   private TestCase currentTestCase = null;
    private StringBuilder builder;
    private StringBuilder listingsSettings = null;
    private StringBuilder geometrySettings = null;
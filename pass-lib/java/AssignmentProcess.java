@@ -19,19 +19,39 @@ import java.net.URL;
 
 import java.util.zip.*;
 import java.util.Vector;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Date;
 import java.util.Calendar;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.text.SimpleDateFormat;
 
 import java.io.*;
 
 import java.nio.file.Files;
+import java.nio.file.FileVisitResult;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.CopyOption;
@@ -40,6 +60,7 @@ import java.nio.file.Paths;
 import java.nio.file.InvalidPathException;
 import java.nio.channels.InterruptedByTimeoutException;
 import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
 
 import java.net.URL;
 import java.net.URI;
@@ -129,7 +150,7 @@ public class AssignmentProcess
     * Increments the progress if there's a non-null progress
     * listener.
     */ 
-   private void incProgress()
+   private synchronized void incProgress()
    {
       if (progressListener != null)
       {
@@ -218,8 +239,9 @@ public class AssignmentProcess
     * and, if applicable, fetches resource files, compiles and runs
     * the student's application. Finally, the document is built
     * using LuaLaTeX if UTF-8 encoding requested or PDFLaTeX for
-    * ASCII or Latin-1. A rerun is needed to ensure that the table
-    * of contents is correct.
+    * ASCII or Latin-1. A rerun is only performed if it's needed to
+    * ensure that the table of contents and cross-references are
+    * correct.
     * @return the PDF file
     * @throws IOException if an I/O error occurs
     * @throws InterruptedException if any of the sub-processes were
@@ -249,8 +271,12 @@ public class AssignmentProcess
       }
 
       alwaysFetchResources = true;
+      incrementalBuild = false;
+      prefetchedResources = null;
+      timingsFile = null;
 
-      maxOutput = passTools.getMaxOutputSetting();
+      courseSettings = passTools.getCourseSettings();
+      maxOutput = courseSettings.getMaxOutputSetting();
 
       Vector<PassFile> fileFields = main.getFiles();
       StringBuilder fileWarnings = null;
@@ -270,7 +296,7 @@ public class AssignmentProcess
                "File `\\file{\\detokenize{{0}}}'' doesn''t exist: ignoring.",
                String.format("\\file{\\detokenize{%s}}", file.getName()));
 
-            main.warning(passTools.getMessageWithDefault(
+            warning(passTools.getMessageWithDefault(
                "warning.file_doesnt_exist_ignoring",
                "File `{0}'' doesn''t exist: ignoring.",
                file.getName()));
@@ -288,7 +314,7 @@ public class AssignmentProcess
                      "Ignoring duplicate file `\\file{\\detokenize{{0}}}''.",
                       String.format("\\file{\\detokenize{%s}}", file.getName()));
 
-                  main.warning(passTools.getMessageWithDefault(
+                  warning(passTools.getMessageWithDefault(
                      "warning.ignoring_duplicate_file",
                      "Ignoring duplicate file ''{0}''.",
                       file.getName()));
@@ -314,34 +340,50 @@ public class AssignmentProcess
       }
 
       basePath = main.getBasePath();
+      fileStager = null;
+      reusedResults = null;
+      warningCount.set(0);
+      suppressedWarnings.set(0);
       timeout = main.getTimeOut();
 
       main.transcriptMessage(passTools.getMessageWithDefault(
         "message.timeout", "Timeout: {0,number}s.", timeout)
       );
 
+      startJobBudget();
+
       AssignmentData data = main.getAssignment();
 
       String encoding = main.getEncoding();
+      String fontEncoding = encoding;
       String engine;
+      String engineReason;
+
+      latexInputs.clear();
+      luaLaTeXRequired = null;
+
+      // If the encoding is UTF-8 and automatic selection is on,
+      // PDFLaTeX may be used instead once the content is known (see
+      // getLuaLaTeXReason()).
 
       if (encoding.equals(Pass.ENCODING_UTF8))
       {
          engine = "lualatex";
          isLua = true;
+         engineReason = passTools.getMessageWithDefault(
+           "message.latex_engine.auto_off", "automatic selection off");
       }
       else
       {
          engine = "pdflatex";
          isLua = false;
          isASCII = main.getEncoding().equals(Pass.ENCODING_ASCII);
+         engineReason = passTools.getMessageWithDefault(
+           "message.latex_engine.encoding", "encoding {0}", encoding);
       }
 
       latexPath = passTools.findApplication(engine).getAbsolutePath();
 
-      String mainFile = data.getMainFile();
-      RequiredPassFile mainFilePanel = null;
-
       String label = data.getLabel();
       PrintWriter out = null;
 
@@ -396,6 +438,24 @@ public class AssignmentProcess
       maxProgress = 2*fileFields.size()+4;
       currentProgress = 0;
 
+      // The work that doesn't depend on the document preamble is
+      // split into stages. If parallel stages are on, independent
+      // stages run at the same time (for example, the zip file is
+      // created while the application is compiled and run).
+      // Otherwise the stages are performed in order. The document
+      // is the same in both cases as the preamble is written after
+      // the stages have been set up and the stages that write LaTeX
+      // code use their own buffer.
+
+      timings = new JobTimings(defaultBaseName);
+      timings.setParallel(passTools.isParallelStages());
+
+      StageGraph graph = new StageGraph(main,
+         passTools.isParallelStages() ? STAGES : null, timings);
+
+      boolean stagesDone = false;
+      Integer jobExitCode = null;
+
       try
       {
          File dir = passTools.createTempDirectory();
@@ -415,90 +475,92 @@ public class AssignmentProcess
          File outFile = new File(dir, jobname+".out");
          File tocFile = new File(dir, jobname+".toc");
          pdfFile = new File(dir, jobname+".pdf");
+         timingsFile = new File(dir, jobname+JobTimings.JSON_SUFFIX);
          File zipFile = null;
 
-         // Create a zip file containing all the submitted source
-         // code files. This adds the original selected files. They
-         // haven't been copied to the temporary directory yet.
-
          if (!fileFields.isEmpty())
          {
             zipFile = new File(dir, defaultBaseName+".zip");
-
-            createZipFile(label, zipFile, fileFields);
          }
 
-         // Start writing the LaTeX code
+         final File zip = zipFile;
 
-         out = new PrintWriter(texFile);
+         // Create a zip file containing all the submitted source
+         // code files. This adds the original selected files. They
+         // haven't necessarily been copied to the temporary directory
+         // yet.
 
-         out.println("\\batchmode");
-         out.println("\\documentclass{article}");
+         StageGraph.Stage<String> zipStage = graph.add("zip", () ->
+         {
+            return zip == null ? null : createZipFile(label, zip, fileFields);
+         });
 
-         CharSequence fontSettings;
+         // Start downloading any resource files that will be needed
+         // for the build. They are moved into place when the build
+         // stage asks for them. The build stage doesn't depend on
+         // this stage, so the download overlaps the compile, but
+         // anything that needs the files waits for it (see
+         // awaitPrefetchedResources()).
 
-         if (encoding.equals(Pass.ENCODING_UTF8))
+         StageGraph.Stage<Void> resourcesStage = graph.add("resources", () ->
          {
-            out.println("\\usepackage{luatex85}");
-
-            String fontSpecOptions = passTools.getFontSpecOptions();
-        
-            if (fontSpecOptions == null)
+            if (!graph.isSequential())
             {
-               out.println("\\usepackage{fontspec}");
-            }
-            else
-            {
-               out.format("\\usepackage[%s]{fontspec}%n", fontSpecOptions);
+               prefetchResourceFiles(dir, data);
             }
 
-            fontSettings = passTools.getFontSpecSettings();
-         }
-         else
-         {
-            String fontEncOptions = passTools.getFontEncOptions();
+            return null;
+         });
 
-            if (fontEncOptions == null)
-            {
-               out.println("\\usepackage[T1]{fontenc}");
-            }
-            else
-            {
-               out.format("\\usepackage[%s]{fontenc}%n", fontEncOptions);
-            }
+         resourcesGraph = graph;
+         prefetchStage = resourcesStage;
+
+         // Copy each source file to the temporary directory and add
+         // the LaTeX code to input the file.
 
-            fontSettings = passTools.getFontEncSettings();
+         StringWriter bodyWriter = new StringWriter();
+         PrintWriter body = new PrintWriter(bodyWriter);
 
-            if (encoding.equals(Pass.ENCODING_LATIN1))
-            {
-               out.println("\\usepackage[latin1]{inputenc}");
-            }
-         }
+         final StringBuilder warnings = fileWarnings;
 
-         if (fontSettings == null)
-         {
-            out.println("\\usepackage{lmodern}");
-         }
-         else
+         StageGraph.Stage<RequiredPassFile> listingsStage
+            = graph.add("listings", () ->
          {
-            out.println(fontSettings.toString());
-         }
+            return writeListings(body, dir, fileFields, warnings);
+         });
 
-         out.println("\\usepackage{geometry}");
-         out.println("\\usepackage{graphicx}");
-         out.println("\\usepackage{upquote}");
-         out.println("\\usepackage{verbatim}");
-         out.println("\\usepackage{listings}");
-         out.println("\\usepackage{attachfile}");
+         // The build stage runs in this thread rather than the stage
+         // pool, since it takes the longest and this thread would
+         // otherwise just wait for it. This leaves the pool free for
+         // the other stages of this job and other jobs.
 
-         if (usePdfPages)
+         StageGraph.Stage<Integer> buildStage = graph.addInCurrentThread(
+           "build", () ->
          {
-            out.println("\\usepackage{pdfpages}");
-         }
+            incProgress();
+
+            setIndeterminateProgress(true);
+
+            int result = buildCompileRunCached(body, dir, fileFields,
+              graph.get(listingsStage), data);
+
+            setIndeterminateProgress(false);
+
+            return result;
+         }, listingsStage);
 
-         out.println("\\usepackage{hyperref}");
-         out.println("\\newcommand{\\file}[1]{\\texorpdfstring{\\texttt{#1}}{#1}}");
-         out.println("\\newcommand{\\warning}[1]{\\textbf{\\color{red}#1}}");
+         String zipCheckSum = graph.get(zipStage);
+
+         // Start writing the LaTeX code. The fixed part of the
+         // preamble (see writeFixedPreamble()) is written last, since
+         // the engine may depend on the content. Anything that
+         // depends on the student or the submission must go after
+         // the end of the fixed part, so it's written to a buffer.
+
+         LaTeXFormatCache formatCache = passTools.getLaTeXFormatCache();
+
+         StringWriter docWriter = new StringWriter();
+         out = new PrintWriter(docWriter);
 
          out.println("\\hypersetup{hidelinks,%");
          out.println(String.format("pdftitle={%s},%%", data.getTitle()));
@@ -512,14 +574,24 @@ public class AssignmentProcess
          {
             String checksum = "";
 
-            if (zipFile != null)
+            if (zipCheckSum != null)
+            {
+               checksum = zipCheckSum;
+            }
+            else if (zipFile != null)
             {
                checksum = passTools.getCheckSum(zipFile);
             }
 
             out.print("\\pdfinfo{");
 
-            String pdfDate = PDF_DATE_FORMAT.format(now);
+            String pdfDate;
+
+            synchronized (PDF_DATE_FORMAT)
+            {
+               pdfDate = PDF_DATE_FORMAT.format(now);
+            }
+
             Calendar cal = Calendar.getInstance();
             cal.setTime(now);
 
@@ -594,17 +666,6 @@ public class AssignmentProcess
             main.error(e);
          }
 
-         CharSequence geometry = passTools.getGeometrySettings();
-
-         if (geometry == null || geometry.length() == 0)
-         {
-            out.format("\\geometry{%s,margin=1in}%n", config.getGeometryPaperSize());
-         }
-         else
-         {
-            out.format("\\geometry{%s,%s}%n", config.getGeometryPaperSize(), geometry);
-         }
-
          out.println("\\makeatletter");
          out.println("\\newcommand{\\ps@pass}{%");
          out.println(String.format(" \\def\\@oddhead{\\rightmark\\hfill %s}%%",
@@ -619,47 +680,6 @@ public class AssignmentProcess
 
          out.println("\\pagestyle{pass}");
 
-         out.println("\\newlength\\imgwidth");
-         out.println("\\newlength\\imgheight");
-         out.println("\\newsavebox\\imgsbox");
-         out.println("\\newcommand\\includeimg[1]{%");
-         out.println(" \\sbox{\\imgsbox}{\\includegraphics{#1}}%");
-         out.println(" \\settowidth{\\imgwidth}{\\usebox\\imgsbox}%");
-         out.println(" \\settoheight{\\imgheight}{\\usebox\\imgsbox}%");
-         out.println(" \\ifdim\\imgwidth<\\imgheight");
-         out.println("   \\ifdim\\imgwidth>\\linewidth");
-         out.println("     \\resizebox{\\linewidth}{!}{\\usebox\\imgsbox}%");
-         out.println("   \\else");
-         out.println("     \\usebox\\imgsbox");
-         out.println("   \\fi");
-         out.println(" \\else");
-         out.println("   \\dimen0=0.9\\textheight");
-         out.println("   \\ifdim\\imgheight>\\dimen0");
-         out.println("     \\resizebox{!}{\\dimen0}{\\usebox\\imgsbox}%");
-         out.println("   \\else");
-         out.println("     \\usebox\\imgsbox");
-         out.println("   \\fi");
-         out.println(" \\fi");
-         out.println("}");
-
-         out.println("\\lstset{%");
-         out.println(" basicstyle=\\ttfamily,");
-         out.println(" numbers=left,");
-         out.println(" numberstyle=\\tiny,");
-         out.println(" stepnumber=2,");
-         out.println(" showstringspaces=false,");
-         out.print(" breaklines");
-
-         CharSequence listingSettings = passTools.getListingSettings();
-
-         if (listingSettings != null)
-         {
-            out.println(",");
-            out.print(listingSettings);
-         }
-
-         out.println("}");
-
          out.println("\\setcounter{secnumdepth}{-1}");
 
          out.println(String.format("\\title{%s}", data.getTitle()));
@@ -717,112 +737,131 @@ public class AssignmentProcess
 
          out.println("\\tableofcontents");
 
-         // Copy each source file to the temporary directory and add
-         // the LaTeX code to input the file.
+         int exitCode = graph.get(buildStage);
+
+         stagesDone = true;
+
+         writeBudgetSummary(out);
+
+         if (reusedResults != null)
+         {
+            out.format("\\noindent %s%n%n", passTools.getMessageWithDefault(
+              "document.results_reused",
+              "The build and test results were reused from an identical submission processed on {0}.",
+              config.formatDocDate(reusedResults)));
+         }
 
-         // Separate binary files
-         Vector<PassFile> reports = new Vector<PassFile>();
-         Vector<AllowedBinaryFile> binaries = new Vector<AllowedBinaryFile>();
+         body.close();
+         out.print(bodyWriter);
 
-         for (PassFile field : fileFields)
+         out.println("\\end{document}");
+         out.close();
+         out = null;
+
+         if (isLua && passTools.isAutoLaTeXEngine())
          {
-            String language = field.getLanguage();
+            String reason = getLuaLaTeXReason(docWriter.getBuffer());
 
-            if (language == null
-             || language.equals(AssignmentData.BINARY)
-             || language.equals(AssignmentData.UNKNOWN_LANGUAGE))
+            if (reason == null)
             {
-               if (field instanceof AllowedBinaryFile)
+               try
                {
-                  binaries.add((AllowedBinaryFile)field);
-                  continue;
+                  latexPath = passTools.findApplication("pdflatex").getAbsolutePath();
+                  engine = "pdflatex";
+                  fontEncoding = Pass.ENCODING_ASCII;
+                  isLua = false;
+                  engineReason = passTools.getMessageWithDefault(
+                    "message.latex_engine.ascii", "all content is ASCII");
                }
-               else
+               catch (IOException e)
                {
-                  File file = field.getFile();
-
-                  AllowedBinaryFilter filter 
-                     = data.getAllowedBinaryFilter(file);
-
-                  if (filter != null)
-                  {
-                     binaries.add(new AllowedBinaryFile(file, filter));
-                     continue;
-                  }
+                  engineReason = e.getMessage();
                }
             }
-            else if (language.equals("PDF") || language.equals("WORD"))
+            else
             {
-               reports.add(field);
-               continue;
+               engineReason = reason;
             }
+         }
 
-            incProgress();
-
-            if (field instanceof RequiredPassFile)
-            {
-               // If this is a required file, check if it's the main
-               // file.
+         main.transcriptMessage(passTools.getMessageWithDefault(
+           "message.latex_engine", "LaTeX engine: {0} ({1}).",
+           engine, engineReason));
 
-               RequiredPassFile reqFP = (RequiredPassFile)field;
+         // LuaTeX can't dump the fonts loaded by fontspec, so they
+         // need to be loaded after the format.
+         boolean deferFonts = isLua && formatCache != null;
 
-               if (reqFP.getRequiredName().equals(mainFile))
-               {
-                  mainFilePanel = reqFP;
-               }
-            }
+         StringWriter fixedPreamble = new StringWriter();
+         out = new PrintWriter(fixedPreamble);
+         writeFixedPreamble(out, fontEncoding, deferFonts, usePdfPages);
+         out.close();
 
-            copyAndInput(out, dir, field, "section");
-         }
+         out = new PrintWriter(texFile);
+         out.print(fixedPreamble);
+         out.println(LaTeXFormatCache.END_OF_DUMP);
 
-         if (fileWarnings != null)
+         if (deferFonts)
          {
-            out.format("\\par\\warning{%s}", fileWarnings.toString());
+            writeFontPreamble(out, fontEncoding);
          }
 
-         if (!binaries.isEmpty())
+         out.print(docWriter);
+         out.close();
+         out = null;
+
+         incProgress();
+
+         latexFormat = null;
+
+         if (formatCache != null)
          {
-            out.format("\\section{%s}%n",
-               passTools.getChoiceMessage("document.binary.section", binaries.size()));
+            JobTimings.Entry entry = timings.start("latex-format");
 
-            for (PassFile file : binaries)
+            try
             {
-               incProgress();
+               // Building the format is only worthwhile if there's
+               // time left.
+
+               long formatMillis = jobBudget == null ? timeout*1000L
+                 : jobBudget.getTimeout(JobBudget.LATEX, timeout*1000L);
 
-               copyAndInput(out, dir, file, "subsection");
+               if (formatMillis > 0L)
+               {
+                  latexFormat = formatCache.getFormat(this, latexPath,
+                    engine, fixedPreamble.toString(), dir, formatMillis);
+               }
+            }
+            finally
+            {
+               entry.end();
             }
          }
 
-         for (PassFile file : reports)
+         try
          {
-            incProgress();
-
-            copyAndInput(out, dir, file, "section");
+            exitCode = latexPasses(texFile, logFile, auxFile, tocFile, outFile);
          }
+         catch (ProcessAbortedException e)
+         {
+            // LaTeX was stopped because it can't succeed. There's no
+            // usable PDF, but the problems found in the log so far
+            // are reported as they would be if LaTeX had finished.
 
-         incProgress();
-
-         setIndeterminateProgress(true);
+            jobExitCode = EXIT_ABORTED;
 
-         int exitCode = buildCompileRun(out, dir, fileFields, mainFilePanel, data);
+            parseLaTeXLog(logFile);
 
-         setIndeterminateProgress(false);
-         out.println("\\end{document}");
-         out.close();
-         out = null;
+            throw e;
+         }
 
-         incProgress();
-         exitCode = latex(texFile);
+         jobExitCode = exitCode;
 
          incProgress();
 
-         if (exitCode == 0)
-         {
-            exitCode = latex(texFile);
-         }
-         else
+         if (exitCode != 0)
          {
-            main.warning(passTools.getMessageWithDefault(
+            warning(passTools.getMessageWithDefault(
               "warning.something_went_wrong",
               "Something went wrong while compiling the PDF."));
 
@@ -837,970 +876,2691 @@ public class AssignmentProcess
       }
       finally
       {
+         if (!stagesDone)
+         {
+            // Make sure nothing is still writing to the temporary
+            // directory.
+
+            graph.cancel();
+            interrupt();
+            graph.awaitQuietly();
+         }
+
+         prefetchedResources = null;
+         resourcesGraph = null;
+         prefetchStage = null;
+
          if (out != null)
          {
             out.close();
          }
+
+         reportSuppressedWarnings();
+
+         timings.end(jobExitCode);
+
+         if (passTools.isTimingReport())
+         {
+            timings.writeTranscript(main);
+
+            if (timingsFile != null)
+            {
+               try
+               {
+                  timings.writeJSON(timingsFile);
+               }
+               catch (IOException e)
+               {
+                  main.error(e);
+                  timingsFile = null;
+               }
+            }
+         }
+         else
+         {
+            timingsFile = null;
+         }
       }
 
       return pdfFile;
    }
 
    /**
-    * Copies source code file and writes LaTeX code to include it.
+    * Copies each source file to the temporary directory and writes
+    * the LaTeX code to input the file.
     * @param out the output stream
     * @param dir the directory to copy the files to
-    * @param field the source code file
+    * @param fileFields the student's files
+    * @param fileWarnings any warnings about missing or duplicate
+    * files (may be null)
+    * @return the main file or null if not found
     * @throws IOException if I/O error occurs
     */ 
-   private void copyAndInput(PrintWriter out, File dir, PassFile field, String section)
+   private RequiredPassFile writeListings(PrintWriter out, File dir,
+     Vector<PassFile> fileFields, StringBuilder fileWarnings)
    throws IOException
    {
       PassTools passTools = main.getPassTools();
       AssignmentData data = main.getAssignment();
+      String mainFile = data.getMainFile();
+      RequiredPassFile mainFilePanel = null;
 
-      File src = field.getFile();
-
-      // Scrub any awkward characters in the filename that
-      // will cause a problem for LaTeX. This will cause a
-      // problem for source code files that need to be
-      // compiled, but awkward characters are likely to cause
-      // the compiler problems as well.
-
-      String originalName = src.getName();
-      String filename = getScrubbedFileName(dir, originalName);
-
-      String language = field.getLanguage();
+      // Separate binary files
+      Vector<PassFile> reports = new Vector<PassFile>();
+      Vector<AllowedBinaryFile> binaries = new Vector<AllowedBinaryFile>();
 
-      if (!(language == null || language.equals("PDF") || language.equals("DOC")
-            || language.equals(AssignmentData.BINARY)))
+      for (PassFile field : fileFields)
       {
-         out.println("\\clearpage");
-      }
+         String language = field.getLanguage();
 
-      Path srcPath = src.toPath();
-      StringBuilder subPath = new StringBuilder();
+         if (language == null
+          || language.equals(AssignmentData.BINARY)
+          || language.equals(AssignmentData.UNKNOWN_LANGUAGE))
+         {
+            if (field instanceof AllowedBinaryFile)
+            {
+               binaries.add((AllowedBinaryFile)field);
+               continue;
+            }
+            else
+            {
+               File file = field.getFile();
 
-      Path destPath = getDestination(srcPath, filename, dir, subPath);
-      File dest = destPath.toFile();
+               AllowedBinaryFilter filter 
+                  = data.getAllowedBinaryFilter(file);
 
-      // Start a new section for each file
+               if (filter != null)
+               {
+                  binaries.add(new AllowedBinaryFile(file, filter));
+                  continue;
+               }
+            }
+         }
+         else if (language.equals("PDF") || language.equals("WORD"))
+         {
+            reports.add(field);
+            continue;
+         }
 
-      out.println(String.format("\\%s{\\file{%s%s}}", section, subPath, filename));
+         incProgress();
 
-      if (!filename.equals(originalName))
-      {
-         main.warning(getPassTools().getMessageWithDefault(
-          "warning.filename_scrubbed",
-          "Filename scrubbed (one or more forbidden characters found). Original name: {0}",
-           originalName));
+         if (field instanceof RequiredPassFile)
+         {
+            // If this is a required file, check if it's the main
+            // file.
 
-         out.println(passTools.getMessageWithDefault(
-           "document.filename_scrubbed",
-           "Filename scrubbed (one or more forbidden characters found). Original name:")
-         );
+            RequiredPassFile reqFP = (RequiredPassFile)field;
 
-         createAndWriteVerbatim(out, originalName);
+            if (reqFP.getRequiredName().equals(mainFile))
+            {
+               mainFilePanel = reqFP;
+            }
+         }
+
+         copyAndInput(out, dir, field, "section");
       }
 
-      // Copy file to temporary directory and write the LaTeX code
-      // to include it.
+      if (fileWarnings != null)
+      {
+         out.format("\\par\\warning{%s}", fileWarnings.toString());
+      }
 
-      try
+      if (!binaries.isEmpty())
       {
-         if (filename.isEmpty() || !src.exists())
-         {
-            main.warning(passTools.getMessageWithDefault(
-              "warning.cant_find_src",
-              "Can''t find file ''{0}'' [src={1}].",
-              filename, src));
+         out.format("\\section{%s}%n",
+            passTools.getChoiceMessage("document.binary.section", binaries.size()));
 
-            out.println(passTools.getMessageWithDefault(
-              "document.file_not_found", 
-              "File not found."));
-         }
-         else if (passTools.isBannedFile(filename))
+         for (PassFile file : binaries)
          {
-            main.warning(passTools.getMessageWithDefault(
-              "warning.forbidden_file",
-              "Forbidden file ''{0}''.", filename));
+            incProgress();
 
-            out.println(passTools.getMessageWithDefault(
-              "document.omitting_forbidden_file",
-              "Omitting forbidden file."));
+            copyAndInput(out, dir, file, "subsection");
          }
-         else
-         {
-            main.debug("Copying "+srcPath+" -> "+destPath);
+      }
 
-            try
-            {
-               Files.copy(srcPath, destPath);
-            }
-            catch (Exception e)
-            {
-               main.error(e);
-            }
+      for (PassFile file : reports)
+      {
+         incProgress();
 
-            boolean addBraces = passTools.areBracesRequired(isLua, filename);
+         copyAndInput(out, dir, file, "section");
+      }
 
-            if (!dest.exists())
-            {
-               out.format("\\warning{%s}%n",
-                 passTools.getMessage("error.file_not_found.copy_failed",
-                    filename));
-            }
-            else if (language == null || AssignmentData.BINARY.equals(language))
-            {
-               out.println(passTools.getMessage("document.binary", src.length()));
-               out.println();
+      return mainFilePanel;
+   }
 
-               String mimetype = null;
-               boolean showListing = false;
+   /**
+    * Gets the content type of a staged file. The type identified
+    * by the content classifier is used where it's specific. Otherwise
+    * (for example, a zip file that may be a Word document) the
+    * content type is probed.
+    * @param path the staged file
+    * @param content the classification of the file's content or
+    * null if not known
+    * @return the content type or null if unknown
+    */ 
+   private String getContentType(Path path, ContentClassifier.Result content)
+   {
+      if (content != null && content.getFormat() != null
+            && !content.isContainer())
+      {
+         return content.getFormat();
+      }
 
-               if (field instanceof AllowedBinaryFile)
-               {
-                  mimetype = ((AllowedBinaryFile)field).getMimeType();
-                  showListing = ((AllowedBinaryFile)field).showListing();
-               }
+      String contentType = null;
 
-               if (mimetype == null)
-               {
-                  out.format("\\warning{%s}%n",
-                    passTools.getMessage("document.binary_no_mimetype"));
-               }
-               else
-               {
-                  String contentType = null;
+      try
+      {
+         contentType = Files.probeContentType(path);
+      }
+      catch (IOException e)
+      {
+         main.error(e);
+      }
 
-                  try
-                  {
-                     contentType = Files.probeContentType(destPath);
-                  }
-                  catch (IOException e)
-                  {
-                     main.error(e);
-                  }
+      if (contentType == null && content != null)
+      {
+         contentType = content.getFormat();
+      }
 
-                  if (contentType == null)
-                  {
-                     out.format("\\warning{%s}%n",
-                       passTools.getMessage("document.binary_probe_failed", mimetype));
-                  }
-                  else if (!contentType.equals(mimetype))
-                  {
-                     out.format("\\warning{%s}%n",
-                       passTools.getMessage("document.binary_probe_not_matched",
-                          mimetype, contentType));
-                  }
-                  else if (showListing)
-                  {
-                     if (mimetype.startsWith("image/"))
-                     {
-                        out.println(String.format(
-                           "\\includeimg{%s%s}", subPath, filename));
-                     }
-                     else
-                     {
-                        out.format("\\warning{%s}%n",
-                          passTools.getMessage("document.binary_not_supported",
-                             mimetype));
-                     }
-                  }
-               }
-            }
-            else if (language.equals(AssignmentData.UNKNOWN_LANGUAGE)
-             || language.equals(AssignmentData.PLAIN_TEXT))
-            {
-               createAndWriteVerbatim(out, src);
-            }
-            else if (language.equals("PDF"))
-            {
-               out.println("\\attachfile");
-               out.println("[mimetype=application/pdf,");
-               out.println(String.format("description={%s},",
-                  passTools.getMessageWithDefault(
-                   "document.pdf", "PDF document {0}.", filename)));
-               out.println(String.format("author={%s},", pdfauthor));
-               out.println(String.format("size={%d}", dest.length()));
-               out.println(String.format("]{%s%s}", subPath, filename));
+      return contentType;
+   }
 
-               out.println(passTools.getMessage("document.binary", src.length()));
-               out.println();
+   /**
+    * Attaches a file that was expected to be text but has binary
+    * content, instead of showing it as a listing.
+    * @param out the output stream
+    * @param subPath the path of the file's directory relative to the
+    * LaTeX file
+    * @param filename the file name
+    * @param dest the staged file
+    * @param content the classification of the file's content
+    */ 
+   private void fenceBinaryFile(PrintWriter out, CharSequence subPath,
+     String filename, File dest, ContentClassifier.Result content)
+   {
+      PassTools passTools = getPassTools();
 
-               // The student has identified the file as a PDF
-               // file but have they made a mistake?
+      String format = content.getFormat();
 
-               String contentType = null;
+      if (format == null)
+      {
+         format = "application/octet-stream";
+      }
 
-               try
-               {
-                  contentType = Files.probeContentType(destPath);
-               }
-               catch (IOException e)
-               {
-                  main.error(e);
-               }
+      warning(passTools.getMessageWithDefault(
+        "warning.binary_content",
+        "File ''{0}'' was expected to be text but has binary content ({1}). It has been attached but not listed.",
+        filename, format));
+
+      out.format("\\warning{%s}%n", passTools.getMessageWithDefault(
+        "document.binary_content",
+        "Binary content detected ({0}). The file has been attached but not listed.",
+        format));
+
+      out.println("\\attachfile");
+      out.println(String.format("[mimetype=%s,", format));
+      out.println(String.format("author={%s},", pdfauthor));
+      out.println(String.format("size={%d}", dest.length()));
+      out.println(String.format("]{%s%s}", subPath, filename));
+      out.println();
+   }
 
-               boolean incPdf = (config.usePdfPages() && !filename.contains(" "));
+   /**
+    * Warns that a text file doesn't match the encoding.
+    * @param out the output stream
+    * @param filename the file name
+    * @param content the classification of the file's content
+    * @param encoding the encoding
+    */ 
+   private void warnEncoding(PrintWriter out, String filename,
+     ContentClassifier.Result content, String encoding)
+   {
+      PassTools passTools = getPassTools();
 
-               if (contentType == null)
-               {
-                  out.format("\\warning{%s}%n",
-                    passTools.getMessage("document.pdf_probe_failed"));
+      long offset = Pass.ENCODING_ASCII.equals(encoding) ?
+        content.getFirstNonASCII() : content.getFirstInvalidUTF8();
 
-                  incPdf = false;
-               }
-               else if (!contentType.equals("application/pdf"))
-               {
-                  out.format("\\warning{%s}%n",
-                    passTools.getMessage("document.pdf_probe_not_matched",
-                      contentType));
+      String detected = content.getEncoding();
 
-                  incPdf = false;
-               }
+      if (detected == null)
+      {
+         detected = passTools.getMessageWithDefault(
+           "message.unknown_encoding", "unknown");
+      }
 
-               if (!filename.endsWith(".pdf"))
-               {
-                  main.warning(passTools.getMessage(
-                    "warning.ext_not.pdf", filename));
+      warning(passTools.getMessageWithDefault(
+        "warning.encoding_mismatch",
+        "File ''{0}'' doesn''t match the {1} encoding (detected: {2}, first mismatch at byte {3,number,integer}). Invalid characters will be replaced.",
+        filename, encoding, detected, Math.max(offset, 0L)));
 
-                  out.format("\\warning{%s}%n",
-                    passTools.getMessage("document.not_pdf_ext"));
+      out.format("\\warning{%s}%n", passTools.getMessageWithDefault(
+        "document.encoding_mismatch",
+        "File doesn''t match the {0} encoding (detected: {1}). Invalid characters have been replaced.",
+        encoding, detected));
 
-                  incPdf = false;
-               }
+      out.println();
+   }
 
-               if (incPdf)
-               {
-                  String pdfPagesOptions = config.getPdfPagesOptions();
+   /**
+    * Records a file that will be input by the LaTeX document, where
+    * the content has already been classified. The file doesn't need
+    * to be scanned again by getLuaLaTeXReason().
+    * @param file the file
+    * @param content the classification of the file's content or
+    * null if not known
+    * @param luaOnly true if the code that inputs the file is only
+    * suitable for LuaLaTeX
+    */ 
+   private void addLaTeXInput(File file, ContentClassifier.Result content,
+     boolean luaOnly)
+   {
+      if (content == null)
+      {
+         addLaTeXInput(file, luaOnly);
+      }
+      else if (!content.isASCII())
+      {
+         if (luaLaTeXRequired == null)
+         {
+            luaLaTeXRequired = getPassTools().getMessageWithDefault(
+              "message.latex_engine.file",
+              "non-ASCII content in {0}", file.getName());
+         }
+      }
+      else if (luaOnly)
+      {
+         addLaTeXInput(file, luaOnly);
+      }
+   }
 
-                  out.println(passTools.getMessageWithDefault(
-                    "document.pdf_starts_nextpage",
-                    "(Included PDF starts on next page.)"));
+   /**
+    * Records a file that will be input by the LaTeX document.
+    * @param file the file
+    * @param luaOnly true if the code that inputs the file is only
+    * suitable for LuaLaTeX
+    */ 
+   private void addLaTeXInput(File file, boolean luaOnly)
+   {
+      latexInputs.add(file);
 
-                  if (pdfPagesOptions == null || pdfPagesOptions.isEmpty())
-                  {
-                     out.format("\\includepdf[pages=-]{%s%s}",
-                       subPath, filename);
-                  }
-                  else
-                  {
-                     out.format("\\includepdf[pages=-,%s]{%s%s}",
-                       pdfPagesOptions, subPath, filename);
-                  }
+      if (luaOnly && luaLaTeXRequired == null)
+      {
+         luaLaTeXRequired = getPassTools().getMessageWithDefault(
+           "message.latex_engine.braces", "braces required for {0}",
+           file.getName());
+      }
+   }
 
-                  out.println();
-               }
-            }
-            else if (language.equals("DOC"))
-            {
-               boolean ext_warn = false;
+   /**
+    * Determines whether the document must be built with LuaLaTeX
+    * rather than PDFLaTeX. The document only uses PDFLaTeX with
+    * fontenc if everything that LaTeX will read (the document and
+    * the listings and verbatim files it inputs) is ASCII, as the
+    * listings package can't cope with multi-byte characters. The
+    * fixed part of the preamble doesn't need to be checked as it
+    * depends on the engine.
+    * @param doc the document after the fixed part of the preamble
+    * @return the reason LuaLaTeX is required or null if not required
+    */ 
+   private String getLuaLaTeXReason(CharSequence doc)
+   {
+      PassTools passTools = getPassTools();
 
-               String docContentType = AssignmentData.getMimeType(language, filename);
+      if (luaLaTeXRequired != null)
+      {
+         return luaLaTeXRequired;
+      }
 
-               out.println("\\attachfile");
-               out.print("[mimetype=");
+      JobTimings.Entry entry = timings.start("engine-check");
 
-               out.print(docContentType);
-               out.println(",");
+      try
+      {
+         int idx = ASCIIScanner.findNonASCII(doc);
 
-               if (!(filename.endsWith(".docx") || filename.endsWith(".doc")))
+         if (idx > -1)
+         {
+            return passTools.getMessageWithDefault(
+              "message.latex_engine.document",
+              "non-ASCII character U+{0} in document",
+              String.format("%04X", (int)doc.charAt(idx)));
+         }
+
+         for (File file : latexInputs)
+         {
+            try
+            {
+               if (file.exists() && ASCIIScanner.findNonASCII(file) > -1)
                {
-                  ext_warn = true;
+                  return passTools.getMessageWithDefault(
+                    "message.latex_engine.file",
+                    "non-ASCII content in {0}", file.getName());
                }
+            }
+            catch (IOException e)
+            {
+               main.debug(e.getMessage());
 
-               out.println(String.format("description={%s},",
-                  passTools.getMessageWithDefault(
-                    "document.word", 
-                    "Word document {0}.", 
-                    filename)));
-               out.println(String.format("author={%s},", pdfauthor));
-               out.println(String.format("size={%d}", dest.length()));
-               out.println(String.format("]{%s%s}", subPath, filename));
+               return passTools.getMessageWithDefault(
+                 "message.latex_engine.file",
+                 "non-ASCII content in {0}", file.getName());
+            }
+         }
+      }
+      finally
+      {
+         entry.end();
+      }
 
-               out.println(passTools.getMessage("document.binary", src.length()));
+      return null;
+   }
 
-               // The student has identified the file as a
-               // Word document, but have they made a mistake?
+   /**
+    * Writes the fixed part of the document preamble, which only
+    * depends on the course settings, encoding and configuration.
+    * This part may be precompiled into a format (see
+    * LaTeXFormatCache).
+    * @param out the output stream
+    * @param encoding the encoding used to select the font packages
+    * @param deferFonts true if the font packages are loaded after
+    * the format
+    * @param usePdfPages true if the pdfpages package is needed
+    */ 
+   private void writeFixedPreamble(PrintWriter out, String encoding,
+     boolean deferFonts, boolean usePdfPages)
+   {
+      out.println("\\batchmode");
+      out.println("\\documentclass{article}");
 
-               String contentType = null;
+      if (encoding.equals(Pass.ENCODING_UTF8))
+      {
+         // This needs to come before any package that uses the
+         // pdfTeX primitives, so it's not deferred with the fonts.
+         out.println("\\usepackage{luatex85}");
+      }
 
-               try
-               {
-                  contentType = Files.probeContentType(destPath);
-               }
-               catch (IOException e)
-               {
-                  main.error(e);
-               }
+      if (!deferFonts)
+      {
+         writeFontPreamble(out, encoding);
+      }
 
-               if (contentType == null)
-               {
-                  out.format("\\warning{%s}%n",
-                    passTools.getMessage("document.doc_probe_failed"));
-               }
-               else if (!contentType.equals(docContentType))
-               {
-                  out.format("\\warning{%s}%n",
-                    passTools.getMessage("document.doc_probe_not_matched",
-                      docContentType, contentType));
-               }
+      out.println("\\usepackage{geometry}");
+      out.println("\\usepackage{graphicx}");
+      out.println("\\usepackage{upquote}");
+      out.println("\\usepackage{verbatim}");
+      out.println("\\usepackage{listings}");
+      out.println("\\usepackage{attachfile}");
 
-               if (ext_warn)
-               {
-                  main.warning(passTools.getMessage(
-                       "warning.ext_not.doc", filename));
+      if (usePdfPages)
+      {
+         out.println("\\usepackage{pdfpages}");
+      }
 
-                  out.format("\\warning{%s}%n",
-                    passTools.getMessage("document.not_doc_ext"));
-               }
-            }
-            else if (language.equals(data.getMainLanguage()))
-            {
-               String variant = data.getLanguageVariant();
+      out.println("\\usepackage{hyperref}");
+      out.println("\\newcommand{\\file}[1]{\\texorpdfstring{\\texttt{#1}}{#1}}");
+      out.println("\\newcommand{\\warning}[1]{\\textbf{\\color{red}#1}}");
 
-               if (variant == null)
-               {
-                  out.print(String.format(
-                    "\\lstinputlisting[language={%s}",
-                    language));
-               }
-               else
+      CharSequence geometry = courseSettings.getGeometrySettings();
+
+      if (geometry == null || geometry.length() == 0)
+      {
+         out.format("\\geometry{%s,margin=1in}%n", config.getGeometryPaperSize());
+      }
+      else
+      {
+         out.format("\\geometry{%s,%s}%n", config.getGeometryPaperSize(), geometry);
+      }
+
+      out.println("\\newlength\\imgwidth");
+      out.println("\\newlength\\imgheight");
+      out.println("\\newsavebox\\imgsbox");
+      out.println("\\newcommand\\includeimg[1]{%");
+      out.println(" \\sbox{\\imgsbox}{\\includegraphics{#1}}%");
+      out.println(" \\settowidth{\\imgwidth}{\\usebox\\imgsbox}%");
+      out.println(" \\settoheight{\\imgheight}{\\usebox\\imgsbox}%");
+      out.println(" \\ifdim\\imgwidth<\\imgheight");
+      out.println("   \\ifdim\\imgwidth>\\linewidth");
+      out.println("     \\resizebox{\\linewidth}{!}{\\usebox\\imgsbox}%");
+      out.println("   \\else");
+      out.println("     \\usebox\\imgsbox");
+      out.println("   \\fi");
+      out.println(" \\else");
+      out.println("   \\dimen0=0.9\\textheight");
+      out.println("   \\ifdim\\imgheight>\\dimen0");
+      out.println("     \\resizebox{!}{\\dimen0}{\\usebox\\imgsbox}%");
+      out.println("   \\else");
+      out.println("     \\usebox\\imgsbox");
+      out.println("   \\fi");
+      out.println(" \\fi");
+      out.println("}");
+
+      out.println("\\lstset{%");
+      out.println(" basicstyle=\\ttfamily,");
+      out.println(" numbers=left,");
+      out.println(" numberstyle=\\tiny,");
+      out.println(" stepnumber=2,");
+      out.println(" showstringspaces=false,");
+      out.print(" breaklines");
+
+      CharSequence listingSettings = courseSettings.getListingSettings();
+
+      if (listingSettings != null)
+      {
+         out.println(",");
+         out.print(listingSettings);
+      }
+
+      out.println("}");
+   }
+
+   /**
+    * Writes the code to load the font packages. For UTF-8, the
+    * luatex85 package has already been loaded by the fixed
+    * preamble.
+    * @param out the output stream
+    * @param encoding the file encoding
+    */ 
+   private void writeFontPreamble(PrintWriter out, String encoding)
+   {
+      CharSequence fontSettings;
+
+      if (encoding.equals(Pass.ENCODING_UTF8))
+      {
+         String fontSpecOptions = courseSettings.getFontSpecOptions();
+     
+         if (fontSpecOptions == null)
+         {
+            out.println("\\usepackage{fontspec}");
+         }
+         else
+         {
+            out.format("\\usepackage[%s]{fontspec}%n", fontSpecOptions);
+         }
+
+         fontSettings = courseSettings.getFontSpecSettings();
+      }
+      else
+      {
+         String fontEncOptions = courseSettings.getFontEncOptions();
+
+         if (fontEncOptions == null)
+         {
+            out.println("\\usepackage[T1]{fontenc}");
+         }
+         else
+         {
+            out.format("\\usepackage[%s]{fontenc}%n", fontEncOptions);
+         }
+
+         fontSettings = courseSettings.getFontEncSettings();
+
+         if (encoding.equals(Pass.ENCODING_LATIN1))
+         {
+            out.println("\\usepackage[latin1]{inputenc}");
+         }
+      }
+
+      if (fontSettings == null)
+      {
+         out.println("\\usepackage{lmodern}");
+      }
+      else
+      {
+         out.println(fontSettings.toString());
+      }
+   }
+
+   /**
+    * Copies source code file and writes LaTeX code to include it.
+    * @param out the output stream
+    * @param dir the directory to copy the files to
+    * @param field the source code file
+    * @throws IOException if I/O error occurs
+    */ 
+   private void copyAndInput(PrintWriter out, File dir, PassFile field, String section)
+   throws IOException
+   {
+      PassTools passTools = main.getPassTools();
+      AssignmentData data = main.getAssignment();
+
+      File src = field.getFile();
+
+      // Scrub any awkward characters in the filename that
+      // will cause a problem for LaTeX. This will cause a
+      // problem for source code files that need to be
+      // compiled, but awkward characters are likely to cause
+      // the compiler problems as well.
+
+      String originalName = src.getName();
+      String filename = getScrubbedFileName(dir, originalName);
+
+      String language = field.getLanguage();
+
+      if (!(language == null || language.equals("PDF") || language.equals("DOC")
+            || language.equals(AssignmentData.BINARY)))
+      {
+         out.println("\\clearpage");
+      }
+
+      Path srcPath = src.toPath();
+      StringBuilder subPath = new StringBuilder();
+
+      Path destPath = getDestination(srcPath, filename, dir, subPath);
+      File dest = destPath.toFile();
+
+      // Start a new section for each file
+
+      out.println(String.format("\\%s{\\file{%s%s}}", section, subPath, filename));
+
+      if (!filename.equals(originalName))
+      {
+         warning(getPassTools().getMessageWithDefault(
+          "warning.filename_scrubbed",
+          "Filename scrubbed (one or more forbidden characters found). Original name: {0}",
+           originalName));
+
+         out.println(passTools.getMessageWithDefault(
+           "document.filename_scrubbed",
+           "Filename scrubbed (one or more forbidden characters found). Original name:")
+         );
+
+         createAndWriteVerbatim(out, originalName);
+      }
+
+      // Copy file to temporary directory and write the LaTeX code
+      // to include it.
+
+      try
+      {
+         if (filename.isEmpty() || !src.exists())
+         {
+            warning(passTools.getMessageWithDefault(
+              "warning.cant_find_src",
+              "Can''t find file ''{0}'' [src={1}].",
+              filename, src));
+
+            out.println(passTools.getMessageWithDefault(
+              "document.file_not_found", 
+              "File not found."));
+         }
+         else if (passTools.isBannedFile(filename))
+         {
+            warning(passTools.getMessageWithDefault(
+              "warning.forbidden_file",
+              "Forbidden file ''{0}''.", filename));
+
+            out.println(passTools.getMessageWithDefault(
+              "document.omitting_forbidden_file",
+              "Omitting forbidden file."));
+         }
+         else
+         {
+            main.debug("Staging "+srcPath+" -> "+destPath);
+
+            // The content is classified while the file is staged so
+            // that binary or wrongly encoded content can be kept
+            // out of the listings before LaTeX is run.
+
+            ContentClassifier.Result content = null;
+
+            try
+            {
+               content = getFileStager().stageAndClassify(srcPath, destPath);
+
+               main.debug(String.format("Content of %s: %s", filename, content));
+            }
+            catch (Exception e)
+            {
+               main.error(e);
+            }
+
+            String encoding = main.getEncoding();
+
+            boolean addBraces = passTools.areBracesRequired(isLua, filename);
+
+            if (!dest.exists())
+            {
+               out.format("\\warning{%s}%n",
+                 passTools.getMessage("error.file_not_found.copy_failed",
+                    filename));
+            }
+            else if (language == null || AssignmentData.BINARY.equals(language))
+            {
+               out.println(passTools.getMessage("document.binary", src.length()));
+               out.println();
+
+               String mimetype = null;
+               boolean showListing = false;
+
+               if (field instanceof AllowedBinaryFile)
                {
-                  out.print(String.format(
-                    "\\lstinputlisting[language={[%s]%s}",
-                    variant, language));
+                  mimetype = ((AllowedBinaryFile)field).getMimeType();
+                  showListing = ((AllowedBinaryFile)field).showListing();
                }
 
-               if (addBraces)
+               if (mimetype == null)
                {
-                  out.println(String.format("]{{%s%s}}", subPath, filename));
+                  out.format("\\warning{%s}%n",
+                    passTools.getMessage("document.binary_no_mimetype"));
                }
                else
                {
-                  out.println(String.format("]{%s%s}", subPath, filename));
+                  String contentType = getContentType(destPath, content);
+
+                  if (contentType == null)
+                  {
+                     out.format("\\warning{%s}%n",
+                       passTools.getMessage("document.binary_probe_failed", mimetype));
+                  }
+                  else if (!contentType.equals(mimetype))
+                  {
+                     out.format("\\warning{%s}%n",
+                       passTools.getMessage("document.binary_probe_not_matched",
+                          mimetype, contentType));
+                  }
+                  else if (showListing)
+                  {
+                     if (mimetype.startsWith("image/"))
+                     {
+                        out.println(String.format(
+                           "\\includeimg{%s%s}", subPath, filename));
+                     }
+                     else
+                     {
+                        out.format("\\warning{%s}%n",
+                          passTools.getMessage("document.binary_not_supported",
+                             mimetype));
+                     }
+                  }
                }
             }
-            else
+            else if (content != null && content.isBinary()
+              && !language.equals("PDF") && !language.equals("DOC"))
             {
-               out.print(String.format(
-                 "\\lstinputlisting[language={%s}",
-                 language));
+               fenceBinaryFile(out, subPath, filename, dest, content);
+            }
+            else if (language.equals(AssignmentData.UNKNOWN_LANGUAGE)
+             || language.equals(AssignmentData.PLAIN_TEXT))
+            {
+               if (content != null && !content.isCompatible(encoding))
+               {
+                  warnEncoding(out, filename, content, encoding);
+               }
 
-               if (addBraces)
+               createAndWriteVerbatim(out, src);
+            }
+            else if (language.equals("PDF"))
+            {
+               out.println("\\attachfile");
+               out.println("[mimetype=application/pdf,");
+               out.println(String.format("description={%s},",
+                  passTools.getMessageWithDefault(
+                   "document.pdf", "PDF document {0}.", filename)));
+               out.println(String.format("author={%s},", pdfauthor));
+               out.println(String.format("size={%d}", dest.length()));
+               out.println(String.format("]{%s%s}", subPath, filename));
+
+               out.println(passTools.getMessage("document.binary", src.length()));
+               out.println();
+
+               // The student has identified the file as a PDF
+               // file but have they made a mistake?
+
+               String contentType = getContentType(destPath, content);
+
+               boolean incPdf = (config.usePdfPages() && !filename.contains(" "));
+
+               if (contentType == null)
                {
-                  out.println(String.format("]{{%s%s}}", subPath, filename));
+                  out.format("\\warning{%s}%n",
+                    passTools.getMessage("document.pdf_probe_failed"));
+
+                  incPdf = false;
                }
-               else
+               else if (!contentType.equals("application/pdf"))
                {
-                  out.println(String.format("]{%s%s}", subPath, filename));
+                  out.format("\\warning{%s}%n",
+                    passTools.getMessage("document.pdf_probe_not_matched",
+                      contentType));
+
+                  incPdf = false;
                }
 
-            }
-         }
-      }
-      catch (FileAlreadyExistsException e)
-      {
-         out.println(passTools.getMessageWithDefault(
+               if (!filename.endsWith(".pdf"))
+               {
+                  warning(passTools.getMessage(
+                    "warning.ext_not.pdf", filename));
+
+                  out.format("\\warning{%s}%n",
+                    passTools.getMessage("document.not_pdf_ext"));
+
+                  incPdf = false;
+               }
+
+               if (incPdf)
+               {
+                  String pdfPagesOptions = config.getPdfPagesOptions();
+
+                  out.println(passTools.getMessageWithDefault(
+                    "document.pdf_starts_nextpage",
+                    "(Included PDF starts on next page.)"));
+
+                  if (pdfPagesOptions == null || pdfPagesOptions.isEmpty())
+                  {
+                     out.format("\\includepdf[pages=-]{%s%s}",
+                       subPath, filename);
+                  }
+                  else
+                  {
+                     out.format("\\includepdf[pages=-,%s]{%s%s}",
+                       pdfPagesOptions, subPath, filename);
+                  }
+
+                  out.println();
+               }
+            }
+            else if (language.equals("DOC"))
+            {
+               boolean ext_warn = false;
+
+               String docContentType = AssignmentData.getMimeType(language, filename);
+
+               out.println("\\attachfile");
+               out.print("[mimetype=");
+
+               out.print(docContentType);
+               out.println(",");
+
+               if (!(filename.endsWith(".docx") || filename.endsWith(".doc")))
+               {
+                  ext_warn = true;
+               }
+
+               out.println(String.format("description={%s},",
+                  passTools.getMessageWithDefault(
+                    "document.word", 
+                    "Word document {0}.", 
+                    filename)));
+               out.println(String.format("author={%s},", pdfauthor));
+               out.println(String.format("size={%d}", dest.length()));
+               out.println(String.format("]{%s%s}", subPath, filename));
+
+               out.println(passTools.getMessage("document.binary", src.length()));
+
+               // The student has identified the file as a
+               // Word document, but have they made a mistake?
+
+               String contentType = getContentType(destPath, content);
+
+               if (contentType == null)
+               {
+                  out.format("\\warning{%s}%n",
+                    passTools.getMessage("document.doc_probe_failed"));
+               }
+               else if (!contentType.equals(docContentType))
+               {
+                  out.format("\\warning{%s}%n",
+                    passTools.getMessage("document.doc_probe_not_matched",
+                      docContentType, contentType));
+               }
+
+               if (ext_warn)
+               {
+                  warning(passTools.getMessage(
+                       "warning.ext_not.doc", filename));
+
+                  out.format("\\warning{%s}%n",
+                    passTools.getMessage("document.not_doc_ext"));
+               }
+            }
+            else if (content != null && !content.isCompatible(encoding))
+            {
+               // The listings package can't cope with the content,
+               // so it's shown verbatim instead (with any invalid
+               // bytes replaced).
+
+               warnEncoding(out, filename, content, encoding);
+
+               createAndWriteVerbatim(out, src);
+            }
+            else if (language.equals(data.getMainLanguage()))
+            {
+               addLaTeXInput(dest, content, addBraces);
+
+               String variant = data.getLanguageVariant();
+
+               if (variant == null)
+               {
+                  out.print(String.format(
+                    "\\lstinputlisting[language={%s}",
+                    language));
+               }
+               else
+               {
+                  out.print(String.format(
+                    "\\lstinputlisting[language={[%s]%s}",
+                    variant, language));
+               }
+
+               if (addBraces)
+               {
+                  out.println(String.format("]{{%s%s}}", subPath, filename));
+               }
+               else
+               {
+                  out.println(String.format("]{%s%s}", subPath, filename));
+               }
+            }
+            else
+            {
+               addLaTeXInput(dest, content, addBraces);
+
+               out.print(String.format(
+                 "\\lstinputlisting[language={%s}",
+                 language));
+
+               if (addBraces)
+               {
+                  out.println(String.format("]{{%s%s}}", subPath, filename));
+               }
+               else
+               {
+                  out.println(String.format("]{%s%s}", subPath, filename));
+               }
+
+            }
+         }
+      }
+      catch (FileAlreadyExistsException e)
+      {
+         out.println(passTools.getMessageWithDefault(
           "document.filename_conflict",
           "File name conflict."));
       }
    }
 
    /**
-    * Gets the destination path and creates sub-directories in
-    * preparation to copying a file. Doesn't actually copy the file.
-    * @param srcPath the source path
-    * @param filename the destination filename
-    * @param dir the directory file will be copied to
-    * @param subPath the sub path name using / divider (required by
-    * LaTeX) may be null if not required
-    * @return the destination path
+    * Gets the object used to put the submitted files in the
+    * temporary directory. This is created on first use for each job
+    * with the staging mode set in the resources XML file. Linked
+    * files can modify the originals, so links are only used if
+    * nothing is run in the temporary directory itself. A Java
+    * application is run in its classes directory, but build
+    * scripts and other applications are run in the temporary
+    * directory, in which case the files are copied.
+    * @return the file stager
+    */ 
+   protected synchronized FileStager getFileStager()
+   {
+      if (fileStager == null)
+      {
+         PassTools passTools = main.getPassTools();
+         AssignmentData data = main.getAssignment();
+
+         int mode = passTools.getStagingMode();
+
+         if (mode != FileStager.COPY
+              && (!"Java".equals(data.getMainLanguage())
+                   || data.getBuildScript() != null
+                   || data.getNoPdfBuildScript() != null))
+         {
+            main.debug("Application may run in the temporary directory. Copying files instead of linking.");
+
+            mode = FileStager.COPY;
+         }
+
+         fileStager = new FileStager(passTools, mode);
+      }
+
+      return fileStager;
+   }
+
+   /**
+    * Gets the destination path and creates sub-directories in
+    * preparation to copying a file. Doesn't actually copy the file.
+    * @param srcPath the source path
+    * @param filename the destination filename
+    * @param dir the directory file will be copied to
+    * @param subPath the sub path name using / divider (required by
+    * LaTeX) may be null if not required
+    * @return the destination path
+    * @throws IOException if I/O error occurs
+    */ 
+   protected Path getDestination(Path srcPath, 
+     String filename, File dir, StringBuilder subPath)
+   throws IOException
+   {
+      PassTools passTools = main.getPassTools();
+
+      Path destPath;
+      File dest;
+
+      if (basePath == null)
+      {
+         dest = new File(dir, filename);
+         destPath = dest.toPath();
+      }
+      else
+      {
+         Path relPath = null;
+
+         try
+         {
+            relPath = basePath.relativize(srcPath);
+         }
+         catch (IllegalArgumentException e)
+         {
+            throw new IOException(passTools.getMessageWithDefault(
+              "error.cant_relativize",
+              "Can''t relativize source path ''{0}'' against base path ''{1}''.",
+              srcPath, basePath), e);
+         }
+
+         destPath = dir.toPath().resolve(relPath);
+         dest = new File(destPath.toFile().getParentFile(), filename);
+
+         getFileStager().createDirectories(dest.getParentFile().toPath());
+
+         if (subPath != null)
+         {
+            for (int i = 0, n = relPath.getNameCount()-1; i < n; i++)
+            {
+               String name = relPath.getName(i).toString();
+
+               Matcher m = FORBIDDEN_PATTERN.matcher(name);
+
+               if (m.find())
+               {
+                  throw new IOException(passTools.getMessageWithDefault(
+                  "error.illegal_char_in_dirname",
+                  "Illegal character ''{0}'' found in directory name ''{1}''.",
+                   m.group(), name));
+               }
+
+               subPath.append(name);
+               subPath.append('/');
+            }
+         }
+      }
+
+      return destPath;
+   }
+
+   /**
+    * Gets a file name suitable for use in a LaTeX document.
+    * Problematic characters aren't permitted in filenames. 
+    * @param dir the directory containing the file
+    * @param name the file name
+    * @return a file name suitable for use with LaTeX
+    */ 
+   protected String getScrubbedFileName(File dir, String name)
+   {
+      return getScrubbedFileName(dir, name, false);
+   }
+
+   /**
+    * Gets a file name suitable for use in a LaTeX document.
+    * Problematic characters aren't permitted in filenames. 
+    * Spaces in PDF filenames aren't permitted with <code>\includepdf</code>
+    * so they will be replaced with a hyphen.
+    * @param dir the directory containing the file
+    * @param name the file name
+    * @param extended if true use the extended forbidden pattern
+    * FORBIDDEN_PATTERN_EXTENDED otherwise use the forbidden pattern
+    * FORBIDDEN_PATTERN
+    * @return a file name suitable for use with LaTeX
+    */ 
+   protected String getScrubbedFileName(File dir, String name, boolean extended)
+   {
+      if (config.usePdfPages() && name.endsWith(".pdf"))
+      {
+         name = name.replaceAll(" ", "-");
+      }
+
+      Pattern pattern = (extended ? FORBIDDEN_PATTERN_EXTENDED : FORBIDDEN_PATTERN);
+
+      Matcher m = pattern.matcher(name);
+
+      if (m.find())
+      {
+         int idx = name.lastIndexOf(".");
+         String ext = "";
+
+         if (idx > -1)
+         {
+            ext = name.substring(idx);
+
+            m = pattern.matcher(ext);
+
+            if (m.find())
+            {
+               ext = "";
+            }
+         }
+
+         String base = defaultBaseName+"-file";
+
+         File file = new File(dir, base+ext);
+         idx = 0;
+
+         while (file.exists())
+         {
+            idx++;
+            file = new File(dir, base+idx+ext);
+         }
+
+         return file.getName();
+      }
+
+      return name;
+   }
+
+   /**
+    * Creates a zip file containing all the supplied files. The
+    * checksum is calculated as the archive is written, so the zip
+    * file doesn't need to be read back afterwards.
+    * @param base the base path
+    * @param zipFile the zip file
+    * @param fileFields the list of files
+    * @return the checksum of the zip file or null if the checksum
+    * digest isn't available
+    * @throws IOException if I/O error occurs
+    */ 
+   protected String createZipFile(String base, File zipFile, 
+     Vector<PassFile> fileFields) 
+     throws IOException
+   {
+      MessageDigest md = null;
+
+      try
+      {
+         md = config.createCheckSumDigest();
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         main.debug(e.getMessage());
+      }
+
+      int bufferSize = getBufferSize(zipFile);
+
+      ZipOutputStream out = null;
+      byte[] buffer = new byte[bufferSize];
+
+      try
+      {
+         main.debug(String.format("Creating %s (buffer size %d)",
+           zipFile, bufferSize));
+
+         OutputStream fileOut = new BufferedOutputStream(
+            new FileOutputStream(zipFile), bufferSize);
+
+         if (md != null)
+         {
+            fileOut = new DigestOutputStream(fileOut, md);
+         }
+
+         out = new ZipOutputStream(fileOut);
+
+         for (PassFile comp : fileFields)
+         {
+            incProgress();
+
+            File file = comp.getFile();
+
+            if (file != null && file.exists())
+            {
+               writeZipEntry(out, base, file, buffer);
+            }
+         }
+
+         out.close();
+         out = null;
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+
+      return md == null ? null : config.getCheckSum(md);
+   }
+
+   /**
+    * Gets a suitable I/O buffer size for the file system containing
+    * the given file. This is the file system's block size, but no
+    * smaller than MIN_BUFFER_SIZE and no larger than
+    * MAX_BUFFER_SIZE.
+    * @param file the file (which may not exist yet)
+    * @return the buffer size
+    */ 
+   private int getBufferSize(File file)
+   {
+      long blockSize = 0;
+
+      try
+      {
+         File dir = file.getAbsoluteFile().getParentFile();
+
+         if (dir != null)
+         {
+            blockSize = Files.getFileStore(dir.toPath()).getBlockSize();
+         }
+      }
+      catch (IOException | UnsupportedOperationException e)
+      {
+         main.debug(e.getMessage());
+      }
+
+      if (blockSize <= MIN_BUFFER_SIZE)
+      {
+         return MIN_BUFFER_SIZE;
+      }
+
+      if (blockSize >= MAX_BUFFER_SIZE)
+      {
+         return MAX_BUFFER_SIZE;
+      }
+
+      // round up to a multiple of the minimum size
+      return (int)(((blockSize+MIN_BUFFER_SIZE-1)/MIN_BUFFER_SIZE)
+                   * MIN_BUFFER_SIZE);
+   }
+
+   /**
+    * Determines whether or not the given file is likely to already
+    * be compressed, in which case deflating it again just wastes
+    * time.
+    * @param file the file
+    * @return true if the file has an extension associated with a
+    * compressed format
+    */ 
+   private boolean isCompressedFormat(File file)
+   {
+      String name = file.getName();
+
+      int idx = name.lastIndexOf('.');
+
+      if (idx < 0) return false;
+
+      String ext = name.substring(idx+1).toLowerCase();
+
+      for (String compressedExt : COMPRESSED_EXTENSIONS)
+      {
+         if (compressedExt.equals(ext))
+         {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Writes an entry in the zip file.
+    * @param out the zip output stream
+    * @param base the base path
+    * @param file the file to add to the archive
+    * @param buffer the buffer
+    * @throws IOException if I/O error occurs
+    */ 
+   private void writeZipEntry(ZipOutputStream out,
+     String base, File file, byte[] buffer)
+     throws IOException
+   {
+      FileInputStream in = null;
+
+      try
+      {
+         String name = file.getName();
+
+         if (basePath != null)
+         {
+            Path relPath = basePath.relativize(file.toPath());
+
+            for (int i = relPath.getNameCount()-2; i >= 0; i--)
+            {
+               name = String.format("%s/%s", relPath.getName(i), name);
+            }
+         }
+
+         String zipEntryName = String.format("%s/%s", base, name);
+
+         main.debug(String.format("Adding %s", zipEntryName));
+
+         ZipEntry entry = new ZipEntry(zipEntryName);
+
+         // Already compressed files are written at level 0. (The
+         // STORED method would require the CRC and size before
+         // the data is written, which would mean reading the file
+         // twice.)
+
+         if (isCompressedFormat(file))
+         {
+            out.setLevel(Deflater.NO_COMPRESSION);
+         }
+         else
+         {
+            out.setLevel(Deflater.DEFAULT_COMPRESSION);
+         }
+
+         out.putNextEntry(entry);
+
+         in = new FileInputStream(file);
+
+         int bytes = -1;
+
+         while ((bytes = in.read(buffer)) != -1)
+         {
+            out.write(buffer, 0, bytes);
+         }
+
+         in.close();
+         in = null;
+
+         out.closeEntry();
+      }
+      finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+      }
+   }
+
+   /**
+    * Writes each byte in hexadecimal notation.
+    * @param out the output stream
+    * @param data the byte data
+    * @throws IOException if I/O error occurs
+    */ 
+   private void writeBytes(PrintWriter out, byte[] data) throws IOException
+   {
+      for (byte b : data)
+      {
+         out.format("%02X", b);
+      }
+   }
+
+   /**
+    * Gets the timestamp as a byte array.
+    * @param cal the timestamp
+    * @return the byte array
+    * @throws IOException if I/O error occurs
+    */ 
+   private byte[] getDateStamp(Calendar cal) throws IOException
+   {
+      return getDateStamp(cal.getTime());
+   }
+
+   /**
+    * Gets the timestamp as a byte array.
+    * @param date the timestamp
+    * @return the byte array
+    * @throws IOException if I/O error occurs
+    */ 
+   private byte[] getDateStamp(Date date) throws IOException
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(baos);
+      dos.writeLong(date.getTime());
+      return baos.toByteArray();
+   }
+
+   /**
+    * Runs LaTeX once or twice, as necessary. The document always contains a table of
+    * contents, so if there's no .toc file yet, a second pass is
+    * certain and the first pass is run in draft mode (which doesn't
+    * create the PDF). Otherwise, a second pass is only run if the
+    * first pass changed the .aux, .toc or .out file or the log file
+    * contains a rerun request. If the job budget has already been
+    * used up, a single pass is run in normal mode, so that there's
+    * a PDF without taking more than one pass's timeout.
+    * @param texFile the LaTeX file
+    * @param logFile the LaTeX log file
+    * @param auxFile the .aux file
+    * @param tocFile the .toc file
+    * @param outFile the .out (bookmarks) file
+    * @return the exit code of the last pass
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
+    */ 
+   private int latexPasses(File texFile, File logFile, File auxFile,
+      File tocFile, File outFile)
+     throws IOException,InterruptedException
+   {
+      File[] auxFiles = new File[] {auxFile, tocFile, outFile};
+      byte[][] auxContents = readAuxFiles(auxFiles);
+
+      boolean budgetUsedUp = jobBudget != null
+        && jobBudget.getAllowance(JobBudget.LATEX) <= 0L;
+
+      boolean draft = !tocFile.exists() && !budgetUsedUp;
+
+      int passes = 1;
+      int exitCode = latex(texFile, draft);
+
+      if (draft)
+      {
+         // Draft mode doesn't create a PDF, so a normal pass always
+         // follows, whether or not the draft pass succeeded. (If it
+         // failed, this ensures that there's a PDF, which may be
+         // incomplete, as there would have been without draft mode.)
+
+         passes++;
+         exitCode = latex(texFile, false);
+      }
+      else if (exitCode == 0
+          && isLaTeXRerunNeeded(logFile, auxFiles, auxContents))
+      {
+         // The PDF already exists, so this pass is only needed to
+         // update cross-references and can be skipped if the job
+         // budget has been used up.
+
+         if (jobBudget == null
+              || jobBudget.getAllowance(JobBudget.LATEX) > 0L)
+         {
+            passes++;
+            exitCode = latex(texFile, false);
+         }
+         else
+         {
+            String msg = getPassTools().getMessageWithDefault(
+              "warning.job_budget.latex_rerun",
+              "LaTeX wasn''t rerun as the job''s time budget was used up. The PDF''s cross-references may be incorrect.");
+
+            jobBudget.addSkipped(msg);
+            warning(msg);
+         }
+      }
+
+      main.transcriptMessage(getPassTools().getMessageWithDefault(
+        "message.latex_passes", "LaTeX passes: {0,number,integer}.", passes));
+
+      return exitCode;
+   }
+
+   /**
+    * Reads the contents of the given auxiliary files.
+    * @param files the files to read
+    * @return array containing the contents of each file or null
+    * for any file that doesn't exist
+    * @throws IOException if I/O error occurs
+    */ 
+   private byte[][] readAuxFiles(File[] files) throws IOException
+   {
+      byte[][] contents = new byte[files.length][];
+
+      for (int i = 0; i < files.length; i++)
+      {
+         if (files[i].exists())
+         {
+            contents[i] = Files.readAllBytes(files[i].toPath());
+         }
+      }
+
+      return contents;
+   }
+
+   /**
+    * Determines whether or not another LaTeX pass is needed.
+    * @param logFile the LaTeX log file
+    * @param auxFiles the auxiliary files
+    * @param previousContents the contents of the auxiliary files
+    * before the last pass
+    * @return true if any of the auxiliary files have changed or
+    * the log file contains a rerun request
+    * @throws IOException if I/O error occurs
+    */ 
+   private boolean isLaTeXRerunNeeded(File logFile, File[] auxFiles,
+     byte[][] previousContents)
+   throws IOException
+   {
+      byte[][] contents = readAuxFiles(auxFiles);
+
+      for (int i = 0; i < auxFiles.length; i++)
+      {
+         if (!Arrays.equals(contents[i], previousContents[i]))
+         {
+            main.debug(String.format("%s has changed", auxFiles[i].getName()));
+            return true;
+         }
+      }
+
+      if (logFile.exists())
+      {
+         BufferedReader in = null;
+
+         try
+         {
+            in = Files.newBufferedReader(logFile.toPath(),
+               StandardCharsets.ISO_8859_1);
+
+            String line;
+
+            while ((line = in.readLine()) != null)
+            {
+               for (String message : RERUN_MESSAGES)
+               {
+                  if (line.contains(message))
+                  {
+                     main.debug("LaTeX log requests rerun: "+line);
+                     return true;
+                  }
+               }
+            }
+         }
+         finally
+         {
+            if (in != null)
+            {
+               in.close();
+            }
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Runs LaTeX (PDFLaTeX or LuaLaTeX) on the given file. If a
+    * cached format is available, it's used. If the format can't be
+    * loaded (for example, it was created with a different version
+    * of TeX), the run is repeated without the format and, if that
+    * succeeds, the format is removed from the cache. Any other
+    * failure (such as an error in the document or a timeout) is
+    * returned as it is.
+    * @param texFile the LaTeX file
+    * @param draft if true, use draft mode (no PDF is created)
+    * @return the process exit code
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
+    */ 
+   private int latex(File texFile, boolean draft)
+     throws IOException,InterruptedException
+   {
+      int exitCode = latex(texFile, draft, latexFormat);
+
+      if (exitCode > 0 && latexFormat != null && isFormatLoadFailure(texFile))
+      {
+         String format = latexFormat;
+         latexFormat = null;
+
+         main.debug(String.format(
+           "LaTeX failed with format %s. Retrying without format.", format));
+
+         exitCode = latex(texFile, draft, null);
+
+         if (exitCode == 0)
+         {
+            getPassTools().getLaTeXFormatCache().invalidate(format);
+         }
+      }
+
+      return exitCode;
+   }
+
+   /**
+    * Determines whether the last LaTeX pass failed because the
+    * format couldn't be loaded. TeX normally stops before it
+    * creates the log file in this case, so the terminal output is
+    * checked as well as the log.
+    * @param texFile the LaTeX file
+    * @return true if either contains a format file error
+    * @throws IOException if I/O error occurs
+    */ 
+   private boolean isFormatLoadFailure(File texFile) throws IOException
+   {
+      String name = texFile.getName();
+      int idx = name.lastIndexOf('.');
+
+      File[] files = new File[]
+      {
+         latexOutput,
+         new File(texFile.getParentFile(),
+           (idx > 0 ? name.substring(0, idx) : name)+".log")
+      };
+
+      for (File file : files)
+      {
+         if (file == null || !file.exists())
+         {
+            continue;
+         }
+
+         BufferedReader in = null;
+
+         try
+         {
+            in = Files.newBufferedReader(file.toPath(),
+               StandardCharsets.ISO_8859_1);
+
+            String line;
+
+            while ((line = in.readLine()) != null)
+            {
+               for (String message : FORMAT_ERROR_MESSAGES)
+               {
+                  if (line.contains(message))
+                  {
+                     main.debug("LaTeX format error: "+line);
+                     return true;
+                  }
+               }
+            }
+         }
+         finally
+         {
+            if (in != null)
+            {
+               in.close();
+            }
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Gets the timeout for a LaTeX pass. If the job budget is on,
+    * this is no more than the time left for creating the PDF. This
+    * method is only used for passes that are needed to create the
+    * PDF, so if the budget has been used up, the usual timeout
+    * applies. In that case latexPasses() only runs a single pass
+    * and skips the passes that are only needed to update
+    * cross-references.
+    * @return the timeout in milliseconds
+    */ 
+   private long getLaTeXTimeout()
+   {
+      long millis = timeout*1000L;
+
+      if (jobBudget != null)
+      {
+         long allowance = jobBudget.getTimeout(JobBudget.LATEX, millis);
+
+         if (allowance > 0L)
+         {
+            millis = allowance;
+         }
+         else
+         {
+            main.debug("Job time budget used up. Running LaTeX to create the PDF.");
+         }
+      }
+
+      return millis;
+   }
+
+   /**
+    * Runs LaTeX (PDFLaTeX or LuaLaTeX) on the given file.
+    * @param texFile the LaTeX file
+    * @param draft if true, use draft mode (no PDF is created)
+    * @param format the name of the cached format or null to use
+    * the engine's default format
+    * @return the process exit code
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
+    */ 
+   private int latex(File texFile, boolean draft, String format)
+     throws IOException,InterruptedException
+   {
+      Vector<String> args = new Vector<String>();
+      args.add(latexPath);
+
+      StringBuilder options = new StringBuilder();
+
+      if (format != null)
+      {
+         args.add("-fmt="+format);
+         options.append(" -fmt="+format);
+      }
+
+      if (draft)
+      {
+         args.add("-draftmode");
+         options.append(" -draftmode");
+      }
+
+      args.add(texFile.getName());
+
+      ProcessBuilder builder = new ProcessBuilder(args);
+
+      File dir = texFile.getParentFile();
+      builder.directory(dir);
+
+      if (format != null)
+      {
+         // Search the cache directory first. The trailing path
+         // separator ensures that the default search path is
+         // still used.
+
+         Map<String,String> env = builder.environment();
+         String texFormats = env.get("TEXFORMATS");
+
+         env.put("TEXFORMATS", String.format("%s%s%s",
+           getPassTools().getLaTeXFormatCache().getDirectory(),
+           File.pathSeparator, texFormats == null ? "" : texFormats));
+      }
+
+      String optionList = options.toString();
+
+      if (latexPath.contains(" "))
+      {
+         main.debug(String.format("Running '%s'%s %s%nin directory %s",
+            latexPath, optionList, texFile.getName(), dir));
+      }
+      else
+      {
+         main.debug(String.format("Running %s%s %s%nin directory %s",
+            latexPath, optionList, texFile.getName(), dir));
+      }
+
+      File log = File.createTempFile("PASS_tex-output-", ".txt", dir);
+      latexOutput = log;
+
+      PassTools passTools = getPassTools();
+      LaTeXLogTailer tailer = null;
+
+      if (passTools.isLaTeXAbortOn())
+      {
+         String name = texFile.getName();
+         int idx = name.lastIndexOf('.');
+
+         File texLog = new File(dir,
+           (idx > 0 ? name.substring(0, idx) : name)+".log");
+
+         // The log from the previous pass mustn't be mistaken for
+         // the new log.
+
+         Files.deleteIfExists(texLog.toPath());
+
+         tailer = new LaTeXLogTailer(passTools, texLog,
+           passTools.getLaTeXAbortMaxErrors(),
+           passTools.getLaTeXAbortPatterns());
+      }
+
+      JobTimings.Entry entry = timings.start("latex",
+        draft ? "draft" : "final");
+
+      int exitCode = EXIT_UNSET;
+
+      try
+      {
+         exitCode = runProcess(getLaTeXTimeout(), builder, log, tailer);
+      }
+      catch (OutputLimitException e)
+      {
+         warning(e.getMessage());
+
+         exitCode = EXIT_OUTPUT_LIMIT;
+      }
+      catch (ProcessAbortedException e)
+      {
+         exitCode = EXIT_ABORTED;
+
+         throw e;
+      }
+      finally
+      {
+         entry.setExitCode(exitCode);
+         entry.setOutputBytes(log.length());
+         entry.end();
+      }
+
+      return exitCode;
+   }
+
+   /**
+    * Creates a buffered reader using the designated encoding.
+    * @param file the input file
+    * @return the BufferedReader
+    * @throws IOException if I/O error occurs
+    */ 
+   private BufferedReader newBufferedReader(File file) throws IOException
+   {
+      return main.getPassTools().newBufferedReader(file);
+   }
+
+   /**
+    * Gets the PassTools object associated with the PASS application.
+    * @return the PassTools object
+    */ 
+   protected PassTools getPassTools()
+   {
+      return main.getPassTools();
+   }
+
+   /**
+    * Sets the base path used to determine the relative paths of
+    * the submitted files. This is normally obtained from
+    * Pass.getBasePath() when the PDF is created.
+    * @param path the base path (may be null if the files aren't
+    * in subdirectories)
+    */
+   protected void setBasePath(Path path)
+   {
+      basePath = path;
+   }
+
+   /**
+    * Parses the LaTeX log file for warnings and possible invalid encoding messages.
+    * This will issue warnings via Pass.warning(String) if there are
+    * any problems.
+    * @param logFile the log file create by LaTeX
+    * @throws IOException if I/O error occurs
+    */ 
+   protected void parseLaTeXLog(File logFile) throws IOException
+   {
+      BufferedReader in = null;
+      boolean binary = false;
+      int warnings = 0;
+
+      JobTimings.Entry entry = timings.start("latex-log");
+
+      try
+      {
+         in = newBufferedReader(logFile);
+
+         String line;
+
+         while ((line = in.readLine()) != null)
+         {
+            if (line.contains("Text line contains an invalid character")
+             || line.contains("String contains an invalid utf-8 sequence"))
+            {
+               warning(line);
+               warnings++;
+               binary = true;
+            }
+            else if (line.startsWith("Missing") || line.startsWith("! ")
+               || (!line.startsWith("Package rerunfilecheck") 
+                       && line.contains("Warning")))
+            {
+               warning(line);
+               warnings++;
+            }
+         }
+      }
+      catch (MalformedInputException e)
+      {
+         binary = true;
+         throw e;
+      }
+      finally
+      {
+         if (binary)
+         {
+            warning(
+               getPassTools().getMessageWithDefault(
+               "warning.possible_binary",
+               "A binary file may have been added where a text file was expected (or wrong encoding used)."));
+         }
+
+         entry.setOutputBytes(logFile.length());
+         entry.setWarnings(warnings);
+         entry.end();
+
+         if (in != null)
+         {
+            in.close();
+         }
+      }
+   }
+
+   /**
+    * Creates a task for running a process with timeout.
+    * @param timeout the timeout value in milliseconds
+    * @param builder the process builder
+    * @param outFile the output file (captures STDOUT)
+    * @param errFile the output file (captures STDERR)
+    * @param inFile the input file (supplies STDIN)
+    * @return the new task
+    */ 
+   private PassTask createProcessTask(long timeout, ProcessBuilder builder,
+    File outFile, File errFile, File inFile)
+   {
+      main.getPassTools().addEnvironmentVariablesToProcess(builder);
+
+      PassTools passTools = main.getPassTools();
+
+      PassTask task = new PassTask(main, timeout, builder,
+        outFile, errFile, inFile);
+
+      task.setOutputLimits(passTools.getMaxStdoutBytes(),
+        passTools.getMaxStderrBytes(), passTools.isKillOnOutputLimit());
+
+      return task;
+   }
+
+   /**
+    * Runs the given task. The task may be interrupted with
+    * interrupt() while it's running. More than one task may be run
+    * at the same time.
+    * @param task the task
+    * @return the process exit code
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
+    */ 
+   private int runTask(PassTask task)
+   throws IOException,InterruptedException
+   {
+      return runTask(task, false);
+   }
+
+   /**
+    * Runs the given task. The task may be interrupted with
+    * interrupt() while it's running. More than one task may be run
+    * at the same time.
+    * @param task the task
+    * @param testCase true if the task runs a test case, which
+    * isn't started if the job has been cancelled
+    * @return the process exit code
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
+    * @throws CancellationException if the task is for a test case
+    * and the job has been cancelled
+    */ 
+   private int runTask(PassTask task, boolean testCase)
+   throws IOException,InterruptedException
+   {
+      currentTasks.add(task);
+      lastTask = task;
+
+      if (testCase && cancelled)
+      {
+         // interrupt() was called before the task was added, so it
+         // wasn't interrupted
+         currentTasks.remove(task);
+         throw new CancellationException();
+      }
+
+      try
+      {
+         return task.performProcess();
+      }
+      finally
+      {
+         currentTasks.remove(task);
+      }
+   }
+
+   /**
+    * Interrupts the current tasks. Any test cases that haven't
+    * started yet won't be run.
+    * @return true if any current task was interrupted or false if there
+    * was no current task to interrupt
+    */ 
+   public boolean interrupt()
+   {
+      cancelled = true;
+
+      for (CompletableFuture<?> run
+             : testCaseRuns.toArray(new CompletableFuture<?>[0]))
+      {
+         // no effect on a test case that has already started
+         run.cancel(false);
+      }
+
+      JavaCompilerEngine engine = javaCompilerEngine;
+
+      if (engine != null && engine.cancel())
+      {
+         return true;
+      }
+
+      boolean interrupted = false;
+
+      for (PassTask task : currentTasks.toArray(new PassTask[0]))
+      {
+         task.interrupt();
+         interrupted = true;
+      }
+
+      return interrupted;
+   }
+
+   /**
+    * Runs a process with timeout.
+    * @param timeout the timeout value in milliseconds
+    * @param builder the process builder
+    * @param log the log file
+    * @return the process exit code
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
+    */ 
+   public int runProcess(long timeout, ProcessBuilder builder, File log)
+     throws IOException,InterruptedException
+   {
+      return runProcess(timeout, builder, log, null);
+   }
+
+   /**
+    * Runs a process with timeout, optionally watching a LaTeX log
+    * file while it runs.
+    * @param timeout the timeout value in milliseconds
+    * @param builder the process builder
+    * @param log the log file
+    * @param tailer the LaTeX log watcher or null if not required
+    * @return the process exit code
     * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
     */ 
-   protected Path getDestination(Path srcPath, 
-     String filename, File dir, StringBuilder subPath)
-   throws IOException
+   private int runProcess(long timeout, ProcessBuilder builder, File log,
+     LaTeXLogTailer tailer)
+     throws IOException,InterruptedException
    {
+      main.debug("PASS log file: "+log);
+
       PassTools passTools = main.getPassTools();
 
-      Path destPath;
-      File dest;
+      passTools.addEnvironmentVariablesToProcess(builder);
 
-      if (basePath == null)
+      PassTask task = new PassTask(main, timeout, builder, log);
+
+      task.setOutputLimits(passTools.getMaxLogBytes(), 0L,
+        passTools.isKillOnOutputLimit());
+
+      int exitCode;
+
+      if (tailer == null)
       {
-         dest = new File(dir, filename);
-         destPath = dest.toPath();
+         exitCode = runTask(task);
       }
       else
       {
-         Path relPath = null;
+         tailer.start(task);
 
          try
          {
-            relPath = basePath.relativize(srcPath);
+            exitCode = runTask(task);
          }
-         catch (IllegalArgumentException e)
+         finally
          {
-            throw new IOException(passTools.getMessageWithDefault(
-              "error.cant_relativize",
-              "Can''t relativize source path ''{0}'' against base path ''{1}''.",
-              srcPath, basePath), e);
+            tailer.stop();
          }
+      }
 
-         destPath = dir.toPath().resolve(relPath);
-         dest = new File(destPath.toFile().getParentFile(), filename);
-
-         Files.createDirectories(dest.getParentFile().toPath());
+      verbose(log);
 
-         if (subPath != null)
-         {
-            for (int i = 0, n = relPath.getNameCount()-1; i < n; i++)
-            {
-               String name = relPath.getName(i).toString();
+      return exitCode;
+   }
 
-               Matcher m = FORBIDDEN_PATTERN.matcher(name);
+   /**
+    * Issues a warning via Pass.warning(String) and counts it in the
+    * job timings.
+    * @param msg the warning message
+    */ 
+   private void warning(String msg)
+   {
+      timings.incWarnings();
 
-               if (m.find())
-               {
-                  throw new IOException(passTools.getMessageWithDefault(
-                  "error.illegal_char_in_dirname",
-                  "Illegal character ''{0}'' found in directory name ''{1}''.",
-                   m.group(), name));
-               }
+      Vector<String> captured = capturedWarnings;
 
-               subPath.append(name);
-               subPath.append('/');
-            }
-         }
+      if (captured != null)
+      {
+         captured.add(msg);
       }
 
-      return destPath;
+      int maxWarnings = getPassTools().getMaxWarnings();
+
+      if (maxWarnings > 0 && warningCount.incrementAndGet() > maxWarnings)
+      {
+         suppressedWarnings.incrementAndGet();
+         main.debug(msg);
+      }
+      else
+      {
+         main.warning(msg);
+      }
    }
 
    /**
-    * Gets a file name suitable for use in a LaTeX document.
-    * Problematic characters aren't permitted in filenames. 
-    * @param dir the directory containing the file
-    * @param name the file name
-    * @return a file name suitable for use with LaTeX
+    * Issues a single warning with the number of warnings that
+    * weren't issued because the job's warning limit was reached.
     */ 
-   private String getScrubbedFileName(File dir, String name)
+   private void reportSuppressedWarnings()
    {
-      return getScrubbedFileName(dir, name, false);
+      int suppressed = suppressedWarnings.getAndSet(0);
+
+      if (suppressed > 0)
+      {
+         main.warning(getPassTools().getMessageWithDefault(
+           "warning.warnings_suppressed",
+           "{0,number,integer} further warnings were suppressed (limit {1,number,integer} per job).",
+           suppressed, getPassTools().getMaxWarnings()));
+      }
    }
 
    /**
-    * Gets a file name suitable for use in a LaTeX document.
-    * Problematic characters aren't permitted in filenames. 
-    * Spaces in PDF filenames aren't permitted with <code>\includepdf</code>
-    * so they will be replaced with a hyphen.
-    * @param dir the directory containing the file
-    * @param name the file name
-    * @param extended if true use the extended forbidden pattern
-    * FORBIDDEN_PATTERN_EXTENDED otherwise use the forbidden pattern
-    * FORBIDDEN_PATTERN
-    * @return a file name suitable for use with LaTeX
+    * Starts the clock for the current job's time budget, if the
+    * job budget is on.
     */ 
-   private String getScrubbedFileName(File dir, String name, boolean extended)
+   private void startJobBudget()
    {
-      if (config.usePdfPages() && name.endsWith(".pdf"))
+      JobBudget settings = getPassTools().getJobBudget();
+
+      budgetStage = JobBudget.RUN;
+
+      if (settings == null)
       {
-         name = name.replaceAll(" ", "-");
+         jobBudget = null;
       }
+      else
+      {
+         jobBudget = new JobBudget(settings);
 
-      Pattern pattern = (extended ? FORBIDDEN_PATTERN_EXTENDED : FORBIDDEN_PATTERN);
+         main.transcriptMessage(getPassTools().getMessageWithDefault(
+           "message.job_budget", "Job time budget: {0,number}s.",
+           jobBudget.getTotal()/1000L));
+      }
+   }
 
-      Matcher m = pattern.matcher(name);
+   /**
+    * Gets the timeout for a process in the given stage of the job.
+    * If the job budget is on, this is no more than the time left
+    * for the stage. If there's no time left, the process is added
+    * to the list of things that were skipped.
+    * @param stage the job budget stage
+    * @param timeout the process's own timeout in milliseconds
+    * @param description the description of the process for the
+    * list of things that were skipped
+    * @return the timeout in milliseconds or 0 if the process
+    * shouldn't be run
+    */ 
+   private long getProcessTimeout(int stage, long timeout,
+     String description)
+   {
+      if (jobBudget == null) return timeout;
 
-      if (m.find())
+      long millis = jobBudget.getTimeout(stage, timeout);
+
+      if (millis <= 0L)
       {
-         int idx = name.lastIndexOf(".");
-         String ext = "";
+         main.debug("Job time budget used up. Skipping: "+description);
 
-         if (idx > -1)
-         {
-            ext = name.substring(idx);
+         jobBudget.addSkipped(description);
 
-            m = pattern.matcher(ext);
+         return 0L;
+      }
 
-            if (m.find())
-            {
-               ext = "";
-            }
-         }
+      return millis;
+   }
 
-         String base = defaultBaseName+"-file";
+   /**
+    * Gets the message for a process that timed out.
+    * @param timeout the process's own timeout in milliseconds
+    * @param limit the timeout that was actually used, which may
+    * be less than the process's own timeout if the job budget is on
+    * @return the message
+    */ 
+   private String getTimedOutMessage(long timeout, long limit)
+   {
+      if (limit < timeout)
+      {
+         return getPassTools().getMessageWithDefault(
+           "error.job_budget_timedout",
+           "Process stopped after {0,number}s as the job''s time budget ran out.",
+           limit/1000.0);
+      }
 
-         File file = new File(dir, base+ext);
-         idx = 0;
+      return getPassTools().getMessage("error.process_timedout", timeout/1000L);
+   }
 
-         while (file.exists())
-         {
-            idx++;
-            file = new File(dir, base+idx+ext);
-         }
+   /**
+    * Gets the message for a process that wasn't run because the
+    * job budget was used up.
+    * @return the message
+    */ 
+   private String getBudgetSkippedMessage()
+   {
+      return getPassTools().getMessageWithDefault(
+        "document.job_budget.not_run",
+        "Not run as the job''s time budget was used up.");
+   }
 
-         return file.getName();
-      }
+   /**
+    * Writes the warning for a process that wasn't run because the
+    * job budget was used up.
+    * @param writer the writer for the LaTeX code
+    */ 
+   private void writeBudgetSkipped(PrintWriter writer)
+   {
+      String msg = getBudgetSkippedMessage();
 
-      return name;
+      writer.format("\\par\\warning{%s}%n", msg);
+      warning(msg);
    }
 
    /**
-    * Creates a zip file containing all the supplied files.
-    * @param base the base path
-    * @param zipFile the zip file
-    * @param fileFields the list of files
-    * @throws IOException if I/O error occurs
+    * Writes a summary of everything that was skipped because the
+    * job budget was used up.
+    * @param writer the writer for the LaTeX code
     */ 
-   private void createZipFile(String base, File zipFile, 
-     Vector<PassFile> fileFields) 
-     throws IOException
+   private void writeBudgetSummary(PrintWriter writer)
    {
-      ZipOutputStream out = null;
-      byte[] buffer = new byte[MAX_INPUT_BYTES];
+      if (jobBudget == null) return;
 
-      try
-      {
-         main.debug(String.format("Creating %s", zipFile));
+      Vector<String> skipped = jobBudget.getSkipped();
 
-         out = new ZipOutputStream(new FileOutputStream(zipFile));
+      if (skipped.isEmpty()) return;
 
-         for (PassFile comp : fileFields)
-         {
-            incProgress();
+      writer.format("\\warning{%s}%n", getPassTools().getMessageWithDefault(
+        "document.job_budget.skipped",
+        "The job''s time budget of {0,number}s was used up, so this document is incomplete. The following were skipped:",
+        jobBudget.getTotal()/1000L));
 
-            File file = comp.getFile();
+      writer.println("\\begin{itemize}");
 
-            if (file != null && file.exists())
-            {
-               writeZipEntry(out, base, file, buffer);
-            }
-         }
-      }
-      finally
+      for (String item : skipped)
       {
-         if (out != null)
-         {
-            out.close();
-         }
+         writer.format("\\item %s%n", item);
       }
+
+      writer.println("\\end{itemize}");
    }
 
    /**
-    * Writes an entry in the zip file.
-    * @param out the zip output stream
-    * @param base the base path
-    * @param file the file to add to the archive
-    * @param buffer the buffer
-    * @throws IOException if I/O error occurs
+    * Verbose message containing the contents of a file.
+    * @param file the file containing the message
     */ 
-   private void writeZipEntry(ZipOutputStream out,
-     String base, File file, byte[] buffer)
-     throws IOException
+   public void verbose(File file)
    {
-      FileInputStream in = null;
-
-      try
+      if (!file.exists())
       {
-         String name = file.getName();
-
-         if (basePath != null)
-         {
-            Path relPath = basePath.relativize(file.toPath());
-
-            for (int i = relPath.getNameCount()-2; i >= 0; i--)
-            {
-               name = String.format("%s/%s", relPath.getName(i), name);
-            }
-         }
-
-         String zipEntryName = String.format("%s/%s", base, name);
-
-         main.debug(String.format("Adding %s", zipEntryName));
+         main.debug("No such file: "+file);
 
-         ZipEntry entry = new ZipEntry(zipEntryName);
+         return;
+      }
 
-         out.putNextEntry(entry);
+      BufferedReader in = null;
 
-         in = new FileInputStream(file);
+      try
+      {
+         in = newBufferedReader(file);
 
-         int bytes = -1;
+         String line;
 
-         while ((bytes = in.read(buffer)) != -1)
+         while ((line = in.readLine()) != null)
          {
-            out.write(buffer, 0, bytes);
+            main.verbose(line);
          }
-
-         in.close();
-         in = null;
-
-         out.closeEntry();
+      }
+      catch (IOException e)
+      {
+         main.error(e);
       }
       finally
       {
          if (in != null)
          {
-            in.close();
+            try 
+            {
+               in.close();
+            }
+            catch (IOException e)
+            {
+               main.error(e);
+            }
          }
       }
    }
 
    /**
-    * Writes each byte in hexadecimal notation.
-    * @param out the output stream
-    * @param data the byte data
-    * @throws IOException if I/O error occurs
-    */ 
-   private void writeBytes(PrintWriter out, byte[] data) throws IOException
-   {
-      for (byte b : data)
-      {
-         out.format("%02X", b);
-      }
-   }
-
-   /**
-    * Gets the timestamp as a byte array.
-    * @param cal the timestamp
-    * @return the byte array
-    * @throws IOException if I/O error occurs
+    * Executes a process and waits for result.
+    * Uses the default timeout setting.
+    * @param process the process
+    * @throws InterruptedException if interruption occurs
+    * @throws InterruptedByTimeoutException if the process timed-out
     */ 
-   private byte[] getDateStamp(Calendar cal) throws IOException
+   private int waitFor(Process process)
+     throws InterruptedException,InterruptedByTimeoutException
    {
-      return getDateStamp(cal.getTime());
+      if (!process.waitFor(timeout, TimeUnit.SECONDS))
+      {
+         PassTask.destroyProcessTree(main, process.toHandle()).join();
+         main.error(getPassTools().getMessageWithDefault(
+            "error.process_timedout",
+            "Processed timed out after {0,number}s.", timeout));
+
+         throw new InterruptedByTimeoutException();
+      }
+
+      return process.exitValue();
    }
 
    /**
-    * Gets the timestamp as a byte array.
-    * @param date the timestamp
-    * @return the byte array
+    * Tests the student's application without creating a PDF. Used
+    * by PassEditor for a work in progress.
+    * @param out the output file
+    * @param dir the directory containing the source code
+    * @return process exit code
     * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
+    * @throws URISyntaxException if an invalid URI is encountered
     */ 
-   private byte[] getDateStamp(Date date) throws IOException
+   public int runTestsNoPDF(PrintWriter out, File dir)
+     throws IOException,InterruptedException,URISyntaxException
    {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      DataOutputStream dos = new DataOutputStream(baos);
-      dos.writeLong(date.getTime());
-      return baos.toByteArray();
+      return runTestsNoPDF(out, dir, false);
    }
 
    /**
-    * Runs LaTeX (PDFLaTeX or LuaLaTeX) on the given file.
-    * @param texFile the LaTeX file
-    * @return the process exit code
+    * Tests the student's application without creating a PDF. Used
+    * by PassEditor for a work in progress. If incremental builds
+    * are on, the compiled classes of a Java project are kept in the
+    * directory given by BUILD_CACHE_DIR_NAME between runs so that
+    * only changed source files (and those that depend on them) are
+    * recompiled.
+    * @param out the output file
+    * @param dir the directory containing the source code
+    * @param incremental true if incremental builds should be used
+    * @return process exit code
     * @throws IOException if I/O error occurs
     * @throws InterruptedException if interruption occurs
+    * @throws URISyntaxException if an invalid URI is encountered
     */ 
-   private int latex(File texFile)
-     throws IOException,InterruptedException
+   public int runTestsNoPDF(PrintWriter out, File dir, boolean incremental)
+     throws IOException,InterruptedException,URISyntaxException
    {
-      ProcessBuilder builder = new ProcessBuilder(latexPath,
-       texFile.getName());
+      incrementalBuild = incremental;
+      prefetchedResources = null;
+      texDir = dir;
+      courseSettings = main.getPassTools().getCourseSettings();
+      maxOutput = courseSettings.getMaxOutputSetting();
+      Vector<PassFile> fileFields = main.getFiles();
+      AssignmentData data = main.getAssignment();
+      String mainFile = data.getMainFile();
+      RequiredPassFile mainFilePanel = null;
+      alwaysFetchResources = false;
 
-      File dir = texFile.getParentFile();
-      builder.directory(dir);
+      defaultBaseName = config.getDefaultBaseName(data, main.getStudent());
 
-      if (latexPath.contains(" "))
+      basePath = main.getBasePath();
+      fileStager = null;
+      warningCount.set(0);
+      suppressedWarnings.set(0);
+      timeout = main.getTimeOut();
+      startJobBudget();
+      jobname = dir.getName();
+
+      String encoding = main.getEncoding();
+      isLua = encoding.equals(Pass.ENCODING_UTF8);
+
+      maxProgress = 3;
+      currentProgress = 0;
+
+      for (PassFile field : fileFields)
+      {
+         if (field instanceof RequiredPassFile)
+         {
+            RequiredPassFile reqFP = (RequiredPassFile)field;
+
+            if (reqFP.getRequiredName().equals(mainFile))
+            {
+               mainFilePanel = reqFP;
+               break;
+            }
+         }
+      }
+
+      timings = new JobTimings(defaultBaseName);
+
+      Integer exitCode = null;
+
+      try
       {
-         main.debug(String.format("Running '%s' %s%nin directory %s",
-            latexPath, texFile.getName(), dir));
+         exitCode = buildCompileRun(out, dir, fileFields, mainFilePanel,
+           data, true);
       }
-      else
+      finally
       {
-         main.debug(String.format("Running %s %s%nin directory %s",
-            latexPath, texFile.getName(), dir));
+         reportSuppressedWarnings();
+         timings.end(exitCode);
       }
 
-      File log = File.createTempFile("PASS_tex-output-", ".txt", dir);
-
-      return runProcess(timeout*1000L, builder, log);
+      return exitCode;
    }
 
    /**
-    * Creates a buffered reader using the designated encoding.
-    * @param file the input file
-    * @return the BufferedReader
+    * Performs build and testing processes.
+    * @param out the print writer
+    * @param dir the directory containing the source code
+    * @param fileFields the student's files
+    * @param mainFilePanel the main file
+    * @param data the assignment data
+    * @return process exit code
     * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
     */ 
-   private BufferedReader newBufferedReader(File file) throws IOException
-   {
-      return main.getPassTools().newBufferedReader(file);
-   }
-
-   /**
-    * Gets the PassTools object associated with the PASS application.
-    * @return the PassTools object
-    */ 
-   protected PassTools getPassTools()
+   private int buildCompileRun(PrintWriter out, File dir,
+     Vector<PassFile> fileFields, RequiredPassFile mainFilePanel,
+     AssignmentData data)
+     throws IOException,InterruptedException,URISyntaxException
    {
-      return main.getPassTools();
+      return buildCompileRun(out, dir, fileFields, mainFilePanel, data, false);
    }
 
    /**
-    * Parses the LaTeX log file for warnings and possible invalid encoding messages.
-    * This will issue warnings via Pass.warning(String) if there are
-    * any problems.
-    * @param logFile the log file create by LaTeX
+    * Performs build and testing processes, reusing the results of
+    * an identical earlier job if they are in the results cache.
+    * Otherwise the results are added to the cache. The cache isn't
+    * used if there's nothing to build or if a resource file can't
+    * be fetched (so that the problem is reported as usual).
+    * @param out the print writer
+    * @param dir the directory containing the source code
+    * @param fileFields the student's files
+    * @param mainFilePanel the main file
+    * @param data the assignment data
+    * @return process exit code
     * @throws IOException if I/O error occurs
+    * @throws InterruptedException if interruption occurs
     */ 
-   private void parseLaTeXLog(File logFile) throws IOException
+   private int buildCompileRunCached(PrintWriter out, File dir,
+     Vector<PassFile> fileFields, RequiredPassFile mainFilePanel,
+     AssignmentData data)
+     throws IOException,InterruptedException,URISyntaxException
    {
-      BufferedReader in = null;
-      boolean binary = false;
+      PassTools passTools = getPassTools();
+      ResultsCache cache = passTools.getResultsCache();
+
+      if (cache == null || (data.getBuildScript() == null
+            && !(data.isCompileTestOn() && mainFilePanel != null)))
+      {
+         return buildCompileRun(out, dir, fileFields, mainFilePanel, data);
+      }
+
+      String key;
+      ResultsCache.Results results = null;
+
+      JobTimings.Entry entry = timings.start("results-lookup");
 
       try
       {
-         in = newBufferedReader(logFile);
+         key = getResultsKey(cache, dir, fileFields, mainFilePanel, data);
 
-         String line;
+         if (key != null)
+         {
+            results = cache.load(key, dir);
+         }
+      }
+      finally
+      {
+         entry.end();
+      }
 
-         while ((line = in.readLine()) != null)
+      if (key == null)
+      {
+         return buildCompileRun(out, dir, fileFields, mainFilePanel, data);
+      }
+
+      if (results != null)
+      {
+         main.transcriptMessage(passTools.getMessageWithDefault(
+           "message.results_reused",
+           "Reusing build and test results {0} created {1}.",
+           key, results.getCreated()));
+
+         for (String msg : results.getWarnings())
          {
-            if (line.contains("Text line contains an invalid character")
-             || line.contains("String contains an invalid utf-8 sequence"))
-            {
-               main.warning(line);
-               binary = true;
-            }
-            else if (line.startsWith("Missing") || line.startsWith("! ")
-               || (!line.startsWith("Package rerunfilecheck") 
-                       && line.contains("Warning")))
-            {
-               main.warning(line);
-            }
+            warning(msg);
          }
+
+         latexInputs.addAll(results.getInputs());
+
+         out.print(results.getLaTeX());
+
+         reusedResults = results.getCreated();
+
+         return results.getExitCode();
       }
-      catch (MalformedInputException e)
+
+      Map<Path,String> before = getFileStates(dir);
+
+      StringWriter buffer = new StringWriter();
+      PrintWriter writer = new PrintWriter(buffer);
+
+      Vector<String> warnings = new Vector<String>();
+      capturedWarnings = warnings;
+
+      int firstInput = latexInputs.size();
+
+      int exitCode = EXIT_UNSET;
+
+      try
       {
-         binary = true;
-         throw e;
+         exitCode = buildCompileRun(writer, dir, fileFields, mainFilePanel,
+           data);
       }
       finally
       {
-         if (binary)
+         capturedWarnings = null;
+         writer.flush();
+         out.print(buffer);
+      }
+
+      // Cancelled or timed out results, and results affected by the
+      // job budget, depend on more than the submission, so they
+      // aren't kept.
+
+      if (exitCode != EXIT_CANCELLED && exitCode != EXIT_TIMEDOUT
+           && exitCode != EXIT_UNSET && exitCode != EXIT_BUDGET
+           && (jobBudget == null || !jobBudget.isLimiting()))
+      {
+         Map<Path,String> after = getFileStates(dir);
+         Vector<Path> files = new Vector<Path>();
+
+         for (Map.Entry<Path,String> file : after.entrySet())
          {
-            main.warning(
-               getPassTools().getMessageWithDefault(
-               "warning.possible_binary",
-               "A binary file may have been added where a text file was expected (or wrong encoding used)."));
+            if (!file.getValue().equals(before.get(file.getKey())))
+            {
+               files.add(file.getKey());
+            }
          }
 
-         if (in != null)
+         Vector<Path> inputs = new Vector<Path>();
+
+         for (int i = firstInput; i < latexInputs.size(); i++)
          {
-            in.close();
+            inputs.add(dir.toPath().relativize(latexInputs.get(i).toPath()));
+         }
+
+         try
+         {
+            cache.store(key, buffer.toString(), warnings, exitCode, dir,
+              files, inputs);
+         }
+         catch (IOException e)
+         {
+            main.debug(String.format("Unable to cache build results %s: %s",
+              key, e.getMessage()));
          }
       }
+
+      return exitCode;
    }
 
    /**
-    * Runs a process with timeout.
-    * @param timeout the timeout value in milliseconds
-    * @param builder the process builder
-    * @param outFile the output file (captures STDOUT)
-    * @param errFile the output file (captures STDERR)
-    * @param inFile the input file (supplies STDIN)
-    * @return the process exit code
+    * Gets the key that identifies the build and test results in the
+    * results cache. This is obtained from everything that may affect
+    * the results: the submitted files, the assignment and course
+    * settings, the resource files and build script, the output limits
+    * and the tools used to compile and run the application.
+    * @param cache the results cache
+    * @param dir the job directory
+    * @param fileFields the student's files
+    * @param mainFilePanel the main file
+    * @param data the assignment data
+    * @return the key or null if a resource file couldn't be fetched
     * @throws IOException if I/O error occurs
-    * @throws InterruptedException if interruption occurs
     */ 
-   private int runProcess(long timeout, ProcessBuilder builder, File outFile,
-    File errFile, File inFile)
-   throws IOException,InterruptedException
+   private String getResultsKey(ResultsCache cache, File dir,
+     Vector<PassFile> fileFields, RequiredPassFile mainFilePanel,
+     AssignmentData data)
+     throws IOException
    {
-      main.getPassTools().addEnvironmentVariablesToProcess(builder);
-
-      currentTask = new PassTask(main, timeout, builder,
-        outFile, errFile, inFile);
+      PassTools passTools = getPassTools();
 
-      int exitCode = currentTask.performProcess();
-      currentTask = null;
+      ResultsCache.KeyBuilder key = cache.newKey();
 
-      return exitCode;
-   }
+      key.add(main.getApplicationName());
+      key.add(main.getApplicationVersion());
+      key.add(main.getEncoding());
+      key.add(""+timeout);
+      key.addObject(data);
+      key.addObject(courseSettings);
 
-   /**
-    * Interrupts the current task.
-    * @return true if current task was interrupted or false if there
-    * was no current task to interrupt
-    */ 
-   public boolean interrupt()
-   {
-      if (currentTask != null)
+      for (PassFile field : fileFields)
       {
-         currentTask.interrupt();
-         currentTask = null;
-         return true;
-      }
-
-      return false;
-   }
+         File file = field.getFile();
+         String name = file.getName();
 
-   /**
-    * Runs a process with timeout.
-    * @param timeout the timeout value in milliseconds
-    * @param builder the process builder
-    * @param log the log file
-    * @return the process exit code
-    * @throws IOException if I/O error occurs
-    * @throws InterruptedException if interruption occurs
-    */ 
-   public int runProcess(long timeout, ProcessBuilder builder, File log)
-     throws IOException,InterruptedException
-   {
-      main.debug("PASS log file: "+log);
+         if (basePath != null)
+         {
+            try
+            {
+               name = basePath.relativize(file.toPath()).toString();
+            }
+            catch (IllegalArgumentException e)
+            {// the file will be reported when it's staged
+            }
+         }
 
-      main.getPassTools().addEnvironmentVariablesToProcess(builder);
+         key.add(name);
+         key.add(field instanceof RequiredPassFile ?
+           ((RequiredPassFile)field).getRequiredName() : null);
+         key.add(field.getLanguage());
+         key.addFile(file);
+      }
 
-      currentTask = new PassTask(main, timeout, builder, log);
+      key.add(mainFilePanel == null ? null : mainFilePanel.getRequiredName());
 
-      int exitCode = currentTask.performProcess();
+      // The build script and resource files are fetched first so that
+      // their content is part of the key.
 
-      verbose(log);
+      Vector<URL> urls = getResourceURLs(data);
 
-      currentTask = null;
+      if (!urls.isEmpty())
+      {
+         awaitPrefetchedResources();
 
-      return exitCode;
-   }
+         if (prefetchedResources == null)
+         {
+            prefetchResourceFiles(dir, data);
+         }
 
-   /**
-    * Verbose message containing the contents of a file.
-    * @param file the file containing the message
-    */ 
-   public void verbose(File file)
-   {
-      if (!file.exists())
-      {
-         main.debug("No such file: "+file);
+         for (URL url : urls)
+         {
+            Path path = prefetchedResources == null ? null
+              : prefetchedResources.get(url.toString());
 
-         return;
+            if (path == null)
+            {
+               return null;
+            }
+
+            key.add(url.toString());
+            key.addFile(path.toFile());
+         }
       }
 
-      BufferedReader in = null;
+      // The tools aren't hashed. The path, size and modification
+      // date will change if they are updated.
 
-      try
+      String[][] tools = new String[][]
       {
-         in = newBufferedReader(file);
-
-         String line;
+         {"java", "javaw"}, {"javac"}, {"g++"}, {"gcc"}, {"perl"},
+         {"lua", "texlua"}, {"bash"}, {"python"}, {"make"}
+      };
 
-         while ((line = in.readLine()) != null)
+      for (String[] names : tools)
+      {
+         try
          {
-            main.verbose(line);
+            File file = passTools.findApplication(names[0],
+              Arrays.copyOfRange(names, 1, names.length));
+
+            Path path = file.toPath().toRealPath();
+
+            key.add(String.format("%s %d %d", path, Files.size(path),
+              Files.getLastModifiedTime(path).toMillis()));
          }
-      }
-      catch (IOException e)
-      {
-         main.error(e);
-      }
-      finally
-      {
-         if (in != null)
+         catch (IOException e)
          {
-            try 
-            {
-               in.close();
-            }
-            catch (IOException e)
-            {
-               main.error(e);
-            }
+            key.add(null);
          }
       }
-   }
 
-   /**
-    * Executes a process and waits for result.
-    * Uses the default timeout setting.
-    * @param process the process
-    * @throws InterruptedException if interruption occurs
-    * @throws InterruptedByTimeoutException if the process timed-out
-    */ 
-   private int waitFor(Process process)
-     throws InterruptedException,InterruptedByTimeoutException
-   {
-      if (!process.waitFor(timeout, TimeUnit.SECONDS))
-      {
-         process.destroy();
-         main.error(getPassTools().getMessageWithDefault(
-            "error.process_timedout",
-            "Processed timed out after {0,number}s.", timeout));
+      key.add(passTools.isInProcessJavaCompiler() ?
+        System.getProperty("java.version") : null);
 
-         throw new InterruptedByTimeoutException();
-      }
+      key.add(String.format("%d %d %d %s", passTools.getMaxStdoutBytes(),
+        passTools.getMaxStderrBytes(), passTools.getMaxLogBytes(),
+        passTools.isKillOnOutputLimit()));
 
-      return process.exitValue();
+      Map<String,String> env = passTools.getProcessEnvironmentVariables();
+
+      key.addObject(env == null ? null : new TreeMap<String,String>(env));
+
+      return key.toString();
    }
 
    /**
-    * Tests the student's application without creating a PDF. Used
-    * by PassEditor for a work in progress.
-    * @param out the output file
-    * @param dir the directory containing the source code
-    * @return process exit code
+    * Gets the size and modification time of each file in the job
+    * directory, so that the files created or modified by the build
+    * can be identified. The zip file, the build cache and the
+    * prefetched resource files aren't included.
+    * @param dir the job directory
+    * @return map of relative paths to file states
     * @throws IOException if I/O error occurs
-    * @throws InterruptedException if interruption occurs
-    * @throws URISyntaxException if an invalid URI is encountered
     */ 
-   public int runTestsNoPDF(PrintWriter out, File dir)
-     throws IOException,InterruptedException,URISyntaxException
+   private Map<Path,String> getFileStates(File dir) throws IOException
    {
-      texDir = dir;
-      maxOutput = main.getPassTools().getMaxOutputSetting();
-      Vector<PassFile> fileFields = main.getFiles();
-      AssignmentData data = main.getAssignment();
-      String mainFile = data.getMainFile();
-      RequiredPassFile mainFilePanel = null;
-      alwaysFetchResources = false;
+      final Path dirPath = dir.toPath();
+      final HashMap<Path,String> states = new HashMap<Path,String>();
 
-      defaultBaseName = config.getDefaultBaseName(data, main.getStudent());
-
-      basePath = main.getBasePath();
-      timeout = main.getTimeOut();
-      jobname = dir.getName();
+      Files.walkFileTree(dirPath, new SimpleFileVisitor<Path>()
+      {
+         @Override
+         public FileVisitResult preVisitDirectory(Path path,
+           BasicFileAttributes attrs)
+         {
+            String name = path.getFileName().toString();
 
-      String encoding = main.getEncoding();
-      isLua = encoding.equals(Pass.ENCODING_UTF8);
+            if (!path.equals(dirPath) && (name.equals(BUILD_CACHE_DIR_NAME)
+                 || name.startsWith("PASS_resources-")))
+            {
+               return FileVisitResult.SKIP_SUBTREE;
+            }
 
-      maxProgress = 3;
-      currentProgress = 0;
+            return FileVisitResult.CONTINUE;
+         }
 
-      for (PassFile field : fileFields)
-      {
-         if (field instanceof RequiredPassFile)
+         @Override
+         public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
          {
-            RequiredPassFile reqFP = (RequiredPassFile)field;
-
-            if (reqFP.getRequiredName().equals(mainFile))
+            if (attrs.isRegularFile() && !(defaultBaseName != null
+                 && path.getParent().equals(dirPath)
+                 && path.getFileName().toString().equals(defaultBaseName+".zip")))
             {
-               mainFilePanel = reqFP;
-               break;
+               states.put(dirPath.relativize(path),
+                 String.format("%d %d", attrs.size(),
+                    attrs.lastModifiedTime().toMillis()));
             }
+
+            return FileVisitResult.CONTINUE;
          }
-      }
 
-      return buildCompileRun(out, dir, fileFields, mainFilePanel, data, true);
-   }
+         @Override
+         public FileVisitResult visitFileFailed(Path path, IOException e)
+         {
+            // may have been deleted in the meantime
+            return FileVisitResult.CONTINUE;
+         }
+      });
 
-   /**
-    * Performs build and testing processes.
-    * @param out the print writer
-    * @param dir the directory containing the source code
-    * @param fileFields the student's files
-    * @param mainFilePanel the main file
-    * @param data the assignment data
-    * @return process exit code
-    * @throws IOException if I/O error occurs
-    * @throws InterruptedException if interruption occurs
-    */ 
-   private int buildCompileRun(PrintWriter out, File dir,
-     Vector<PassFile> fileFields, RequiredPassFile mainFilePanel,
-     AssignmentData data)
-     throws IOException,InterruptedException,URISyntaxException
-   {
-      return buildCompileRun(out, dir, fileFields, mainFilePanel, data, false);
+      return states;
    }
 
    /**
@@ -1823,6 +3583,8 @@ public class AssignmentProcess
       int exitCode = 0;
       URL buildURL;
 
+      resultFilesWritten = false;
+
       if (noPdf)
       {
          runTest = main.getAssignment().isNoPdfRunTestOn();
@@ -1850,7 +3612,7 @@ public class AssignmentProcess
          }
          catch (IOException e)
          {
-            main.warning(passTools.getMessageWithDefault(
+            warning(passTools.getMessageWithDefault(
               "warning.build_script_failed",
               "Something went wrong trying to run build script ''{0}'': {1} {2}",
               buildURL, e.getClass().getSimpleName(), e.getMessage()));
@@ -1869,16 +3631,18 @@ public class AssignmentProcess
             case 0: break;
             case EXIT_CANCELLED: break;
             case EXIT_TIMEDOUT: break;
+            case EXIT_OUTPUT_LIMIT: break;
+            case EXIT_BUDGET: break;
             default:
               if (noPdf)
               {
-                 main.warning(passTools.getMessageWithDefault(
+                 warning(passTools.getMessageWithDefault(
                    "warning.application_test_failed.no_pdf",
                    "Something went wrong while testing the application."));
               }
               else
               {
-                 main.warning(passTools.getMessageWithDefault(
+                 warning(passTools.getMessageWithDefault(
                    "warning.application_test_failed",
                    "Something went wrong while testing the application. Please check the PDF file."));
               }
@@ -1891,7 +3655,7 @@ public class AssignmentProcess
       }
       else
       {
-         main.warning(passTools.getMessageWithDefault(
+         warning(passTools.getMessageWithDefault(
           "warning.no_main_file",
           "Can''t compile: no main file."));
       }
@@ -2063,93 +3827,362 @@ public class AssignmentProcess
          invokerArgs.add(filename);
       }
 
-      // Check if the build script start with #!
+      // Check if the build script start with #!
+
+      if (invokerArgs.isEmpty())
+      {
+         BufferedReader in = null;
+
+         try
+         {
+            in = newBufferedReader(buildFile);
+
+            String line = in.readLine();
+
+            if (line != null && line.startsWith("#!"))
+            {
+               String[] split = line.substring(2).split(" +");
+
+               for (int i = 0; i < split.length; i++)
+               {
+                  invokerArgs.add(split[i]);
+               }
+
+               invokerArgs.add(filename);
+            }
+         }
+         catch (IOException e)
+         {
+            warning(String.format("%s: %s", filename, e.getMessage()));
+         }
+         finally
+         {
+            if (in != null)
+            {
+               in.close();
+            }
+         }
+      }
+
+      if (invokerArgs.isEmpty())
+      {
+         try
+         {
+            if (!buildFile.setExecutable(true))
+            {
+               warning(getPassTools().getMessageWithDefault(
+                 "warning.cant_chmod_exe",
+                 "Unable to make ''{0}'' executable",
+                 buildFile));
+            }
+         }
+         catch (SecurityException e)
+         {
+            warning(getPassTools().getMessageWithDefault(
+             "warning.cant_chmod_exe.with_message",
+             "Unable to make ''{0}'' executable: {1}",
+             buildFile, e.getMessage()));
+         }
+
+         invokerArgs.add(filename);
+      }
+
+      int exitCode;
+
+      budgetStage = JobBudget.BUILD;
+
+      try
+      {
+         exitCode = runApplication(writer, dir, invokerArgs);
+      }
+      finally
+      {
+         budgetStage = JobBudget.RUN;
+      }
+
+      findResultFiles(writer, dir);
+
+      return exitCode;
+   }
+
+   /**
+    * Fetches and copies all the assignment resource files and puts
+    * copies in the given directory. If there's more than one file,
+    * they are fetched in parallel.
+    * @param dir the directory in which to put the files
+    * @throws IOException if I/O error occurs
+    */ 
+   private void copyResourceFiles(File dir) 
+     throws IOException
+   {
+      AssignmentData data = main.getAssignment();
+
+      int n = data.resourceFileCount();
+
+      if (n == 0) return;
+
+      awaitPrefetchedResources();
+
+      JobTimings.Entry entry = timings.start("resources-copy");
+
+      try
+      {
+         if (n == 1)
+         {
+            copyResource(data.getResourceFile(0).getUri().toURL(), dir);
+            return;
+         }
+
+         // The file names are determined first. Scrubbed names depend
+         // on the files already in the directory, so each name is
+         // reserved with an empty file until it has been fetched.
+         // Resources with the same file name would be fetched into
+         // the same file at the same time, so only one of them is
+         // fetched: the first, unless existing files are always
+         // fetched again, in which case the last (which would have
+         // overwritten the others).
+
+         LinkedHashMap<Path,URL> targets = new LinkedHashMap<Path,URL>();
+         HashSet<Path> reservedPaths = new HashSet<Path>();
+
+         for (int i = 0; i < n; i++)
+         {
+            ResourceFile rf = data.getResourceFile(i);
+            URI uri = rf.getUri();
+            URL file = uri.toURL();
+
+            Path result = getResourcePath(file, dir, false, null);
+
+            if (targets.containsKey(result))
+            {
+               if (!alwaysFetchResources)
+               {
+                  continue;
+               }
+
+               main.debug(String.format("Resource %s replaces %s",
+                 file, targets.get(result)));
+            }
+            else if (Files.exists(result))
+            {
+               if (!alwaysFetchResources)
+               {
+                  continue;
+               }
+            }
+            else
+            {
+               Files.createFile(result);
+               reservedPaths.add(result);
+            }
+
+            targets.put(result, file);
+         }
+
+         Vector<CompletableFuture<Void>> fetches
+            = new Vector<CompletableFuture<Void>>(targets.size());
+
+         for (Map.Entry<Path,URL> target : targets.entrySet())
+         {
+            final Path result = target.getKey();
+            final URL file = target.getValue();
+            final boolean reserved = reservedPaths.contains(result);
+
+            fetches.add(CompletableFuture.runAsync(() ->
+            {
+               try
+               {
+                  fetchResource(file, result);
+               }
+               catch (IOException e)
+               {
+                  if (reserved)
+                  {
+                     try
+                     {
+                        Files.deleteIfExists(result);
+                     }
+                     catch (IOException e2)
+                     {
+                        main.debug(e2.getMessage());
+                     }
+                  }
+
+                  throw new CompletionException(e);
+               }
+            }, FETCHERS));
+         }
 
-      if (invokerArgs.isEmpty())
-      {
-         BufferedReader in = null;
+         IOException exception = null;
 
-         try
+         for (CompletableFuture<Void> fetch : fetches)
          {
-            in = newBufferedReader(buildFile);
-
-            String line = in.readLine();
-
-            if (line != null && line.startsWith("#!"))
+            try
             {
-               String[] split = line.substring(2).split(" +");
+               fetch.join();
+            }
+            catch (CompletionException e)
+            {
+               Throwable cause = e.getCause();
 
-               for (int i = 0; i < split.length; i++)
+               if (cause instanceof IOException)
                {
-                  invokerArgs.add(split[i]);
+                  if (exception == null)
+                  {
+                     exception = (IOException)cause;
+                  }
+               }
+               else if (cause instanceof RuntimeException)
+               {
+                  throw (RuntimeException)cause;
+               }
+               else
+               {
+                  throw e;
                }
-
-               invokerArgs.add(filename);
             }
          }
-         catch (IOException e)
+
+         if (exception != null)
          {
-            main.warning(String.format("%s: %s", filename, e.getMessage()));
+            throw exception;
          }
-         finally
+      }
+      finally
+      {
+         entry.end();
+      }
+   }
+
+   /**
+    * Gets the locations of the build script and resource files that
+    * will be needed to build the application.
+    * @param data the assignment data
+    * @return list of URLs (may be empty)
+    */ 
+   private Vector<URL> getResourceURLs(AssignmentData data)
+   {
+      Vector<URL> urls = new Vector<URL>();
+
+      URL buildURL = data.getBuildScript();
+
+      if (buildURL != null)
+      {
+         urls.add(buildURL);
+      }
+
+      if (buildURL != null || data.isCompileTestOn())
+      {
+         for (int i = 0, n = data.resourceFileCount(); i < n; i++)
          {
-            if (in != null)
+            try
             {
-               in.close();
+               urls.add(data.getResourceFile(i).getUri().toURL());
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+               main.debug(e.getMessage());
             }
          }
       }
 
-      if (invokerArgs.isEmpty())
+      return urls;
+   }
+
+   /**
+    * Downloads the build script and resource files that will be
+    * needed to build the application into a staging directory so
+    * that the download can be done while other work is in
+    * progress. The files are moved into place by fetchResource()
+    * when they are needed, so the file names and any LaTeX code
+    * are the same as if they had been fetched at that point. If a
+    * file can't be fetched here, it will be fetched again when it's
+    * needed so that the error is reported in the usual place.
+    * @param dir the job directory
+    * @param data the assignment data
+    * @throws IOException if the staging directory can't be created
+    */ 
+   private void prefetchResourceFiles(File dir, AssignmentData data)
+     throws IOException
+   {
+      Vector<URL> urls = getResourceURLs(data);
+
+      if (urls.isEmpty())
       {
-         try
+         return;
+      }
+
+      final Path stagingDir = Files.createTempDirectory(dir.toPath(),
+        "PASS_resources-");
+      addTemporaryFile(stagingDir.toFile());
+
+      final ConcurrentHashMap<String,Path> prefetched
+         = new ConcurrentHashMap<String,Path>();
+
+      Vector<CompletableFuture<Void>> fetches
+         = new Vector<CompletableFuture<Void>>(urls.size());
+
+      for (int i = 0; i < urls.size(); i++)
+      {
+         final URL url = urls.get(i);
+         final Path path = stagingDir.resolve(Integer.toString(i));
+
+         fetches.add(CompletableFuture.runAsync(() ->
          {
-            if (!buildFile.setExecutable(true))
+            try
             {
-               main.warning(getPassTools().getMessageWithDefault(
-                 "warning.cant_chmod_exe",
-                 "Unable to make ''{0}'' executable",
-                 buildFile));
+               fetchResource(url, path);
+               prefetched.put(url.toString(), path);
             }
-         }
-         catch (SecurityException e)
-         {
-            main.warning(getPassTools().getMessageWithDefault(
-             "warning.cant_chmod_exe.with_message",
-             "Unable to make ''{0}'' executable: {1}",
-             buildFile, e.getMessage()));
-         }
-
-         invokerArgs.add(filename);
+            catch (IOException e)
+            {
+               main.debug("Prefetch of "+url+" failed: "+e.getMessage());
+            }
+         }, FETCHERS));
       }
 
-      int exitCode = runApplication(writer, dir, invokerArgs);
-
-      findResultFiles(writer, dir);
+      for (CompletableFuture<Void> fetch : fetches)
+      {
+         fetch.join();
+      }
 
-      return exitCode;
+      prefetchedResources = prefetched;
    }
 
    /**
-    * Fetches and copies all the assignment resource files and puts
-    * copies in the given directory.
-    * @param dir the directory in which to put the files
-    * @throws IOException if I/O error occurs
+    * Waits for the resources stage of createPdf() to finish, so that
+    * any files it's downloading can be used. This does nothing if
+    * there's no resources stage. A failed prefetch is ignored since
+    * the files will then be fetched when they're needed. This must
+    * not be called from a stage that the resources stage may be
+    * queued behind.
+    * @throws InterruptedIOException if the thread is interrupted
+    * while waiting
     */ 
-   private void copyResourceFiles(File dir) 
-     throws IOException
+   private void awaitPrefetchedResources() throws InterruptedIOException
    {
-      AssignmentData data = main.getAssignment();
+      StageGraph graph = resourcesGraph;
+      StageGraph.Stage<Void> stage = prefetchStage;
 
-      int n = data.resourceFileCount();
+      if (graph == null || stage == null)
+      {
+         return;
+      }
 
-      for (int i = 0; i < n; i++)
+      try
+      {
+         graph.get(stage);
+      }
+      catch (InterruptedException e)
       {
-         ResourceFile rf = data.getResourceFile(i);
-         URI uri = rf.getUri();
-         URL file = uri.toURL();
+         Thread.currentThread().interrupt();
 
-         copyResource(file, dir);
+         throw new InterruptedIOException("Interrupted while waiting for "
+           + "resource files");
+      }
+      catch (IOException | URISyntaxException | RuntimeException e)
+      {
+         main.debug("Resource prefetch failed: "+e.getMessage());
       }
    }
 
@@ -2185,6 +4218,40 @@ public class AssignmentProcess
     */ 
    private Path copyResource(URL url, File dir, boolean extended, PrintWriter writer)
      throws IOException
+   {
+      awaitPrefetchedResources();
+
+      Path result = getResourcePath(url, dir, extended, writer);
+
+      if (!alwaysFetchResources)
+      {
+         if (Files.exists(result))
+         {
+            return result;
+         }
+      }
+
+      fetchResource(url, result);
+
+      return result;
+   }
+
+   /**
+    * Gets the path of the local copy of the resource with the given
+    * URL. The filename will be scrubbed of problematic
+    * characters.
+    * @param url the URL of the file
+    * @param dir the directory in which to put the files
+    * @param extended if true use the extended forbidden pattern
+    * FORBIDDEN_PATTERN_EXTENDED otherwise use the forbidden pattern
+    * FORBIDDEN_PATTERN
+    * @param writer the print writer for the LaTeX code (may be null)
+    * @return the path to the local copy
+    * @throws IOException if I/O error occurs
+    */ 
+   private Path getResourcePath(URL url, File dir, boolean extended,
+     PrintWriter writer)
+     throws IOException
    {
       String name = url.getPath();
 
@@ -2199,7 +4266,7 @@ public class AssignmentProcess
 
       if (!scrubbedName.equals(name))
       {
-         main.warning(getPassTools().getMessageWithDefault(
+         warning(getPassTools().getMessageWithDefault(
            "warning.filename_scrubbed",
            "Filename scrubbed (one or more forbidden characters found). Original name: {0}",
             name));
@@ -2221,16 +4288,46 @@ public class AssignmentProcess
          name = scrubbedName;
       }
 
-      Path result = (new File(dir, name)).toPath();
+      return (new File(dir, name)).toPath();
+   }
 
-      if (!alwaysFetchResources)
+   /**
+    * Fetches a file from the given URL and saves it to the given
+    * location. The resource cache is used if it has been enabled.
+    * The URL must be the actual location of the file, not a
+    * redirect.
+    * @param url the URL of the file
+    * @param result the location of the local copy
+    * @throws IOException if I/O error occurs
+    */ 
+   private void fetchResource(URL url, Path result)
+     throws IOException
+   {
+      ConcurrentHashMap<String,Path> prefetched = prefetchedResources;
+
+      if (prefetched != null)
       {
-         if (Files.exists(result))
+         Path path = prefetched.remove(url.toString());
+
+         if (path != null)
          {
-            return result;
+            main.debug("Using prefetched file "+url);
+
+            Files.move(path, result, StandardCopyOption.REPLACE_EXISTING);
+
+            return;
          }
       }
 
+      ResourceCache cache = getPassTools().getResourceCache();
+
+      if (cache != null)
+      {
+         cache.fetch(url, result);
+
+         return;
+      }
+
       int status = main.getPassTools().testHttpURLConnection(url);
 
       if (status > 299)
@@ -2259,8 +4356,6 @@ public class AssignmentProcess
             in.close();
          }
       }
-
-      return result;
    }
 
    /**
@@ -2301,60 +4396,221 @@ public class AssignmentProcess
       classes.mkdir();
 
       Vector<String> args = new Vector<String>();
+      Vector<String> sources = new Vector<String>();
 
       PassTools passTools = main.getPassTools();
 
       args.add(passTools.getJavaCompilerInvoker().getName());
       passTools.addJavaCompilerArgs(args);
       addAssignmentComplierArgs(data, args);
-      args.add("-d");
-      args.add(classes.getName());
 
-      for (PassFile panel : fileFields)
-      {
-         String lang = panel.getLanguage();
+      for (PassFile panel : fileFields)
+      {
+         String lang = panel.getLanguage();
+
+         if ("Java".equals(lang))
+         {
+            addFileArg(sources, panel.getFile());
+         }
+         else
+         {
+            // Copy any plain text files or allowed binary files in to
+            // classes directory.
+
+            if (AssignmentData.PLAIN_TEXT.equals(lang)
+              || AssignmentData.BINARY.equals(lang))
+            {
+               File srcFile = panel.getFile();
+               Path srcPath = srcFile.toPath();
+
+               Path destPath = getDestination(srcPath,
+                srcFile.getName(), classes, null);
+
+               main.debug("Copying "+srcPath+" -> "+destPath);
+
+               // The application is run in the classes directory and
+               // may modify these files, so they're never linked.
+
+               Files.copy(srcPath, destPath);
+            }
+         }
+      }
+
+      JavaCompilerEngine engine = null;
+
+      if (passTools.isInProcessJavaCompiler())
+      {
+         if (JavaCompilerEngine.isAvailable())
+         {
+            if (javaCompilerEngine == null)
+            {
+               javaCompilerEngine = new JavaCompilerEngine(main);
+            }
+
+            engine = javaCompilerEngine;
+         }
+         else
+         {
+            main.debug("System Java compiler not available. Using "
+              + args.get(0));
+         }
+      }
+
+      int exitCode;
+
+      if (incrementalBuild)
+      {
+         exitCode = compileIncremental(writer, dir, classes, args, sources,
+           engine);
+      }
+      else
+      {
+         args.add("-d");
+         args.add(classes.getName());
+         args.addAll(sources);
+
+         exitCode = runCompiler(writer, dir, classes, args, engine);
+      }
+
+      if (exitCode == 0)
+      {
+         if (runTest)
+         {
+            exitCode = runJavaApplication(writer, classes, mainClass);
+         }
+         else
+         {
+            main.verbose(getPassTools().getMessageWithDefault(
+              "message.run_off",
+              "Run application setting is off."));
+         }
+
+         findResultFiles(writer, dir, classes.getName());
+      }
+
+      return exitCode;
+   }
+
+   /**
+    * Compiles a Java project using the incremental build cache. Only
+    * the source files that have changed since the last successful
+    * build (and those that depend on them) are compiled. The
+    * compilation is skipped if nothing has changed. The cached
+    * classes are copied to the classes directory if successful.
+    * @param writer the writer for the LaTeX code
+    * @param dir the directory the source code files are in
+    * @param classes the directory the application will be run from
+    * @param args the compiler invocation and options (excluding the
+    * output directory and source files)
+    * @param sources the source files
+    * @param engine the in-process Java compiler or null to run the
+    * compiler as a separate process
+    * @return the exit code
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if an interruption occurs
+    * @throws URISyntaxException if an invalid URI is encountered
+    */ 
+   private int compileIncremental(PrintWriter writer, File dir,
+     File classes, Vector<String> args, Vector<String> sources,
+     JavaCompilerEngine engine)
+     throws IOException,InterruptedException,URISyntaxException
+   {
+      PassTools passTools = main.getPassTools();
+
+      IncrementalBuildCache buildCache = new IncrementalBuildCache(main,
+         new File(dir, BUILD_CACHE_DIR_NAME));
+
+      StringBuilder options = new StringBuilder();
+
+      for (String arg : args)
+      {
+         options.append(arg);
+         options.append(' ');
+      }
+
+      options.append(engine == null ? "process" : "in-process");
+
+      Vector<String> toCompile = buildCache.getSourcesToCompile(sources,
+        dir, options.toString());
+
+      int exitCode;
+
+      if (toCompile.isEmpty())
+      {
+         String msg = passTools.getMessageWithDefault(
+           "message.incremental_build_skipped",
+           "No source files have changed since the last build. Reusing {0,number,integer} compiled classes.",
+           buildCache.getReusedClassCount());
+
+         main.transcriptMessage(msg);
+
+         copyResourceFiles(classes);
+         javaCompileResult = null;
+
+         writer.format("\\subsection{%s}%n",
+           passTools.getMessageWithDefault(
+              "document.compiler_messages", "Compiler Messages"));
+
+         writer.println(msg);
 
-         if ("Java".equals(lang))
+         exitCode = 0;
+      }
+      else
+      {
+         if (buildCache.isFullBuild())
          {
-            addFileArg(args, panel.getFile());
+            main.transcriptMessage(passTools.getMessageWithDefault(
+              "message.incremental_build_full",
+              "Compiling all {0,number,integer} source files.",
+              toCompile.size()));
          }
          else
          {
-            // Copy any plain text files or allowed binary files in to
-            // classes directory.
+            main.transcriptMessage(passTools.getMessageWithDefault(
+              "message.incremental_build",
+              "Recompiling {0,number,integer} of {1,number,integer} source files. Reusing {2,number,integer} compiled classes.",
+              toCompile.size(), sources.size(),
+              buildCache.getReusedClassCount()));
+         }
 
-            if (AssignmentData.PLAIN_TEXT.equals(lang)
-              || AssignmentData.BINARY.equals(lang))
-            {
-               File srcFile = panel.getFile();
-               Path srcPath = srcFile.toPath();
+         // The cached classes need to be on the class path for the
+         // source files that aren't being recompiled.
 
-               Path destPath = getDestination(srcPath,
-                srcFile.getName(), classes, null);
+         Path cachePath = dir.toPath().relativize(
+           buildCache.getClassesDirectory().toPath());
 
-               main.debug("Copying "+srcPath+" -> "+destPath);
+         args = new Vector<String>(args);
 
-               Files.copy(srcPath, destPath);
-            }
-         }
-      }
+         int idx = args.indexOf("-cp");
 
-      int exitCode = runCompiler(writer, dir, classes, args);
+         if (idx == -1) idx = args.indexOf("-classpath");
+         if (idx == -1) idx = args.indexOf("--class-path");
 
-      if (exitCode == 0)
-      {
-         if (runTest)
+         if (idx > -1 && idx < args.size()-1)
          {
-            exitCode = runJavaApplication(writer, classes, mainClass);
+            args.set(idx+1, cachePath+File.pathSeparator+args.get(idx+1));
          }
          else
          {
-            main.verbose(getPassTools().getMessageWithDefault(
-              "message.run_off",
-              "Run application setting is off."));
+            args.add("-cp");
+            args.add(cachePath+File.pathSeparator+".");
          }
 
-         findResultFiles(writer, dir, classes.getName());
+         args.add("-d");
+         args.add(cachePath.toString());
+         args.addAll(toCompile);
+
+         exitCode = runCompiler(writer, dir, classes, args, engine);
+      }
+
+      if (exitCode == 0)
+      {
+         buildCache.buildSucceeded();
+         buildCache.copyClasses(classes);
+      }
+      else
+      {
+         buildCache.buildFailed();
       }
 
       return exitCode;
@@ -2409,9 +4665,26 @@ public class AssignmentProcess
    {
       PassTools passTools = main.getPassTools();
 
-      // Find the main class
+      // Find the main class. If the in-process compiler was used,
+      // the package is known from the compiled class names.
 
-      File clsFile = passTools.findFile(dir, mainClass+".class");
+      String qualifiedName = null;
+
+      if (javaCompileResult != null)
+      {
+         qualifiedName = javaCompileResult.getQualifiedName(mainClass);
+      }
+
+      File clsFile = null;
+
+      if (qualifiedName != null)
+      {
+         mainClass = qualifiedName;
+      }
+      else
+      {
+         clsFile = passTools.findFile(dir, mainClass+".class");
+      }
 
       if (clsFile != null)
       {
@@ -2826,9 +5099,36 @@ public class AssignmentProcess
    private int runCompiler(PrintWriter writer, File dir, File resourcesDir,
        Vector<String> args)
      throws IOException,InterruptedException,URISyntaxException
+   {
+      return runCompiler(writer, dir, resourcesDir, args, null);
+   }
+
+   /**
+    * Runs the compiler. If the Java compiler engine is supplied, the
+    * arguments are passed to the in-process Java compiler instead
+    * of being run as a separate process, and the result is
+    * available with javaCompileResult.
+    * @param writer the writer for the LaTeX code
+    * @param dir the directory the source code files are in
+    * @param resourcesDir the directory the resource files should be
+    * copied to
+    * @param args the process arguments, which should include
+    * the compiler invocation at the start
+    * @param engine the in-process Java compiler or null to run the
+    * compiler as a separate process
+    * @return the exit code
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if an interruption occurs
+    * @throws URISyntaxException if an invalid URI is encountered
+    */ 
+   private int runCompiler(PrintWriter writer, File dir, File resourcesDir,
+       Vector<String> args, JavaCompilerEngine engine)
+     throws IOException,InterruptedException,URISyntaxException
    {
       copyResourceFiles(resourcesDir);
 
+      javaCompileResult = null;
+
       BufferedReader in = null;
 
       int exitCode = EXIT_UNSET;
@@ -2865,7 +5165,7 @@ public class AssignmentProcess
          ProcessBuilder builder = new ProcessBuilder(args);
          builder.directory(dir);
 
-         main.debugNoLn("Running ");
+         main.debugNoLn(engine == null ? "Running " : "Compiling in-process ");
 
          for (int i = 0, n = args.size(); i < n; i++)
          {
@@ -2887,13 +5187,50 @@ public class AssignmentProcess
 
          String interrupted = null;
 
+         JobTimings.Entry entry = timings.start("compile",
+           engine == null ? null : "in-process");
+
+         long compileMillis = getProcessTimeout(JobBudget.BUILD,
+           timeout*1000L, getPassTools().getMessageWithDefault(
+             "document.job_budget.compile", "Compiling the application"));
+
          try
          {
-            exitCode = runProcess(timeout*1000L, builder, compilerLog);
+            if (compileMillis == 0L)
+            {
+               interrupted = getBudgetSkippedMessage();
+               exitCode = EXIT_BUDGET;
+            }
+            else
+            {
+               if (engine != null)
+               {
+                  main.debug("PASS log file: "+compilerLog);
+
+                  lastTask = null;
+
+                  // The engine doesn't queue compiles (it returns null
+                  // if all its threads are busy), so a timeout means
+                  // the compiler really ran for the whole time and is
+                  // reported like a javac timeout.
+
+                  javaCompileResult = engine.compile(args, dir,
+                    compilerLog, compileMillis);
+               }
+
+               if (javaCompileResult == null)
+               {
+                  exitCode = runProcess(compileMillis, builder, compilerLog);
+               }
+               else
+               {
+                  exitCode = javaCompileResult.getExitCode();
+               }
+            }
          }
          catch (java.nio.channels.InterruptedByTimeoutException e)
          {
-            interrupted = getPassTools().getMessage("error.process_timedout", timeout);
+            interrupted = getTimedOutMessage(timeout*1000L, compileMillis);
             exitCode = EXIT_TIMEDOUT;
          }
          catch (java.util.concurrent.CancellationException e)
@@ -2901,11 +5238,32 @@ public class AssignmentProcess
             interrupted = getPassTools().getMessage("error.process_cancelled");
             exitCode = EXIT_CANCELLED;
          }
+         catch (OutputLimitException e)
+         {
+            interrupted = e.getMessage();
+            exitCode = EXIT_OUTPUT_LIMIT;
+         }
+         finally
+         {
+            entry.setExitCode(exitCode);
+            entry.setOutputBytes(compilerLog.length());
+            entry.end();
+         }
 
          if (interrupted != null)
          {
             writer.format("\\par\\warning{%s}%n", interrupted);
-            main.warning(interrupted);
+            warning(interrupted);
+         }
+         else if (lastTask != null && lastTask.isOutputLimitReached())
+         {
+            String msg = getPassTools().getMessageWithDefault(
+              "document.output_limit_reached",
+              "Output exceeded the limit of {0,number} bytes. Any further output was discarded.",
+              getPassTools().getMaxLogBytes());
+
+            writer.format("\\par\\warning{%s}%n", msg);
+            warning(msg);
          }
 
          StringBuilder inBuilder = new StringBuilder();
@@ -2977,112 +5335,478 @@ public class AssignmentProcess
                      }
                   }
 
-                  if (truncate)
-                  {
-                     inBuilder.append(String.format("[...]%n"));
-                     break;
-                  }
+                  if (truncate)
+                  {
+                     inBuilder.append(String.format("[...]%n"));
+                     break;
+                  }
+
+                  inBuilder.append(String.format("%n"));
+               }
+
+               main.debug(line);
+            }
+         }
+         finally
+         {
+            if (in != null)
+            {
+               in.close();
+               in = null;
+            }
+         }
+
+         writer.format("\\subsection{%s}%n",
+           getPassTools().getMessageWithDefault(
+              "document.compiler_messages", "Compiler Messages"));
+
+         if (inBuilder.length() == 0)
+         {
+            writer.println(getPassTools().getMessageWithDefault(
+               "document.none", "None."));
+         }
+         else
+         {
+            if (truncMsg != null)
+            {
+               writer.format("\\warning{%s}%n", truncMsg);
+            }
+
+            createAndWriteVerbatim(writer, inBuilder);
+         }
+
+         if (exitCode != 0)
+         {
+            String msg = getPassTools().getMessageWithDefault(
+              "document.compiler_exitcode", "Compiler returned exit code {0,number}.", 
+              exitCode);
+
+            main.debug(msg);
+            writer.println(msg);
+         }
+      }
+      finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+      }
+
+      return exitCode;
+   }
+
+   /**
+    * Runs the application.
+    * @param writer the writer for the LaTeX code
+    * @param dir the directory the source code files are in
+    * @param args the process arguments, which should include
+    * the application invocation at the start
+    * @return the exit code
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if an interruption occurs
+    */ 
+   private int runApplication(PrintWriter writer, File dir, 
+     String... args)
+   throws IOException,InterruptedException
+   {
+      Vector<String> argList = new Vector<String>();
+
+      for (String arg : args)
+      {
+         argList.add(arg);
+      }
+
+      return runApplication(writer, dir, argList);
+   }
+
+   /**
+    * Runs the application. If the assignment has any test cases,
+    * the application is run once for each test case.
+    * @param writer the writer for the LaTeX code
+    * @param dir the directory the source code files are in
+    * @param argList the process arguments, which should include
+    * the application invocation at the start
+    * @return the exit code
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if an interruption occurs
+    */ 
+   private int runApplication(PrintWriter writer, File dir, 
+     Vector<String> argList)
+   throws IOException,InterruptedException
+   {
+      AssignmentData data = main.getAssignment();
+
+      Vector<TestCase> testCases = data.getTestCases();
+
+      argList.addAll(data.getArgs());
+
+      if (!testCases.isEmpty())
+      {
+         return runTestCases(writer, dir, argList, testCases);
+      }
+
+      inFile = createTemporaryFile("PASS_process-in-", ".txt", texDir);
+      outFile = createTemporaryFile("PASS_process-out-", ".txt", texDir);
+      errFile = createTemporaryFile("PASS_process-err-", ".txt", texDir);
+
+      return runApplication(writer, dir, argList, data.getInputs(),
+        timeout, "subsection", inFile, outFile, errFile, null);
+   }
+
+   /**
+    * Runs the application once for each test case. Each test case
+    * is run in its own copy of the given directory, and the test
+    * cases are run at the same time (up to the number of available
+    * processors). The invocation, messages and result files for
+    * each test case are written to a separate subsection, in the
+    * order the test cases were defined.
+    * @param writer the writer for the LaTeX code
+    * @param dir the directory the application should be run in
+    * @param argList the process arguments, which should include
+    * the application invocation at the start
+    * @param testCases the test cases
+    * @return the exit code of the first test case that failed or 0
+    * if they all succeeded
+    * @throws IOException if I/O error occurs
+    * @throws InterruptedException if an interruption occurs
+    */ 
+   private int runTestCases(PrintWriter writer, File dir,
+     Vector<String> argList, Vector<TestCase> testCases)
+   throws IOException,InterruptedException
+   {
+      AssignmentData data = main.getAssignment();
+      PassTools passTools = getPassTools();
+
+      int n = testCases.size();
+
+      Vector<StringWriter> buffers = new Vector<StringWriter>(n);
+      Vector<CompletableFuture<Integer>> runs
+         = new Vector<CompletableFuture<Integer>>(n);
+
+      // Every test case's working copy and I/O files are created
+      // (and registered as temporary files) before any test case
+      // starts, so that no working copy includes another test
+      // case's files when the application is run in the job
+      // directory.
+
+      Vector<File> caseDirs = new Vector<File>(n);
+      Vector<File> caseIns = new Vector<File>(n);
+      Vector<File> caseOuts = new Vector<File>(n);
+      Vector<File> caseErrs = new Vector<File>(n);
+
+      for (int i = 0; i < n; i++)
+      {
+         // The working copy must be in the same directory as the
+         // LaTeX file so that result files can be included.
+
+         File caseDir = newTemporaryFile(texDir,
+            String.format("%s-case%d", jobname, i+1));
+         Files.createDirectories(caseDir.toPath());
+         caseDirs.add(caseDir);
+
+         caseIns.add(createTemporaryFile("PASS_process-in-", ".txt", texDir));
+         caseOuts.add(createTemporaryFile("PASS_process-out-", ".txt", texDir));
+         caseErrs.add(createTemporaryFile("PASS_process-err-", ".txt", texDir));
+      }
+
+      final Set<Path> excluded = getWorkingCopyExclusions(dir);
+
+      for (int i = 0; i < n; i++)
+      {
+         final TestCase testCase = testCases.get(i);
+
+         final File caseDir = caseDirs.get(i);
+         final File caseIn = caseIns.get(i);
+         final File caseOut = caseOuts.get(i);
+         final File caseErr = caseErrs.get(i);
+
+         if (i == 0)
+         {
+            inFile = caseIn;
+            outFile = caseOut;
+            errFile = caseErr;
+            resultsDir = caseDir;
+         }
+
+         final Vector<String> caseArgs = new Vector<String>(argList.size()
+           + testCase.getArgs().size());
+
+         // Absolute paths to files in the original directory need
+         // to refer to the working copy instead.
+
+         Path dirPath = dir.toPath().toAbsolutePath();
+
+         for (String arg : argList)
+         {
+            try
+            {
+               Path path = Paths.get(arg);
+
+               if (path.isAbsolute() && path.startsWith(dirPath))
+               {
+                  arg = caseDir.toPath().toAbsolutePath().resolve(
+                    dirPath.relativize(path)).toString();
+               }
+            }
+            catch (InvalidPathException e)
+            {// not a path
+            }
+
+            caseArgs.add(arg);
+         }
+
+         caseArgs.addAll(testCase.getArgs());
+
+         final Vector<String> inputList = new Vector<String>(data.getInputs());
+         inputList.addAll(testCase.getInputs());
+
+         final long caseTimeout = testCase.getTimeOut() > 0L ?
+            testCase.getTimeOut() : timeout;
+
+         final StringWriter buffer = new StringWriter();
+         buffers.add(buffer);
+
+         CompletableFuture<Integer> run = CompletableFuture.supplyAsync(() ->
+         {
+            PrintWriter caseWriter = new PrintWriter(buffer);
+
+            try
+            {
+               // The job may have been cancelled while this test
+               // case was waiting for a thread.
 
-                  inBuilder.append(String.format("%n"));
+               if (cancelled)
+               {
+                  caseWriter.format("\\par\\warning{%s}%n",
+                    passTools.getMessage("error.process_cancelled"));
+
+                  return EXIT_CANCELLED;
                }
 
-               main.debug(line);
+               JobTimings.Entry entry = timings.start("working-copy",
+                 testCase.getName());
+
+               try
+               {
+                  createWorkingCopy(dir, caseDir, excluded);
+               }
+               finally
+               {
+                  entry.end();
+               }
+
+               int exitCode = runApplication(caseWriter, caseDir, caseArgs,
+                 inputList, caseTimeout, "subsubsection",
+                 caseIn, caseOut, caseErr, testCase.getName());
+
+               writeResultFiles(caseWriter, caseDir, caseDir.getName(),
+                 "subsubsection", "paragraph");
+
+               return exitCode;
             }
-         }
-         finally
-         {
-            if (in != null)
+            catch (IOException | InterruptedException e)
             {
-               in.close();
-               in = null;
+               throw new CompletionException(e);
             }
-         }
+            finally
+            {
+               caseWriter.close();
+            }
+         }, TEST_CASE_RUNNERS);
 
-         writer.format("\\subsection{%s}%n",
-           getPassTools().getMessageWithDefault(
-              "document.compiler_messages", "Compiler Messages"));
+         runs.add(run);
+         testCaseRuns.add(run);
+      }
 
-         if (inBuilder.length() == 0)
+      int result = 0;
+      Throwable exception = null;
+
+      for (int i = 0; i < n; i++)
+      {
+         TestCase testCase = testCases.get(i);
+
+         int exitCode;
+
+         try
          {
-            writer.println(getPassTools().getMessageWithDefault(
-               "document.none", "None."));
+            exitCode = runs.get(i).join();
          }
-         else
+         catch (CancellationException e)
          {
-            if (truncMsg != null)
+            // cancelled by interrupt() before it started
+
+            buffers.get(i).write(String.format("\\par\\warning{%s}%n",
+              passTools.getMessage("error.process_cancelled")));
+
+            exitCode = EXIT_CANCELLED;
+         }
+         catch (CompletionException e)
+         {
+            if (exception == null)
             {
-               writer.format("\\warning{%s}%n", truncMsg);
+               exception = e.getCause();
             }
 
-            createAndWriteVerbatim(writer, inBuilder);
+            continue;
          }
+         finally
+         {
+            testCaseRuns.remove(runs.get(i));
+         }
+
+         writer.format("\\subsection{%s}%n",
+           passTools.getMessageWithDefault("document.test_case",
+             "Test Case {0}", String.format("\\file{%s}", testCase.getName())));
+
+         writer.print(buffers.get(i));
 
          if (exitCode != 0)
          {
-            String msg = getPassTools().getMessageWithDefault(
-              "document.compiler_exitcode", "Compiler returned exit code {0,number}.", 
-              exitCode);
+            main.debug(String.format("Test case %s exit code: %d",
+              testCase.getName(), exitCode));
 
-            main.debug(msg);
-            writer.println(msg);
+            if (result == 0)
+            {
+               result = exitCode;
+            }
          }
       }
-      finally
+
+      if (exception instanceof IOException)
       {
-         if (in != null)
-         {
-            in.close();
-         }
+         throw (IOException)exception;
+      }
+      else if (exception instanceof InterruptedException)
+      {
+         throw (InterruptedException)exception;
+      }
+      else if (exception instanceof RuntimeException)
+      {
+         throw (RuntimeException)exception;
+      }
+      else if (exception != null)
+      {
+         throw new IOException(exception.getMessage(), exception);
       }
 
-      return exitCode;
+      // The result files have been written for each test case.
+
+      resultFilesWritten = true;
+
+      return result;
    }
 
    /**
-    * Runs the application.
-    * @param writer the writer for the LaTeX code
-    * @param dir the directory the source code files are in
-    * @param args the process arguments, which should include
-    * the application invocation at the start
-    * @return the exit code
-    * @throws IOException if I/O error occurs
-    * @throws InterruptedException if an interruption occurs
+    * Gets the paths that mustn't be copied into a test case's
+    * working copy. These are the temporary files created by PASS
+    * (including the working copies and I/O files for the test
+    * cases), the zip file and the incremental build cache.
+    * @param src the directory to be copied
+    * @return the excluded paths
     */ 
-   private int runApplication(PrintWriter writer, File dir, 
-     String... args)
-   throws IOException,InterruptedException
+   private Set<Path> getWorkingCopyExclusions(File src)
    {
-      Vector<String> argList = new Vector<String>();
+      HashSet<Path> excluded = new HashSet<Path>();
 
-      for (String arg : args)
+      for (File file : temporaryFiles.toArray(new File[0]))
       {
-         argList.add(arg);
+         excluded.add(file.toPath());
       }
 
-      return runApplication(writer, dir, argList);
+      excluded.remove(src.toPath());
+
+      if (defaultBaseName != null)
+      {
+         excluded.add(new File(texDir, defaultBaseName+".zip").toPath());
+      }
+
+      excluded.add(new File(texDir, BUILD_CACHE_DIR_NAME).toPath());
+
+      return excluded;
    }
 
    /**
-    * Runs the application.
+    * Copies the content of the given directory into a new directory
+    * for a test case. File attributes (such as the executable
+    * permission) are preserved. Verbatim files are also skipped,
+    * since test cases that are already running may be writing
+    * them to the LaTeX directory.
+    * @param src the directory to copy
+    * @param dest the new directory
+    * @param excluded the paths that shouldn't be copied (see
+    * getWorkingCopyExclusions())
+    * @throws IOException if I/O error occurs
+    */ 
+   private void createWorkingCopy(File src, File dest,
+     final Set<Path> excluded)
+   throws IOException
+   {
+      final Path srcPath = src.toPath();
+      final Path destPath = dest.toPath();
+      final Path verbPrefix = new File(texDir, jobname+"-verb").toPath();
+
+      Files.createDirectories(destPath);
+
+      Files.walkFileTree(srcPath, new SimpleFileVisitor<Path>()
+      {
+         @Override
+         public FileVisitResult preVisitDirectory(Path path,
+           BasicFileAttributes attrs)
+         throws IOException
+         {
+            if (excluded.contains(path))
+            {
+               return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            Files.createDirectories(destPath.resolve(srcPath.relativize(path)));
+
+            return FileVisitResult.CONTINUE;
+         }
+
+         @Override
+         public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
+         throws IOException
+         {
+            if (!excluded.contains(path)
+                 && !path.toString().startsWith(verbPrefix.toString()))
+            {
+               Files.copy(path, destPath.resolve(srcPath.relativize(path)),
+                 StandardCopyOption.COPY_ATTRIBUTES);
+            }
+
+            return FileVisitResult.CONTINUE;
+         }
+      });
+   }
+
+   /**
+    * Runs the application with the given arguments and input.
     * @param writer the writer for the LaTeX code
-    * @param dir the directory the source code files are in
+    * @param dir the directory the application should be run in
     * @param argList the process arguments, which should include
     * the application invocation at the start
+    * @param inputList the lines of STDIN
+    * @param processTimeout the timeout in seconds
+    * @param sectionCmd the sectioning command for the invocation and
+    * messages
+    * @param stdin the file used for STDIN
+    * @param stdout the file that captures STDOUT
+    * @param stderr the file that captures STDERR
+    * @param testCaseName the name of the test case (used in the
+    * job timings) or null if there are no test cases
     * @return the exit code
     * @throws IOException if I/O error occurs
     * @throws InterruptedException if an interruption occurs
     */ 
    private int runApplication(PrintWriter writer, File dir, 
-     Vector<String> argList)
+     Vector<String> argList, Vector<String> inputList, long processTimeout,
+     String sectionCmd, File stdin, File stdout, File stderr,
+     String testCaseName)
    throws IOException,InterruptedException
    {
-      AssignmentData data = main.getAssignment();
-
-      Vector<String> inputList = data.getInputs();
-
-      argList.addAll(data.getArgs());
-
-      writer.format("\\subsection{%s}%n", 
+      writer.format("\\%s{%s}%n", sectionCmd,
         getPassTools().getMessageWithDefault("document.application_invocation", 
            "Application Invocation"));
 
@@ -3117,10 +5841,42 @@ public class AssignmentProcess
 
       createAndWriteVerbatim(writer, strBuilder);
 
+      String description;
+
+      if (budgetStage == JobBudget.BUILD)
+      {
+         description = getPassTools().getMessageWithDefault(
+           "document.job_budget.build_script", "Running the build script");
+      }
+      else if (testCaseName == null)
+      {
+         description = getPassTools().getMessageWithDefault(
+           "document.job_budget.application", "Running the application");
+      }
+      else
+      {
+         description = getPassTools().getMessageWithDefault(
+           "document.job_budget.test_case", "Test Case {0}",
+           String.format("\\file{%s}", testCaseName));
+      }
+
+      long processMillis = getProcessTimeout(budgetStage,
+        processTimeout*1000L, description);
+
+      if (processMillis == 0L)
+      {
+         writeBudgetSkipped(writer);
+
+         return EXIT_BUDGET;
+      }
+
       ProcessBuilder builder = new ProcessBuilder(argList);
       builder.directory(dir);
 
-      main.debugNoLn("Running ");
+      // Build the message first as other test cases may be writing
+      // debugging messages at the same time.
+
+      StringBuilder debugMsg = new StringBuilder("Running ");
 
       for (int i = 0, n = argList.size(); i < n; i++)
       {
@@ -3128,29 +5884,27 @@ public class AssignmentProcess
 
          if (pattern.matcher(arg).matches())
          {
-            main.debugNoLn(String.format("'%s' ", argList.get(i)));
+            debugMsg.append(String.format("'%s' ", argList.get(i)));
          }
          else
          {
-            main.debugNoLn(String.format("%s ", argList.get(i)));
+            debugMsg.append(String.format("%s ", argList.get(i)));
          }
       }
 
-      main.debugNoLn(String.format("%nin directory %s%n", dir));
+      debugMsg.append(String.format("%nin directory %s", dir));
 
-      inFile = createTemporaryFile("PASS_process-in-", ".txt", texDir);
-      outFile = createTemporaryFile("PASS_process-out-", ".txt", texDir);
-      errFile = createTemporaryFile("PASS_process-err-", ".txt", texDir);
+      main.debug(debugMsg.toString());
 
-      main.debug("PASS in file: "+inFile);
-      main.debug("PASS out file: "+outFile);
-      main.debug("PASS error file: "+errFile);
+      main.debug("PASS in file: "+stdin);
+      main.debug("PASS out file: "+stdout);
+      main.debug("PASS error file: "+stderr);
 
       PrintWriter out = null;
 
       try
       {
-         out = new PrintWriter(inFile);
+         out = new PrintWriter(stdin);
 
          for (String input : inputList)
          {
@@ -3169,14 +5923,18 @@ public class AssignmentProcess
       int exitCode = EXIT_UNSET;
       String interrupted = null;
 
+      PassTask task = createProcessTask(processMillis, builder,
+        stdout, stderr, stdin);
+
+      JobTimings.Entry entry = timings.start("run", testCaseName);
+
       try
       {
-         exitCode = runProcess(timeout*1000L, builder, outFile,
-           errFile, inFile);
+         exitCode = runTask(task, testCaseName != null);
       }
       catch (java.nio.channels.InterruptedByTimeoutException e)
       {
-         interrupted = getPassTools().getMessage("error.process_timedout", timeout);
+         interrupted = getTimedOutMessage(processTimeout*1000L, processMillis);
          exitCode = EXIT_TIMEDOUT;
       }
       catch (java.util.concurrent.CancellationException e)
@@ -3184,118 +5942,93 @@ public class AssignmentProcess
          interrupted = getPassTools().getMessage("error.process_cancelled");
          exitCode = EXIT_CANCELLED;
       }
-
-      if (interrupted != null)
+      catch (OutputLimitException e)
       {
-         writer.format("\\par\\warning{%s}%n", interrupted);
-         main.warning(interrupted);
+         interrupted = e.getMessage();
+         exitCode = EXIT_OUTPUT_LIMIT;
       }
-
-      long msgLength = outFile.length();
-
-      String truncMsg = null;
-
-      if (msgLength > maxOutput)
+      finally
       {
-         truncMsg = getPassTools().getMessageWithDefault(
-           "document.output_truncated",
-           "Output size ({0,number} bytes) exceeds maximum setting ({1,number} bytes). Truncating with [...]",
-           msgLength, maxOutput);
+         entry.setExitCode(exitCode);
+         entry.setOutputBytes(stdout.length()+stderr.length());
+         entry.end();
       }
 
-      String line;
-      StringBuilder inBuilder = new StringBuilder();
-
-      BufferedReader in = null;
-
-      try
+      if (interrupted != null)
       {
-         in = newBufferedReader(outFile);
+         writer.format("\\par\\warning{%s}%n", interrupted);
+         warning(interrupted);
+      }
 
-         while ((line = in.readLine()) != null)
-         {
-            if (truncMsg != null && inBuilder.length()+line.length() > maxOutput)
-            {
-               String substr = line.substring(0, 
-                 (int)(inBuilder.length()+line.length()-maxOutput));
+      writer.format("\\%s{%s}%n", sectionCmd,
+        getPassTools().getMessageWithDefault(
+           "document.stdout_messages",
+           "Messages to STDOUT"));
 
-               inBuilder.append(substr);
-               inBuilder.append(String.format("[...]%n"));
-               main.debug(substr+"[...]");
-               break;
-            }
+      writeCapturedOutput(writer, stdout,
+        exitCode != EXIT_OUTPUT_LIMIT && task.isOutputLimitReached(),
+        getPassTools().getMaxStdoutBytes());
 
-            inBuilder.append(String.format("%s%n", line));
-            main.debug(line);
-         }
-      }
-      finally
-      {
-         if (in != null)
-         {
-            in.close();
-            in = null;
-         }
-      }
+      writer.format("\\%s{%s}%n", sectionCmd,
+       getPassTools().getMessageWithDefault(
+         "document.stderr_messages", 
+         "Messages to STDERR"));
 
-      StringBuilder errBuilder = new StringBuilder();
+      writeCapturedOutput(writer, stderr,
+        exitCode != EXIT_OUTPUT_LIMIT && task.isErrorLimitReached(),
+        getPassTools().getMaxStderrBytes());
 
-      try
-      {
-         in = newBufferedReader(errFile);
+      return exitCode;
+   }
 
-         while ((line = in.readLine()) != null)
-         {
-            errBuilder.append(String.format("%s%n", line));
-            main.debug(line);
-         }
-      }
-      finally
+   /**
+    * Writes the output captured from a process. The content is
+    * streamed from the file to a verbatim file, truncated if it
+    * exceeds the maximum output setting, so it isn't held in memory.
+    * @param writer the writer for the LaTeX source code
+    * @param file the file containing the captured STDOUT or STDERR
+    * @param limitReached true if the process output exceeded the
+    * recording limit
+    * @param limit the recording limit
+    * @throws IOException if I/O error occurs
+    */ 
+   private void writeCapturedOutput(PrintWriter writer, File file,
+     boolean limitReached, long limit)
+     throws IOException
+   {
+      if (limitReached)
       {
-         if (in != null)
-         {
-            in.close();
-            in = null;
-         }
+         String msg = getPassTools().getMessageWithDefault(
+           "document.output_limit_reached",
+           "Output exceeded the limit of {0,number} bytes. Any further output was discarded.",
+           limit);
+
+         writer.format("\\warning{%s}\\par%n", msg);
+         warning(msg);
       }
 
-      writer.format("\\subsection{%s}%n", 
-        getPassTools().getMessageWithDefault(
-           "document.stdout_messages",
-           "Messages to STDOUT"));
+      long msgLength = file.length();
 
-      if (inBuilder.length() == 0)
+      if (msgLength == 0)
       {
          writer.println(getPassTools().getMessageWithDefault(
            "document.none", "None."));
-      }
-      else
-      {
-         if (truncMsg != null)
-         {
-            writer.format("\\warning{%s}%n", truncMsg);
-            main.warning(truncMsg);
-         }
 
-         createAndWriteVerbatim(writer, inBuilder);
+         return;
       }
 
-      writer.format("\\subsection{%s}%n", 
-       getPassTools().getMessageWithDefault(
-         "document.stderr_messages", 
-         "Messages to STDERR"));
-
-      if (errBuilder.length() == 0)
-      {
-         writer.println(getPassTools().getMessageWithDefault(
-            "document.none", "None."));
-      }
-      else
+      if (msgLength > maxOutput)
       {
-         createAndWriteVerbatim(writer, errBuilder);
+         String truncMsg = getPassTools().getMessageWithDefault(
+           "document.output_truncated",
+           "Output size ({0,number} bytes) exceeds maximum setting ({1,number} bytes). Truncating with [...]",
+           msgLength, maxOutput);
+
+         writer.format("\\warning{%s}%n", truncMsg);
+         warning(truncMsg);
       }
 
-      return exitCode;
+      createAndWriteVerbatim(writer, file, maxOutput);
    }
 
    /**
@@ -3346,6 +6079,27 @@ public class AssignmentProcess
       return resultsDir;
    }
 
+   /**
+    * Gets the JSON file containing the stage timings for the job
+    * created by createPdf(). The file is in the same directory as
+    * the PDF file.
+    * @return the timings file or null if the timing report is off
+    * or the file couldn't be written
+    */ 
+   public File getTimingsFile()
+   {
+      return timingsFile;
+   }
+
+   /**
+    * Gets the timings for the current (or most recent) job.
+    * @return the job timings
+    */ 
+   public JobTimings getJobTimings()
+   {
+      return timings;
+   }
+
    /**
     * Gets the PDF file. This may or may not exist, depending on
     * whether the process was successful.
@@ -3416,6 +6170,12 @@ public class AssignmentProcess
    public void findResultFiles(PrintWriter writer, File dir, String resultsDirName)
      throws IOException,InvalidPathException
    {
+      if (resultFilesWritten)
+      {
+         // already written for each test case
+         return;
+      }
+
       Vector<ResultFile> files = main.getAssignment().getResultFiles();
 
       if (files.isEmpty()) return;
@@ -3428,16 +6188,38 @@ public class AssignmentProcess
          resultsDir = sourcePath.toFile();
       }
 
-      writer.format("\\section{%s}%n", 
+      writeResultFiles(writer, resultsDir, resultsDirName,
+        "section", "subsection");
+   }
+
+   /**
+    * Writes the LaTeX code for the result files found in the given
+    * directory.
+    * @param writer the write for the LaTeX document
+    * @param dir the directory containing the result files
+    * @param resultsDirName the path of the directory relative to
+    * the LaTeX file's directory
+    * @param sectionCmd the sectioning command for the heading
+    * @param subsectionCmd the sectioning command for each file
+    */
+   private void writeResultFiles(PrintWriter writer, File dir,
+     String resultsDirName, String sectionCmd, String subsectionCmd)
+     throws IOException,InvalidPathException
+   {
+      Vector<ResultFile> files = main.getAssignment().getResultFiles();
+
+      if (files.isEmpty()) return;
+
+      writer.format("\\%s{%s}%n", sectionCmd,
        getPassTools().getMessageWithDefault("document.result_files", "Result Files"));
 
       for (ResultFile result : files)
       {
          String filename = result.getName();
 
-         File file = new File(resultsDir, filename);
+         File file = new File(dir, filename);
 
-         writer.println(String.format("\\subsection{\\file{%s}}", filename));
+         writer.println(String.format("\\%s{\\file{%s}}", subsectionCmd, filename));
 
          if (file.exists())
          {
@@ -3472,7 +6254,7 @@ public class AssignmentProcess
          {
             writer.format("\\warning{%s}%n", getPassTools().getMessageWithDefault(
               "document.missing", "Missing"));
-            main.warning(getPassTools().getMessageWithDefault(
+            warning(getPassTools().getMessageWithDefault(
               "warning.missing_result_file",
               "Your project application failed to create expected result file ''{0}''.",
               file.getName()));
@@ -3484,7 +6266,7 @@ public class AssignmentProcess
     * Creates a new file name for a verbatim file.
     * @return the new file name
     */ 
-   protected String newVerbFileName()
+   protected synchronized String newVerbFileName()
    {
       return String.format("%s-verb%d.tex", jobname, ++verbCount);
    }
@@ -3525,6 +6307,7 @@ public class AssignmentProcess
 
       if (verbFile.exists())
       {
+         addLaTeXInput(verbFile, false);
          writer.println("\\verbatiminput{"+verbFilename+"}");
       }
       else
@@ -3551,6 +6334,26 @@ public class AssignmentProcess
     */ 
    protected void createAndWriteVerbatim(PrintWriter writer, File src)
      throws IOException
+   {
+      createAndWriteVerbatim(writer, src, Long.MAX_VALUE);
+   }
+
+   /**
+    * Creates a new verbatim file from the content of the given file,
+    * truncating it if it exceeds the given number of characters.
+    * The content is streamed, so the amount of memory used doesn't
+    * depend on the size of the source file. In debug mode, the
+    * (truncated) verbatim content is also written to the debug
+    * messages.
+    * @param writer the writer for the LaTeX source code
+    * @param src the file containing the verbatim content
+    * @param maxLength the maximum number of characters to read from
+    * the source file
+    * @throws IOException if I/O error occurs
+    */ 
+   protected void createAndWriteVerbatim(PrintWriter writer, File src,
+     long maxLength)
+     throws IOException
    {
       String verbFilename = newVerbFileName();
       File verbFile = newTemporaryFile(texDir, verbFilename);
@@ -3560,7 +6363,13 @@ public class AssignmentProcess
       try
       {
          verbWriter = new PrintWriter(verbFile, main.getEncoding());
-         writeVerbatim(verbWriter, src);
+
+         if (src.length() > 0)
+         {
+            writeVerbatim(verbWriter,
+              main.getPassTools().newInputStreamReader(src), maxLength,
+              src.getName());
+         }
       }
       finally
       {
@@ -3570,8 +6379,33 @@ public class AssignmentProcess
          }
       }
 
+      if (main.isDebugMode() && verbFile.exists())
+      {
+         BufferedReader in = null;
+
+         try
+         {
+            in = newBufferedReader(verbFile);
+
+            String line;
+
+            while ((line = in.readLine()) != null)
+            {
+               main.debug(line);
+            }
+         }
+         finally
+         {
+            if (in != null)
+            {
+               in.close();
+            }
+         }
+      }
+
       if (verbFile.exists())
       {
+         addLaTeXInput(verbFile, false);
          writer.println("\\verbatiminput{"+verbFilename+"}");
       }
       else
@@ -3620,6 +6454,7 @@ public class AssignmentProcess
 
       if (verbFile.exists())
       {
+         addLaTeXInput(verbFile, false);
          writer.println("\\verbatiminput{"+verbFilename+"}");
       }
       else
@@ -3657,7 +6492,8 @@ public class AssignmentProcess
    {
       if (file.length() == 0) return;
 
-      writeVerbatim(writer, main.getPassTools().newInputStreamReader(file));
+      writeVerbatim(writer, main.getPassTools().newInputStreamReader(file),
+        Long.MAX_VALUE, file.getName());
    }
 
    /**
@@ -3669,96 +6505,125 @@ public class AssignmentProcess
     */ 
    public void writeVerbatim(PrintWriter writer, Reader reader)
    throws IOException
+   {
+      writeVerbatim(writer, reader, Long.MAX_VALUE);
+   }
+
+   /**
+    * Writes the given source as verbatim text, implementing line
+    * wrapping, TAB substitution and binary/invalid character markup.
+    * The source is read a character at a time, so the amount of
+    * memory used doesn't depend on the length of the content or of
+    * any of its lines. If the content exceeds the given number of
+    * characters, the remainder is omitted and replaced with [...]
+    * @param writer the writer
+    * @param reader the input source containing the content that needs to be converted to verbatim
+    * @param maxLength the maximum number of characters to read
+    * @return true if the content was truncated
+    * @throws IOException if I/O error occurs
+    */ 
+   public boolean writeVerbatim(PrintWriter writer, Reader reader,
+     long maxLength)
+   throws IOException
+   {
+      return writeVerbatim(writer, reader, maxLength, null);
+   }
+
+   /**
+    * Writes the given source as verbatim text, implementing line
+    * wrapping, TAB substitution and binary/invalid character markup.
+    * Problematic characters are counted while the content is
+    * written and a single warning is issued for each kind of problem
+    * once the content has been written (see VerbatimWarnings).
+    * @param writer the writer
+    * @param reader the input source containing the content that needs to be converted to verbatim
+    * @param maxLength the maximum number of characters to read
+    * @param source the name of the input source for the warnings
+    * (may be null)
+    * @return true if the content was truncated
+    * @throws IOException if I/O error occurs
+    */ 
+   public boolean writeVerbatim(PrintWriter writer, Reader reader,
+     long maxLength, String source)
+   throws IOException
    {
       BufferedReader in = null;
+      VerbatimWarnings warnings = new VerbatimWarnings(source);
       PassTools passTools = main.getPassTools();
 
-      int maxChars = passTools.getVerbMaxCharsPerLine();
-      int tabCount = passTools.getVerbTabCharCount();
+      CourseSettings settings = courseSettings == null ?
+         passTools.getCourseSettings() : courseSettings;
+
+      int maxChars = settings.getVerbMaxCharsPerLine();
+      int tabCount = settings.getVerbTabCharCount();
+
+      boolean truncated = false;
 
       try
       {
          in = new BufferedReader(reader);
 
-         String line;
+         long count = 0;
+         int j = 0;
+         boolean prevCR = false;
+         int c;
 
-         while ((line = in.readLine()) != null)
+         while ((c = in.read()) != -1)
          {
-            for (int i = 0, j = 0, n = line.length(); i < n; )
+            if (++count > maxLength)
             {
-               int cp = line.codePointAt(i);
-               i += Character.charCount(cp);
+               truncated = true;
+               break;
+            }
 
-               j++;
+            if (prevCR)
+            {
+               prevCR = false;
 
-               if (j > maxChars)
-               {
-                  writer.println();
-                  j = 1;
-               }
+               // CR LF line ending
 
-               if (cp == '\t')
-               {
-                  for (int k = (j-1)%tabCount; k < tabCount; k++)
-                  {
-                     writer.print(' ');
-                     j++;
+               if (c == '\n') continue;
+            }
 
-                     if (j > maxChars)
-                     {
-                        writer.println();
-                        j = 1;
-                     }
-                  }
+            if (c == '\n' || c == '\r')
+            {
+               writer.println();
+               j = 0;
+               prevCR = (c == '\r');
+               warnings.nextLine();
+               continue;
+            }
 
-               }
-               else if (Character.isISOControl(cp) 
-                         && !(cp == 0x0A || cp == 0x0C || cp == 0x0D))
-               {
-                  String str = String.format("[0x%X]", cp);
-                  writer.print(str);
-                  j += str.length()-1;
-                  main.warning(getPassTools().getMessageWithDefault(
-                    "warning.control_char_found",
-                    "Control character U+{0} detected", 
-                    String.format("%X", cp)));
-               }
-               else if (isASCII && cp > 0x7F)
-               {
-                  main.warning(getPassTools().getMessageWithDefault(
-                   "warning.non_ascii",
-                   "ASCII mode set but non-ASCII character U+{0} detected",
-                   String.format("%X", cp)));
+            int cp = c;
 
-                  if (cp == 0x2018 || cp == 0x2018) // left or single quote
-                  {
-                     writer.print('\'');
-                  }
-                  else if (cp == 0x201C || cp == 0x201D) // left or right double quote
-                  {
-                     writer.print('"');
-                  }
-                  else if (cp >= 0x200 && cp <= 2015) // hyphens or dashes
-                  {
-                     writer.print('-');
-                  }
-                  else
-                  {
-                     String str = String.format("[0x%X]", cp);
-                     writer.print(str);
-                     j += str.length()-1;
-                  }
-               }
-               else if (cp <= Character.MAX_VALUE)
+            if (Character.isHighSurrogate((char)c))
+            {
+               in.mark(1);
+               int c2 = in.read();
+
+               if (c2 != -1 && Character.isLowSurrogate((char)c2))
                {
-                  writer.print((char)cp);
+                  cp = Character.toCodePoint((char)c, (char)c2);
+                  count++;
                }
                else
                {
-                  writer.print(new String(Character.toChars(cp)));
+                  in.reset();
                }
             }
 
+            warnings.nextColumn();
+
+            j = writeVerbatimCodePoint(writer, cp, j, maxChars, tabCount,
+                  warnings);
+         }
+
+         if (truncated)
+         {
+            writer.println("[...]");
+         }
+         else if (j != 0)
+         {
             writer.println();
          }
       }
@@ -3768,7 +6633,150 @@ public class AssignmentProcess
          {
             in.close();
          }
+
+         issueVerbatimWarnings(warnings);
+      }
+
+      return truncated;
+   }
+
+   /**
+    * Issues the summary warnings for the problematic characters
+    * found while writing verbatim content.
+    * @param warnings the counts of each kind of problem
+    */ 
+   private void issueVerbatimWarnings(VerbatimWarnings warnings)
+   {
+      PassTools passTools = getPassTools();
+      String source = warnings.getSource();
+
+      for (int kind = 0; kind < VerbatimWarnings.KIND_COUNT; kind++)
+      {
+         long count = warnings.getCount(kind);
+
+         if (count == 0L) continue;
+
+         String key = (kind == VerbatimWarnings.CONTROL ?
+           "warning.control_chars_found" : "warning.non_ascii_chars");
+
+         String defVal;
+
+         if (kind == VerbatimWarnings.CONTROL)
+         {
+            defVal = "Control characters detected{0}: {1,number,integer} (first U+{2} at line {3,number,integer}, column {4,number,integer}).";
+         }
+         else
+         {
+            defVal = "ASCII mode set but non-ASCII characters detected{0}: {1,number,integer} (first U+{2} at line {3,number,integer}, column {4,number,integer}).";
+         }
+
+         warning(passTools.getMessageWithDefault(key, defVal,
+           source == null ? "" : passTools.getMessageWithDefault(
+             "warning.in_source", " in ''{0}''", source),
+           count, String.format("%04X", warnings.getFirstCodePoint(kind)),
+           warnings.getFirstLine(kind), warnings.getFirstColumn(kind)));
+      }
+   }
+
+   /**
+    * Writes a single code point as verbatim text.
+    * @param writer the writer
+    * @param cp the code point
+    * @param column the number of characters already written on the
+    * current line
+    * @param maxChars the maximum number of characters per line
+    * @param tabCount the number of characters a TAB spans
+    * @param warnings the counts of problematic characters
+    * @return the updated column
+    */ 
+   private int writeVerbatimCodePoint(PrintWriter writer, int cp, int column,
+     int maxChars, int tabCount, VerbatimWarnings warnings)
+   {
+      int j = column+1;
+
+      if (j > maxChars)
+      {
+         writer.println();
+         j = 1;
+      }
+
+      if (cp == '\t')
+      {
+         for (int k = (j-1)%tabCount; k < tabCount; k++)
+         {
+            writer.print(' ');
+            j++;
+
+            if (j > maxChars)
+            {
+               writer.println();
+               j = 1;
+            }
+         }
+
+      }
+      else if (Character.isISOControl(cp) 
+                && !(cp == 0x0A || cp == 0x0C || cp == 0x0D))
+      {
+         j += writeCodePointMarkup(writer, cp)-1;
+         warnings.add(VerbatimWarnings.CONTROL, cp);
+      }
+      else if (isASCII && cp > 0x7F)
+      {
+         warnings.add(VerbatimWarnings.NON_ASCII, cp);
+
+         if (cp == 0x2018 || cp == 0x2018) // left or single quote
+         {
+            writer.print('\'');
+         }
+         else if (cp == 0x201C || cp == 0x201D) // left or right double quote
+         {
+            writer.print('"');
+         }
+         else if (cp >= 0x200 && cp <= 2015) // hyphens or dashes
+         {
+            writer.print('-');
+         }
+         else
+         {
+            j += writeCodePointMarkup(writer, cp)-1;
+         }
+      }
+      else if (cp <= Character.MAX_VALUE)
+      {
+         writer.print((char)cp);
+      }
+      else
+      {
+         writer.print(Character.highSurrogate(cp));
+         writer.print(Character.lowSurrogate(cp));
+      }
+
+      return j;
+   }
+
+   /**
+    * Writes the markup for a character that can't be shown, in the
+    * form [0x<em>hex</em>]. This is written a character at a time to
+    * avoid creating a string for each occurrence.
+    * @param writer the writer
+    * @param cp the code point
+    * @return the number of characters written
+    */ 
+   private static int writeCodePointMarkup(PrintWriter writer, int cp)
+   {
+      int digits = Math.max(1, (35-Integer.numberOfLeadingZeros(cp))/4);
+
+      writer.print("[0x");
+
+      for (int shift = 4*(digits-1); shift >= 0; shift -= 4)
+      {
+         writer.print(HEX_DIGITS[(cp >> shift) & 0xF]);
       }
+
+      writer.print(']');
+
+      return digits+4;
    }
 
    /**
@@ -3776,6 +6784,8 @@ public class AssignmentProcess
     */ 
    private int verbCount=0;
 
+   private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
    /**
     * The Pass application.
     */ 
@@ -3790,6 +6800,7 @@ public class AssignmentProcess
     * The base path for the project files.
     */ 
    private Path basePath = null;
+   private FileStager fileStager = null;
 
    /**
     * The LaTeX job name.
@@ -3817,6 +6828,12 @@ public class AssignmentProcess
     */ 
    private String latexPath = "pdflatex";
 
+   /**
+    * The name of the cached format for the current job or null if
+    * not available.
+    */ 
+   private String latexFormat = null;
+
    /**
     * If true, indicates that LuaLaTeX should be used.
     */ 
@@ -3840,7 +6857,58 @@ public class AssignmentProcess
 
    private long timeout;
 
-   private PassTask currentTask = null;
+   /**
+    * The current job's time budget or null if each process only
+    * has its own timeout.
+    */ 
+   private JobBudget jobBudget = null;
+
+   /**
+    * The job budget stage that applications are run in. This is
+    * changed to BUILD while the build script is run.
+    */ 
+   private volatile int budgetStage = JobBudget.RUN;
+
+   /**
+    * The tasks that are currently running.
+    */ 
+   private Vector<PassTask> currentTasks = new Vector<PassTask>();
+   private Vector<CompletableFuture<Integer>> testCaseRuns
+     = new Vector<CompletableFuture<Integer>>();
+   private volatile boolean cancelled = false;
+
+   /**
+    * The most recent task, used to find out if any output was
+    * discarded.
+    */ 
+   private PassTask lastTask = null;
+
+   /**
+    * The terminal output of the most recent LaTeX pass.
+    */ 
+   private File latexOutput = null;
+
+   /**
+    * Files downloaded by prefetchResourceFiles() that haven't been
+    * used yet, identified by URL.
+    */ 
+   private volatile ConcurrentHashMap<String,Path> prefetchedResources = null;
+   private volatile StageGraph resourcesGraph = null;
+   private volatile StageGraph.Stage<Void> prefetchStage = null;
+
+   private JavaCompilerEngine javaCompilerEngine = null;
+
+   /**
+    * Timings for the current job.
+    */ 
+   private JobTimings timings = new JobTimings("");
+
+   /**
+    * The JSON file containing the timings for the last job created
+    * by createPdf() or null if there isn't one.
+    */ 
+   private File timingsFile = null;
+   private JavaCompilerEngine.Result javaCompileResult = null;
 
    /**
     * Maximum number of characters to write to the LaTeX document
@@ -3848,6 +6916,14 @@ public class AssignmentProcess
     */ 
    private long maxOutput=Long.MAX_VALUE;
 
+   /**
+    * The course settings in effect for the current job. This is
+    * obtained from PassTools at the start of the job so that
+    * subsequently loading another course's assignment data doesn't
+    * affect this process.
+    */ 
+   private CourseSettings courseSettings;
+
    /**
     * If true, always fetch resource files, even if it means
     * overwriting existing files with the same name.
@@ -3855,14 +6931,137 @@ public class AssignmentProcess
     */ 
    private boolean alwaysFetchResources = true;
 
+   /**
+    * If true, keep compiled Java classes between runs and only
+    * recompile what has changed. PassEditor sets this for trial
+    * runs.
+    */ 
+   private boolean incrementalBuild = false;
+
    private boolean runTest;
 
+   /**
+    * Set if the result files have already been written for each
+    * test case.
+    */ 
+   private boolean resultFilesWritten = false;
+
+   /**
+    * Creation date of the build and test results if they were
+    * reused from the results cache, otherwise null.
+    */ 
+   private Date reusedResults = null;
+
+   /**
+    * If not null, warnings are also added to this list so that
+    * they can be stored in the results cache.
+    */ 
+   private volatile Vector<String> capturedWarnings = null;
+
+   /**
+    * The number of warnings issued by the current job and the
+    * number that weren't issued as the job's limit was reached.
+    */ 
+   private AtomicInteger warningCount = new AtomicInteger();
+   private AtomicInteger suppressedWarnings = new AtomicInteger();
+
+   /**
+    * Files input by the LaTeX document.
+    */ 
+   private Vector<File> latexInputs = new Vector<File>();
+
+   /**
+    * The reason the document can only be built with LuaLaTeX
+    * regardless of its content or null if there isn't one.
+    */ 
+   private volatile String luaLaTeXRequired = null;
+
    private ProgressListener progressListener;
 
    /**
-    * Maximum buffer size.
+    * Minimum I/O buffer size.
     */ 
-   private static final int MAX_INPUT_BYTES=1024;
+   private static final int MIN_BUFFER_SIZE=65536;
+
+   /**
+    * Maximum number of resource files fetched concurrently.
+    */ 
+   private static final int MAX_CONCURRENT_FETCHES=4;
+
+   /**
+    * Threads used to fetch resource files.
+    */ 
+   private static final ExecutorService FETCHERS
+     = Executors.newFixedThreadPool(MAX_CONCURRENT_FETCHES,
+         new PassTask.DaemonThreadFactory("pass-resource-fetch"));
+
+   /**
+    * Maximum number of createPdf() stages run concurrently (across
+    * all jobs). The build stage isn't included as it runs in the
+    * job's own thread.
+    */ 
+   private static final int MAX_CONCURRENT_STAGES=4;
+
+   /**
+    * Threads used to run the stages of createPdf() when parallel
+    * stages are on.
+    */ 
+   private static final ExecutorService STAGES
+     = Executors.newFixedThreadPool(MAX_CONCURRENT_STAGES,
+         new PassTask.DaemonThreadFactory("pass-stage"));
+
+   /**
+    * Threads used to run test cases (across all jobs). The number
+    * of test cases run at the same time is limited to the number
+    * of available processors.
+    */ 
+   private static final ExecutorService TEST_CASE_RUNNERS
+     = Executors.newFixedThreadPool(
+         Runtime.getRuntime().availableProcessors(),
+         new PassTask.DaemonThreadFactory("pass-test-case"));
+
+   /**
+    * Maximum I/O buffer size.
+    */ 
+   private static final int MAX_BUFFER_SIZE=1048576;
+
+   /**
+    * File extensions of formats that are already compressed.
+    */ 
+   private static final String[] COMPRESSED_EXTENSIONS = new String[]
+   {
+      "pdf", "docx", "xlsx", "pptx", "odt", "ods", "odp",
+      "zip", "jar", "gz", "tgz", "bz2", "xz", "7z",
+      "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4"
+   };
+
+   /**
+    * Log file messages that indicate another LaTeX pass is needed.
+    * These are LaTeX's changed labels warning, the "Rerun to get
+    * ..." warnings (for example, from hyperref), longtable's "Rerun
+    * LaTeX" warning and rerunfilecheck's "File ... has changed"
+    * warning. (A plain "Rerun" would also match file names and
+    * application output in the listings.)
+    */ 
+   private static final String[] RERUN_MESSAGES = new String[]
+   {
+      "Label(s) may have changed",
+      "Rerun to get",
+      "Rerun LaTeX",
+      "has changed. Rerun"
+   };
+
+   /**
+    * Messages that indicate that TeX couldn't load a format file.
+    * Lines starting with "---!" report a format that was created
+    * by a different engine or version.
+    */ 
+   private static final String[] FORMAT_ERROR_MESSAGES = new String[]
+   {
+      "I can't find the format file",
+      "Fatal format file error",
+      "---! "
+   };
 
    /**
     * Format for PDF dates. This format is part of the PDF
@@ -3904,5 +7103,11 @@ public class AssignmentProcess
     * Abnormal exit code values. (That hopefully won't be produced
     * by any of the sub-processes.)
     */ 
-   public static final int EXIT_CANCELLED=-1000, EXIT_TIMEDOUT=-2000, EXIT_UNSET=-3000;
+   public static final int EXIT_CANCELLED=-1000, EXIT_TIMEDOUT=-2000, EXIT_UNSET=-3000,
+     EXIT_OUTPUT_LIMIT=-4000, EXIT_ABORTED=-5000, EXIT_BUDGET=-6000;
+   /**
+    * Name of the directory (relative to the project directory)
+    * used for incremental builds.
+    */ 
+   public static final String BUILD_CACHE_DIR_NAME=".passbuild";
 }
@@ -0,0 +1,531 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Byte-level classifier for submitted files. The content is
+ * supplied in blocks (for example, while the file is being copied)
+ * so the file only needs to be read once and the amount of memory
+ * used doesn't depend on its size. The classifier determines
+ * whether the content is ASCII or valid UTF-8, counts NUL and other
+ * control bytes, and identifies common binary formats from their
+ * initial "magic" bytes.
+ *
+ * The result is used to stop binary or wrongly encoded content
+ * reaching LaTeX, where it would otherwise only be detected after a
+ * full LaTeX run.
+ */
+public class ContentClassifier
+{
+   /**
+    * Creates a new classifier.
+    */
+   public ContentClassifier()
+   {
+   }
+
+   /**
+    * Classifies the content of the given file.
+    * @param path the file
+    * @return the result
+    * @throws IOException if the file can't be read
+    */
+   public static Result classify(Path path) throws IOException
+   {
+      ContentClassifier classifier = new ContentClassifier();
+
+      InputStream in = null;
+
+      try
+      {
+         in = Files.newInputStream(path);
+
+         byte[] buffer = new byte[BUFFER_SIZE];
+         int n;
+
+         while ((n = in.read(buffer)) != -1)
+         {
+            classifier.update(buffer, 0, n);
+         }
+      }
+      finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+      }
+
+      return classifier.getResult();
+   }
+
+   /**
+    * Adds the next block of content.
+    * @param bytes the buffer
+    * @param offset the offset of the block in the buffer
+    * @param length the length of the block
+    */
+   public void update(byte[] bytes, int offset, int length)
+   {
+      if (headerLength < header.length)
+      {
+         int n = Math.min(header.length-headerLength, length);
+         System.arraycopy(bytes, offset, header, headerLength, n);
+         headerLength += n;
+      }
+
+      int end = offset+length;
+
+      for (int i = offset; i < end; i++)
+      {
+         int b = bytes[i] & 0xFF;
+
+         if (utf8Remaining == 0)
+         {
+            if (b >= 0x20 && b < 0x7F)
+            {
+               continue;
+            }
+
+            if (b < 0x80)
+            {
+               if (b == 0)
+               {
+                  if (nulCount++ == 0)
+                  {
+                     firstNul = total+i-offset;
+                  }
+               }
+               else if (b == 0x7F ||
+                  !(b == '\t' || b == '\n' || b == '\r' || b == '\f'))
+               {
+                  controlCount++;
+               }
+
+               continue;
+            }
+
+            if (firstNonASCII < 0L)
+            {
+               firstNonASCII = total+i-offset;
+            }
+
+            if (firstInvalidUTF8 > -1L)
+            {
+               continue;
+            }
+
+            // Lead byte (see The Unicode Standard, Table 3-7).
+
+            if (b >= 0xC2 && b <= 0xDF)
+            {
+               utf8Remaining = 1;
+            }
+            else if (b == 0xE0)
+            {
+               utf8Remaining = 2;
+               utf8Min = 0xA0;
+            }
+            else if (b == 0xED)
+            {
+               utf8Remaining = 2;
+               utf8Max = 0x9F;
+            }
+            else if (b >= 0xE1 && b <= 0xEF)
+            {
+               utf8Remaining = 2;
+            }
+            else if (b == 0xF0)
+            {
+               utf8Remaining = 3;
+               utf8Min = 0x90;
+            }
+            else if (b >= 0xF1 && b <= 0xF3)
+            {
+               utf8Remaining = 3;
+            }
+            else if (b == 0xF4)
+            {
+               utf8Remaining = 3;
+               utf8Max = 0x8F;
+            }
+            else
+            {
+               firstInvalidUTF8 = total+i-offset;
+            }
+         }
+         else if (b >= utf8Min && b <= utf8Max)
+         {
+            // continuation byte
+
+            utf8Remaining--;
+            utf8Min = 0x80;
+            utf8Max = 0xBF;
+         }
+         else
+         {
+            firstInvalidUTF8 = total+i-offset;
+            utf8Remaining = 0;
+            utf8Min = 0x80;
+            utf8Max = 0xBF;
+
+            // This byte still needs to be classified.
+            i--;
+         }
+      }
+
+      total += length;
+   }
+
+   /**
+    * Gets the result once all the content has been supplied.
+    * @return the result
+    */
+   public Result getResult()
+   {
+      long invalid = firstInvalidUTF8;
+
+      if (invalid < 0L && utf8Remaining > 0)
+      {
+         // truncated multi-byte sequence
+         invalid = total-1;
+      }
+
+      String format = null;
+      boolean container = false;
+      boolean binaryFormat = false;
+
+      for (int i = 0; i < MAGIC.length; i++)
+      {
+         byte[] magic = MAGIC[i];
+
+         if (headerLength >= magic.length)
+         {
+            boolean matches = true;
+
+            for (int j = 0; j < magic.length; j++)
+            {
+               if (header[j] != magic[j])
+               {
+                  matches = false;
+                  break;
+               }
+            }
+
+            if (matches)
+            {
+               format = MAGIC_TYPES[i];
+               container = MAGIC_CONTAINER[i];
+               binaryFormat = MAGIC_BINARY[i];
+               break;
+            }
+         }
+      }
+
+      String bom = null;
+
+      if (headerLength >= 3 && (header[0] & 0xFF) == 0xEF
+           && (header[1] & 0xFF) == 0xBB && (header[2] & 0xFF) == 0xBF)
+      {
+         bom = ENCODING_UTF8;
+      }
+      else if (headerLength >= 2 && (header[0] & 0xFF) == 0xFF
+           && (header[1] & 0xFF) == 0xFE)
+      {
+         bom = ENCODING_UTF16LE;
+      }
+      else if (headerLength >= 2 && (header[0] & 0xFF) == 0xFE
+           && (header[1] & 0xFF) == 0xFF)
+      {
+         bom = ENCODING_UTF16BE;
+      }
+
+      return new Result(total, format, container, binaryFormat, bom,
+        firstNonASCII, invalid, firstNul, nulCount, controlCount);
+   }
+
+   /**
+    * The result of classifying content.
+    */
+   public static class Result
+   {
+      private Result(long length, String format, boolean container,
+        boolean binaryFormat, String bom, long firstNonASCII,
+        long firstInvalidUTF8, long firstNul, long nulCount,
+        long controlCount)
+      {
+         this.length = length;
+         this.format = format;
+         this.container = container;
+         this.binaryFormat = binaryFormat;
+         this.bom = bom;
+         this.firstNonASCII = firstNonASCII;
+         this.firstInvalidUTF8 = firstInvalidUTF8;
+         this.firstNul = firstNul;
+         this.nulCount = nulCount;
+         this.controlCount = controlCount;
+      }
+
+      /**
+       * Gets the number of bytes.
+       * @return the length
+       */
+      public long getLength()
+      {
+         return length;
+      }
+
+      /**
+       * Gets the mime type identified from the initial bytes.
+       * @return the mime type or null if not identified
+       */
+      public String getFormat()
+      {
+         return format;
+      }
+
+      /**
+       * Determines whether the identified format is a container
+       * (such as zip) that's shared by several file types, in which
+       * case the file name is needed to determine the actual type.
+       * @return true if the format is a container
+       */
+      public boolean isContainer()
+      {
+         return container;
+      }
+
+      /**
+       * Determines whether the content is binary. This is the case
+       * if it has a binary format or contains NUL bytes (and isn't
+       * UTF-16) or has a high proportion of other control
+       * characters.
+       * @return true if binary
+       */
+      public boolean isBinary()
+      {
+         if (binaryFormat) return true;
+
+         if (nulCount > 0L && !isUTF16()) return true;
+
+         return controlCount > 0L && controlCount*CONTROL_RATIO >= length;
+      }
+
+      /**
+       * Determines whether the content starts with a UTF-16 byte
+       * order mark.
+       * @return true if UTF-16
+       */
+      public boolean isUTF16()
+      {
+         return ENCODING_UTF16LE.equals(bom) || ENCODING_UTF16BE.equals(bom);
+      }
+
+      /**
+       * Determines whether the content only consists of ASCII bytes.
+       * @return true if ASCII
+       */
+      public boolean isASCII()
+      {
+         return firstNonASCII < 0L;
+      }
+
+      /**
+       * Determines whether the content is valid UTF-8.
+       * @return true if valid UTF-8
+       */
+      public boolean isValidUTF8()
+      {
+         return firstInvalidUTF8 < 0L;
+      }
+
+      /**
+       * Gets the offset of the first byte that's not part of a
+       * valid UTF-8 sequence.
+       * @return the offset or -1 if the content is valid UTF-8
+       */
+      public long getFirstInvalidUTF8()
+      {
+         return firstInvalidUTF8;
+      }
+
+      /**
+       * Gets the offset of the first non-ASCII byte.
+       * @return the offset or -1 if the content is ASCII
+       */
+      public long getFirstNonASCII()
+      {
+         return firstNonASCII;
+      }
+
+      /**
+       * Gets the offset of the first NUL byte.
+       * @return the offset or -1 if there are no NUL bytes
+       */
+      public long getFirstNul()
+      {
+         return firstNul;
+      }
+
+      /**
+       * Gets the number of NUL bytes.
+       * @return the number of NUL bytes
+       */
+      public long getNulCount()
+      {
+         return nulCount;
+      }
+
+      /**
+       * Gets the number of control bytes other than NUL, TAB, LF,
+       * CR and FF.
+       * @return the number of control bytes
+       */
+      public long getControlCount()
+      {
+         return controlCount;
+      }
+
+      /**
+       * Gets the detected text encoding.
+       * @return the encoding name or null if the content isn't
+       * ASCII, UTF-8 or UTF-16 with a byte order mark
+       */
+      public String getEncoding()
+      {
+         if (bom != null) return bom;
+
+         if (isASCII()) return ENCODING_ASCII;
+
+         if (isValidUTF8()) return ENCODING_UTF8;
+
+         return null;
+      }
+
+      /**
+       * Determines whether the content is text that can be read
+       * using the given encoding.
+       * @param encoding the encoding (one of the Pass encodings)
+       * @return true if the content is text in the given encoding
+       */
+      public boolean isCompatible(String encoding)
+      {
+         if (isBinary() || isUTF16()) return false;
+
+         if (Pass.ENCODING_UTF8.equals(encoding))
+         {
+            return isValidUTF8();
+         }
+         else if (Pass.ENCODING_ASCII.equals(encoding))
+         {
+            return isASCII();
+         }
+
+         return true;
+      }
+
+      @Override
+      public String toString()
+      {
+         String encoding = getEncoding();
+
+         return String.format(
+           "%d bytes, format=%s, encoding=%s, NUL=%d, control=%d%s",
+           length, format == null ? "unknown" : format,
+           encoding == null ? "unknown" : encoding, nulCount, controlCount,
+           isBinary() ? ", binary" : "");
+      }
+
+      private long length;
+      private String format;
+      private boolean container, binaryFormat;
+      private String bom;
+      private long firstNonASCII, firstInvalidUTF8, firstNul;
+      private long nulCount, controlCount;
+   }
+
+   private byte[] header = new byte[16];
+   private int headerLength = 0;
+
+   private long total = 0L;
+   private long firstNonASCII = -1L;
+   private long firstInvalidUTF8 = -1L;
+   private long firstNul = -1L;
+   private long nulCount = 0L;
+   private long controlCount = 0L;
+
+   private int utf8Remaining = 0;
+   private int utf8Min = 0x80, utf8Max = 0xBF;
+
+   private static final int BUFFER_SIZE=65536;
+
+   /**
+    * Content is considered binary if at least one byte in this
+    * number is a control character.
+    */
+   private static final long CONTROL_RATIO=100L;
+
+   public static final String ENCODING_ASCII=Pass.ENCODING_ASCII;
+   public static final String ENCODING_UTF8=Pass.ENCODING_UTF8;
+   public static final String ENCODING_UTF16LE="UTF-16LE";
+   public static final String ENCODING_UTF16BE="UTF-16BE";
+
+   private static final byte[][] MAGIC = new byte[][]
+   {
+      {'%', 'P', 'D', 'F', '-'},
+      {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'},
+      {(byte)0xFF, (byte)0xD8, (byte)0xFF},
+      {'G', 'I', 'F', '8', '7', 'a'},
+      {'G', 'I', 'F', '8', '9', 'a'},
+      {'P', 'K', 0x03, 0x04},
+      {(byte)0xD0, (byte)0xCF, 0x11, (byte)0xE0, (byte)0xA1, (byte)0xB1, 0x1A, (byte)0xE1},
+      {0x7F, 'E', 'L', 'F'},
+      {(byte)0xCA, (byte)0xFE, (byte)0xBA, (byte)0xBE},
+      {0x1F, (byte)0x8B},
+      {'%', '!', 'P', 'S'}
+   };
+
+   private static final String[] MAGIC_TYPES = new String[]
+   {
+      "application/pdf",
+      "image/png",
+      "image/jpeg",
+      "image/gif",
+      "image/gif",
+      "application/zip",
+      "application/x-ole-storage",
+      "application/x-executable",
+      "application/java-vm",
+      "application/gzip",
+      "application/postscript"
+   };
+
+   private static final boolean[] MAGIC_CONTAINER = new boolean[]
+   {
+      false, false, false, false, false, true, true, false, false, false, false
+   };
+
+   private static final boolean[] MAGIC_BINARY = new boolean[]
+   {
+      true, true, true, true, true, true, true, true, true, true, false
+   };
+}
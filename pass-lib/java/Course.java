@@ -25,7 +25,7 @@ import java.net.URL;
  * that it should only be available if Pass is running in debug
  * mode. This allows dummy courses to be tested.
  */
-public class Course implements Comparable<Course>
+public class Course implements Comparable<Course>,java.io.Serializable
 {
    /**
     * Creates a new untitled course with the given code.
@@ -149,4 +149,6 @@ public class Course implements Comparable<Course>
    private String code;
    private URL url;
    private boolean debugModeOnly=false;
+
+   private static final long serialVersionUID = 1L;
 }
@@ -0,0 +1,622 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Cache of data loaded from remote XML files (the assignment XML
+ * files and any remote resources XML file identified by
+ * &lt;courses&gt;). The parsed data is serialized in the cache
+ * directory, so it persists across PASS invocations.
+ *
+ * Cached data is used without contacting the server for the
+ * time to live (TTL) after it was last checked. After that, a
+ * conditional request is made using the ETag and Last-Modified
+ * values sent by the server with the original data. If the server
+ * reports that the file hasn't been modified, the cached data is used
+ * for another TTL period, otherwise the new file is parsed and the
+ * cache is updated.
+ *
+ * Each URL has a properties file (named after the hash of the URL)
+ * with the validation information and a corresponding data file
+ * containing the serialized object. Both are written to a temporary
+ * file and then moved into place, so concurrent processes that
+ * share the cache won't see an incomplete file. If a data file can't
+ * be read (for example, after a PASS upgrade that has changed the
+ * classes) it's treated as a cache miss.
+ */
+public class CourseDataCache
+{
+   /**
+    * Creates a new cache.
+    * @param passTools the PASS tools
+    * @param dir the cache directory
+    * @param ttl the time to live in seconds (0 if the data should
+    * always be revalidated)
+    * @throws IOException if the directory doesn't exist and can't be
+    * created
+    */
+   public CourseDataCache(PassTools passTools, File dir, long ttl)
+   throws IOException
+   {
+      this.passTools = passTools;
+      this.dir = dir;
+      this.ttl = ttl;
+
+      Files.createDirectories(dir.toPath());
+   }
+
+   /**
+    * Gets the time to live.
+    * @return the time in seconds that cached data is used without
+    * checking the server
+    */
+   public long getTimeToLive()
+   {
+      return ttl;
+   }
+
+   /**
+    * Loads the assignment data for the given course, using the
+    * cached data if it's still valid.
+    * @param course the course
+    * @return the assignment list and the course settings
+    * @throws IOException if the XML file can't be fetched
+    * @throws SAXException if the XML file can't be parsed
+    */
+   public CachedAssignments loadAssignments(Course course)
+   throws IOException,SAXException
+   {
+      CachedAssignments data = load(course.getURL(), in ->
+      {
+         AssignmentDataParser parser
+            = new AssignmentDataParser(passTools.getPass());
+
+         parser.loadAssignments(course, in);
+
+         return new CachedAssignments(parser.getData(),
+           new CourseSettings(parser));
+      });
+
+      // The course object in the cache is a copy of the course
+      // that the data was originally loaded for.
+
+      for (AssignmentData assignment : data.getAssignments())
+      {
+         assignment.setCourse(course);
+      }
+
+      return data;
+   }
+
+   /**
+    * Loads the content of the given URL, using the cached data if
+    * it's still valid.
+    * @param url the URL of the file
+    * @return the file content
+    * @throws IOException if the file can't be fetched
+    */
+   public byte[] loadContent(URL url) throws IOException
+   {
+      try
+      {
+         return load(url, in -> in.readAllBytes());
+      }
+      catch (SAXException e)
+      {
+         // not expected as the content isn't parsed
+         throw new IOException(e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Loads the data from the given URL, using the cached data if
+    * it's still valid. The URL must be the actual location of the
+    * file, not a redirect. Data from URLs that don't use HTTP (such
+    * as local files) isn't cached.
+    * @param url the URL of the file
+    * @param loader the object that parses the file
+    * @return the data
+    * @throws IOException if the file can't be fetched
+    * @throws SAXException if the file can't be parsed
+    */
+   protected <T extends Serializable> T load(URL url, Loader<T> loader)
+   throws IOException,SAXException
+   {
+      String key = getHash(url.toString());
+
+      Object lock = locks.computeIfAbsent(key, k -> new Object());
+
+      synchronized (lock)
+      {
+         File indexFile = new File(dir, key+INDEX_EXTENSION);
+         File dataFile = new File(dir, key+DATA_EXTENSION);
+
+         Properties entry = readEntry(indexFile);
+
+         T data = null;
+
+         if (entry != null && url.toString().equals(entry.getProperty(KEY_URI)))
+         {
+            data = readData(dataFile);
+         }
+
+         if (data != null)
+         {
+            long validated = getLongProperty(entry, KEY_VALIDATED);
+
+            if (System.currentTimeMillis() - validated < ttl*1000L)
+            {
+               passTools.getPass().debug("Using cached data for "+url);
+
+               return data;
+            }
+         }
+
+         URLConnection con = url.openConnection();
+
+         if (!(con instanceof HttpURLConnection))
+         {
+            InputStream in = null;
+
+            try
+            {
+               in = con.getInputStream();
+
+               return loader.load(in);
+            }
+            finally
+            {
+               if (in != null)
+               {
+                  in.close();
+               }
+            }
+         }
+
+         HttpURLConnection httpCon = (HttpURLConnection)con;
+
+         try
+         {
+            httpCon.setConnectTimeout(CONNECT_TIMEOUT);
+            httpCon.setReadTimeout(READ_TIMEOUT);
+            httpCon.setInstanceFollowRedirects(false);
+
+            if (data != null)
+            {
+               String etag = entry.getProperty(KEY_ETAG);
+
+               if (etag != null)
+               {
+                  httpCon.setRequestProperty("If-None-Match", etag);
+               }
+
+               long lastModified = getLongProperty(entry, KEY_LAST_MODIFIED);
+
+               if (lastModified > 0)
+               {
+                  httpCon.setIfModifiedSince(lastModified);
+               }
+            }
+
+            int status;
+
+            try
+            {
+               status = httpCon.getResponseCode();
+            }
+            catch (javax.net.ssl.SSLHandshakeException e)
+            {
+               throw new InputResourceException(passTools.getMessageWithDefault(
+                 "error.http_ssl_failed",
+                 "Can't fetch ''{0}''. It''s possible you''re trying to access a file across SSL/TCP but you don''t have the certificate listed in your Java cacerts file.\nIf you have an old version of Java you may find that upgrading it resolves the issue. Otherwise you will need to add the required certificate.",
+                 url), e);
+            }
+
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && data != null)
+            {
+               passTools.getPass().debug("Using cached data for "+url
+                 +" (not modified)");
+
+               entry.setProperty(KEY_VALIDATED, ""+System.currentTimeMillis());
+               writeEntry(indexFile, entry);
+
+               return data;
+            }
+
+            if (status > 299)
+            {
+               throw new InputResourceException(
+                 passTools.getMessageWithDefault("error.http_status",
+                   "Unable to access ''{0}''. Status code: {1,number,integer}.",
+                    url, status));
+            }
+
+            InputStream in = null;
+
+            try
+            {
+               in = new BufferedInputStream(httpCon.getInputStream());
+
+               data = loader.load(in);
+            }
+            finally
+            {
+               if (in != null)
+               {
+                  in.close();
+               }
+            }
+
+            entry = new Properties();
+            entry.setProperty(KEY_URI, url.toString());
+            entry.setProperty(KEY_VALIDATED, ""+System.currentTimeMillis());
+
+            String etag = httpCon.getHeaderField("ETag");
+
+            if (etag != null)
+            {
+               entry.setProperty(KEY_ETAG, etag);
+            }
+
+            long lastModified = httpCon.getLastModified();
+
+            if (lastModified > 0)
+            {
+               entry.setProperty(KEY_LAST_MODIFIED, ""+lastModified);
+            }
+         }
+         finally
+         {
+            httpCon.disconnect();
+         }
+
+         // Failing to update the cache shouldn't prevent the data
+         // from being used.
+
+         try
+         {
+            writeData(dataFile, data);
+            writeEntry(indexFile, entry);
+         }
+         catch (IOException e)
+         {
+            passTools.getPass().debug(String.format(
+              "Unable to cache data for %s: %s", url, e.getMessage()));
+         }
+
+         return data;
+      }
+   }
+
+   /**
+    * Reads a cached object.
+    * @param file the data file
+    * @return the object or null if the file doesn't exist or can't
+    * be read
+    */
+   @SuppressWarnings("unchecked")
+   private <T extends Serializable> T readData(File file)
+   {
+      if (!file.exists()) return null;
+
+      ObjectInputStream in = null;
+
+      try
+      {
+         in = new ObjectInputStream(new BufferedInputStream(
+            Files.newInputStream(file.toPath())));
+
+         in.setObjectInputFilter(DATA_FILTER);
+
+         return (T)in.readObject();
+      }
+      catch (IOException | ClassNotFoundException | ClassCastException e)
+      {
+         passTools.getPass().debug(String.format(
+           "Unable to read cached data %s: %s", file, e.getMessage()));
+
+         return null;
+      }
+      finally
+      {
+         if (in != null)
+         {
+            try
+            {
+               in.close();
+            }
+            catch (IOException e)
+            {
+            }
+         }
+      }
+   }
+
+   /**
+    * Writes a cached object.
+    * @param file the data file
+    * @param data the object
+    * @throws IOException if an I/O error occurs
+    */
+   private void writeData(File file, Serializable data) throws IOException
+   {
+      File tmpFile = File.createTempFile(TMP_PREFIX, DATA_EXTENSION, dir);
+
+      try
+      {
+         ObjectOutputStream out = null;
+
+         try
+         {
+            out = new ObjectOutputStream(new BufferedOutputStream(
+               Files.newOutputStream(tmpFile.toPath())));
+
+            out.writeObject(data);
+         }
+         finally
+         {
+            if (out != null)
+            {
+               out.close();
+            }
+         }
+
+         Files.move(tmpFile.toPath(), file.toPath(),
+           StandardCopyOption.REPLACE_EXISTING,
+           StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally
+      {
+         Files.deleteIfExists(tmpFile.toPath());
+      }
+   }
+
+   /**
+    * Reads an index entry.
+    * @param file the index file
+    * @return the entry or null if the file doesn't exist or can't
+    * be read
+    */
+   private Properties readEntry(File file)
+   {
+      if (!file.exists()) return null;
+
+      Properties entry = new Properties();
+
+      InputStream in = null;
+
+      try
+      {
+         in = Files.newInputStream(file.toPath());
+
+         entry.load(in);
+      }
+      catch (IOException | IllegalArgumentException e)
+      {
+         passTools.getPass().debug(String.format(
+           "Unable to read cache index %s: %s", file, e.getMessage()));
+
+         return null;
+      }
+      finally
+      {
+         if (in != null)
+         {
+            try
+            {
+               in.close();
+            }
+            catch (IOException e)
+            {
+            }
+         }
+      }
+
+      return entry;
+   }
+
+   /**
+    * Writes an index entry.
+    * @param file the index file
+    * @param entry the entry
+    * @throws IOException if an I/O error occurs
+    */
+   private void writeEntry(File file, Properties entry) throws IOException
+   {
+      File tmpFile = File.createTempFile(TMP_PREFIX, INDEX_EXTENSION, dir);
+
+      try
+      {
+         OutputStream out = null;
+
+         try
+         {
+            out = Files.newOutputStream(tmpFile.toPath());
+
+            entry.store(out, null);
+         }
+         finally
+         {
+            if (out != null)
+            {
+               out.close();
+            }
+         }
+
+         Files.move(tmpFile.toPath(), file.toPath(),
+           StandardCopyOption.REPLACE_EXISTING,
+           StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally
+      {
+         Files.deleteIfExists(tmpFile.toPath());
+      }
+   }
+
+   /**
+    * Gets a numeric property from an index entry.
+    * @param entry the index entry
+    * @param key the property key
+    * @return the value or 0 if not set or invalid
+    */
+   private long getLongProperty(Properties entry, String key)
+   {
+      String value = entry.getProperty(key);
+
+      if (value != null)
+      {
+         try
+         {
+            return Long.parseLong(value);
+         }
+         catch (NumberFormatException e)
+         {
+            passTools.getPass().debug(e.getMessage());
+         }
+      }
+
+      return 0L;
+   }
+
+   /**
+    * Gets the hash of the given URL.
+    * @param url the URL
+    * @return the hexadecimal hash
+    * @throws IOException if the algorithm isn't available
+    */
+   private String getHash(String url) throws IOException
+   {
+      try
+      {
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+         return ResourceCache.toHex(md.digest(
+           url.getBytes(StandardCharsets.UTF_8)));
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IOException(e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Parses the content of a file.
+    */
+   protected static interface Loader<T extends Serializable>
+   {
+      /**
+       * Parses the content.
+       * @param in the input stream (which will be closed by the
+       * caller)
+       * @return the data
+       * @throws IOException if an I/O error occurs
+       * @throws SAXException if the content can't be parsed
+       */
+      public T load(InputStream in) throws IOException,SAXException;
+   }
+
+   /**
+    * The data loaded from an assignment XML file.
+    */
+   public static class CachedAssignments implements Serializable
+   {
+      CachedAssignments(Vector<AssignmentData> assignments,
+        CourseSettings courseSettings)
+      {
+         this.assignments = assignments;
+         this.courseSettings = courseSettings;
+      }
+
+      /**
+       * Gets the list of assignments.
+       * @return the assignments
+       */
+      public Vector<AssignmentData> getAssignments()
+      {
+         return assignments;
+      }
+
+      /**
+       * Gets the course settings.
+       * @return the settings found outside of the assignment
+       * elements
+       */
+      public CourseSettings getCourseSettings()
+      {
+         return courseSettings;
+      }
+
+      private Vector<AssignmentData> assignments;
+      private CourseSettings courseSettings;
+
+      private static final long serialVersionUID = 1L;
+   }
+
+   private PassTools passTools;
+   private File dir;
+   private long ttl;
+
+   private ConcurrentHashMap<String,Object> locks
+     = new ConcurrentHashMap<String,Object>();
+
+   private static final int CONNECT_TIMEOUT=5000;// 5 seconds
+   private static final int READ_TIMEOUT=30000;// 30 seconds
+
+   /**
+    * Only PASS library classes and the standard classes they use
+    * may be read from the cache.
+    */
+   private static final ObjectInputFilter DATA_FILTER
+     = ObjectInputFilter.Config.createFilter(
+         "com.dickimawbooks.passlib.*;java.base/*;!*");
+
+   public static final String INDEX_EXTENSION=".properties";
+   public static final String DATA_EXTENSION=".ser";
+   private static final String TMP_PREFIX="tmp-";
+
+   private static final String KEY_URI="uri";
+   private static final String KEY_ETAG="etag";
+   private static final String KEY_LAST_MODIFIED="lastmodified";
+   private static final String KEY_VALIDATED="validated";
+}
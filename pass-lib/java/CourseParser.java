@@ -21,6 +21,9 @@ import java.net.URL;
 import java.net.URISyntaxException;
 import java.net.MalformedURLException;
 import java.text.ParseException;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.io.*;
 import org.xml.sax.*;
 import org.xml.sax.helpers.*;
@@ -132,12 +135,22 @@ public class CourseParser extends XMLReaderAdapter
 
             CourseParser parser = new CourseParser(passTools);
 
+            CourseDataCache cache = passTools.getCourseDataCache();
+
             BufferedReader in = null;
 
             try
             {
-               in = new BufferedReader(new InputStreamReader(
-                  hrefUrl.openStream()));
+               if (cache == null)
+               {
+                  in = new BufferedReader(new InputStreamReader(
+                     hrefUrl.openStream()));
+               }
+               else
+               {
+                  in = new BufferedReader(new InputStreamReader(
+                     new ByteArrayInputStream(cache.loadContent(hrefUrl))));
+               }
 
                parser.parse(new InputSource(in));
             }
@@ -368,13 +381,7 @@ public class CourseParser extends XMLReaderAdapter
                    qName, "timeout", value));
                }
 
-               passTools.getPass().setTimeOut(value);
-
-               passTools.getPass().transcriptMessage(
-                passTools.getMessageWithDefault(
-                "message.resource_timeout",
-                "Timeout property {0,number} found in resources file. This will override any default or user supplied setting.", 
-                value));
+               passTools.setResourceTimeOut(value);
             }
             catch (NumberFormatException e)
             {
@@ -386,6 +393,55 @@ public class CourseParser extends XMLReaderAdapter
             }
          }
 
+         long maxStdout = getPositiveLongAttribute("maxstdout", atts, qName);
+         long maxStderr = getPositiveLongAttribute("maxstderr", atts, qName);
+         long maxLog = getPositiveLongAttribute("maxlog", atts, qName);
+
+         if (maxStdout > 0L || maxStderr > 0L || maxLog > 0L
+             || atts.getValue("killonlimit") != null)
+         {
+            passTools.setProcessOutputLimits(maxStdout, maxStderr, maxLog,
+              passTools.isBoolAttributeOn("killonlimit", atts, qName, false));
+         }
+
+         long killGrace = getPositiveLongAttribute("killgrace", atts, qName);
+
+         if (killGrace > 0L)
+         {
+            passTools.setKillGracePeriod(killGrace);
+         }
+
+         if (atts.getValue("inprocessjavac") != null)
+         {
+            passTools.setInProcessJavaCompiler(
+              passTools.isBoolAttributeOn("inprocessjavac", atts, qName, false));
+         }
+
+         if (atts.getValue("parallelstages") != null)
+         {
+            passTools.setParallelStages(
+              passTools.isBoolAttributeOn("parallelstages", atts, qName, true));
+         }
+
+         long maxWarnings = getPositiveLongAttribute("maxwarnings", atts, qName);
+
+         if (maxWarnings > 0L)
+         {
+            passTools.setMaxWarnings((int)Math.min(maxWarnings, Integer.MAX_VALUE));
+         }
+
+         if (atts.getValue("autoengine") != null)
+         {
+            passTools.setAutoLaTeXEngine(
+              passTools.isBoolAttributeOn("autoengine", atts, qName, true));
+         }
+
+         if (atts.getValue("timingreport") != null)
+         {
+            passTools.setTimingReport(
+              passTools.isBoolAttributeOn("timingreport", atts, qName, true));
+         }
+
          inProcessesTag = true;
       }
       else if ("env".equals(qName))
@@ -416,6 +472,52 @@ public class CourseParser extends XMLReaderAdapter
 
          builder = new StringBuilder();
       }
+      else if ("jobbudget".equals(qName))
+      {
+         if (!inProcessesTag)
+         {
+            throw new SAXException(passTools.getMessageWithDefault(
+              "error.tag_must_be_inside_tag",
+              "<{0}> tag must be inside <{1}> tag.",
+              qName, "processes"));
+         }
+
+         long total = getPositiveLongAttribute("total", atts, qName);
+
+         if (total == 0L)
+         {
+            throw new SAXException(passTools.getMessageWithDefault(
+              "error.tag_missing_attribute",
+              "<{0}> ''{1}'' attribute missing or empty.", qName, "total"));
+         }
+
+         JobBudget budget = new JobBudget(1000L*total);
+
+         for (int stage = 0; stage < JobBudget.STAGE_COUNT; stage++)
+         {
+            String name = JOB_BUDGET_STAGE_NAMES[stage];
+
+            int share = getPercentageAttribute(name+"share", atts, qName);
+
+            if (share >= 0)
+            {
+               budget.setShare(stage, share);
+            }
+
+            budget.setCap(stage,
+              1000L*getPositiveLongAttribute(name+"max", atts, qName));
+         }
+
+         if (budget.getTotalShare() > 100)
+         {
+            throw new SAXException(passTools.getMessageWithDefault(
+              "error.job_budget_shares",
+              "<{0}> shares add up to {1,number,integer}% (must not exceed 100%).",
+              qName, budget.getTotalShare()));
+         }
+
+         passTools.setJobBudget(budget);
+      }
       else if ("agree".equals(qName))
       {
          if (courses == null)
@@ -438,6 +540,221 @@ public class CourseParser extends XMLReaderAdapter
          passTools.setAgreeRequired(
             passTools.isRequiredBoolAttributeOn("required", atts, qName));
       }
+      else if ("cache".equals(qName))
+      {
+         if (courses == null)
+         {
+            throw new SAXException(
+              passTools.getMessageWithDefault(
+               "error.tag_must_be_inside_tag",
+               "<{0}> tag must be inside <{1}> tag.",
+               qName, "resources"));
+         }
+
+         if (inProcessesTag)
+         {
+            throw new SAXException(passTools.getMessageWithDefault(
+              "error.tag_mustnt_be_inside_tag",
+              "<{0}> tag must not be inside <{1}> tag.",
+              qName, "processes"));
+         }
+
+         String cacheuri = atts.getValue("uri");
+
+         if (cacheuri == null || cacheuri.isEmpty())
+         {
+            throw new SAXException(passTools.getMessageWithDefault(
+              "error.tag_missing_attribute",
+              "<{0}> ''{1}'' attribute missing or empty.", qName, "uri"));
+         }
+
+         File cacheDir;
+
+         try
+         {
+            cacheDir = new File(new URI(cacheuri));
+         }
+         catch (URISyntaxException | IllegalArgumentException e)
+         {
+            throw new SAXException(
+              passTools.getMessageWithDefault(
+               "error.uri_tag_attribute_required",
+               "<{0}> tag attribute ''{1}'' must be a well-formed URI (found ''{2}'').",
+               qName, "uri", cacheuri), e);
+         }
+
+         passTools.setCacheDirectory(cacheDir);
+
+         if (passTools.isBoolAttributeOn("latexformats", atts, qName, false))
+         {
+            try
+            {
+               passTools.setLaTeXFormatCache(new LaTeXFormatCache(passTools,
+                 new File(cacheDir, LATEX_FORMAT_CACHE_DIR_NAME)));
+            }
+            catch (IOException e)
+            {
+               throw new SAXException(e);
+            }
+         }
+
+         if (passTools.isBoolAttributeOn("resources", atts, qName, false))
+         {
+            try
+            {
+               passTools.setResourceCache(new ResourceCache(passTools,
+                 new File(cacheDir, RESOURCE_CACHE_DIR_NAME),
+                 passTools.isBoolAttributeOn("offline", atts, qName, false)));
+            }
+            catch (IOException e)
+            {
+               throw new SAXException(e);
+            }
+         }
+
+         if (passTools.isBoolAttributeOn("results", atts, qName, false))
+         {
+            long maxSize = getPositiveLongAttribute("resultsmax", atts, qName);
+
+            try
+            {
+               passTools.setResultsCache(new ResultsCache(passTools,
+                 new File(cacheDir, RESULTS_CACHE_DIR_NAME),
+                 maxSize > 0L ? maxSize : ResultsCache.DEFAULT_MAX_SIZE));
+            }
+            catch (IOException e)
+            {
+               throw new SAXException(e);
+            }
+         }
+
+         if (passTools.isBoolAttributeOn("coursedata", atts, qName, false))
+         {
+            try
+            {
+               passTools.setCourseDataCache(new CourseDataCache(passTools,
+                 new File(cacheDir, COURSE_DATA_CACHE_DIR_NAME),
+                 getPositiveLongAttribute("coursedatattl", atts, qName)));
+            }
+            catch (IOException e)
+            {
+               throw new SAXException(e);
+            }
+         }
+      }
+      else if ("workspace".equals(qName))
+      {
+         if (courses == null)
+         {
+            throw new SAXException(
+              passTools.getMessageWithDefault(
+               "error.tag_must_be_inside_tag",
+               "<{0}> tag must be inside <{1}> tag.",
+               qName, "resources"));
+         }
+
+         if (inProcessesTag)
+         {
+            throw new SAXException(passTools.getMessageWithDefault(
+              "error.tag_mustnt_be_inside_tag",
+              "<{0}> tag must not be inside <{1}> tag.",
+              qName, "processes"));
+         }
+
+         String workspaceuri = atts.getValue("uri");
+
+         if (workspaceuri != null && !workspaceuri.isEmpty())
+         {
+            File workspaceDir;
+
+            try
+            {
+               workspaceDir = new File(new URI(workspaceuri));
+            }
+            catch (URISyntaxException | IllegalArgumentException e)
+            {
+               throw new SAXException(
+                 passTools.getMessageWithDefault(
+                  "error.uri_tag_attribute_required",
+                  "<{0}> tag attribute ''{1}'' must be a well-formed URI (found ''{2}'').",
+                  qName, "uri", workspaceuri), e);
+            }
+
+            try
+            {
+               Files.createDirectories(workspaceDir.toPath());
+            }
+            catch (IOException e)
+            {
+               throw new SAXException(e);
+            }
+
+            passTools.setWorkspaceDirectory(workspaceDir);
+         }
+
+         String staging = atts.getValue("staging");
+
+         if (staging != null)
+         {
+            int mode = FileStager.getMode(staging);
+
+            if (mode == -1)
+            {
+               throw new SAXException(
+                 passTools.getMessageWithDefault(
+                  "error.choice_tag_attribute_required",
+                  "<{0}> tag attribute ''{1}'' must be one of: {2} (found ''{3}'').",
+                  qName, "staging", "copy, link, symlink", staging));
+            }
+
+            passTools.setStagingMode(mode);
+         }
+      }
+      else if ("latexabort".equals(qName))
+      {
+         if (courses == null)
+         {
+            throw new SAXException(
+              passTools.getMessageWithDefault(
+               "error.tag_must_be_inside_tag",
+               "<{0}> tag must be inside <{1}> tag.",
+               qName, "resources"));
+         }
+
+         if (inProcessesTag)
+         {
+            throw new SAXException(passTools.getMessageWithDefault(
+              "error.tag_mustnt_be_inside_tag",
+              "<{0}> tag must not be inside <{1}> tag.",
+              qName, "processes"));
+         }
+
+         long maxErrors = getPositiveLongAttribute("maxerrors", atts, qName);
+
+         if (maxErrors > 0L)
+         {
+            passTools.setLaTeXAbortMaxErrors(
+              (int)Math.min(maxErrors, Integer.MAX_VALUE));
+         }
+
+         String regex = atts.getValue("pattern");
+
+         if (regex != null && !regex.isEmpty())
+         {
+            try
+            {
+               passTools.addLaTeXAbortPattern(Pattern.compile(regex));
+            }
+            catch (PatternSyntaxException e)
+            {
+               throw new SAXException(
+                 passTools.getMessageWithDefault(
+                  "error.regex_tag_attribute_required",
+                  "<{0}> tag attribute ''{1}'' must be a valid regular expression (found ''{2}'').",
+                  qName, "pattern", regex), e);
+            }
+         }
+      }
       else if ("lualatex".equals(qName))
       {
          if (courses == null)
@@ -519,6 +836,93 @@ public class CourseParser extends XMLReaderAdapter
       }
    }
 
+   /**
+    * Gets the value of an optional attribute that must be a
+    * positive integer.
+    * @param attributeName the attribute name
+    * @param atts the element's attributes
+    * @param qName the element name
+    * @return the value or 0 if the attribute isn't set
+    * @throws SAXException if the value isn't a positive integer
+    */ 
+   private long getPositiveLongAttribute(String attributeName,
+     Attributes atts, String qName)
+   throws SAXException
+   {
+      String strValue = atts.getValue(attributeName);
+
+      if (strValue == null || strValue.isEmpty()) return 0L;
+
+      long value;
+
+      try
+      {
+         value = Long.parseLong(strValue);
+      }
+      catch (NumberFormatException e)
+      {
+         throw new SAXException(
+           passTools.getMessageWithDefault(
+            "error.int_tag_attribute_required",
+            "<{0}> tag attribute ''{1}'' must have an integer value (found ''{2}'').",
+            qName, attributeName, strValue), e);
+      }
+
+      if (value <= 0L)
+      {
+         throw new SAXException(passTools.getMessageWithDefault(
+          "error.positive_int_tag_attribute_required",
+          "<{0}> tag attribute ''{1}'' must have a positive integer value (found {2} \u226F 0).",
+          qName, attributeName, value));
+      }
+
+      return value;
+   }
+
+   /**
+    * Gets the value of an optional attribute that must be a
+    * percentage.
+    * @param attributeName the attribute name
+    * @param atts the element's attributes
+    * @param qName the element name
+    * @return the value or -1 if the attribute isn't set
+    * @throws SAXException if the value isn't an integer between 0
+    * and 100
+    */ 
+   private int getPercentageAttribute(String attributeName,
+     Attributes atts, String qName)
+   throws SAXException
+   {
+      String strValue = atts.getValue(attributeName);
+
+      if (strValue == null || strValue.isEmpty()) return -1;
+
+      int value;
+
+      try
+      {
+         value = Integer.parseInt(strValue);
+      }
+      catch (NumberFormatException e)
+      {
+         throw new SAXException(
+           passTools.getMessageWithDefault(
+            "error.int_tag_attribute_required",
+            "<{0}> tag attribute ''{1}'' must have an integer value (found ''{2}'').",
+            qName, attributeName, strValue), e);
+      }
+
+      if (value < 0 || value > 100)
+      {
+         throw new SAXException(passTools.getMessageWithDefault(
+          "error.percentage_tag_attribute_required",
+          "<{0}> tag attribute ''{1}'' must be a percentage between 0 and 100 (found {2}).",
+          qName, attributeName, value));
+      }
+
+      return value;
+   }
+
    /**
     * Gets a list of all the courses identified in the XML file.
     * @return list of all available courses
@@ -552,4 +956,35 @@ public class CourseParser extends XMLReaderAdapter
    private Course current = null;
    private StringBuilder builder = null;
    private PassTools passTools;
+
+   /**
+    * Subdirectory of the cache directory used for precompiled LaTeX
+    * formats.
+    */ 
+   public static final String LATEX_FORMAT_CACHE_DIR_NAME="formats";
+
+   /**
+    * Subdirectory of the cache directory used for remote resource
+    * files and build scripts.
+    */ 
+   public static final String RESOURCE_CACHE_DIR_NAME="resources";
+
+   /**
+    * Subdirectory of the cache directory used for data loaded from
+    * remote XML files.
+    */ 
+   public static final String COURSE_DATA_CACHE_DIR_NAME="coursedata";
+
+   /**
+    * Subdirectory of the cache directory used for build and test
+    * results.
+    */ 
+   public static final String RESULTS_CACHE_DIR_NAME="results";
+
+   /**
+    * Prefixes of the &lt;jobbudget&gt; attributes for each stage, indexed
+    * by the JobBudget stage constants.
+    */ 
+   private static final String[] JOB_BUDGET_STAGE_NAMES
+     = new String[] {"build", "run", "latex"};
 }
@@ -0,0 +1,210 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+/**
+ * The course-level settings provided in the assignment XML file
+ * (outside of the assignment elements). These affect the way the
+ * PDF is created for every assignment in the course. A new object
+ * is created each time the assignment XML file is loaded, so an
+ * AssignmentProcess that has taken a reference to the settings for
+ * its job won't be affected if the assignments for another course
+ * are subsequently loaded.
+ */ 
+public class CourseSettings implements java.io.Serializable
+{
+   /**
+    * Creates a new instance with the default settings.
+    */ 
+   public CourseSettings()
+   {
+   }
+
+   /**
+    * Creates a copy of the given settings.
+    * @param other the settings to copy
+    */ 
+   public CourseSettings(CourseSettings other)
+   {
+      listingSettings = other.listingSettings;
+      geometrySettings = other.geometrySettings;
+      fontSpecSettings = other.fontSpecSettings;
+      fontEncSettings = other.fontEncSettings;
+      fontSpecOptions = other.fontSpecOptions;
+      fontEncOptions = other.fontEncOptions;
+      maxOutputSetting = other.maxOutputSetting;
+      verbMaxCharsPerLine = other.verbMaxCharsPerLine;
+      verbTabCharCount = other.verbTabCharCount;
+   }
+
+   /**
+    * Creates a new instance from the settings found by the parser.
+    * Any setting not found in the XML file has its default value.
+    * @param parser the parser that has loaded the assignment XML
+    * file
+    */ 
+   public CourseSettings(AssignmentDataParser parser)
+   {
+      listingSettings = parser.getListingsSettings();
+      geometrySettings = parser.getGeometrySettings();
+      fontSpecSettings = parser.getFontSpecSettings();
+      fontSpecOptions = parser.getFontSpecOptions();
+      fontEncSettings = parser.getFontEncSettings();
+      fontEncOptions = parser.getFontEncOptions();
+
+      Long val = parser.getMaxOutputSetting();
+
+      if (val != null)
+      {
+         maxOutputSetting = val.longValue();
+      }
+
+      Integer intVal = parser.getVerbMaxCharsPerLine();
+
+      if (intVal != null)
+      {
+         verbMaxCharsPerLine = intVal.intValue();
+      }
+
+      intVal = parser.getVerbTabCharCount();
+
+      if (intVal != null)
+      {
+         verbTabCharCount = intVal.intValue();
+      }
+   }
+
+   /**
+    * Sets the options for the listings package.
+    * @param settings the listings.sty settings
+    */ 
+   public void setListingSettings(CharSequence settings)
+   {
+      listingSettings = settings;
+   }
+
+   /**
+    * Gets the listings settings.
+    * @return the settings for listings.sty
+    */ 
+   public CharSequence getListingSettings()
+   {
+      return listingSettings;
+   }
+
+   /**
+    * Sets the options for the geometry package.
+    * @param settings the geometry.sty settings
+    */ 
+   public void setGeometrySettings(CharSequence settings)
+   {
+      geometrySettings = settings;
+   }
+
+   /**
+    * Gets the geometry settings.
+    * @return the settings for geometry.sty
+    */ 
+   public CharSequence getGeometrySettings()
+   {
+      return geometrySettings;
+   }
+
+   /**
+    * Gets the fontspec settings.
+    * @return the settings for fontspec.sty
+    */ 
+   public CharSequence getFontSpecSettings()
+   {
+      return fontSpecSettings;
+   }
+
+   /**
+    * Gets the options for the fontspec package.
+    * @return the fontspec.sty options
+    */ 
+   public String getFontSpecOptions()
+   {
+      return fontSpecOptions;
+   }
+
+   /**
+    * Gets the fontenc settings.
+    * @return the settings for fontenc.sty
+    */ 
+   public CharSequence getFontEncSettings()
+   {
+      return fontEncSettings;
+   }
+
+   /**
+    * Gets the options for the fontenc package.
+    * @return the fontenc.sty options
+    */ 
+   public String getFontEncOptions()
+   {
+      return fontEncOptions;
+   }
+
+   /**
+    * Sets the maximum length of output.
+    * @param setting the maximum number of characters to write
+    * before truncating
+    */ 
+   public void setMaxOutputSetting(long setting)
+   {
+      maxOutputSetting = setting;
+   }
+
+   /**
+    * Gets the maximum length of output.
+    * @return the maximum number of output characters to write before
+    * truncating
+    */ 
+   public long getMaxOutputSetting()
+   {
+      return maxOutputSetting;
+   }
+
+   /**
+    * Gets the maximum number of characters to allow in a line of
+    * verbatim text.
+    * @return the maximum number of characters in a line of verbatim
+    * text
+    */ 
+   public int getVerbMaxCharsPerLine()
+   {
+      return verbMaxCharsPerLine;
+   }
+
+   /**
+    * Gets the number of characters a TAB spans.
+    * @return the TAB character count
+    */ 
+   public int getVerbTabCharCount()
+   {
+      return verbTabCharCount;
+   }
+
+   private CharSequence listingSettings;
+   private CharSequence geometrySettings;
+   private CharSequence fontSpecSettings, fontEncSettings;
+   private String fontSpecOptions, fontEncOptions;
+   private long maxOutputSetting = 10240L;
+   private int verbMaxCharsPerLine = 80, verbTabCharCount=8;
+
+   private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,243 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Puts the submitted files into a job's temporary directory. Files
+ * are copied by default, but may instead be hard linked or
+ * symbolically linked to the original file, which avoids reading
+ * and writing the content. If a link can't be created (for example,
+ * the temporary directory is on a different file system to the
+ * original), the file is copied instead and no further links are
+ * attempted for the job.
+ *
+ * A write to a linked file changes the original, so links should
+ * only be used for files that won't be given to the application or
+ * build script. The caller decides this when choosing the mode.
+ *
+ * Parent directories are only created once per job, regardless of
+ * how many files they contain.
+ *
+ * One instance should be used per job. Files may be staged by
+ * concurrent stages of the job.
+ */
+public class FileStager
+{
+   /**
+    * Creates a new instance for a job.
+    * @param passTools the PASS tools
+    * @param mode the staging mode, which should be one of COPY,
+    * LINK or SYMLINK
+    */
+   public FileStager(PassTools passTools, int mode)
+   {
+      this.passTools = passTools;
+      this.mode = mode;
+   }
+
+   /**
+    * Gets the staging mode.
+    * @return the staging mode
+    */
+   public int getMode()
+   {
+      return mode;
+   }
+
+   /**
+    * Ensures that the given directory exists.
+    * @param dir the directory
+    * @throws IOException if the directory can't be created
+    */
+   public void createDirectories(Path dir) throws IOException
+   {
+      if (!createdDirs.contains(dir))
+      {
+         Files.createDirectories(dir);
+         createdDirs.add(dir);
+      }
+   }
+
+   /**
+    * Stages a file and classifies its content. If the file is
+    * copied, the content is classified as it's copied so that the
+    * original is only read once.
+    * @param src the original file
+    * @param dest the location in the job directory
+    * @return the classification of the content
+    * @throws IOException if the file can't be copied
+    */
+   public ContentClassifier.Result stageAndClassify(Path src, Path dest)
+   throws IOException
+   {
+      if (link(src, dest))
+      {
+         return ContentClassifier.classify(src);
+      }
+
+      ContentClassifier classifier = new ContentClassifier();
+
+      InputStream in = null;
+      OutputStream out = null;
+
+      try
+      {
+         in = Files.newInputStream(src);
+         out = Files.newOutputStream(dest, StandardOpenOption.CREATE_NEW,
+           StandardOpenOption.WRITE);
+
+         byte[] buffer = new byte[BUFFER_SIZE];
+         int n;
+
+         while ((n = in.read(buffer)) != -1)
+         {
+            classifier.update(buffer, 0, n);
+            out.write(buffer, 0, n);
+         }
+      }
+      finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+
+      return classifier.getResult();
+   }
+
+   /**
+    * Links a file, if permitted by the staging mode.
+    * @param src the original file
+    * @param dest the location in the job directory
+    * @return true if the file has been linked or false if it needs
+    * to be copied
+    * @throws FileAlreadyExistsException if the destination exists
+    * @throws IOException if a failed link can't be removed
+    */
+   private boolean link(Path src, Path dest) throws IOException
+   {
+      if (mode == COPY || linkFailed)
+      {
+         return false;
+      }
+
+      try
+      {
+         if (mode == LINK)
+         {
+            Files.createLink(dest, src);
+         }
+         else
+         {
+            Files.createSymbolicLink(dest, src.toAbsolutePath());
+         }
+
+         return true;
+      }
+      catch (FileAlreadyExistsException e)
+      {
+         // a name conflict, which copying wouldn't resolve
+
+         throw e;
+      }
+      catch (IOException | UnsupportedOperationException e)
+      {
+         // can't link (for example, the job directory is on a
+         // different file system) so copy instead
+
+         linkFailed = true;
+
+         passTools.getPass().debug(String.format(
+           "Unable to link %s -> %s (%s). Copying instead.",
+           dest, src, e.getMessage()));
+
+         Files.deleteIfExists(dest);
+
+         return false;
+      }
+   }
+
+   /**
+    * Gets the staging mode identified by the given name.
+    * @param name the name ("copy", "link" or "symlink")
+    * @return the staging mode or -1 if the name isn't recognised
+    */
+   public static int getMode(String name)
+   {
+      for (int i = 0; i < MODE_NAMES.length; i++)
+      {
+         if (MODE_NAMES[i].equals(name))
+         {
+            return i;
+         }
+      }
+
+      return -1;
+   }
+
+   /**
+    * Gets the name of the given staging mode.
+    * @param mode the staging mode
+    * @return the name
+    */
+   public static String getModeName(int mode)
+   {
+      return MODE_NAMES[mode];
+   }
+
+   /**
+    * Files are copied.
+    */
+   public static final int COPY=0;
+
+   /**
+    * Files are hard linked where possible.
+    */
+   public static final int LINK=1;
+
+   /**
+    * Files are symbolically linked where possible.
+    */
+   public static final int SYMLINK=2;
+
+   private static final int BUFFER_SIZE=65536;
+
+   private static final String[] MODE_NAMES
+     = new String[] {"copy", "link", "symlink"};
+
+   private PassTools passTools;
+   private int mode;
+   private volatile boolean linkFailed = false;
+   private Set<Path> createdDirs = ConcurrentHashMap.newKeySet();
+}
@@ -0,0 +1,790 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the compiled classes of a Java project between builds so
+ * that only the source files that have changed (and the source files
+ * that depend on them) need to be recompiled. This is used for the
+ * no-PDF test runs in PassEditor, where the same project is built
+ * many times.
+ *
+ * The cache directory contains the compiled classes and a properties
+ * file with the compiler options and the SHA-256 hash of each source
+ * file from the last successful build. The source file that each
+ * class came from and the classes that it refers to are obtained
+ * from the class files.
+ *
+ * A full build is performed if there's no previous build, the
+ * compiler options have changed, a class can't be matched to a
+ * source file, or a changed class has compile-time constants (which
+ * other classes may have copied).
+ */
+public class IncrementalBuildCache
+{
+   /**
+    * Creates a new cache.
+    * @param main the PASS application
+    * @param dir the cache directory
+    */
+   public IncrementalBuildCache(Pass main, File dir)
+   {
+      this.main = main;
+      this.dir = dir;
+      classesDir = new File(dir, CLASSES_DIR_NAME);
+      stateFile = new File(dir, STATE_FILE_NAME);
+   }
+
+   /**
+    * Gets the directory containing the cached classes. This should
+    * be used as the compiler's output directory and be on the class
+    * path.
+    * @return the classes directory
+    */
+   public File getClassesDirectory()
+   {
+      return classesDir;
+   }
+
+   /**
+    * Determines which source files need to be compiled. The
+    * classes that will be replaced are removed from the cache.
+    * @param sources the source file names relative to the base
+    * directory (as they would be passed to the compiler)
+    * @param baseDir the base directory
+    * @param options the compiler options (excluding the source files
+    * and output directory)
+    * @return the source files that need to be compiled (empty if
+    * nothing has changed)
+    * @throws IOException if an I/O error occurs
+    */
+   public Vector<String> getSourcesToCompile(Vector<String> sources,
+     File baseDir, String options)
+   throws IOException
+   {
+      this.options = options;
+
+      hashes = new HashMap<String,String>();
+
+      for (String source : sources)
+      {
+         hashes.put(source, getHash(new File(baseDir, source)));
+      }
+
+      reusedClassCount = 0;
+      fullBuild = false;
+
+      Properties state = readState();
+
+      if (state == null || !options.equals(state.getProperty(KEY_OPTIONS))
+           || !classesDir.exists())
+      {
+         main.debug("Incremental build: no usable previous build");
+         return fullBuild(sources);
+      }
+
+      Vector<String> changed = new Vector<String>();
+      Vector<String> removed = new Vector<String>();
+
+      for (String source : sources)
+      {
+         if (!hashes.get(source).equals(state.getProperty(SOURCE_PREFIX+source)))
+         {
+            changed.add(source);
+         }
+      }
+
+      for (String key : state.stringPropertyNames())
+      {
+         if (key.startsWith(SOURCE_PREFIX))
+         {
+            String source = key.substring(SOURCE_PREFIX.length());
+
+            if (!hashes.containsKey(source))
+            {
+               removed.add(source);
+            }
+         }
+      }
+
+      Vector<ClassInfo> classes;
+
+      try
+      {
+         classes = readClasses();
+      }
+      catch (IOException e)
+      {
+         main.debug("Incremental build: "+e.getMessage());
+         return fullBuild(sources);
+      }
+
+      if (changed.isEmpty() && removed.isEmpty())
+      {
+         reusedClassCount = classes.size();
+         return changed;
+      }
+
+      // Match each class to its source file.
+
+      HashMap<String,Vector<ClassInfo>> sourceClasses
+         = new HashMap<String,Vector<ClassInfo>>();
+
+      Vector<String> allSources = new Vector<String>(sources);
+      allSources.addAll(removed);
+
+      for (String source : allSources)
+      {
+         sourceClasses.put(source, new Vector<ClassInfo>());
+      }
+
+      for (ClassInfo info : classes)
+      {
+         String source = findSource(info, allSources);
+
+         if (source == null)
+         {
+            main.debug("Incremental build: can't find source for class "
+              + info.name);
+            return fullBuild(sources);
+         }
+
+         sourceClasses.get(source).add(info);
+      }
+
+      // Find everything affected by the changes.
+
+      HashSet<String> affected = new HashSet<String>(changed);
+      affected.addAll(removed);
+
+      HashSet<String> dirtyClasses = new HashSet<String>();
+
+      for (String source : affected)
+      {
+         for (ClassInfo info : sourceClasses.get(source))
+         {
+            if (info.hasConstants)
+            {
+               main.debug("Incremental build: constants in changed class "
+                 + info.name);
+               return fullBuild(sources);
+            }
+
+            dirtyClasses.add(info.name);
+         }
+      }
+
+      boolean found = true;
+
+      while (found)
+      {
+         found = false;
+
+         for (String source : sources)
+         {
+            if (affected.contains(source)) continue;
+
+            for (ClassInfo info : sourceClasses.get(source))
+            {
+               if (info.refersTo(dirtyClasses))
+               {
+                  affected.add(source);
+                  found = true;
+
+                  for (ClassInfo other : sourceClasses.get(source))
+                  {
+                     dirtyClasses.add(other.name);
+                  }
+
+                  break;
+               }
+            }
+         }
+      }
+
+      Vector<String> toCompile = new Vector<String>();
+
+      for (String source : allSources)
+      {
+         if (affected.contains(source))
+         {
+            for (ClassInfo info : sourceClasses.get(source))
+            {
+               Files.deleteIfExists(info.file.toPath());
+            }
+
+            if (hashes.containsKey(source))
+            {
+               toCompile.add(source);
+            }
+         }
+         else
+         {
+            reusedClassCount += sourceClasses.get(source).size();
+         }
+      }
+
+      // The state is invalid until the build succeeds.
+      Files.deleteIfExists(stateFile.toPath());
+
+      return toCompile;
+   }
+
+   /**
+    * Determines whether or not the last call to
+    * getSourcesToCompile() requires a full build.
+    * @return true if all source files will be compiled
+    */
+   public boolean isFullBuild()
+   {
+      return fullBuild;
+   }
+
+   /**
+    * Gets the number of classes reused from the previous build.
+    * @return the number of reused classes
+    */
+   public int getReusedClassCount()
+   {
+      return reusedClassCount;
+   }
+
+   /**
+    * Records a successful build.
+    * @throws IOException if the state can't be saved
+    */
+   public void buildSucceeded() throws IOException
+   {
+      Properties state = new Properties();
+
+      state.setProperty(KEY_OPTIONS, options);
+
+      for (String source : hashes.keySet())
+      {
+         state.setProperty(SOURCE_PREFIX+source, hashes.get(source));
+      }
+
+      OutputStream out = null;
+
+      try
+      {
+         out = Files.newOutputStream(stateFile.toPath());
+
+         state.store(out, null);
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * Records a failed build. The next build will be a full build.
+    * @throws IOException if the state can't be removed
+    */
+   public void buildFailed() throws IOException
+   {
+      Files.deleteIfExists(stateFile.toPath());
+   }
+
+   /**
+    * Copies the cached classes to the given directory.
+    * @param dest the destination directory
+    * @throws IOException if an I/O error occurs
+    */
+   public void copyClasses(File dest) throws IOException
+   {
+      final Path source = classesDir.toPath();
+      final Path target = dest.toPath();
+
+      Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+      {
+         @Override
+         public FileVisitResult preVisitDirectory(Path path,
+           BasicFileAttributes attrs)
+         throws IOException
+         {
+            Files.createDirectories(target.resolve(source.relativize(path)));
+            return FileVisitResult.CONTINUE;
+         }
+
+         @Override
+         public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
+         throws IOException
+         {
+            Files.copy(path, target.resolve(source.relativize(path)),
+              StandardCopyOption.REPLACE_EXISTING);
+            return FileVisitResult.CONTINUE;
+         }
+      });
+   }
+
+   /**
+    * Removes all cached classes.
+    */
+   private Vector<String> fullBuild(Vector<String> sources) throws IOException
+   {
+      fullBuild = true;
+
+      Files.deleteIfExists(stateFile.toPath());
+
+      if (classesDir.exists())
+      {
+         PassTools.deleteDir(classesDir);
+      }
+
+      Files.createDirectories(classesDir.toPath());
+
+      return new Vector<String>(sources);
+   }
+
+   /**
+    * Finds the source file that a class was compiled from.
+    * @return the source or null if there isn't exactly one match
+    */
+   private String findSource(ClassInfo info, Vector<String> sources)
+   {
+      if (info.sourceFile == null) return null;
+
+      String packagePath = "";
+
+      int idx = info.name.lastIndexOf('.');
+
+      if (idx > -1)
+      {
+         packagePath = info.name.substring(0, idx).replace('.', '/');
+      }
+
+      String found = null;
+      boolean foundInPackageDir = false;
+
+      for (String source : sources)
+      {
+         File file = new File(source);
+
+         if (!file.getName().equals(info.sourceFile)) continue;
+
+         String parent = file.getParent();
+
+         parent = (parent == null ? "" : parent.replace(File.separatorChar, '/'));
+
+         boolean inPackageDir = parent.equals(packagePath)
+            || parent.endsWith("/"+packagePath)
+            || packagePath.isEmpty();
+
+         if (found == null || (inPackageDir && !foundInPackageDir))
+         {
+            found = source;
+            foundInPackageDir = inPackageDir;
+         }
+         else if (inPackageDir == foundInPackageDir)
+         {
+            // ambiguous
+            return null;
+         }
+      }
+
+      return found;
+   }
+
+   /**
+    * Reads the information from all the cached class files.
+    */
+   private Vector<ClassInfo> readClasses() throws IOException
+   {
+      final Vector<ClassInfo> classes = new Vector<ClassInfo>();
+
+      Files.walkFileTree(classesDir.toPath(), new SimpleFileVisitor<Path>()
+      {
+         @Override
+         public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
+         throws IOException
+         {
+            if (path.toString().endsWith(".class"))
+            {
+               classes.add(readClass(path.toFile()));
+            }
+
+            return FileVisitResult.CONTINUE;
+         }
+      });
+
+      return classes;
+   }
+
+   /**
+    * Reads the class name, source file name, referenced classes and
+    * whether or not there are any constant fields from a class file.
+    */
+   private ClassInfo readClass(File file) throws IOException
+   {
+      ClassInfo info = new ClassInfo(file);
+
+      DataInputStream in = null;
+
+      try
+      {
+         in = new DataInputStream(new BufferedInputStream(
+           Files.newInputStream(file.toPath())));
+
+         if (in.readInt() != 0xCAFEBABE)
+         {
+            throw new IOException("Not a class file: "+file);
+         }
+
+         in.readUnsignedShort();// minor version
+         in.readUnsignedShort();// major version
+
+         int poolCount = in.readUnsignedShort();
+
+         String[] utf8 = new String[poolCount];
+         int[] classIndex = new int[poolCount];
+
+         for (int i = 1; i < poolCount; i++)
+         {
+            int tag = in.readUnsignedByte();
+
+            switch (tag)
+            {
+               case 1: // Utf8
+                 utf8[i] = in.readUTF();
+               break;
+               case 7: // Class
+                 classIndex[i] = in.readUnsignedShort();
+               break;
+               case 8: // String
+               case 16: // MethodType
+               case 19: // Module
+               case 20: // Package
+                 in.readUnsignedShort();
+               break;
+               case 15: // MethodHandle
+                 in.readUnsignedByte();
+                 in.readUnsignedShort();
+               break;
+               case 3: // Integer
+               case 4: // Float
+               case 9: // Fieldref
+               case 10: // Methodref
+               case 11: // InterfaceMethodref
+               case 12: // NameAndType
+               case 17: // Dynamic
+               case 18: // InvokeDynamic
+                 in.readInt();
+               break;
+               case 5: // Long
+               case 6: // Double
+                 in.readLong();
+                 i++;
+               break;
+               default:
+                 throw new IOException("Invalid constant pool tag "+tag
+                   +" in "+file);
+            }
+         }
+
+         in.readUnsignedShort();// access flags
+
+         info.name = utf8[classIndex[in.readUnsignedShort()]].replace('/', '.');
+
+         in.readUnsignedShort();// super class
+
+         int count = in.readUnsignedShort();
+
+         for (int i = 0; i < count; i++)
+         {
+            in.readUnsignedShort();// interface
+         }
+
+         // fields
+
+         count = in.readUnsignedShort();
+
+         for (int i = 0; i < count; i++)
+         {
+            in.readUnsignedShort();// access flags
+            in.readUnsignedShort();// name
+            in.readUnsignedShort();// descriptor
+
+            int attrCount = in.readUnsignedShort();
+
+            for (int j = 0; j < attrCount; j++)
+            {
+               if ("ConstantValue".equals(utf8[in.readUnsignedShort()]))
+               {
+                  info.hasConstants = true;
+               }
+
+               skip(in, in.readInt());
+            }
+         }
+
+         // methods
+
+         count = in.readUnsignedShort();
+
+         for (int i = 0; i < count; i++)
+         {
+            in.readUnsignedShort();// access flags
+            in.readUnsignedShort();// name
+            in.readUnsignedShort();// descriptor
+
+            int attrCount = in.readUnsignedShort();
+
+            for (int j = 0; j < attrCount; j++)
+            {
+               in.readUnsignedShort();// name
+               skip(in, in.readInt());
+            }
+         }
+
+         // class attributes
+
+         count = in.readUnsignedShort();
+
+         for (int i = 0; i < count; i++)
+         {
+            String attrName = utf8[in.readUnsignedShort()];
+            int length = in.readInt();
+
+            if ("SourceFile".equals(attrName))
+            {
+               info.sourceFile = utf8[in.readUnsignedShort()];
+            }
+            else
+            {
+               skip(in, length);
+            }
+         }
+
+         // Referenced classes are either class constants or appear
+         // in descriptors and signatures.
+
+         for (int i = 1; i < poolCount; i++)
+         {
+            if (classIndex[i] != 0)
+            {
+               info.addReference(utf8[classIndex[i]]);
+            }
+            else if (utf8[i] != null)
+            {
+               Matcher m = DESCRIPTOR_CLASS_PATTERN.matcher(utf8[i]);
+
+               while (m.find())
+               {
+                  info.addReference(m.group(1));
+               }
+            }
+         }
+      }
+      catch (ArrayIndexOutOfBoundsException | NullPointerException e)
+      {
+         throw new IOException("Invalid class file: "+file, e);
+      }
+      finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+      }
+
+      return info;
+   }
+
+   private static void skip(InputStream in, long n) throws IOException
+   {
+      while (n > 0)
+      {
+         long skipped = in.skip(n);
+
+         if (skipped <= 0)
+         {
+            throw new IOException("Unexpected end of class file");
+         }
+
+         n -= skipped;
+      }
+   }
+
+   /**
+    * Reads the saved state.
+    * @return the state or null if there isn't one
+    */
+   private Properties readState()
+   {
+      if (!stateFile.exists()) return null;
+
+      Properties state = new Properties();
+
+      InputStream in = null;
+
+      try
+      {
+         in = Files.newInputStream(stateFile.toPath());
+
+         state.load(in);
+      }
+      catch (IOException | IllegalArgumentException e)
+      {
+         main.debug(e.getMessage());
+
+         return null;
+      }
+      finally
+      {
+         if (in != null)
+         {
+            try
+            {
+               in.close();
+            }
+            catch (IOException e)
+            {
+            }
+         }
+      }
+
+      return state;
+   }
+
+   /**
+    * Gets the hash of the content of the given file.
+    */
+   private String getHash(File file) throws IOException
+   {
+      try
+      {
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+         InputStream in = null;
+
+         try
+         {
+            in = Files.newInputStream(file.toPath());
+
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while ((n = in.read(buffer)) != -1)
+            {
+               md.update(buffer, 0, n);
+            }
+         }
+         finally
+         {
+            if (in != null)
+            {
+               in.close();
+            }
+         }
+
+         return ResourceCache.toHex(md.digest());
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IOException(e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Information obtained from a class file.
+    */
+   private static class ClassInfo
+   {
+      ClassInfo(File file)
+      {
+         this.file = file;
+      }
+
+      void addReference(String internalName)
+      {
+         if (internalName.startsWith("["))
+         {
+            Matcher m = DESCRIPTOR_CLASS_PATTERN.matcher(internalName);
+
+            while (m.find())
+            {
+               references.add(m.group(1).replace('/', '.'));
+            }
+         }
+         else
+         {
+            references.add(internalName.replace('/', '.'));
+         }
+      }
+
+      boolean refersTo(HashSet<String> classNames)
+      {
+         for (String name : references)
+         {
+            if (!name.equals(this.name) && classNames.contains(name))
+            {
+               return true;
+            }
+         }
+
+         return false;
+      }
+
+      File file;
+      String name, sourceFile;
+      boolean hasConstants = false;
+      HashSet<String> references = new HashSet<String>();
+   }
+
+   private Pass main;
+   private File dir, classesDir, stateFile;
+   private String options;
+   private HashMap<String,String> hashes;
+   private boolean fullBuild = false;
+   private int reusedClassCount = 0;
+
+   private static final Pattern DESCRIPTOR_CLASS_PATTERN
+     = Pattern.compile("L([^;<>:]+)[;<]");
+
+   public static final String CLASSES_DIR_NAME="classes";
+   public static final String STATE_FILE_NAME="build.properties";
+   private static final String KEY_OPTIONS="options";
+   private static final String SOURCE_PREFIX="source.";
+}
@@ -0,0 +1,689 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.File;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles Java source code in the PASS JVM using the system Java
+ * compiler (javax.tools) instead of running an external javac
+ * process. This avoids the JVM start up time of javac, which is
+ * most of the compile time for small assignments.
+ *
+ * The compiler and the standard file managers are shared by all
+ * jobs. Each file manager caches the platform classes, so they are
+ * kept in a pool and reused. A file manager is only used by one
+ * compilation at a time.
+ *
+ * The compiler takes the same argument list that would be used to
+ * run javac in the job directory. Source file, class path and output
+ * paths are relative to that directory. The compiler messages are
+ * written to the log file in the same format as javac.
+ *
+ * The compiler is the one provided by the JVM running PASS, which
+ * may be a different version to the javac application identified in
+ * the resources XML file.
+ *
+ * Annotation processing is always switched off, as processors would
+ * run in the PASS JVM. The compiler can't be stopped once it has
+ * started, so it writes the class files and messages to a private
+ * temporary directory, which are only copied into the job directory
+ * if the compilation finishes in time. A compilation that times out
+ * or is cancelled carries on in the background without affecting
+ * the job directory, and its temporary directory is deleted when it
+ * finishes. The number of compiler threads is limited to the number
+ * of processors. If they are all in use, {@link #compile compile}
+ * returns null and the caller should run javac as a separate process
+ * instead.
+ */
+public class JavaCompilerEngine
+{
+   /**
+    * Creates a new engine for the given PASS application.
+    * @param main the PASS application
+    */
+   public JavaCompilerEngine(Pass main)
+   {
+      this.main = main;
+   }
+
+   /**
+    * Determines whether or not the system Java compiler is
+    * available. It's not available if PASS is run with a JRE
+    * rather than a JDK.
+    * @return true if the compiler is available
+    */
+   public static boolean isAvailable()
+   {
+      return COMPILER != null;
+   }
+
+   /**
+    * Compiles the source code. The arguments are those that would
+    * be passed to javac (including the javac command as the first
+    * element, which is ignored).
+    * @param args the javac command line arguments
+    * @param dir the job directory
+    * @param log the file to write the compiler messages to
+    * @param timeout the timeout in milliseconds (0 for no timeout)
+    * @return the compilation result or null if all the compiler
+    * threads are in use
+    * @throws IOException if an I/O error occurs
+    * @throws InterruptedException if the thread is interrupted
+    * @throws InterruptedByTimeoutException if the timeout is reached
+    * @throws CancellationException if the compilation is cancelled
+    * with cancel()
+    */
+   public Result compile(Vector<String> args, File dir, File log, long timeout)
+   throws IOException,InterruptedException
+   {
+      if (COMPILER == null)
+      {
+         throw new IllegalStateException("System Java compiler not available");
+      }
+
+      Vector<String> options = new Vector<String>();
+      Vector<File> sources = new Vector<File>();
+      File outputDir = dir;
+
+      for (int i = 1, n = args.size(); i < n; i++)
+      {
+         String arg = args.get(i);
+
+         if ("-d".equals(arg) && i < n-1)
+         {
+            outputDir = resolve(dir, args.get(++i));
+         }
+         else if (arg.startsWith("-proc:"))
+         {
+            // replaced by -proc:none
+         }
+         else if (arg.startsWith("-"))
+         {
+            options.add(arg);
+
+            if (PATH_OPTIONS.contains(arg) && i < n-1)
+            {
+               options.add(resolvePathList(dir, args.get(++i)));
+            }
+         }
+         else if (arg.startsWith("@"))
+         {
+            options.add("@"+resolve(dir, arg.substring(1)).getPath());
+         }
+         else if (arg.endsWith(".java"))
+         {
+            sources.add(resolve(dir, arg));
+         }
+         else
+         {
+            options.add(arg);
+         }
+      }
+
+      options.add("-proc:none");
+
+      final Charset charset = Charset.forName(main.getEncoding());
+      final Staging staging = new Staging(
+        Files.createTempDirectory("pass-javac-").toFile());
+
+      Future<Result> future;
+
+      try
+      {
+         future = EXECUTOR.submit(() ->
+         {
+            try
+            {
+               return runCompiler(options, sources, dir, staging, charset);
+            }
+            finally
+            {
+               staging.finish();
+            }
+         });
+      }
+      catch (RejectedExecutionException e)
+      {
+         main.debug("All in-process compiler threads are busy");
+
+         // the task won't run
+         staging.finish();
+         staging.release();
+         return null;
+      }
+
+      currentCompile = future;
+
+      try
+      {
+         Result result;
+
+         if (timeout > 0L)
+         {
+            result = future.get(timeout, TimeUnit.MILLISECONDS);
+         }
+         else
+         {
+            result = future.get();
+         }
+
+         Files.copy(staging.getLog().toPath(), log.toPath(),
+           StandardCopyOption.REPLACE_EXISTING);
+
+         copyClasses(staging.getClassesDir().toPath(), outputDir.toPath());
+
+         return result;
+      }
+      catch (TimeoutException e)
+      {
+         // javac can't be stopped, but it only writes to the staging
+         // directory so the job doesn't need to wait for it.
+         future.cancel(true);
+
+         throw new InterruptedByTimeoutException();
+      }
+      catch (ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+
+         if (cause instanceof IOException)
+         {
+            throw (IOException)cause;
+         }
+         else if (cause instanceof RuntimeException)
+         {
+            throw (RuntimeException)cause;
+         }
+
+         throw new IOException(cause.getMessage(), cause);
+      }
+      finally
+      {
+         currentCompile = null;
+         staging.release();
+      }
+   }
+
+   /**
+    * Cancels the current compilation.
+    * @return true if there was a compilation to cancel
+    */
+   public boolean cancel()
+   {
+      Future<Result> future = currentCompile;
+
+      if (future != null)
+      {
+         future.cancel(true);
+         return true;
+      }
+
+      return false;
+   }
+
+   /**
+    * Runs the compiler on the current thread, writing the class
+    * files and messages to the staging directory.
+    */
+   private Result runCompiler(Vector<String> options, Vector<File> sources,
+     File dir, Staging staging, Charset charset)
+   throws IOException
+   {
+      File classesDir = staging.getClassesDir();
+      Files.createDirectories(classesDir.toPath());
+
+      StandardJavaFileManager fileManager = FILE_MANAGERS.poll();
+
+      if (fileManager == null)
+      {
+         fileManager = COMPILER.getStandardFileManager(null, null, null);
+      }
+
+      Result result = new Result();
+
+      PrintWriter out = null;
+
+      try
+      {
+         // javac run in the job directory shows the source file
+         // paths as given, so remove the directory from the
+         // messages.
+
+         out = new PrintWriter(new RelativePathWriter(
+           Files.newBufferedWriter(staging.getLog().toPath(), charset),
+           dir.getAbsolutePath()+File.separator));
+
+         // The default class path for javac run in the job directory
+         // is the job directory, not the PASS class path.
+
+         fileManager.setLocation(StandardLocation.CLASS_OUTPUT,
+           Collections.singletonList(classesDir));
+         fileManager.setLocation(StandardLocation.CLASS_PATH,
+           Collections.singletonList(dir));
+         fileManager.setLocation(StandardLocation.SOURCE_PATH, null);
+
+         RecordingFileManager recorder
+           = new RecordingFileManager(fileManager, result);
+
+         try
+         {
+            JavaCompiler.CompilationTask task = COMPILER.getTask(out,
+              recorder, null, options, null,
+              fileManager.getJavaFileObjectsFromFiles(sources));
+
+            result.exitCode = task.call().booleanValue() ? 0 : EXIT_ERROR;
+         }
+         catch (IllegalArgumentException | IllegalStateException e)
+         {
+            // invalid option or source file
+
+            out.println(e.getMessage());
+            result.exitCode = EXIT_CMDERR;
+         }
+         catch (RuntimeException e)
+         {
+            // unexpected compiler failure
+
+            out.println(e);
+            result.exitCode = EXIT_ABNORMAL;
+         }
+
+         main.debug(String.format("In-process compiler %s: exit code %d",
+           options, result.exitCode));
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+
+         // Path options change the file manager's locations, which
+         // would affect the next job, so don't reuse the file
+         // manager if any were supplied.
+
+         boolean reusable = true;
+
+         for (String option : options)
+         {
+            if (PATH_OPTIONS.contains(option))
+            {
+               reusable = false;
+               break;
+            }
+         }
+
+         if (reusable)
+         {
+            FILE_MANAGERS.offer(fileManager);
+         }
+         else
+         {
+            fileManager.close();
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Copies the compiled classes to the output directory.
+    */
+   private static void copyClasses(final Path source, final Path target)
+   throws IOException
+   {
+      Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+      {
+         @Override
+         public FileVisitResult preVisitDirectory(Path path,
+           BasicFileAttributes attrs)
+         throws IOException
+         {
+            Files.createDirectories(target.resolve(source.relativize(path)));
+            return FileVisitResult.CONTINUE;
+         }
+
+         @Override
+         public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
+         throws IOException
+         {
+            Files.copy(path, target.resolve(source.relativize(path)),
+              StandardCopyOption.REPLACE_EXISTING);
+            return FileVisitResult.CONTINUE;
+         }
+      });
+   }
+
+   /**
+    * Resolves a path relative to the job directory.
+    */
+   private static File resolve(File dir, String path)
+   {
+      File file = new File(path);
+
+      return file.isAbsolute() ? file : new File(dir, path);
+   }
+
+   /**
+    * Resolves each element of a path list relative to the job
+    * directory.
+    */
+   private static String resolvePathList(File dir, String pathList)
+   {
+      StringBuilder builder = new StringBuilder();
+
+      for (String path : pathList.split(File.pathSeparator, -1))
+      {
+         if (builder.length() > 0)
+         {
+            builder.append(File.pathSeparator);
+         }
+
+         if (!path.isEmpty())
+         {
+            builder.append(resolve(dir, path).getPath());
+         }
+      }
+
+      return builder.toString();
+   }
+
+   /**
+    * The result of a compilation.
+    */
+   public static class Result
+   {
+      /**
+       * Gets the exit code. This is the same as the javac exit
+       * code: 0 for success, 1 for compilation errors, 2 for invalid
+       * options and 4 for abnormal termination.
+       * @return the exit code
+       */
+      public int getExitCode()
+      {
+         return exitCode;
+      }
+
+      /**
+       * Gets the binary names of all the class files created by the
+       * compiler.
+       * @return the class names
+       */
+      public Vector<String> getClassNames()
+      {
+         return classNames;
+      }
+
+      /**
+       * Gets the fully qualified name of the top-level class with
+       * the given simple name.
+       * @param simpleName the class name without the package
+       * @return the qualified name or null if no class or more
+       * than one class has the given simple name
+       */
+      public String getQualifiedName(String simpleName)
+      {
+         String found = null;
+
+         synchronized (classNames)
+         {
+            for (String name : classNames)
+            {
+               if (name.equals(simpleName) || name.endsWith("."+simpleName))
+               {
+                  if (found != null) return null;
+
+                  found = name;
+               }
+            }
+         }
+
+         return found;
+      }
+
+      private int exitCode = EXIT_ABNORMAL;
+      private Vector<String> classNames = new Vector<String>();
+   }
+
+   /**
+    * The private directory a compilation writes to. The directory is
+    * deleted once the compiler thread has finished with it and the
+    * job no longer needs it, whichever happens last.
+    */
+   private static class Staging
+   {
+      Staging(File dir)
+      {
+         this.dir = dir;
+      }
+
+      File getClassesDir()
+      {
+         return new File(dir, "classes");
+      }
+
+      File getLog()
+      {
+         return new File(dir, "messages.txt");
+      }
+
+      /**
+       * Called by the compiler thread when it has finished.
+       */
+      synchronized void finish()
+      {
+         finished = true;
+
+         if (released)
+         {
+            PassTools.deleteDir(dir);
+         }
+      }
+
+      /**
+       * Called by the job when it no longer needs the directory.
+       */
+      synchronized void release()
+      {
+         released = true;
+
+         if (finished)
+         {
+            PassTools.deleteDir(dir);
+         }
+      }
+
+      private File dir;
+      private boolean finished = false, released = false;
+   }
+
+   /**
+    * File manager that records the classes written by the compiler.
+    */
+   private static class RecordingFileManager
+     extends ForwardingJavaFileManager<JavaFileManager>
+   {
+      RecordingFileManager(JavaFileManager fileManager, Result result)
+      {
+         super(fileManager);
+         this.result = result;
+      }
+
+      @Override
+      public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location,
+        String className, JavaFileObject.Kind kind, FileObject sibling)
+      throws IOException
+      {
+         if (kind == JavaFileObject.Kind.CLASS)
+         {
+            result.classNames.add(className);
+         }
+
+         return super.getJavaFileForOutput(location, className, kind, sibling);
+      }
+
+      @Override
+      public void close()
+      {
+         // the underlying file manager is reused
+      }
+
+      private Result result;
+   }
+
+   /**
+    * Writer that removes the job directory from the start of each
+    * line.
+    */
+   private static class RelativePathWriter extends FilterWriter
+   {
+      RelativePathWriter(Writer out, String prefix)
+      {
+         super(out);
+         this.prefix = prefix;
+      }
+
+      @Override
+      public void write(int c) throws IOException
+      {
+         line.append((char)c);
+
+         if (c == '\n')
+         {
+            flushLine();
+         }
+      }
+
+      @Override
+      public void write(char[] cbuf, int off, int len) throws IOException
+      {
+         for (int i = 0; i < len; i++)
+         {
+            write(cbuf[off+i]);
+         }
+      }
+
+      @Override
+      public void write(String str, int off, int len) throws IOException
+      {
+         for (int i = 0; i < len; i++)
+         {
+            write(str.charAt(off+i));
+         }
+      }
+
+      @Override
+      public void flush() throws IOException
+      {
+         flushLine();
+         super.flush();
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         flushLine();
+         super.close();
+      }
+
+      private void flushLine() throws IOException
+      {
+         int start = 0;
+
+         if (line.length() >= prefix.length()
+              && line.substring(0, prefix.length()).equals(prefix))
+         {
+            start = prefix.length();
+         }
+
+         out.write(line.substring(start));
+
+         line.setLength(0);
+      }
+
+      private String prefix;
+      private StringBuilder line = new StringBuilder();
+   }
+
+   private Pass main;
+   private volatile Future<Result> currentCompile = null;
+
+   public static final int EXIT_ERROR=1;
+   public static final int EXIT_CMDERR=2;
+   public static final int EXIT_ABNORMAL=4;
+
+   /**
+    * Options that take a file or a list of files.
+    */
+   private static final java.util.List<String> PATH_OPTIONS = Arrays.asList(
+     "-cp", "-classpath", "--class-path", "-sourcepath", "--source-path",
+     "-s", "-h", "-p", "--module-path", "--module-source-path",
+     "--upgrade-module-path", "-processorpath", "--processor-path",
+     "--processor-module-path", "--system");
+
+   private static final JavaCompiler COMPILER
+     = ToolProvider.getSystemJavaCompiler();
+
+   private static final ConcurrentLinkedQueue<StandardJavaFileManager>
+     FILE_MANAGERS = new ConcurrentLinkedQueue<StandardJavaFileManager>();
+
+   /**
+    * The compiler threads. There's no queue, so a compilation is
+    * refused rather than waiting if all the threads are in use (for
+    * example, by compilations that timed out but are still running).
+    */
+   private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(
+     0, Runtime.getRuntime().availableProcessors(),
+     60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+     new PassTask.DaemonThreadFactory("pass-javac"));
+}
@@ -0,0 +1,260 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.util.Vector;
+
+/**
+ * A total time budget for a job. Without a budget, each process
+ * (the compiler, each run of the application, the build script and
+ * each LaTeX pass) has its own timeout, so the time a job can take
+ * grows with the number of processes. With a budget, the job has a
+ * deadline and each process is limited to the time that's left.
+ *
+ * The job is split into the stages BUILD (compiling or running the
+ * build script), RUN (running the application and any test cases)
+ * and LATEX (creating the PDF), which occur in that order. Each
+ * stage may have a share of the total reserved for it, which the
+ * earlier stages can't use, and a cap on the time the stage as a
+ * whole may take. Any time a stage doesn't use is available to the
+ * later stages.
+ *
+ * The settings are read from the resources file. Each job uses a
+ * copy (see {@link #JobBudget(JobBudget)}) that starts the clock
+ * when the job starts.
+ */
+public class JobBudget
+{
+   /**
+    * Creates a new budget.
+    * @param total the total time in milliseconds
+    */
+   public JobBudget(long total)
+   {
+      this.total = total;
+      shares[LATEX] = DEFAULT_LATEX_SHARE;
+   }
+
+   /**
+    * Creates a new budget for a job with the same settings as the
+    * given budget. The clock starts now.
+    * @param settings the budget providing the settings
+    */
+   public JobBudget(JobBudget settings)
+   {
+      total = settings.total;
+
+      for (int i = 0; i < STAGE_COUNT; i++)
+      {
+         shares[i] = settings.shares[i];
+         caps[i] = settings.caps[i];
+         stageStarts[i] = -1L;
+      }
+
+      deadline = System.currentTimeMillis() + total;
+   }
+
+   /**
+    * Gets the total time.
+    * @return the total time in milliseconds
+    */
+   public long getTotal()
+   {
+      return total;
+   }
+
+   /**
+    * Sets the percentage of the total time that's reserved for the
+    * given stage.
+    * @param stage the stage
+    * @param percent the percentage (0 for no reserved time)
+    */
+   public void setShare(int stage, int percent)
+   {
+      shares[stage] = percent;
+   }
+
+   /**
+    * Gets the percentage of the total time that's reserved for the
+    * given stage.
+    * @param stage the stage
+    * @return the percentage
+    */
+   public int getShare(int stage)
+   {
+      return shares[stage];
+   }
+
+   /**
+    * Gets the sum of the shares of all stages.
+    * @return the total percentage
+    */
+   public int getTotalShare()
+   {
+      int sum = 0;
+
+      for (int share : shares)
+      {
+         sum += share;
+      }
+
+      return sum;
+   }
+
+   /**
+    * Sets the maximum time the given stage may take.
+    * @param stage the stage
+    * @param millis the maximum time in milliseconds (0 for no cap)
+    */
+   public void setCap(int stage, long millis)
+   {
+      caps[stage] = millis;
+   }
+
+   /**
+    * Gets the maximum time the given stage may take.
+    * @param stage the stage
+    * @return the maximum time in milliseconds (0 for no cap)
+    */
+   public long getCap(int stage)
+   {
+      return caps[stage];
+   }
+
+   /**
+    * Gets the time a process in the given stage may take. This is
+    * the time until the deadline, less the time reserved for later
+    * stages, and no more than is left of the stage's cap. The
+    * stage is taken to have started the first time this method is
+    * called for it.
+    * @param stage the stage
+    * @return the time in milliseconds, which is zero or negative if
+    * there's no time left for the stage
+    */
+   public synchronized long getAllowance(int stage)
+   {
+      long now = System.currentTimeMillis();
+
+      if (stageStarts[stage] < 0L)
+      {
+         stageStarts[stage] = now;
+      }
+
+      long allowance = deadline - now;
+
+      for (int i = stage+1; i < STAGE_COUNT; i++)
+      {
+         allowance -= total*shares[i]/100L;
+      }
+
+      if (caps[stage] > 0L)
+      {
+         allowance = Math.min(allowance, stageStarts[stage] + caps[stage] - now);
+      }
+
+      return allowance;
+   }
+
+   /**
+    * Gets the timeout for a process in the given stage.
+    * @param stage the stage
+    * @param timeout the process's own timeout in milliseconds
+    * @return the smaller of the process's own timeout and the
+    * stage's allowance, which is zero or negative if the process
+    * shouldn't be run
+    */
+   public synchronized long getTimeout(int stage, long timeout)
+   {
+      long allowance = getAllowance(stage);
+
+      if (allowance < timeout)
+      {
+         if (allowance > 0L)
+         {
+            shortened = true;
+         }
+
+         return allowance;
+      }
+
+      return timeout;
+   }
+
+   /**
+    * Records something that wasn't done because the budget was
+    * used up.
+    * @param description a description of what was skipped
+    */
+   public synchronized void addSkipped(String description)
+   {
+      skipped.add(description);
+   }
+
+   /**
+    * Gets the list of things that weren't done because the budget
+    * was used up.
+    * @return a copy of the list
+    */
+   public synchronized Vector<String> getSkipped()
+   {
+      return new Vector<String>(skipped);
+   }
+
+   /**
+    * Determines whether the budget has affected the job, either by
+    * skipping something or by shortening a process's timeout.
+    * @return true if the results may differ from those without a
+    * budget
+    */
+   public synchronized boolean isLimiting()
+   {
+      return shortened || !skipped.isEmpty();
+   }
+
+   /**
+    * Compiling the application or running the build script.
+    */
+   public static final int BUILD=0;
+
+   /**
+    * Running the application and any test cases.
+    */
+   public static final int RUN=1;
+
+   /**
+    * Creating the PDF.
+    */
+   public static final int LATEX=2;
+
+   /**
+    * The number of stages.
+    */
+   public static final int STAGE_COUNT=3;
+
+   /**
+    * The default percentage reserved for creating the PDF, so that
+    * there's normally time left to create a PDF that explains what
+    * was skipped.
+    */
+   public static final int DEFAULT_LATEX_SHARE=20;
+
+   private long total, deadline;
+   private int[] shares = new int[STAGE_COUNT];
+   private long[] caps = new long[STAGE_COUNT];
+   private long[] stageStarts = new long[STAGE_COUNT];
+   private boolean shortened = false;
+   private Vector<String> skipped = new Vector<String>();
+}
@@ -0,0 +1,502 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records how long each part of a job takes. Each timed part is an
+ * entry with a name (such as "compile" or "latex") and an optional
+ * detail (such as the test case name). Where applicable, an entry
+ * also records the process exit code, the number of bytes of
+ * output captured and the number of warnings.
+ *
+ * Entries may be started and ended by different threads at the
+ * same time (for example, when stages or test cases run in
+ * parallel). Each entry is also emitted as a JDK Flight Recorder
+ * event, so the timings can be examined in a recording of a
+ * long-running server without reading the job summaries. The
+ * events cost almost nothing when no recording is in progress.
+ */
+public class JobTimings
+{
+   /**
+    * Creates a new instance. The job's elapsed time is measured
+    * from this point.
+    * @param jobName the name of the job (used in the summary and
+    * events)
+    */
+   public JobTimings(String jobName)
+   {
+      this.jobName = jobName;
+      startTime = Instant.now();
+      startNanos = System.nanoTime();
+      entries = new Vector<Entry>();
+      jobEvent = new JobEvent();
+      jobEvent.begin();
+   }
+
+   /**
+    * Starts timing a part of the job.
+    * @param name the name of the part
+    * @param detail additional information (may be null)
+    * @return the new entry, which should be ended when the part
+    * has finished
+    */
+   public Entry start(String name, String detail)
+   {
+      Entry entry = new Entry(name, detail);
+      entries.add(entry);
+      return entry;
+   }
+
+   /**
+    * Starts timing a part of the job.
+    * @param name the name of the part
+    * @return the new entry, which should be ended when the part
+    * has finished
+    */
+   public Entry start(String name)
+   {
+      return start(name, null);
+   }
+
+   /**
+    * Increments the number of warnings issued for the job.
+    */
+   public void incWarnings()
+   {
+      warnings.incrementAndGet();
+   }
+
+   /**
+    * Gets the number of warnings issued for the job.
+    * @return the number of warnings
+    */
+   public int getWarnings()
+   {
+      return warnings.get();
+   }
+
+   /**
+    * Sets whether or not independent stages were run in parallel.
+    * This is just recorded in the summary.
+    * @param parallel true if parallel stages were on
+    */
+   public void setParallel(boolean parallel)
+   {
+      this.parallel = parallel;
+   }
+
+   /**
+    * Ends the job. Any subsequent calls have no effect.
+    * @param exitCode the job's exit code or null if the job failed
+    * before an exit code was obtained
+    */
+   public synchronized void end(Integer exitCode)
+   {
+      if (endNanos != 0L) return;
+
+      endNanos = System.nanoTime();
+      this.exitCode = exitCode;
+
+      if (jobEvent.shouldCommit())
+      {
+         jobEvent.job = jobName;
+         jobEvent.exitCode = exitCode == null ? 0 : exitCode.intValue();
+         jobEvent.completed = exitCode != null;
+         jobEvent.warnings = warnings.get();
+         jobEvent.parallel = parallel;
+         jobEvent.stages = entries.size();
+         jobEvent.commit();
+      }
+   }
+
+   /**
+    * Gets the job's elapsed time. If the job hasn't ended, this is
+    * the time elapsed so far.
+    * @return the elapsed time in milliseconds
+    */
+   public synchronized double getElapsedMillis()
+   {
+      return toMillis((endNanos == 0L ? System.nanoTime() : endNanos)
+        - startNanos);
+   }
+
+   /**
+    * Gets a copy of the entries in the order they were started.
+    * @return the entries
+    */
+   public Vector<Entry> getEntries()
+   {
+      return new Vector<Entry>(entries);
+   }
+
+   /**
+    * Writes the summary to the transcript. There's one line for
+    * each entry followed by a line with the job's elapsed time and
+    * the number of warnings.
+    * @param main the PASS application
+    */
+   public void writeTranscript(Pass main)
+   {
+      PassTools passTools = main.getPassTools();
+
+      for (Entry entry : getEntries())
+      {
+         String name = entry.getDetail() == null ? entry.getName() :
+            String.format("%s (%s)", entry.getName(), entry.getDetail());
+
+         if (entry.getExitCode() == null)
+         {
+            main.transcriptMessage(passTools.getMessageWithDefault(
+              "message.stage_timing", "Timing: {0} {1,number,0.###}ms.",
+              name, entry.getDurationMillis()));
+         }
+         else
+         {
+            main.transcriptMessage(passTools.getMessageWithDefault(
+              "message.stage_timing_exit",
+              "Timing: {0} {1,number,0.###}ms (exit code {2}, {3,number,integer} bytes of output).",
+              name, entry.getDurationMillis(), entry.getExitCode().toString(),
+              Math.max(entry.getOutputBytes(), 0L)));
+         }
+      }
+
+      main.transcriptMessage(passTools.getMessageWithDefault(
+        "message.job_timing",
+        "Total time: {0,number,0.###}ms. Warnings: {1,number,integer}.",
+        getElapsedMillis(), getWarnings()));
+   }
+
+   /**
+    * Writes the summary in JSON format. The start and duration of
+    * each entry are in milliseconds, with the start relative to the
+    * start of the job. Any field that doesn't apply to an entry is
+    * omitted.
+    * @param file the file to write
+    * @throws IOException if an I/O error occurs
+    */
+   public void writeJSON(File file) throws IOException
+   {
+      PrintWriter out = null;
+
+      try
+      {
+         out = new PrintWriter(file, "UTF-8");
+
+         out.println("{");
+         out.format(Locale.ROOT, "  \"job\": %s,%n", quote(jobName));
+         out.format(Locale.ROOT, "  \"started\": %s,%n", quote(startTime.toString()));
+         out.format(Locale.ROOT, "  \"parallel\": %s,%n", parallel);
+         out.format(Locale.ROOT, "  \"elapsed\": %.3f,%n", getElapsedMillis());
+
+         if (exitCode != null)
+         {
+            out.format(Locale.ROOT, "  \"exitCode\": %d,%n", exitCode);
+         }
+
+         out.format(Locale.ROOT, "  \"warnings\": %d,%n", getWarnings());
+         out.print("  \"stages\": [");
+
+         Vector<Entry> list = getEntries();
+
+         for (int i = 0; i < list.size(); i++)
+         {
+            Entry entry = list.get(i);
+
+            out.println(i == 0 ? "" : ",");
+
+            out.format(Locale.ROOT, "    {\"name\": %s", quote(entry.getName()));
+
+            if (entry.getDetail() != null)
+            {
+               out.format(Locale.ROOT, ", \"detail\": %s", quote(entry.getDetail()));
+            }
+
+            out.format(Locale.ROOT, ", \"thread\": %s", quote(entry.getThreadName()));
+            out.format(Locale.ROOT, ", \"start\": %.3f, \"duration\": %.3f",
+              toMillis(entry.startNanos - startNanos),
+              entry.getDurationMillis());
+
+            if (entry.getExitCode() != null)
+            {
+               out.format(Locale.ROOT, ", \"exitCode\": %d", entry.getExitCode());
+            }
+
+            if (entry.getOutputBytes() >= 0L)
+            {
+               out.format(Locale.ROOT, ", \"outputBytes\": %d", entry.getOutputBytes());
+            }
+
+            if (entry.getWarnings() >= 0)
+            {
+               out.format(Locale.ROOT, ", \"warnings\": %d", entry.getWarnings());
+            }
+
+            out.print("}");
+         }
+
+         out.println(list.isEmpty() ? "]" : String.format("%n  ]"));
+         out.println("}");
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * Quotes a string for JSON.
+    */
+   private static String quote(String str)
+   {
+      if (str == null) return "null";
+
+      StringBuilder builder = new StringBuilder(str.length()+2);
+      builder.append('"');
+
+      for (int i = 0; i < str.length(); i++)
+      {
+         char c = str.charAt(i);
+
+         if (c == '"' || c == '\\')
+         {
+            builder.append('\\');
+            builder.append(c);
+         }
+         else if (c < 0x20)
+         {
+            builder.append(String.format("\\u%04x", (int)c));
+         }
+         else
+         {
+            builder.append(c);
+         }
+      }
+
+      builder.append('"');
+
+      return builder.toString();
+   }
+
+   private static double toMillis(long nanos)
+   {
+      return nanos/1000000.0;
+   }
+
+   /**
+    * A timed part of the job.
+    */
+   public class Entry
+   {
+      private Entry(String name, String detail)
+      {
+         this.name = name;
+         this.detail = detail;
+         threadName = Thread.currentThread().getName();
+         event = new StageEvent();
+         event.begin();
+         startNanos = System.nanoTime();
+      }
+
+      /**
+       * Sets the exit code of the process run by this part of the
+       * job.
+       * @param exitCode the exit code
+       */
+      public void setExitCode(int exitCode)
+      {
+         this.exitCode = Integer.valueOf(exitCode);
+      }
+
+      /**
+       * Sets the number of bytes of output captured by this part of
+       * the job.
+       * @param bytes the number of bytes
+       */
+      public void setOutputBytes(long bytes)
+      {
+         outputBytes = bytes;
+      }
+
+      /**
+       * Sets the number of warnings found by this part of the job.
+       * @param count the number of warnings
+       */
+      public void setWarnings(int count)
+      {
+         warnings = count;
+      }
+
+      /**
+       * Ends this entry. Any subsequent calls have no effect.
+       */
+      public synchronized void end()
+      {
+         if (endNanos != 0L) return;
+
+         endNanos = System.nanoTime();
+
+         if (event.shouldCommit())
+         {
+            event.job = jobName;
+            event.stage = name;
+            event.detail = detail;
+            event.exitCode = exitCode == null ? 0 : exitCode.intValue();
+            event.outputBytes = outputBytes;
+            event.warnings = warnings;
+            event.commit();
+         }
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      public String getDetail()
+      {
+         return detail;
+      }
+
+      public String getThreadName()
+      {
+         return threadName;
+      }
+
+      public Integer getExitCode()
+      {
+         return exitCode;
+      }
+
+      public long getOutputBytes()
+      {
+         return outputBytes;
+      }
+
+      public int getWarnings()
+      {
+         return warnings;
+      }
+
+      /**
+       * Gets the duration of this entry. If the entry hasn't ended,
+       * this is the time elapsed so far.
+       * @return the duration in milliseconds
+       */
+      public synchronized double getDurationMillis()
+      {
+         return toMillis((endNanos == 0L ? System.nanoTime() : endNanos)
+           - startNanos);
+      }
+
+      private String name, detail, threadName;
+      private long startNanos, endNanos = 0L;
+      private volatile Integer exitCode = null;
+      private volatile long outputBytes = -1L;
+      private volatile int warnings = -1;
+      private StageEvent event;
+   }
+
+   /**
+    * Flight Recorder event for a timed part of a job.
+    */
+   @Name("com.dickimawbooks.passlib.Stage")
+   @Label("PASS Job Stage")
+   @Category("PASS")
+   @Description("A timed part of a PASS job")
+   static class StageEvent extends Event
+   {
+      @Label("Job")
+      String job;
+
+      @Label("Stage")
+      String stage;
+
+      @Label("Detail")
+      String detail;
+
+      @Label("Exit Code")
+      int exitCode;
+
+      @Label("Output Captured")
+      @DataAmount
+      long outputBytes;
+
+      @Label("Warnings")
+      int warnings;
+   }
+
+   /**
+    * Flight Recorder event for a whole job.
+    */
+   @Name("com.dickimawbooks.passlib.Job")
+   @Label("PASS Job")
+   @Category("PASS")
+   @Description("The creation of a PASS PDF")
+   static class JobEvent extends Event
+   {
+      @Label("Job")
+      String job;
+
+      @Label("Completed")
+      boolean completed;
+
+      @Label("Exit Code")
+      int exitCode;
+
+      @Label("Warnings")
+      int warnings;
+
+      @Label("Parallel Stages")
+      boolean parallel;
+
+      @Label("Stages")
+      int stages;
+   }
+
+   private String jobName;
+   private Instant startTime;
+   private long startNanos, endNanos = 0L;
+   private Vector<Entry> entries;
+   private AtomicInteger warnings = new AtomicInteger();
+   private volatile boolean parallel = false;
+   private Integer exitCode = null;
+   private JobEvent jobEvent;
+
+   /**
+    * Suffix for the JSON summary file name.
+    */
+   public static final String JSON_SUFFIX="-timings.json";
+}
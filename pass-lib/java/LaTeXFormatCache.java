@@ -0,0 +1,239 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of precompiled LaTeX formats. The part of the document
+ * preamble that only depends on the course settings, the encoding
+ * and the configuration is the same for many jobs. That part is
+ * dumped into a format file (using mylatexformat.ltx) the first time
+ * it's needed, and subsequent LaTeX runs with the same fixed
+ * preamble start from the format rather than loading all the
+ * packages again.
+ *
+ * The document must have <code>\csname endofdump\endcsname</code>
+ * immediately after the fixed preamble. This is ignored when the
+ * document is run without the format.
+ *
+ * Each format is identified by a hash of the engine, the engine's
+ * modification date and the fixed preamble. Formats are built in
+ * the job's temporary directory and then moved into the cache
+ * directory, so concurrent jobs (even in different JVMs) won't
+ * see an incomplete format file.
+ */ 
+public class LaTeXFormatCache
+{
+   /**
+    * Creates a new cache.
+    * @param passTools the PASS tools
+    * @param dir the directory in which to store the formats
+    * @throws IOException if the directory doesn't exist and can't be
+    * created
+    */ 
+   public LaTeXFormatCache(PassTools passTools, File dir)
+   throws IOException
+   {
+      this.passTools = passTools;
+      this.dir = dir;
+
+      if (!dir.exists())
+      {
+         Files.createDirectories(dir.toPath());
+      }
+   }
+
+   /**
+    * Gets the cache directory. This should be included in the
+    * TEXFORMATS search path when LaTeX is run with a cached format.
+    * @return the directory containing the format files
+    */ 
+   public File getDirectory()
+   {
+      return dir;
+   }
+
+   /**
+    * Gets the name of the format for the given preamble, building
+    * it if necessary.
+    * @param process the process used to run the format build
+    * @param latexPath the path to the LaTeX engine
+    * @param engine the engine name (pdflatex or lualatex), which is
+    * also the name of the base format
+    * @param preamble the fixed part of the preamble
+    * @param workDir the temporary directory in which to build the
+    * format
+    * @param timeout the process timeout in milliseconds
+    * @return the format name or null if the format couldn't be built
+    * @throws IOException if an I/O error occurs
+    * @throws InterruptedException if the build is interrupted
+    */ 
+   public String getFormat(AssignmentProcess process, String latexPath,
+      String engine, CharSequence preamble, File workDir, long timeout)
+   throws IOException,InterruptedException
+   {
+      Pass main = process.getPassTools().getPass();
+
+      String name = getFormatName(latexPath, engine, preamble);
+
+      if (name == null) return null;
+
+      File fmtFile = new File(dir, name+FORMAT_EXTENSION);
+
+      Object lock = locks.computeIfAbsent(name, k -> new Object());
+
+      synchronized (lock)
+      {
+         if (fmtFile.exists())
+         {
+            main.debug("Using cached LaTeX format "+fmtFile);
+
+            return name;
+         }
+
+         File texFile = new File(workDir, name+".tex");
+
+         PrintWriter out = null;
+
+         try
+         {
+            out = new PrintWriter(texFile);
+
+            out.print(preamble);
+            out.println(END_OF_DUMP);
+         }
+         finally
+         {
+            if (out != null)
+            {
+               out.close();
+            }
+         }
+
+         ProcessBuilder builder = new ProcessBuilder(latexPath, "-ini",
+           "-jobname="+name, "&"+engine, "mylatexformat.ltx", texFile.getName());
+         builder.directory(workDir);
+
+         main.debug(String.format("Building LaTeX format %s in %s",
+           name, workDir));
+
+         File log = File.createTempFile("PASS_fmt-output-", ".txt", workDir);
+
+         int exitCode = process.runProcess(timeout, builder, log);
+
+         File builtFile = new File(workDir, name+FORMAT_EXTENSION);
+
+         if (exitCode != 0 || !builtFile.exists())
+         {
+            main.debug(String.format(
+             "LaTeX format build failed (exit code %d). Continuing without format.",
+             exitCode));
+
+            return null;
+         }
+
+         Files.move(builtFile.toPath(), fmtFile.toPath(),
+           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+         return name;
+      }
+   }
+
+   /**
+    * Removes a format from the cache. This should be used if a
+    * document fails with the format but not without it (for
+    * example, if the TeX installation has been updated).
+    * @param name the format name
+    */ 
+   public void invalidate(String name)
+   {
+      Object lock = locks.computeIfAbsent(name, k -> new Object());
+
+      synchronized (lock)
+      {
+         File fmtFile = new File(dir, name+FORMAT_EXTENSION);
+
+         if (fmtFile.exists() && !fmtFile.delete())
+         {
+            passTools.getPass().debug("Unable to delete "+fmtFile);
+         }
+      }
+   }
+
+   /**
+    * Gets the format name for the given preamble.
+    * @param latexPath the path to the LaTeX engine
+    * @param engine the engine name
+    * @param preamble the fixed part of the preamble
+    * @return the format name or null if the digest algorithm isn't
+    * available
+    */ 
+   protected String getFormatName(String latexPath, String engine,
+     CharSequence preamble)
+   {
+      try
+      {
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+         md.update(String.format("%s%n%s%n%d%n", engine, latexPath,
+            new File(latexPath).lastModified()).getBytes(StandardCharsets.UTF_8));
+         md.update(preamble.toString().getBytes(StandardCharsets.UTF_8));
+
+         byte[] digest = md.digest();
+
+         StringBuilder builder = new StringBuilder(FORMAT_PREFIX);
+
+         for (int i = 0; i < 10; i++)
+         {
+            builder.append(String.format("%02x", digest[i]));
+         }
+
+         return builder.toString();
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         passTools.getPass().debug(e.getMessage());
+
+         return null;
+      }
+   }
+
+   private PassTools passTools;
+   private File dir;
+
+   private ConcurrentHashMap<String,Object> locks
+     = new ConcurrentHashMap<String,Object>();
+
+   /**
+    * The code that marks the end of the fixed preamble.
+    */ 
+   public static final String END_OF_DUMP = "\\csname endofdump\\endcsname";
+
+   public static final String FORMAT_PREFIX = "pass-";
+   public static final String FORMAT_EXTENSION = ".fmt";
+}
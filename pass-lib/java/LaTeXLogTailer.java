@@ -0,0 +1,247 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Watches a LaTeX log file while LaTeX is running and stops the
+ * LaTeX process if the log shows that the run can't succeed. This
+ * happens if a line matches one of the fatal patterns or if the
+ * number of errors (lines starting "! ") reaches the maximum. The
+ * log isn't otherwise interpreted. Warnings are still issued by
+ * AssignmentProcess.parseLaTeXLog(File) once LaTeX has ended.
+ *
+ * The log is read as ISO-8859-1, since only the patterns need to
+ * be matched and the log may contain invalid characters.
+ */
+public class LaTeXLogTailer
+{
+   /**
+    * Creates a new tailer. The log file shouldn't exist when
+    * the LaTeX process starts.
+    * @param passTools the PASS tools
+    * @param logFile the log file that will be created by LaTeX
+    * @param maxErrors the maximum number of errors (0 for no limit)
+    * @param patterns the fatal patterns (may be null)
+    */
+   public LaTeXLogTailer(PassTools passTools, File logFile, int maxErrors,
+     Vector<Pattern> patterns)
+   {
+      this.passTools = passTools;
+      this.logFile = logFile;
+      this.maxErrors = maxErrors;
+      this.patterns = patterns;
+   }
+
+   /**
+    * Starts watching the log file.
+    * @param task the task running LaTeX, which will be aborted if
+    * a fatal problem is found
+    */
+   public synchronized void start(PassTask task)
+   {
+      this.task = task;
+
+      poller = POLLER.scheduleWithFixedDelay(() -> poll(),
+        POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops watching the log file.
+    */
+   public synchronized void stop()
+   {
+      if (poller != null)
+      {
+         poller.cancel(false);
+         poller = null;
+      }
+
+      close();
+   }
+
+   /**
+    * Gets the reason LaTeX was stopped.
+    * @return the reason or null if LaTeX wasn't stopped
+    */
+   public synchronized String getAbortReason()
+   {
+      return abortReason;
+   }
+
+   /**
+    * Reads any new content in the log file.
+    */
+   private synchronized void poll()
+   {
+      if (poller == null || abortReason != null) return;
+
+      try
+      {
+         if (channel == null)
+         {
+            if (!logFile.exists()) return;
+
+            channel = FileChannel.open(logFile.toPath(),
+              StandardOpenOption.READ);
+         }
+
+         buffer.clear();
+
+         while (channel.read(buffer) > 0)
+         {
+            buffer.flip();
+
+            while (buffer.hasRemaining())
+            {
+               char c = (char)(buffer.get() & 0xFF);
+
+               if (c == '\n')
+               {
+                  if (line.length() > 0 && line.charAt(line.length()-1) == '\r')
+                  {
+                     line.setLength(line.length()-1);
+                  }
+
+                  processLine(line.toString());
+                  line.setLength(0);
+
+                  if (abortReason != null)
+                  {
+                     stop();
+                     return;
+                  }
+               }
+               else
+               {
+                  line.append(c);
+               }
+            }
+
+            buffer.clear();
+         }
+      }
+      catch (IOException e)
+      {
+         passTools.getPass().debug(String.format(
+           "Unable to read %s (%s). No longer watching the log.",
+           logFile, e.getMessage()));
+
+         stop();
+      }
+   }
+
+   /**
+    * Checks a line of the log.
+    * @param text the line
+    */
+   private void processLine(String text)
+   {
+      if (patterns != null)
+      {
+         for (Pattern pattern : patterns)
+         {
+            if (pattern.matcher(text).find())
+            {
+               abort(passTools.getMessageWithDefault(
+                 "error.latex_aborted_pattern",
+                 "LaTeX was stopped early as the log contains: {0}", text));
+               return;
+            }
+         }
+      }
+
+      if (text.startsWith("! "))
+      {
+         errors++;
+
+         if (maxErrors > 0 && errors >= maxErrors)
+         {
+            abort(passTools.getMessageWithDefault(
+              "error.latex_aborted_errors",
+              "LaTeX was stopped early after {0,number} errors.", errors));
+         }
+      }
+   }
+
+   /**
+    * Stops the LaTeX process.
+    * @param reason the reason
+    */
+   private void abort(String reason)
+   {
+      abortReason = reason;
+
+      passTools.getPass().debug(reason);
+
+      task.abort(new ProcessAbortedException(reason));
+   }
+
+   private void close()
+   {
+      if (channel != null)
+      {
+         try
+         {
+            channel.close();
+         }
+         catch (IOException e)
+         {
+            passTools.getPass().debug(e.getMessage());
+         }
+
+         channel = null;
+      }
+   }
+
+   private PassTools passTools;
+   private File logFile;
+   private int maxErrors;
+   private Vector<Pattern> patterns;
+
+   private PassTask task;
+   private ScheduledFuture<?> poller = null;
+   private FileChannel channel = null;
+   private ByteBuffer buffer = ByteBuffer.allocate(8192);
+   private StringBuilder line = new StringBuilder();
+   private int errors = 0;
+   private String abortReason = null;
+
+   /**
+    * Time (in milliseconds) between checks for new log content.
+    */
+   public static final long POLL_INTERVAL=250L;
+
+   /**
+    * Shared thread used to watch the log files of all jobs.
+    */
+   private static final ScheduledExecutorService POLLER
+     = Executors.newSingleThreadScheduledExecutor(
+         new PassTask.DaemonThreadFactory("LaTeX log tailer"));
+}
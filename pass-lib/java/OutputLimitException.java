@@ -0,0 +1,42 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown if a process has been terminated because its
+ * output exceeded the permitted limit.
+ */ 
+public class OutputLimitException extends IOException
+{
+   public OutputLimitException(String msg, long limit)
+   {
+      super(msg);
+      this.limit = limit;
+   }
+
+   /**
+    * Gets the limit that was exceeded.
+    * @return the maximum number of bytes
+    */ 
+   public long getLimit()
+   {
+      return limit;
+   }
+
+   private long limit;
+}
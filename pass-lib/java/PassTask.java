@@ -16,17 +16,22 @@
 package com.dickimawbooks.passlib;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import java.nio.channels.InterruptedByTimeoutException;
+import java.util.Vector;
 import java.util.concurrent.CancellationException;
-
-import java.awt.event.ActionListener;
-import java.awt.event.ActionEvent;
-
-import javax.swing.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A task that needs to run as a process. The output can be logged in a
@@ -77,128 +82,538 @@ public class PassTask
    }
 
    /**
-    * Starts the process with the require timeout.
+    * Sets the maximum number of bytes to record from STDOUT and
+    * STDERR. If a limit is set, the stream is read through a pipe
+    * and the bytes are counted as they arrive, rather than
+    * redirecting the process output straight to the file. Once the
+    * limit is reached, any further output is discarded, or, if
+    * killOnLimit is true, the process is destroyed and
+    * performProcess() throws OutputLimitException. If STDERR is
+    * merged with STDOUT, the STDOUT limit applies to both.
+    * @param maxOutput the STDOUT limit (0 for no limit)
+    * @param maxError the STDERR limit (0 for no limit)
+    * @param killOnLimit true if the process should be terminated
+    * when a limit is exceeded
+    */ 
+   public void setOutputLimits(long maxOutput, long maxError,
+     boolean killOnLimit)
+   {
+      this.maxOutput = maxOutput;
+      this.maxError = maxError;
+      this.killOnLimit = killOnLimit;
+   }
+
+   /**
+    * Tests if the STDOUT limit was reached. 
+    * @return true if some STDOUT output was discarded
+    */ 
+   public boolean isOutputLimitReached()
+   {
+      return outputLimitReached;
+   }
+
+   /**
+    * Tests if the STDERR limit was reached. 
+    * @return true if some STDERR output was discarded
+    */ 
+   public boolean isErrorLimitReached()
+   {
+      return errorLimitReached;
+   }
+
+   /**
+    * Starts the process with the require timeout and waits for it
+    * to finish.
     * @return the exit code 
     * @throws IOException if I/O error occurs
     * @throws InterruptedException if interruption occurs
     */ 
    public int performProcess() throws IOException,InterruptedException
    {
-      int exitCode = -1;
-
-      BufferedInputStream stdOutReader = null;
+      CompletableFuture<Integer> future = startProcess();
+      CompletableFuture<Void> terminated = termination;
 
       try
       {
-         if (outputFile != null)
+         return future.get().intValue();
+      }
+      catch (ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+
+         if (cause instanceof IOException)
          {
-            if (errFile == null)
-            {
-               processBuilder.redirectErrorStream(true);
-            }
+            throw (IOException)cause;
+         }
+         else if (cause instanceof CancellationException)
+         {
+            throw (CancellationException)cause;
+         }
+         else if (cause instanceof RuntimeException)
+         {
+            throw (RuntimeException)cause;
+         }
 
-            processBuilder.redirectOutput(outputFile);
+         throw new IOException(cause);
+      }
+      catch (InterruptedException e)
+      {
+         future.cancel(false);
+         throw e;
+      }
+      finally
+      {
+         // Don't return until the process and its descendants have
+         // been dealt with, so that the transcript messages about
+         // any survivors belong to this process.
 
-            stdOutReader = new BufferedInputStream(new FileInputStream(outputFile));
+         if (future.isCompletedExceptionally())
+         {
+            terminated.join();
          }
+      }
+   }
 
-         if (errFile != null)
+   /**
+    * Starts the process without waiting for it to finish. The
+    * returned future is completed with the exit code when the
+    * process ends. If the timeout elapses first, the process is
+    * destroyed and the future is completed exceptionally with
+    * InterruptedByTimeoutException. If the task is interrupted or
+    * the future is cancelled, the process is destroyed and the
+    * future is cancelled. No thread is tied up while the process
+    * is running. When the process is destroyed, any processes it
+    * started (such as the commands run by make or a build script)
+    * are also destroyed. See destroyProcessTree(Pass,ProcessHandle).
+    * @return the future exit code
+    * @throws IOException if the process can't be started
+    */ 
+   public CompletableFuture<Integer> startProcess() throws IOException
+   {
+      boolean pumpOutput = outputFile != null && maxOutput > 0;
+      boolean pumpError = errFile != null && maxError > 0;
+
+      if (outputFile != null)
+      {
+         if (errFile == null)
          {
-            processBuilder.redirectError(errFile);
+            processBuilder.redirectErrorStream(true);
          }
 
-         if (inFile != null)
+         processBuilder.redirectOutput(pumpOutput ? 
+           ProcessBuilder.Redirect.PIPE : ProcessBuilder.Redirect.to(outputFile));
+      }
+
+      if (errFile != null)
+      {
+         processBuilder.redirectError(pumpError ? 
+           ProcessBuilder.Redirect.PIPE : ProcessBuilder.Redirect.to(errFile));
+      }
+
+      if (inFile != null)
+      {
+         processBuilder.redirectInput(inFile);
+      }
+
+      final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+      final CompletableFuture<Void> terminated = new CompletableFuture<Void>();
+
+      synchronized (this)
+      {
+         if (processStatus == STATUS_CANCELLED)
          {
-            processBuilder.redirectInput(inFile);
+            throw new CancellationException();
          }
 
-         processStatus=STATUS_OK;
+         processStatus = STATUS_OK;
+         result = future;
+         termination = terminated;
+      }
 
-         Timer timer = new Timer((int)timeout, new ActionListener()
-         {
-            public void actionPerformed(ActionEvent evt)
-            {
-               processStatus=STATUS_TIMEOUT;
-            }
-         });
+      outputLimitReached = false;
+      errorLimitReached = false;
+
+      final Process p = processBuilder.start();
+
+      // The exit code isn't available until both the process has
+      // ended and any pipes have been emptied into their files.
+      // A background process started by the process (for example,
+      // "cmd &" in a shell script) may keep the pipes open after
+      // the process has ended, so the pumps are only given a short
+      // time to finish once the process has ended. After that, the
+      // pipes are closed and the exit code is reported.
+
+      final CompletableFuture<Void> pumps = CompletableFuture.allOf(
+        pumpOutput ? pump(p.getInputStream(), outputFile, maxOutput, false, future)
+                   : CompletableFuture.completedFuture(null),
+        pumpError ? pump(p.getErrorStream(), errFile, maxError, true, future)
+                   : CompletableFuture.completedFuture(null));
+
+      p.onExit().thenCompose(proc ->
+          pumps.completeOnTimeout(null, PUMP_GRACE, TimeUnit.MILLISECONDS)
+            .thenApply(v -> proc))
+        .thenAccept(proc ->
+          {
+             if (pumpOutput || pumpError)
+             {
+                closePipes(p);
+             }
+
+             future.complete(proc.exitValue());
+          });
+
+      final ScheduledFuture<?> timer = TIMER.schedule(() ->
+        {
+           if (future.completeExceptionally(new InterruptedByTimeoutException()))
+           {
+              processStatus = STATUS_TIMEOUT;
+           }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+      future.whenComplete((exitCode, exception) ->
+        {
+           timer.cancel(false);
+
+           if (exception == null)
+           {
+              terminated.complete(null);
+           }
+           else
+           {
+              destroyProcessTree(pass, p.toHandle()).thenRun(
+                () -> terminated.complete(null));
+           }
+        });
+
+      if (processStatus == STATUS_CANCELLED)
+      {
+         // interrupt() was called before the future was assigned
 
-         timer.setRepeats(false);
-         timer.start();
+         future.cancel(false);
+      }
 
-         Process p = processBuilder.start();
+      return future;
+   }
 
-         while (p.isAlive())
-         {
-            if (stdOutReader != null && stdOutReader.available() > 0)
-            {
-               int c = stdOutReader.read();
+   /**
+    * Terminates the given process and all its descendants. The
+    * descendants are found before the process is signalled, as
+    * they can't be traced once their parent has ended. Each
+    * process is first asked to terminate normally (SIGTERM on
+    * Unix-like systems). Any that are still running after the grace
+    * period (PassTools.getKillGracePeriod()) are forcibly terminated
+    * and reported in the transcript, as are any that are still
+    * running after that.
+    * @param pass the Pass application
+    * @param process the process
+    * @return future that completes once the processes have ended or
+    * the attempts to terminate them have been made
+    */ 
+   public static CompletableFuture<Void> destroyProcessTree(final Pass pass,
+     ProcessHandle process)
+   {
+      final Vector<ProcessHandle> tree = new Vector<ProcessHandle>();
 
-/*
-               if (c != -1)
-               {
-                  pass.verboseCodePoint(c);
-               }
-*/
-            }
-            else
-            {
-               Thread.sleep(SLEEP_INTERVAL);
-            }
-
-            if (processStatus > 0)
-            {
-               p.destroy();
-
-               if (processStatus == STATUS_TIMEOUT)
-               {
-                  throw new InterruptedByTimeoutException();
-               }
-               else
-               {
-                  throw new CancellationException();
-               }
-            }
-         }
+      process.descendants().forEach(tree::add);
+      tree.add(process);
 
-         exitCode = p.exitValue();
+      for (ProcessHandle handle : tree)
+      {
+         handle.destroy();
+      }
 
-         if (stdOutReader != null)
-         {
-            int c;
+      long grace = pass.getPassTools().getKillGracePeriod();
+
+      return whenEnded(tree, grace).thenCompose(v ->
+        {
+           Vector<ProcessHandle> survivors = new Vector<ProcessHandle>();
+
+           for (ProcessHandle handle : tree)
+           {
+              if (isRunning(handle))
+              {
+                 if (!survivors.contains(handle))
+                 {
+                    survivors.add(handle);
+                 }
+
+                 // include anything started after the tree was
+                 // found
+
+                 handle.descendants().forEach(h ->
+                   {
+                      if (!survivors.contains(h))
+                      {
+                         survivors.add(h);
+                      }
+                   });
+              }
+           }
+
+           if (survivors.isEmpty())
+           {
+              return CompletableFuture.completedFuture(null);
+           }
+
+           for (ProcessHandle handle : survivors)
+           {
+              pass.transcriptMessage(
+                pass.getPassTools().getMessageWithDefault(
+                  "message.process_killed",
+                  "Process {0} ({1}) didn''t end within {2}ms of the termination request and has been forcibly terminated.",
+                  String.valueOf(handle.pid()), getCommand(handle),
+                  String.valueOf(grace)));
+
+              handle.destroyForcibly();
+           }
+
+           return whenEnded(survivors, KILL_WAIT).thenRun(() ->
+             {
+                for (ProcessHandle handle : survivors)
+                {
+                   if (isRunning(handle))
+                   {
+                      pass.transcriptMessage(
+                        pass.getPassTools().getMessageWithDefault(
+                          "message.process_survived",
+                          "Process {0} ({1}) is still running after being forcibly terminated.",
+                          String.valueOf(handle.pid()), getCommand(handle)));
+                   }
+                }
+             });
+        });
+   }
 
-            while ((c = stdOutReader.read()) != -1)
-            {
-/*
-               pass.verboseCodePoint(c);
-*/
-            }
-         }
+   /**
+    * Gets a future that completes when all the given processes have
+    * ended or after the given time, whichever is first.
+    * @param processes the processes
+    * @param wait the maximum time to wait (in milliseconds)
+    * @return the future
+    */ 
+   private static CompletableFuture<Void> whenEnded(
+     Vector<ProcessHandle> processes, long wait)
+   {
+      CompletableFuture<?>[] exits = new CompletableFuture<?>[processes.size()];
+
+      for (int i = 0; i < exits.length; i++)
+      {
+         exits[i] = processes.get(i).onExit();
       }
-      finally
+
+      return CompletableFuture.allOf(exits)
+        .completeOnTimeout(null, wait, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Determines whether or not the given process is still running.
+    * A process that has ended but hasn't yet been reaped by its new
+    * parent (a zombie) is still considered alive by
+    * ProcessHandle.isAlive(), but its command is no longer
+    * available.
+    * @param handle the process
+    * @return true if the process is running
+    */ 
+   private static boolean isRunning(ProcessHandle handle)
+   {
+      return handle.isAlive() && handle.info().command().isPresent();
+   }
+
+   /**
+    * Gets the command of the given process for messages.
+    * @param handle the process
+    * @return the command or "?" if it's not available
+    */ 
+   private static String getCommand(ProcessHandle handle)
+   {
+      return handle.info().command().orElse("?");
+   }
+
+   /**
+    * Copies the given process stream to a file, counting the bytes.
+    * Output beyond the limit is read but not written, so that the
+    * process isn't blocked by a full pipe.
+    * @param in the process stream
+    * @param file the file in which to record the output
+    * @param limit the maximum number of bytes to record
+    * @param isError true if the stream is STDERR
+    * @param future the future that will be completed exceptionally if
+    * the process should be killed when the limit is exceeded
+    * @return future that completes once the stream has been read
+    */ 
+   private CompletableFuture<Void> pump(final InputStream in, final File file,
+     final long limit, final boolean isError,
+     final CompletableFuture<Integer> future)
+   {
+      return CompletableFuture.runAsync(() ->
+        {
+           OutputStream out = null;
+
+           try
+           {
+              out = new FileOutputStream(file);
+
+              byte[] buffer = new byte[PUMP_BUFFER_SIZE];
+              long total = 0L;
+              int n;
+
+              while ((n = in.read(buffer)) != -1)
+              {
+                 if (total < limit)
+                 {
+                    out.write(buffer, 0, (int)Math.min(n, limit-total));
+                 }
+
+                 total += n;
+
+                 if (total > limit)
+                 {
+                    if (isError)
+                    {
+                       errorLimitReached = true;
+                    }
+                    else
+                    {
+                       outputLimitReached = true;
+                    }
+
+                    if (killOnLimit)
+                    {
+                       future.completeExceptionally(new OutputLimitException(
+                         pass.getPassTools().getMessageWithDefault(
+                           "error.process_output_limit",
+                           "Output limit ({0,number} bytes) exceeded. Process terminated.",
+                           limit), limit));
+
+                       break;
+                    }
+                 }
+              }
+           }
+           catch (IOException e)
+           {
+              // The stream will be closed if the process is
+              // destroyed.
+
+              if (!future.isDone())
+              {
+                 pass.debug(String.format("%s: %s",
+                   e.getClass().getSimpleName(), e.getMessage()));
+              }
+           }
+           finally
+           {
+              try
+              {
+                 in.close();
+              }
+              catch (IOException e)
+              {
+              }
+
+              if (out != null)
+              {
+                 try
+                 {
+                    out.close();
+                 }
+                 catch (IOException e)
+                 {
+                    pass.debug(e.getMessage());
+                 }
+              }
+           }
+        }, PUMPS);
+   }
+
+   /**
+    * Closes the process's output pipes. Any output still to be
+    * read (because a background process has kept a pipe open after
+    * the process ended) is discarded and the pump stops the next
+    * time its read returns.
+    * @param p the process
+    */ 
+   private void closePipes(Process p)
+   {
+      try
+      {
+         p.getInputStream().close();
+      }
+      catch (IOException e)
       {
-         if (stdOutReader != null)
-         {
-            stdOutReader.close();
-         }
       }
 
-      return exitCode;
+      try
+      {
+         p.getErrorStream().close();
+      }
+      catch (IOException e)
+      {
+      }
    }
 
    /**
     * Signals that the current process should be cancelled.
     * May be called by a button provided for the user to cancel.
-    * Doesn't have an instant effect but depends on the sleep
-    * interval.
+    * The process and its descendants are destroyed immediately and
+    * any thread waiting in performProcess() will throw
+    * CancellationException once they have ended.
     */ 
    public void interrupt()
    {
-      processStatus = STATUS_CANCELLED;
+      CompletableFuture<Integer> future;
+
+      synchronized (this)
+      {
+         processStatus = STATUS_CANCELLED;
+         future = result;
+      }
+
+      if (future != null)
+      {
+         future.cancel(false);
+      }
+   }
+
+   /**
+    * Stops the current process because it can't succeed. The
+    * process and its descendants are destroyed and
+    * performProcess() will throw the given exception.
+    * @param reason the exception describing why the process was
+    * stopped
+    * @return true if the process was stopped or false if it had
+    * already finished or there's no current process
+    */ 
+   public boolean abort(IOException reason)
+   {
+      CompletableFuture<Integer> future;
+
+      synchronized (this)
+      {
+         future = result;
+      }
+
+      return future != null && future.completeExceptionally(reason);
+   }
+
+   /**
+    * Gets the status of the task.
+    * @return STATUS_OK if the task hasn't timed out or been
+    * cancelled, STATUS_TIMEOUT if it timed out or STATUS_CANCELLED
+    * if it was cancelled
+    */ 
+   public int getStatus()
+   {
+      return processStatus;
    }
 
    public static final int STATUS_OK=0, STATUS_TIMEOUT=1, STATUS_CANCELLED=2;
-   public static final int SLEEP_INTERVAL=100;// milliseconds
    private volatile int processStatus=STATUS_OK;
+   private long maxOutput=0L, maxError=0L;
+   private boolean killOnLimit=false;
+   private volatile boolean outputLimitReached=false, errorLimitReached=false;
+   private CompletableFuture<Integer> result = null;
+   private volatile CompletableFuture<Void> termination = null;
    private long timeout;// milliseconds
    private ProcessBuilder processBuilder;
    private File outputFile = null;
@@ -206,4 +621,52 @@ public class PassTask
    private File inFile = null;
 
    private Pass pass;
+
+   /**
+    * Shared timer used for all process timeouts. This uses a single
+    * daemon thread (rather than a Swing Timer) so that it doesn't
+    * require AWT and doesn't prevent the JVM from exiting.
+    */ 
+   private static final ScheduledExecutorService TIMER
+     = Executors.newSingleThreadScheduledExecutor(
+         new DaemonThreadFactory("PassTask timer"));
+
+   /**
+    * Threads used to copy process output when limits are set.
+    */ 
+   private static final ExecutorService PUMPS
+     = Executors.newCachedThreadPool(
+         new DaemonThreadFactory("PassTask output"));
+
+   public static final int PUMP_BUFFER_SIZE=8192;
+
+   /**
+    * Time (in milliseconds) to wait for the output pipes to be
+    * emptied after the process has ended.
+    */ 
+   private static final long PUMP_GRACE=1000L;
+
+   /**
+    * Time (in milliseconds) to wait for forcibly terminated
+    * processes to end before reporting them.
+    */ 
+   private static final long KILL_WAIT=1000L;
+
+   static class DaemonThreadFactory implements ThreadFactory
+   {
+      DaemonThreadFactory(String name)
+      {
+         this.name = name;
+      }
+
+      @Override
+      public Thread newThread(Runnable r)
+      {
+         Thread thread = new Thread(r, name);
+         thread.setDaemon(true);
+         return thread;
+      }
+
+      private String name;
+   }
 }
@@ -16,6 +16,7 @@
 package com.dickimawbooks.passlib;
 
 import java.util.*;
+import java.util.regex.Pattern;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -66,6 +67,56 @@ public class PassTools
       loadDictionary("passlib", locale);
    }
 
+   /**
+    * Creates a new instance for another Pass object that shares the
+    * dictionary and the local settings (application paths, process
+    * environment and other options from the resources XML file)
+    * already loaded by the given instance. This allows a long-lived
+    * application to process multiple jobs without having to reload
+    * the dictionaries and resources file for each job. The course
+    * settings are copied, but will be replaced when
+    * loadAssignments(Course) is used. The dictionary and local settings
+    * shouldn't be modified once they have been shared.
+    * @param pass the main Pass application for the job
+    * @param shared the instance that has already loaded the
+    * dictionary and local settings
+    */ 
+   public PassTools(Pass pass, PassTools shared)
+   {
+      this.pass = pass;
+      config = new AssignmentProcessConfig(this);
+
+      isWindows = shared.isWindows;
+      dictionary = shared.dictionary;
+      applications = shared.applications;
+      processEnvMap = shared.processEnvMap;
+      agreeRequired = shared.agreeRequired;
+      luaLaTeXBraces = shared.luaLaTeXBraces;
+      resourceTimeOut = shared.resourceTimeOut;
+      cacheDirectory = shared.cacheDirectory;
+      maxStdoutBytes = shared.maxStdoutBytes;
+      maxStderrBytes = shared.maxStderrBytes;
+      maxLogBytes = shared.maxLogBytes;
+      killOnOutputLimit = shared.killOnOutputLimit;
+      killGracePeriod = shared.killGracePeriod;
+      latexAbortMaxErrors = shared.latexAbortMaxErrors;
+      latexAbortPatterns = shared.latexAbortPatterns;
+      latexFormatCache = shared.latexFormatCache;
+      resourceCache = shared.resourceCache;
+      resultsCache = shared.resultsCache;
+      courseDataCache = shared.courseDataCache;
+      inProcessJavaCompiler = shared.inProcessJavaCompiler;
+      parallelStages = shared.parallelStages;
+      autoLaTeXEngine = shared.autoLaTeXEngine;
+      maxWarnings = shared.maxWarnings;
+      jobBudget = shared.jobBudget;
+      timingReport = shared.timingReport;
+      workspaceDirectory = shared.workspaceDirectory;
+      stagingMode = shared.stagingMode;
+
+      courseSettings = new CourseSettings(shared.courseSettings);
+   }
+
    /**
     * Gets the dictionary file for the given tag and locale as an
     * InputStream. The file should be named
@@ -905,6 +956,177 @@ public class PassTools
       argList.add(pass.getEncoding());
    }
 
+   /**
+    * Sets whether or not Java source code should be compiled in the
+    * PASS JVM (using JavaCompilerEngine) rather than by running
+    * javac.
+    * @param enable true if the in-process compiler should be used
+    */ 
+   public void setInProcessJavaCompiler(boolean enable)
+   {
+      inProcessJavaCompiler = enable;
+   }
+
+   /**
+    * Determines whether or not Java source code should be compiled
+    * in the PASS JVM.
+    * @return true if the in-process compiler should be used (if
+    * available)
+    */ 
+   public boolean isInProcessJavaCompiler()
+   {
+      return inProcessJavaCompiler;
+   }
+
+   /**
+    * Sets whether or not independent parts of the PDF creation
+    * (such as creating the zip file and compiling the application)
+    * may be run at the same time.
+    * @param enable true if independent stages should run in
+    * parallel or false if they should be run one after the other
+    */ 
+   public void setParallelStages(boolean enable)
+   {
+      parallelStages = enable;
+   }
+
+   /**
+    * Determines whether or not independent parts of the PDF
+    * creation may be run at the same time.
+    * @return true if independent stages should run in parallel
+    */ 
+   public boolean isParallelStages()
+   {
+      return parallelStages;
+   }
+
+   /**
+    * Sets the maximum number of warnings issued for each job. Any
+    * further warnings are counted and reported in a single warning
+    * at the end of the job.
+    * @param max the maximum number of warnings or 0 for no limit
+    */ 
+   public void setMaxWarnings(int max)
+   {
+      maxWarnings = max;
+   }
+
+   /**
+    * Gets the maximum number of warnings issued for each job.
+    * @return the maximum number of warnings or 0 for no limit
+    */ 
+   public int getMaxWarnings()
+   {
+      return maxWarnings;
+   }
+
+   /**
+    * Sets the total time budget for each job. Each job uses its own
+    * copy of the given budget.
+    * @param budget the budget settings or null if each process
+    * only has its own timeout
+    */ 
+   public void setJobBudget(JobBudget budget)
+   {
+      jobBudget = budget;
+   }
+
+   /**
+    * Gets the total time budget settings for each job.
+    * @return the budget settings or null if each process only has
+    * its own timeout
+    */ 
+   public JobBudget getJobBudget()
+   {
+      return jobBudget;
+   }
+
+   /**
+    * Sets whether or not a UTF-8 document that only contains ASCII
+    * may be built with PDFLaTeX instead of LuaLaTeX.
+    * @param enable true if the engine should be selected according
+    * to the content
+    */ 
+   public void setAutoLaTeXEngine(boolean enable)
+   {
+      autoLaTeXEngine = enable;
+   }
+
+   /**
+    * Determines whether or not a UTF-8 document that only contains
+    * ASCII may be built with PDFLaTeX instead of LuaLaTeX.
+    * @return true if the engine should be selected according to
+    * the content
+    */ 
+   public boolean isAutoLaTeXEngine()
+   {
+      return autoLaTeXEngine;
+   }
+
+   /**
+    * Sets whether or not the time taken by each part of a job
+    * should be reported. If on, the timings are written to the
+    * transcript and to a JSON file next to the PDF.
+    * @param enable true if the timings should be reported
+    */ 
+   public void setTimingReport(boolean enable)
+   {
+      timingReport = enable;
+   }
+
+   /**
+    * Determines whether or not the time taken by each part of a
+    * job should be reported.
+    * @return true if the timings should be reported
+    */ 
+   public boolean isTimingReport()
+   {
+      return timingReport;
+   }
+
+   /**
+    * Sets the directory in which each job's temporary directory is
+    * created. This may be on a RAM-backed file system.
+    * @param dir the workspace directory or null to use the system's
+    * default temporary directory
+    */ 
+   public void setWorkspaceDirectory(File dir)
+   {
+      workspaceDirectory = dir;
+   }
+
+   /**
+    * Gets the directory in which each job's temporary directory is
+    * created.
+    * @return the workspace directory or null if the system's
+    * default temporary directory is used
+    */ 
+   public File getWorkspaceDirectory()
+   {
+      return workspaceDirectory;
+   }
+
+   /**
+    * Sets how the submitted files are put in the job's temporary
+    * directory.
+    * @param mode one of FileStager.COPY, FileStager.LINK or
+    * FileStager.SYMLINK
+    */ 
+   public void setStagingMode(int mode)
+   {
+      stagingMode = mode;
+   }
+
+   /**
+    * Gets how the submitted files are put in the job's temporary
+    * directory.
+    * @return the staging mode
+    */ 
+   public int getStagingMode()
+   {
+      return stagingMode;
+   }
+
    /**
     * Gets the path to the C++ compiler.
     * @return the path to g++ or c++ or gcc-c++
@@ -1103,58 +1325,328 @@ public class PassTools
    }
 
    /**
-    * Loads all assignment data for the given course.
-    * @param course the course
-    * @return the list of all assignments defined in the course XML
-    * file
+    * Sets the maximum number of bytes that may be recorded from a
+    * process. A value of 0 indicates no limit.
+    * @param maxStdout the limit for the STDOUT of the student's
+    * application
+    * @param maxStderr the limit for the STDERR of the student's
+    * application
+    * @param maxLog the limit for the combined output of other
+    * processes (such as the compiler)
+    * @param killOnLimit true if a process should be terminated when
+    * it exceeds its limit
     */ 
-   public Vector<AssignmentData> loadAssignments(Course course)
-    throws SAXException,IOException
+   public void setProcessOutputLimits(long maxStdout, long maxStderr,
+     long maxLog, boolean killOnLimit)
    {
-      AssignmentDataParser parser = new AssignmentDataParser(pass);
+      maxStdoutBytes = maxStdout;
+      maxStderrBytes = maxStderr;
+      maxLogBytes = maxLog;
+      killOnOutputLimit = killOnLimit;
+   }
 
-      parser.loadAssignments(course);
+   /**
+    * Gets the maximum number of bytes to record from the STDOUT of
+    * the student's application.
+    * @return the limit or 0 if there's no limit
+    */ 
+   public long getMaxStdoutBytes()
+   {
+      return maxStdoutBytes;
+   }
 
-      Vector<AssignmentData> assignments = parser.getData();
+   /**
+    * Gets the maximum number of bytes to record from the STDERR of
+    * the student's application.
+    * @return the limit or 0 if there's no limit
+    */ 
+   public long getMaxStderrBytes()
+   {
+      return maxStderrBytes;
+   }
 
-      listingSettings = parser.getListingsSettings();
-      geometrySettings = parser.getGeometrySettings();
-      fontSpecSettings = parser.getFontSpecSettings();
-      fontSpecOptions = parser.getFontSpecOptions();
-      fontEncSettings = parser.getFontEncSettings();
-      fontEncOptions = parser.getFontEncOptions();
+   /**
+    * Gets the maximum number of bytes to record from the output of
+    * other processes, such as the compiler.
+    * @return the limit or 0 if there's no limit
+    */ 
+   public long getMaxLogBytes()
+   {
+      return maxLogBytes;
+   }
 
-      Long val = parser.getMaxOutputSetting();
+   /**
+    * Determines whether or not a process should be terminated if
+    * it exceeds its output limit.
+    * @return true if the process should be terminated
+    */ 
+   public boolean isKillOnOutputLimit()
+   {
+      return killOnOutputLimit;
+   }
 
-      if (val != null)
+   /**
+    * Sets the number of errors after which LaTeX is stopped.
+    * @param maxErrors the maximum number of errors (0 for no limit)
+    */ 
+   public void setLaTeXAbortMaxErrors(int maxErrors)
+   {
+      latexAbortMaxErrors = maxErrors;
+   }
+
+   /**
+    * Gets the number of errors after which LaTeX is stopped.
+    * @return the maximum number of errors (0 for no limit)
+    */ 
+   public int getLaTeXAbortMaxErrors()
+   {
+      return latexAbortMaxErrors;
+   }
+
+   /**
+    * Adds a pattern that causes LaTeX to be stopped if a line of
+    * its log file matches it.
+    * @param pattern the pattern
+    */ 
+   public void addLaTeXAbortPattern(Pattern pattern)
+   {
+      if (latexAbortPatterns == null)
       {
-         maxOutputSetting = val.longValue();
+         latexAbortPatterns = new Vector<Pattern>();
       }
 
-      Integer intVal = parser.getVerbMaxCharsPerLine();
+      latexAbortPatterns.add(pattern);
+   }
+
+   /**
+    * Gets the patterns that cause LaTeX to be stopped if a line of
+    * its log file matches.
+    * @return the patterns or null if there are none
+    */ 
+   public Vector<Pattern> getLaTeXAbortPatterns()
+   {
+      return latexAbortPatterns;
+   }
+
+   /**
+    * Determines whether or not the LaTeX log file should be
+    * watched while LaTeX is running, so that LaTeX can be stopped
+    * early.
+    * @return true if a maximum number of errors or any patterns
+    * have been set
+    */ 
+   public boolean isLaTeXAbortOn()
+   {
+      return latexAbortMaxErrors > 0 || latexAbortPatterns != null;
+   }
+
+   /**
+    * Sets the time allowed for a process (and the processes it
+    * started) to end after being asked to terminate, before it's
+    * forcibly terminated.
+    * @param millis the grace period in milliseconds
+    */ 
+   public void setKillGracePeriod(long millis)
+   {
+      killGracePeriod = millis;
+   }
+
+   /**
+    * Gets the time allowed for a process to end after being asked
+    * to terminate, before it's forcibly terminated.
+    * @return the grace period in milliseconds
+    */ 
+   public long getKillGracePeriod()
+   {
+      return killGracePeriod;
+   }
+
+   /**
+    * Sets the directory used to store cached data that may be shared
+    * between jobs.
+    * @param dir the cache directory
+    */ 
+   public void setCacheDirectory(File dir)
+   {
+      cacheDirectory = dir;
+   }
+
+   /**
+    * Gets the directory used to store cached data.
+    * @return the cache directory or null if caching hasn't been
+    * enabled in the resources XML file
+    */ 
+   public File getCacheDirectory()
+   {
+      return cacheDirectory;
+   }
+
+   /**
+    * Sets the cache of precompiled LaTeX formats.
+    * @param cache the format cache or null to disable
+    */ 
+   public void setLaTeXFormatCache(LaTeXFormatCache cache)
+   {
+      latexFormatCache = cache;
+   }
+
+   /**
+    * Gets the cache of precompiled LaTeX formats.
+    * @return the format cache or null if disabled
+    */ 
+   public LaTeXFormatCache getLaTeXFormatCache()
+   {
+      return latexFormatCache;
+   }
 
-      if (intVal != null)
+   /**
+    * Sets the cache of remote resource files and build scripts.
+    * @param cache the resource cache or null to disable
+    */ 
+   public void setResourceCache(ResourceCache cache)
+   {
+      resourceCache = cache;
+   }
+
+   /**
+    * Gets the cache of remote resource files and build scripts.
+    * @return the resource cache or null if disabled
+    */ 
+   public ResourceCache getResourceCache()
+   {
+      return resourceCache;
+   }
+
+   /**
+    * Sets the cache of build and test results.
+    * @param cache the results cache or null to disable
+    */ 
+   public void setResultsCache(ResultsCache cache)
+   {
+      resultsCache = cache;
+   }
+
+   /**
+    * Gets the cache of build and test results.
+    * @return the results cache or null if disabled
+    */ 
+   public ResultsCache getResultsCache()
+   {
+      return resultsCache;
+   }
+
+   /**
+    * Sets the cache of data loaded from remote XML files.
+    * @param cache the course data cache or null to disable
+    */ 
+   public void setCourseDataCache(CourseDataCache cache)
+   {
+      courseDataCache = cache;
+   }
+
+   /**
+    * Gets the cache of data loaded from remote XML files.
+    * @return the course data cache or null if disabled
+    */ 
+   public CourseDataCache getCourseDataCache()
+   {
+      return courseDataCache;
+   }
+
+   /**
+    * Sets the process timeout identified in the resources XML file.
+    * This overrides any default or user supplied setting in the main
+    * Pass application. The value is remembered so that it can be
+    * reapplied with applyResourceTimeOut() if the resources XML file
+    * isn't reloaded.
+    * @param value the timeout in seconds
+    */ 
+   public void setResourceTimeOut(long value)
+   {
+      resourceTimeOut = value;
+      applyResourceTimeOut();
+   }
+
+   /**
+    * Applies the process timeout identified in the resources XML
+    * file (if any) to the main Pass application.
+    * @return true if the resources XML file has a timeout setting
+    */ 
+   public boolean applyResourceTimeOut()
+   {
+      if (resourceTimeOut <= 0L)
       {
-         verbMaxCharsPerLine = intVal.intValue();
+         return false;
       }
 
-      intVal = parser.getVerbTabCharCount();
+      pass.setTimeOut(resourceTimeOut);
 
-      if (intVal != null)
+      pass.transcriptMessage(getMessageWithDefault(
+        "message.resource_timeout",
+        "Timeout property {0,number} found in resources file. This will override any default or user supplied setting.",
+        resourceTimeOut));
+
+      return true;
+   }
+
+   /**
+    * Loads all assignment data for the given course. If the course
+    * data cache has been enabled, the cached data is used if it's
+    * still valid.
+    * @param course the course
+    * @return the list of all assignments defined in the course XML
+    * file
+    */ 
+   public Vector<AssignmentData> loadAssignments(Course course)
+    throws SAXException,IOException
+   {
+      if (courseDataCache != null)
       {
-         verbTabCharCount = intVal.intValue();
+         CourseDataCache.CachedAssignments data
+            = courseDataCache.loadAssignments(course);
+
+         courseSettings = data.getCourseSettings();
+
+         return data.getAssignments();
       }
 
+      AssignmentDataParser parser = new AssignmentDataParser(pass);
+
+      parser.loadAssignments(course);
+
+      Vector<AssignmentData> assignments = parser.getData();
+
+      courseSettings = new CourseSettings(parser);
+
       return assignments;
    }
 
+   /**
+    * Gets the course settings obtained from the most recently loaded
+    * assignment XML file.
+    * @return the course settings
+    */ 
+   public CourseSettings getCourseSettings()
+   {
+      return courseSettings;
+   }
+
+   /**
+    * Sets the course settings.
+    * @param settings the course settings
+    */ 
+   public void setCourseSettings(CourseSettings settings)
+   {
+      courseSettings = settings;
+   }
+
    /**
     * Sets the options for the listings package.
     * @param settings the listings.sty settings
     */ 
    public void setListingSettings(CharSequence settings)
    {
-      listingSettings = settings;
+      courseSettings.setListingSettings(settings);
    }
 
    /**
@@ -1163,7 +1655,7 @@ public class PassTools
     */ 
    public CharSequence getListingSettings()
    {
-      return listingSettings;
+      return courseSettings.getListingSettings();
    }
 
    /**
@@ -1172,7 +1664,7 @@ public class PassTools
     */ 
    public void setGeometrySettings(CharSequence settings)
    {
-      geometrySettings = settings;
+      courseSettings.setGeometrySettings(settings);
    }
 
    /**
@@ -1181,7 +1673,7 @@ public class PassTools
     */ 
    public CharSequence getGeometrySettings()
    {
-      return geometrySettings;
+      return courseSettings.getGeometrySettings();
    }
 
    /**
@@ -1190,7 +1682,7 @@ public class PassTools
     */ 
    public CharSequence getFontSpecSettings()
    {
-      return fontSpecSettings;
+      return courseSettings.getFontSpecSettings();
    }
 
    /**
@@ -1199,7 +1691,7 @@ public class PassTools
     */ 
    public String getFontSpecOptions()
    {
-      return fontSpecOptions;
+      return courseSettings.getFontSpecOptions();
    }
 
    /**
@@ -1208,7 +1700,7 @@ public class PassTools
     */ 
    public CharSequence getFontEncSettings()
    {
-      return fontEncSettings;
+      return courseSettings.getFontEncSettings();
    }
 
    /**
@@ -1217,7 +1709,7 @@ public class PassTools
     */ 
    public String getFontEncOptions()
    {
-      return fontEncOptions;
+      return courseSettings.getFontEncOptions();
    }
 
    /**
@@ -1230,7 +1722,7 @@ public class PassTools
     */ 
    public void setMaxOutputSetting(long setting)
    {
-      maxOutputSetting = setting;
+      courseSettings.setMaxOutputSetting(setting);
    }
 
    /**
@@ -1240,7 +1732,7 @@ public class PassTools
     */ 
    public long getMaxOutputSetting()
    {
-      return maxOutputSetting;
+      return courseSettings.getMaxOutputSetting();
    }
 
    /**
@@ -1252,7 +1744,7 @@ public class PassTools
     */ 
    public int getVerbMaxCharsPerLine()
    {
-      return verbMaxCharsPerLine;
+      return courseSettings.getVerbMaxCharsPerLine();
    }
 
    /**
@@ -1261,7 +1753,7 @@ public class PassTools
     */ 
    public int getVerbTabCharCount()
    {
-      return verbTabCharCount;
+      return courseSettings.getVerbTabCharCount();
    }
 
    /**
@@ -1303,6 +1795,15 @@ public class PassTools
       processEnvMap.put(envName, envValue);
    }
 
+   /**
+    * Gets the environment variables that are added to each process.
+    * @return the environment variable map or null if none
+    */ 
+   public Map<String,String> getProcessEnvironmentVariables()
+   {
+      return processEnvMap;
+   }
+
    /**
     * Adds the environment variable map to the process builder.
     * @param pb the process builder
@@ -1326,7 +1827,15 @@ public class PassTools
    {
       if (tmpDir == null || !tmpDir.exists())
       {
-         tmpDir = Files.createTempDirectory("prepasg").toFile();
+         if (workspaceDirectory == null)
+         {
+            tmpDir = Files.createTempDirectory("prepasg").toFile();
+         }
+         else
+         {
+            tmpDir = Files.createTempDirectory(workspaceDirectory.toPath(),
+              "prepasg").toFile();
+         }
       }
 
       return tmpDir;
@@ -1512,20 +2021,34 @@ public class PassTools
    public String getCheckSum(File file)
      throws IOException, NoSuchAlgorithmException
    {
-      return config.getCheckSum(Files.readAllBytes(file.toPath()));
+      return config.getCheckSum(file);
    }
 
    private HashMap<String,File> applications = null;
    private Pass pass;
    private boolean isWindows=false;
    private boolean agreeRequired = true;
-
-   private CharSequence listingSettings;
-   private CharSequence geometrySettings;
-   private CharSequence fontSpecSettings, fontEncSettings;
-   private String fontSpecOptions, fontEncOptions;
-   private long maxOutputSetting = 10240L;
-   private int verbMaxCharsPerLine = 80, verbTabCharCount=8;
+   private long resourceTimeOut = 0L;
+   private File cacheDirectory = null;
+   private long maxStdoutBytes = 0L, maxStderrBytes = 0L, maxLogBytes = 0L;
+   private boolean killOnOutputLimit = false;
+   private long killGracePeriod = 2000L;
+   private int latexAbortMaxErrors = 0;
+   private Vector<Pattern> latexAbortPatterns = null;
+   private LaTeXFormatCache latexFormatCache = null;
+   private ResourceCache resourceCache = null;
+   private ResultsCache resultsCache = null;
+   private CourseDataCache courseDataCache = null;
+   private boolean inProcessJavaCompiler = false;
+   private boolean parallelStages = true;
+   private boolean autoLaTeXEngine = true;
+   private int maxWarnings = 0;
+   private JobBudget jobBudget = null;
+   private boolean timingReport = true;
+   private File workspaceDirectory = null;
+   private int stagingMode = FileStager.COPY;
+
+   private CourseSettings courseSettings = new CourseSettings();
    private boolean luaLaTeXBraces=false;
 
    private HashMap<String,String> processEnvMap;
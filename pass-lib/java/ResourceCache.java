@@ -0,0 +1,517 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local cache of remote resource files and build scripts. This
+ * cache is shared by all jobs that use the same cache directory
+ * (including jobs run by other processes).
+ *
+ * The content of each file is stored in the "objects"
+ * subdirectory. The object file name is the SHA-256 hash of the
+ * content, so identical files fetched from different URIs are only
+ * stored once. The "index" subdirectory contains a properties file
+ * for each URI (named after the hash of the URI) that identifies the
+ * object and has the ETag and Last-Modified values sent by the
+ * server. These are used to make a conditional request the next time
+ * the resource is needed, so the file is only downloaded again if it
+ * has changed.
+ *
+ * In offline mode, the server isn't contacted if the resource has
+ * already been cached.
+ *
+ * New files are downloaded into the "tmp" subdirectory and then
+ * moved into place, so concurrent jobs won't see an incomplete file.
+ *
+ * Objects are always copied into the job directory. They aren't
+ * hard linked, since a link would share the object's content with
+ * the job, and the application or build script could then change
+ * the cached file for every later job.
+ */
+public class ResourceCache
+{
+   /**
+    * Creates a new cache.
+    * @param passTools the PASS tools
+    * @param dir the cache directory
+    * @param offline if true, cached resources are used without
+    * checking if they have been modified
+    * @throws IOException if the directories don't exist and can't be
+    * created
+    */
+   public ResourceCache(PassTools passTools, File dir, boolean offline)
+   throws IOException
+   {
+      this.passTools = passTools;
+      this.offline = offline;
+
+      objectsDir = new File(dir, OBJECTS_DIR_NAME);
+      indexDir = new File(dir, INDEX_DIR_NAME);
+      tmpDir = new File(dir, TMP_DIR_NAME);
+
+      Files.createDirectories(objectsDir.toPath());
+      Files.createDirectories(indexDir.toPath());
+      Files.createDirectories(tmpDir.toPath());
+   }
+
+   /**
+    * Determines whether or not this cache is in offline mode.
+    * @return true if cached resources are used without checking
+    * the server
+    */
+   public boolean isOffline()
+   {
+      return offline;
+   }
+
+   /**
+    * Fetches the resource with the given URL and puts it in the
+    * given location. The resource is only downloaded if it isn't
+    * in the cache or if the server reports that it has been
+    * modified. The URL must be the actual location of the file,
+    * not a redirect.
+    * @param url the URL of the resource
+    * @param dest the location of the file in the job directory
+    * @throws IOException if the resource can't be fetched
+    */
+   public void fetch(URL url, Path dest) throws IOException
+   {
+      String key = getHash(url.toString().getBytes(StandardCharsets.UTF_8));
+
+      Object lock = locks.computeIfAbsent(key, k -> new Object());
+
+      synchronized (lock)
+      {
+         File indexFile = new File(indexDir, key+INDEX_EXTENSION);
+
+         Properties entry = readEntry(indexFile);
+
+         File object = null;
+
+         if (entry != null)
+         {
+            String name = entry.getProperty(KEY_OBJECT);
+
+            if (name != null)
+            {
+               object = new File(objectsDir, name);
+
+               if (!object.exists())
+               {
+                  object = null;
+               }
+            }
+         }
+
+         if (object != null && offline)
+         {
+            passTools.getPass().debug("Using cached copy of "+url
+              +" (offline)");
+
+            install(object, dest);
+
+            return;
+         }
+
+         URLConnection con = url.openConnection();
+
+         if (!(con instanceof HttpURLConnection))
+         {
+            // Not an HTTP resource so there's no way of checking if
+            // it has changed.
+
+            copy(con, url, dest);
+
+            return;
+         }
+
+         HttpURLConnection httpCon = (HttpURLConnection)con;
+
+         try
+         {
+            httpCon.setConnectTimeout(CONNECT_TIMEOUT);
+            httpCon.setReadTimeout(READ_TIMEOUT);
+            httpCon.setInstanceFollowRedirects(false);
+
+            if (object != null)
+            {
+               String etag = entry.getProperty(KEY_ETAG);
+
+               if (etag != null)
+               {
+                  httpCon.setRequestProperty("If-None-Match", etag);
+               }
+
+               String lastModified = entry.getProperty(KEY_LAST_MODIFIED);
+
+               if (lastModified != null)
+               {
+                  try
+                  {
+                     httpCon.setIfModifiedSince(Long.parseLong(lastModified));
+                  }
+                  catch (NumberFormatException e)
+                  {
+                     passTools.getPass().debug(e.getMessage());
+                  }
+               }
+            }
+
+            int status = getResponseCode(httpCon, url);
+
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && object != null)
+            {
+               passTools.getPass().debug("Using cached copy of "+url
+                 +" (not modified)");
+
+               install(object, dest);
+
+               return;
+            }
+
+            if (status > 299)
+            {
+               throw new InputResourceException(
+                 passTools.getMessageWithDefault(
+                 "error.http_status",
+                 "Unable to access ''{0}''. Status code: {1,number,integer}.",
+                  url, status));
+            }
+
+            passTools.getPass().debug("Fetching file "+url);
+
+            object = download(httpCon);
+
+            entry = new Properties();
+            entry.setProperty(KEY_URI, url.toString());
+            entry.setProperty(KEY_OBJECT, object.getName());
+
+            String etag = httpCon.getHeaderField("ETag");
+
+            if (etag != null)
+            {
+               entry.setProperty(KEY_ETAG, etag);
+            }
+
+            long lastModified = httpCon.getLastModified();
+
+            if (lastModified > 0)
+            {
+               entry.setProperty(KEY_LAST_MODIFIED, ""+lastModified);
+            }
+
+            writeEntry(indexFile, entry);
+         }
+         finally
+         {
+            httpCon.disconnect();
+         }
+
+         install(object, dest);
+      }
+   }
+
+   /**
+    * Gets the response code, converting an SSL handshake failure
+    * into a more helpful exception.
+    * @param con the connection
+    * @param url the URL
+    * @return the response code
+    * @throws IOException if the connection fails
+    */
+   private int getResponseCode(HttpURLConnection con, URL url)
+   throws IOException
+   {
+      try
+      {
+         return con.getResponseCode();
+      }
+      catch (javax.net.ssl.SSLHandshakeException e)
+      {
+         throw new InputResourceException(passTools.getMessageWithDefault(
+           "error.http_ssl_failed",
+           "Can't fetch ''{0}''. It''s possible you''re trying to access a file across SSL/TCP but you don''t have the certificate listed in your Java cacerts file.\nIf you have an old version of Java you may find that upgrading it resolves the issue. Otherwise you will need to add the required certificate.",
+           url), e);
+      }
+   }
+
+   /**
+    * Downloads the content into the object store. The content is
+    * hashed as it's written to a temporary file, which is then
+    * moved to its object name.
+    * @param con the connection
+    * @return the object file
+    * @throws IOException if an I/O error occurs
+    */
+   private File download(URLConnection con) throws IOException
+   {
+      MessageDigest md = createDigest();
+
+      File tmpFile = File.createTempFile("download-", ".tmp", tmpDir);
+
+      try
+      {
+         InputStream in = null;
+         OutputStream out = null;
+
+         try
+         {
+            in = con.getInputStream();
+            out = new DigestOutputStream(
+               Files.newOutputStream(tmpFile.toPath()), md);
+
+            in.transferTo(out);
+         }
+         finally
+         {
+            if (in != null)
+            {
+               in.close();
+            }
+
+            if (out != null)
+            {
+               out.close();
+            }
+         }
+
+         File object = new File(objectsDir, toHex(md.digest()));
+
+         if (!object.exists())
+         {
+            Files.move(tmpFile.toPath(), object.toPath(),
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+         }
+
+         return object;
+      }
+      finally
+      {
+         Files.deleteIfExists(tmpFile.toPath());
+      }
+   }
+
+   /**
+    * Copies the content from the given connection without caching
+    * it.
+    * @param con the connection
+    * @param url the URL
+    * @param dest the destination file
+    * @throws IOException if an I/O error occurs
+    */
+   private void copy(URLConnection con, URL url, Path dest)
+   throws IOException
+   {
+      passTools.getPass().debug("Fetching file "+url);
+
+      InputStream in = null;
+
+      try
+      {
+         in = con.getInputStream();
+
+         Files.copy(in, dest, StandardCopyOption.REPLACE_EXISTING);
+      }
+      finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+      }
+   }
+
+   /**
+    * Puts a copy of the cached object in the job directory.
+    * @param object the cached file
+    * @param dest the location in the job directory
+    * @throws IOException if an I/O error occurs
+    */
+   private void install(File object, Path dest) throws IOException
+   {
+      Files.copy(object.toPath(), dest, StandardCopyOption.REPLACE_EXISTING);
+   }
+
+   /**
+    * Reads an index entry.
+    * @param file the index file
+    * @return the entry or null if the file doesn't exist or can't
+    * be read
+    */
+   private Properties readEntry(File file)
+   {
+      if (!file.exists()) return null;
+
+      Properties entry = new Properties();
+
+      InputStream in = null;
+
+      try
+      {
+         in = Files.newInputStream(file.toPath());
+
+         entry.load(in);
+      }
+      catch (IOException | IllegalArgumentException e)
+      {
+         passTools.getPass().debug(String.format(
+           "Unable to read cache index %s: %s", file, e.getMessage()));
+
+         return null;
+      }
+      finally
+      {
+         if (in != null)
+         {
+            try
+            {
+               in.close();
+            }
+            catch (IOException e)
+            {
+            }
+         }
+      }
+
+      return entry;
+   }
+
+   /**
+    * Writes an index entry. The entry is written to a temporary
+    * file and then moved into place.
+    * @param file the index file
+    * @param entry the entry
+    * @throws IOException if an I/O error occurs
+    */
+   private void writeEntry(File file, Properties entry) throws IOException
+   {
+      File tmpFile = File.createTempFile("index-", ".tmp", tmpDir);
+
+      try
+      {
+         OutputStream out = null;
+
+         try
+         {
+            out = Files.newOutputStream(tmpFile.toPath());
+
+            entry.store(out, null);
+         }
+         finally
+         {
+            if (out != null)
+            {
+               out.close();
+            }
+         }
+
+         Files.move(tmpFile.toPath(), file.toPath(),
+           StandardCopyOption.REPLACE_EXISTING,
+           StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally
+      {
+         Files.deleteIfExists(tmpFile.toPath());
+      }
+   }
+
+   /**
+    * Creates the digest used for object and index names.
+    * @return new SHA-256 digest
+    * @throws IOException if the algorithm isn't available
+    */
+   private MessageDigest createDigest() throws IOException
+   {
+      try
+      {
+         return MessageDigest.getInstance("SHA-256");
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IOException(e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Gets the hash of the given data as a hexadecimal string.
+    * @param data the data
+    * @return the hexadecimal hash
+    * @throws IOException if the algorithm isn't available
+    */
+   private String getHash(byte[] data) throws IOException
+   {
+      return toHex(createDigest().digest(data));
+   }
+
+   /**
+    * Converts a digest to a hexadecimal string.
+    * @param digest the digest
+    * @return the hexadecimal string
+    */
+   static String toHex(byte[] digest)
+   {
+      StringBuilder builder = new StringBuilder(2*digest.length);
+
+      for (byte b : digest)
+      {
+         builder.append(String.format("%02x", b));
+      }
+
+      return builder.toString();
+   }
+
+   private PassTools passTools;
+   private File objectsDir, indexDir, tmpDir;
+   private boolean offline;
+
+   private ConcurrentHashMap<String,Object> locks
+     = new ConcurrentHashMap<String,Object>();
+
+   private static final int CONNECT_TIMEOUT=5000;// 5 seconds
+   private static final int READ_TIMEOUT=30000;// 30 seconds
+
+   public static final String OBJECTS_DIR_NAME="objects";
+   public static final String INDEX_DIR_NAME="index";
+   public static final String TMP_DIR_NAME="tmp";
+   public static final String INDEX_EXTENSION=".properties";
+
+   private static final String KEY_URI="uri";
+   private static final String KEY_OBJECT="object";
+   private static final String KEY_ETAG="etag";
+   private static final String KEY_LAST_MODIFIED="lastmodified";
+}
@@ -47,7 +47,7 @@ import java.net.URI;
  * runs the student's application.
  */
 
-public class ResourceFile
+public class ResourceFile implements java.io.Serializable
 {
    /**
     * Creates a new object representing a plain text resource file.
@@ -128,4 +128,6 @@ public class ResourceFile
 
    private URI uri;
    private String mimetype, basename;
+
+   private static final long serialVersionUID = 1L;
 }
@@ -29,7 +29,7 @@ package com.dickimawbooks.passlib;
  * mime type must start with <code>text/</code> or <code>image/</code>
  * and, if an image, must be a format supported by graphics.sty.
  */
-public class ResultFile
+public class ResultFile implements java.io.Serializable
 {
    /**
     * Creates a new instance.
@@ -83,4 +83,6 @@ public class ResultFile
    private String name;
    private String mimetype;
    private boolean listing;
+
+   private static final long serialVersionUID = 1L;
 }
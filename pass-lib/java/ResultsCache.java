@@ -0,0 +1,658 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local cache of build and test results, so that a job with the
+ * same submission as an earlier job doesn't have to compile and run
+ * the application again. This cache is shared by all jobs that use
+ * the same cache directory (including jobs run by other processes).
+ *
+ * Each entry is identified by a key that's a hash of everything that
+ * the results depend on (see KeyBuilder). The entry is a
+ * subdirectory of the "entries" directory named after the key. It
+ * contains the LaTeX code written for the build and test section of
+ * the document, a properties file with the exit code, the
+ * warnings that were issued and the files input by the LaTeX code,
+ * and the "files" subdirectory with the
+ * files created or modified in the job directory by the build (such
+ * as the verbatim files that are input by the LaTeX code and any
+ * result files).
+ *
+ * Entries are written to the "tmp" subdirectory and then moved into
+ * place. When the total size of the entries exceeds the maximum, the
+ * least recently used entries are removed.
+ */
+public class ResultsCache
+{
+   /**
+    * Creates a new cache.
+    * @param passTools the PASS tools
+    * @param dir the cache directory
+    * @param maxSize the maximum total size of the entries in bytes
+    * @throws IOException if the directories don't exist and can't be
+    * created
+    */
+   public ResultsCache(PassTools passTools, File dir, long maxSize)
+   throws IOException
+   {
+      this.passTools = passTools;
+      this.maxSize = maxSize;
+
+      entriesDir = new File(dir, ENTRIES_DIR_NAME);
+      tmpDir = new File(dir, TMP_DIR_NAME);
+
+      Files.createDirectories(entriesDir.toPath());
+      Files.createDirectories(tmpDir.toPath());
+   }
+
+   /**
+    * Gets the maximum total size of the entries.
+    * @return the maximum size in bytes
+    */
+   public long getMaxSize()
+   {
+      return maxSize;
+   }
+
+   /**
+    * Creates a new key builder.
+    * @return the key builder
+    * @throws IOException if the hash algorithm isn't available
+    */
+   public KeyBuilder newKey() throws IOException
+   {
+      return new KeyBuilder();
+   }
+
+   /**
+    * Gets the results with the given key and copies the files
+    * created by the build into the job directory.
+    * @param key the key
+    * @param dir the job directory
+    * @return the results or null if they aren't in the cache
+    */
+   public Results load(String key, File dir)
+   {
+      Object lock = locks.computeIfAbsent(key, k -> new Object());
+
+      synchronized (lock)
+      {
+         File entryDir = new File(entriesDir, key);
+         File propFile = new File(entryDir, PROPERTIES_NAME);
+
+         if (!propFile.exists())
+         {
+            return null;
+         }
+
+         try
+         {
+            Properties props = readProperties(propFile);
+
+            Results results = new Results(
+              new String(Files.readAllBytes(
+                new File(entryDir, LATEX_NAME).toPath()), StandardCharsets.UTF_8),
+              Integer.parseInt(props.getProperty(KEY_EXIT_CODE)),
+              new Date(Long.parseLong(props.getProperty(KEY_CREATED))));
+
+            int count = Integer.parseInt(props.getProperty(KEY_WARNINGS, "0"));
+
+            for (int i = 0; i < count; i++)
+            {
+               String warning = props.getProperty(KEY_WARNING+i);
+
+               if (warning != null)
+               {
+                  results.warnings.add(warning);
+               }
+            }
+
+            count = Integer.parseInt(props.getProperty(KEY_INPUTS, "0"));
+
+            for (int i = 0; i < count; i++)
+            {
+               String input = props.getProperty(KEY_INPUT+i);
+
+               if (input != null)
+               {
+                  results.inputs.add(dir.toPath().resolve(input).toFile());
+               }
+            }
+
+            File filesDir = new File(entryDir, FILES_DIR_NAME);
+
+            if (filesDir.exists())
+            {
+               copyTree(filesDir.toPath(), dir.toPath());
+            }
+
+            // Mark as recently used.
+
+            propFile.setLastModified(System.currentTimeMillis());
+
+            return results;
+         }
+         catch (IOException | RuntimeException e)
+         {
+            // The entry may have been removed by another process
+            // while it was being read.
+
+            passTools.getPass().debug(String.format(
+              "Unable to read results cache entry %s: %s",
+              entryDir, e.getMessage()));
+
+            return null;
+         }
+      }
+   }
+
+   /**
+    * Adds the results of a build to the cache. The entry isn't
+    * added if it's larger than the maximum size of the cache.
+    * @param key the key
+    * @param latex the LaTeX code written by the build
+    * @param warnings the warnings issued by the build
+    * @param exitCode the exit code of the build
+    * @param dir the job directory
+    * @param files the files created or modified by the build
+    * (relative to the job directory)
+    * @param inputs the files input by the LaTeX code (relative to
+    * the job directory)
+    * @throws IOException if an I/O error occurs
+    */
+   public void store(String key, String latex, Vector<String> warnings,
+     int exitCode, File dir, Vector<Path> files, Vector<Path> inputs)
+   throws IOException
+   {
+      Object lock = locks.computeIfAbsent(key, k -> new Object());
+
+      synchronized (lock)
+      {
+         File entryDir = new File(entriesDir, key);
+
+         if (entryDir.exists())
+         {
+            return;
+         }
+
+         byte[] latexBytes = latex.getBytes(StandardCharsets.UTF_8);
+
+         long size = latexBytes.length;
+
+         for (Path path : files)
+         {
+            size += Files.size(dir.toPath().resolve(path));
+         }
+
+         if (size > maxSize)
+         {
+            passTools.getPass().debug(String.format(
+              "Build results too large to cache (%d bytes).", size));
+
+            return;
+         }
+
+         Path tmpEntry = Files.createTempDirectory(tmpDir.toPath(), "entry-");
+
+         try
+         {
+            Files.write(tmpEntry.resolve(LATEX_NAME), latexBytes);
+
+            Path filesPath = tmpEntry.resolve(FILES_DIR_NAME);
+
+            for (Path path : files)
+            {
+               Path dest = filesPath.resolve(path);
+
+               Files.createDirectories(dest.getParent());
+               Files.copy(dir.toPath().resolve(path), dest,
+                 StandardCopyOption.COPY_ATTRIBUTES);
+            }
+
+            Properties props = new Properties();
+            props.setProperty(KEY_EXIT_CODE, ""+exitCode);
+            props.setProperty(KEY_CREATED, ""+System.currentTimeMillis());
+            props.setProperty(KEY_SIZE, ""+size);
+            props.setProperty(KEY_WARNINGS, ""+warnings.size());
+
+            for (int i = 0; i < warnings.size(); i++)
+            {
+               props.setProperty(KEY_WARNING+i, warnings.get(i));
+            }
+
+            props.setProperty(KEY_INPUTS, ""+inputs.size());
+
+            for (int i = 0; i < inputs.size(); i++)
+            {
+               props.setProperty(KEY_INPUT+i, inputs.get(i).toString());
+            }
+
+            // The properties file is written last, as its presence
+            // indicates that the entry is complete.
+
+            writeProperties(tmpEntry.resolve(PROPERTIES_NAME), props);
+
+            try
+            {
+               Files.move(tmpEntry, entryDir.toPath(),
+                 StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (FileAlreadyExistsException | DirectoryNotEmptyException e)
+            {
+               // added by another process
+               return;
+            }
+         }
+         finally
+         {
+            if (Files.exists(tmpEntry))
+            {
+               PassTools.deleteDir(tmpEntry.toFile());
+            }
+         }
+      }
+
+      evict();
+   }
+
+   /**
+    * Removes the least recently used entries until the total size
+    * is no more than the maximum.
+    */
+   private synchronized void evict()
+   {
+      File[] entries = entriesDir.listFiles();
+
+      if (entries == null) return;
+
+      long[] lastUsed = new long[entries.length];
+      long[] sizes = new long[entries.length];
+      long total = 0L;
+
+      for (int i = 0; i < entries.length; i++)
+      {
+         File propFile = new File(entries[i], PROPERTIES_NAME);
+
+         lastUsed[i] = propFile.lastModified();
+
+         try
+         {
+            sizes[i] = Long.parseLong(
+              readProperties(propFile).getProperty(KEY_SIZE, "0"));
+         }
+         catch (IOException | NumberFormatException e)
+         {
+            sizes[i] = 0L;
+         }
+
+         total += sizes[i];
+      }
+
+      if (total <= maxSize) return;
+
+      Integer[] order = new Integer[entries.length];
+
+      for (int i = 0; i < order.length; i++)
+      {
+         order[i] = Integer.valueOf(i);
+      }
+
+      Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+
+      for (int i = 0; i < order.length && total > maxSize; i++)
+      {
+         int idx = order[i].intValue();
+
+         passTools.getPass().debug("Removing results cache entry "
+            +entries[idx].getName());
+
+         // Remove the properties file first so that the entry is no
+         // longer considered complete.
+
+         new File(entries[idx], PROPERTIES_NAME).delete();
+
+         if (PassTools.deleteDir(entries[idx]))
+         {
+            total -= sizes[idx];
+         }
+      }
+   }
+
+   /**
+    * Copies the content of one directory into another.
+    * @param src the source directory
+    * @param dest the destination directory
+    * @throws IOException if an I/O error occurs
+    */
+   private static void copyTree(Path src, Path dest) throws IOException
+   {
+      File[] files = src.toFile().listFiles();
+
+      if (files == null) return;
+
+      for (File file : files)
+      {
+         Path target = dest.resolve(file.getName());
+
+         if (file.isDirectory())
+         {
+            Files.createDirectories(target);
+            copyTree(file.toPath(), target);
+         }
+         else
+         {
+            Files.copy(file.toPath(), target,
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.COPY_ATTRIBUTES);
+         }
+      }
+   }
+
+   private Properties readProperties(File file) throws IOException
+   {
+      Properties props = new Properties();
+
+      InputStream in = null;
+
+      try
+      {
+         in = Files.newInputStream(file.toPath());
+
+         props.load(in);
+      }
+      finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+      }
+
+      return props;
+   }
+
+   private void writeProperties(Path path, Properties props)
+   throws IOException
+   {
+      OutputStream out = null;
+
+      try
+      {
+         out = Files.newOutputStream(path);
+
+         props.store(out, null);
+      }
+      finally
+      {
+         if (out != null)
+         {
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * Build and test results obtained from the cache.
+    */
+   public static class Results
+   {
+      private Results(String latex, int exitCode, Date created)
+      {
+         this.latex = latex;
+         this.exitCode = exitCode;
+         this.created = created;
+      }
+
+      /**
+       * Gets the LaTeX code written by the build.
+       * @return the LaTeX code
+       */
+      public String getLaTeX()
+      {
+         return latex;
+      }
+
+      /**
+       * Gets the exit code of the build.
+       * @return the exit code
+       */
+      public int getExitCode()
+      {
+         return exitCode;
+      }
+
+      /**
+       * Gets the time the results were created.
+       * @return the creation time
+       */
+      public Date getCreated()
+      {
+         return created;
+      }
+
+      /**
+       * Gets the warnings issued by the build.
+       * @return the warnings
+       */
+      public Vector<String> getWarnings()
+      {
+         return warnings;
+      }
+
+      /**
+       * Gets the files input by the LaTeX code.
+       * @return the files in the job directory
+       */
+      public Vector<File> getInputs()
+      {
+         return inputs;
+      }
+
+      private String latex;
+      private int exitCode;
+      private Date created;
+      private Vector<String> warnings = new Vector<String>();
+      private Vector<File> inputs = new Vector<File>();
+   }
+
+   /**
+    * Creates a key by hashing the data that the results depend on.
+    * Each item is added with its length so that the boundaries
+    * between items are part of the hash.
+    */
+   public static class KeyBuilder
+   {
+      private KeyBuilder() throws IOException
+      {
+         try
+         {
+            md = MessageDigest.getInstance("SHA-256");
+         }
+         catch (NoSuchAlgorithmException e)
+         {
+            throw new IOException(e.getMessage(), e);
+         }
+      }
+
+      /**
+       * Adds a string.
+       * @param value the string (may be null)
+       */
+      public void add(String value)
+      {
+         if (value == null)
+         {
+            addLength(-1L);
+         }
+         else
+         {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            addLength(bytes.length);
+            md.update(bytes);
+         }
+      }
+
+      /**
+       * Adds the content of a file.
+       * @param file the file
+       * @throws IOException if the file can't be read
+       */
+      public void addFile(File file) throws IOException
+      {
+         if (!file.exists())
+         {
+            addLength(-1L);
+            return;
+         }
+
+         addLength(file.length());
+
+         InputStream in = null;
+
+         try
+         {
+            in = Files.newInputStream(file.toPath());
+
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while ((n = in.read(buffer)) != -1)
+            {
+               md.update(buffer, 0, n);
+            }
+         }
+         finally
+         {
+            if (in != null)
+            {
+               in.close();
+            }
+         }
+      }
+
+      /**
+       * Adds a serializable object.
+       * @param object the object
+       * @throws IOException if the object can't be serialized
+       */
+      public void addObject(Serializable object) throws IOException
+      {
+         MessageDigest objectDigest;
+
+         try
+         {
+            objectDigest = MessageDigest.getInstance("SHA-256");
+         }
+         catch (NoSuchAlgorithmException e)
+         {
+            throw new IOException(e.getMessage(), e);
+         }
+
+         ObjectOutputStream out = null;
+
+         try
+         {
+            out = new ObjectOutputStream(new DigestOutputStream(
+              OutputStream.nullOutputStream(), objectDigest));
+
+            out.writeObject(object);
+         }
+         finally
+         {
+            if (out != null)
+            {
+               out.close();
+            }
+         }
+
+         byte[] digest = objectDigest.digest();
+         addLength(digest.length);
+         md.update(digest);
+      }
+
+      private void addLength(long length)
+      {
+         for (int i = 56; i >= 0; i -= 8)
+         {
+            md.update((byte)(length >>> i));
+         }
+      }
+
+      /**
+       * Gets the key.
+       * @return the key as a hexadecimal string
+       */
+      @Override
+      public String toString()
+      {
+         return ResourceCache.toHex(md.digest());
+      }
+
+      private MessageDigest md;
+   }
+
+   private PassTools passTools;
+   private File entriesDir, tmpDir;
+   private long maxSize;
+
+   private ConcurrentHashMap<String,Object> locks
+     = new ConcurrentHashMap<String,Object>();
+
+   public static final String ENTRIES_DIR_NAME="entries";
+   public static final String TMP_DIR_NAME="tmp";
+   public static final String FILES_DIR_NAME="files";
+   public static final String LATEX_NAME="body.tex";
+   public static final String PROPERTIES_NAME="entry.properties";
+
+   /**
+    * Default maximum size (100MB).
+    */
+   public static final long DEFAULT_MAX_SIZE=100L*1024L*1024L;
+
+   private static final String KEY_EXIT_CODE="exitcode";
+   private static final String KEY_CREATED="created";
+   private static final String KEY_SIZE="size";
+   private static final String KEY_WARNINGS="warnings";
+   private static final String KEY_WARNING="warning.";
+   private static final String KEY_INPUTS="inputs";
+   private static final String KEY_INPUT="input.";
+}
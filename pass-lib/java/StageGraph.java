@@ -0,0 +1,342 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A set of named stages, each of which may depend on other stages.
+ * If an executor is supplied, each stage is run on the executor as
+ * soon as all of its dependencies have completed, so independent
+ * stages run in parallel. Otherwise each stage is run in the
+ * calling thread when it's added, so the stages are performed one
+ * after the other in the order they were added.
+ *
+ * If a stage fails, the stages that depend on it aren't run. (In
+ * sequential mode, none of the subsequent stages are run.) The
+ * exception is thrown by get() for the failed stage and for any
+ * stage that depends on it.
+ */
+public class StageGraph
+{
+   /**
+    * Creates a new stage graph.
+    * @param main the PASS application
+    * @param executor the executor used to run the stages or null
+    * if the stages should be run sequentially
+    */
+   public StageGraph(Pass main, Executor executor)
+   {
+      this(main, executor, null);
+   }
+
+   /**
+    * Creates a new stage graph that records how long each stage
+    * takes.
+    * @param main the PASS application
+    * @param executor the executor used to run the stages or null
+    * if the stages should be run sequentially
+    * @param timings the job timings to which each stage should be
+    * added (may be null)
+    */
+   public StageGraph(Pass main, Executor executor, JobTimings timings)
+   {
+      this.main = main;
+      this.executor = executor;
+      this.timings = timings;
+      stages = new Vector<Stage<?>>();
+   }
+
+   /**
+    * Determines whether or not the stages are run sequentially.
+    * @return true if each stage is run when it's added
+    */
+   public boolean isSequential()
+   {
+      return executor == null;
+   }
+
+   /**
+    * Adds a stage.
+    * @param name the name of the stage (used in messages)
+    * @param task the task performed by the stage
+    * @param dependencies the stages that must complete before this
+    * one can start
+    * @return the new stage
+    */
+   public <T> Stage<T> add(String name, Callable<T> task,
+     Stage<?>... dependencies)
+   {
+      Stage<T> stage = new Stage<T>(name);
+
+      if (executor == null)
+      {
+         if (failed)
+         {
+            stage.future.completeExceptionally(new CancellationException(
+              "Stage '"+name+"' not run"));
+         }
+         else
+         {
+            run(stage, task);
+         }
+      }
+      else
+      {
+         CompletableFuture<?>[] futures
+            = new CompletableFuture<?>[dependencies.length];
+
+         for (int i = 0; i < dependencies.length; i++)
+         {
+            futures[i] = dependencies[i].future;
+         }
+
+         CompletableFuture.allOf(futures).whenCompleteAsync((result, e) ->
+         {
+            if (e != null)
+            {
+               stage.future.completeExceptionally(e);
+            }
+            else if (cancelled)
+            {
+               stage.future.completeExceptionally(new CancellationException(
+                 "Stage '"+name+"' cancelled"));
+            }
+            else
+            {
+               run(stage, task);
+            }
+         }, executor);
+      }
+
+      stages.add(stage);
+
+      return stage;
+   }
+
+   /**
+    * Adds a stage that's run in the calling thread. This waits for
+    * the dependencies to complete and then runs the task, so it
+    * doesn't hold one of the executor's threads. It's intended for
+    * a long stage that the caller would otherwise be waiting for.
+    * Other stages must not depend on this one, since it isn't
+    * added until it has completed.
+    * @param name the name of the stage (used in messages)
+    * @param task the task performed by the stage
+    * @param dependencies the stages that must complete before this
+    * one can start
+    * @return the completed stage
+    */
+   public <T> Stage<T> addInCurrentThread(String name, Callable<T> task,
+     Stage<?>... dependencies)
+   {
+      if (executor == null)
+      {
+         return add(name, task, dependencies);
+      }
+
+      Stage<T> stage = new Stage<T>(name);
+
+      try
+      {
+         for (Stage<?> dependency : dependencies)
+         {
+            dependency.future.get();
+         }
+
+         if (cancelled)
+         {
+            stage.future.completeExceptionally(new CancellationException(
+              "Stage '"+name+"' cancelled"));
+         }
+         else
+         {
+            run(stage, task);
+         }
+      }
+      catch (ExecutionException | CancellationException e)
+      {
+         stage.future.completeExceptionally(e);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         stage.future.completeExceptionally(e);
+      }
+
+      stages.add(stage);
+
+      return stage;
+   }
+
+   /**
+    * Runs the stage's task and completes its future.
+    */
+   private <T> void run(Stage<T> stage, Callable<T> task)
+   {
+      main.debug("Starting stage "+stage.name);
+
+      JobTimings.Entry entry = timings == null ? null : timings.start(stage.name);
+
+      try
+      {
+         T result = task.call();
+
+         if (entry != null)
+         {
+            entry.end();
+         }
+
+         stage.future.complete(result);
+      }
+      catch (Throwable e)
+      {
+         failed = true;
+
+         if (entry != null)
+         {
+            entry.end();
+         }
+
+         main.debug("Stage "+stage.name+" failed: "+e);
+
+         stage.future.completeExceptionally(e);
+      }
+   }
+
+   /**
+    * Waits for the given stage to complete.
+    * @param stage the stage
+    * @return the result of the stage
+    * @throws IOException if the stage failed with an I/O error or
+    * some other checked exception
+    * @throws InterruptedException if the stage was interrupted or
+    * the current thread was interrupted while waiting
+    * @throws URISyntaxException if the stage encountered an invalid
+    * URI
+    */
+   public <T> T get(Stage<T> stage)
+   throws IOException,InterruptedException,URISyntaxException
+   {
+      try
+      {
+         return stage.future.get();
+      }
+      catch (ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+
+         while ((cause instanceof CompletionException
+                 || cause instanceof ExecutionException)
+                && cause.getCause() != null)
+         {
+            cause = cause.getCause();
+         }
+
+         if (cause instanceof IOException)
+         {
+            throw (IOException)cause;
+         }
+         else if (cause instanceof InterruptedException)
+         {
+            throw (InterruptedException)cause;
+         }
+         else if (cause instanceof URISyntaxException)
+         {
+            throw (URISyntaxException)cause;
+         }
+         else if (cause instanceof RuntimeException)
+         {
+            throw (RuntimeException)cause;
+         }
+         else if (cause instanceof Error)
+         {
+            throw (Error)cause;
+         }
+
+         throw new IOException(cause.getMessage(), cause);
+      }
+   }
+
+   /**
+    * Prevents any stages that haven't yet started from running.
+    * Stages that are already running aren't affected.
+    */
+   public void cancel()
+   {
+      cancelled = true;
+   }
+
+   /**
+    * Waits for all stages to finish (successfully or otherwise).
+    * Any exceptions are ignored. This should be used after a
+    * failure to make sure that no stage is still using files that
+    * are about to be deleted.
+    */
+   public void awaitQuietly()
+   {
+      for (Stage<?> stage : stages)
+      {
+         try
+         {
+            stage.future.join();
+         }
+         catch (CompletionException | CancellationException e)
+         {
+         }
+      }
+   }
+
+   /**
+    * A stage in the graph.
+    */
+   public static class Stage<T>
+   {
+      private Stage(String name)
+      {
+         this.name = name;
+         future = new CompletableFuture<T>();
+      }
+
+      /**
+       * Gets the name of this stage.
+       * @return the name
+       */
+      public String getName()
+      {
+         return name;
+      }
+
+      private String name;
+      private CompletableFuture<T> future;
+   }
+
+   private Pass main;
+   private Executor executor;
+   private JobTimings timings;
+   private Vector<Stage<?>> stages;
+   private volatile boolean cancelled = false;
+   private volatile boolean failed = false;
+}
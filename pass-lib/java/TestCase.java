@@ -0,0 +1,125 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+import java.util.Vector;
+
+/**
+ * Class representing a named test case. This is listed in the
+ * assignment XML file with the <code>testcase</code> element. Each
+ * test case has its own command line arguments and lines of STDIN
+ * for the student's application and may have its own timeout.
+ * If an assignment has any test cases, the student's application is
+ * run once for each test case (in a separate copy of the working
+ * directory) instead of once with the assignment's arguments and
+ * input.
+ */
+public class TestCase implements java.io.Serializable
+{
+   /**
+    * Creates a new instance.
+    * @param name the test case name
+    * @throws NullPointerException if the name is null
+    */ 
+   public TestCase(String name) throws NullPointerException
+   {
+      if (name == null)
+      {
+         throw new NullPointerException();
+      }
+
+      this.name = name;
+      inputList = new Vector<String>();
+      argList = new Vector<String>();
+   }
+
+   /**
+    * Gets the test case name.
+    * @return the name
+    */ 
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Sets the timeout for this test case.
+    * @param seconds the timeout in seconds or 0 to use the default
+    * timeout
+    */ 
+   public void setTimeOut(long seconds)
+   {
+      timeout = seconds;
+   }
+
+   /**
+    * Gets the timeout for this test case.
+    * @return the timeout in seconds or 0 if the default timeout
+    * should be used
+    */ 
+   public long getTimeOut()
+   {
+      return timeout;
+   }
+
+   /**
+    * Adds a line of input that must be sent to the student's
+    * application via STDIN for this test case.
+    * @param input a line of input
+    */ 
+   public void addInput(String input)
+   {
+      inputList.add(input);
+   }
+
+   /**
+    * Gets the list of all lines of input that must be sent to the
+    * student's application via STDIN for this test case.
+    * @return list of all lines of input
+    */ 
+   public Vector<String> getInputs()
+   {
+      return inputList;
+   }
+
+   /**
+    * Adds a command line argument that must be added to the
+    * invocation of the student's application for this test case.
+    * @param arg the command line argument
+    */ 
+   public void addArg(String arg)
+   {
+      argList.add(arg);
+   }
+
+   /**
+    * Gets the list of all command line arguments that must be added
+    * to the invocation of the student's application for this test
+    * case.
+    * @return list of all command line arguments
+    */ 
+   public Vector<String> getArgs()
+   {
+      return argList;
+   }
+
+   private String name;
+   private long timeout = 0L;
+   private Vector<String> inputList;
+   private Vector<String> argList;
+
+   private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,142 @@
+/*
+   Copyright 2022 Nicola L. C. Talbot
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.dickimawbooks.passlib;
+
+/**
+ * Counts the problematic characters found while writing verbatim
+ * content, so that a single summary warning can be issued for each
+ * kind of problem once the content has been written, rather than one
+ * warning per character. The position and code point of the first
+ * occurrence of each kind is kept. Nothing is allocated while
+ * characters are counted.
+ */
+public class VerbatimWarnings
+{
+   /**
+    * Creates a new instance.
+    * @param source the name of the content's source (may be null)
+    */
+   public VerbatimWarnings(String source)
+   {
+      this.source = source;
+   }
+
+   /**
+    * Gets the name of the content's source.
+    * @return the source name or null if unknown
+    */
+   public String getSource()
+   {
+      return source;
+   }
+
+   /**
+    * Moves to the next character on the current line.
+    */
+   public void nextColumn()
+   {
+      column++;
+   }
+
+   /**
+    * Moves to the start of the next line.
+    */
+   public void nextLine()
+   {
+      line++;
+      column = 0L;
+   }
+
+   /**
+    * Counts an occurrence of the given kind at the current position.
+    * @param kind the kind of problem (CONTROL or NON_ASCII)
+    * @param cp the code point
+    */
+   public void add(int kind, int cp)
+   {
+      if (counts[kind]++ == 0L)
+      {
+         firstCodePoints[kind] = cp;
+         firstLines[kind] = line;
+         firstColumns[kind] = column;
+      }
+   }
+
+   /**
+    * Gets the number of occurrences of the given kind.
+    * @param kind the kind of problem
+    * @return the number of occurrences
+    */
+   public long getCount(int kind)
+   {
+      return counts[kind];
+   }
+
+   /**
+    * Gets the first code point of the given kind.
+    * @param kind the kind of problem
+    * @return the code point
+    */
+   public int getFirstCodePoint(int kind)
+   {
+      return firstCodePoints[kind];
+   }
+
+   /**
+    * Gets the line number (starting from 1) of the first occurrence
+    * of the given kind.
+    * @param kind the kind of problem
+    * @return the line number
+    */
+   public long getFirstLine(int kind)
+   {
+      return firstLines[kind];
+   }
+
+   /**
+    * Gets the column (starting from 1) of the first occurrence of
+    * the given kind.
+    * @param kind the kind of problem
+    * @return the column
+    */
+   public long getFirstColumn(int kind)
+   {
+      return firstColumns[kind];
+   }
+
+   /**
+    * Control character other than TAB, LF, FF or CR.
+    */
+   public static final int CONTROL=0;
+
+   /**
+    * Non-ASCII character in ASCII mode.
+    */
+   public static final int NON_ASCII=1;
+
+   /**
+    * The number of kinds of problem.
+    */
+   public static final int KIND_COUNT=2;
+
+   private String source;
+   private long line = 1L, column = 0L;
+
+   private long[] counts = new long[KIND_COUNT];
+   private int[] firstCodePoints = new int[KIND_COUNT];
+   private long[] firstLines = new long[KIND_COUNT];
+   private long[] firstColumns = new long[KIND_COUNT];
+}
@@ -0,0 +1,52 @@
+package wordcount;
+
+import java.io.*;
+
+public class WordCount
+{
+   private static int countWords(String line)
+   {
+      line = line.trim();
+
+      return line.isEmpty() ? 0 : line.split("\\s+").length;
+   }
+
+   public static void main(String[] args)
+   {
+      try
+      {
+         int lines = 0;
+         int words = 0;
+
+         for (String arg : args)
+         {
+            lines++;
+            words += countWords(arg);
+         }
+
+         BufferedReader in = new BufferedReader(
+           new InputStreamReader(System.in));
+
+         String line;
+
+         while ((line = in.readLine()) != null)
+         {
+            lines++;
+            words += countWords(line);
+         }
+
+         in.close();
+
+         System.out.println(String.format("Lines: %d", lines));
+         System.out.println(String.format("Words: %d", words));
+
+         PrintWriter out = new PrintWriter("counts.txt");
+         out.println(String.format("%d %d", lines, words));
+         out.close();
+      }
+      catch (Exception e)
+      {
+         e.printStackTrace();
+      }
+   }
+}